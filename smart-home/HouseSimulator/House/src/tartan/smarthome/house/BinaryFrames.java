@@ -0,0 +1,167 @@
+package tartan.smarthome.house;
+
+import java.util.StringTokenizer;
+
+/**
+ * The binary framing of the house protocol, as offered by the platform with "VER:2.". Each message is
+ *
+ * <pre>
+ *   [length: u16][type: u8][count: u8] then count times [field: u8][value: i16]
+ * </pre>
+ *
+ * big-endian, with the length counting the bytes after it. The type and field numbers must match the
+ * platform's BinaryFrameCodec. The houses work in the text protocol, so frames are translated to and from
+ * text messages at the connection.
+ */
+final class BinaryFrames {
+
+    /** the version of the binary framing */
+    static final String VERSION = "2";
+
+    /** the version of the multiplexed framing a gateway speaks, where each frame starts with a house ID */
+    static final String GATEWAY_VERSION = "3";
+
+    /** the largest frame a platform could send with every field set */
+    static final int MAX_FRAME = 2 + 3 * 32;
+
+    // message types, indexed by their wire value
+    private static final String[] TYPES = {
+            null,
+            VirtualHouse.GET_STATE,
+            VirtualHouse.SET_STATE,
+            VirtualHouse.STATE_UPDATE,
+            VirtualHouse.OK,
+            VirtualHouse.ERROR,
+            VirtualHouse.SUBSCRIBE
+    };
+
+    // fields, indexed by their wire value
+    private static final String[] FIELDS = {
+            null,
+            VirtualHouse.TEMP_READING,
+            VirtualHouse.HUMIDITY_READING,
+            VirtualHouse.HUMIDIFIER_STATE,
+            VirtualHouse.DOOR_STATE,
+            VirtualHouse.LIGHT_STATE,
+            VirtualHouse.PROXIMITY_STATE,
+            VirtualHouse.ALARM_STATE,
+            VirtualHouse.HVAC_MODE,
+            VirtualHouse.ALARM_ACTIVE,
+            VirtualHouse.HEATER_STATE,
+            VirtualHouse.CHILLER_STATE
+    };
+
+    private BinaryFrames() {
+    }
+
+    /**
+     * Translate a frame from the platform into a text request
+     * @param frame the frame, without its length
+     * @return the request without its terminator, such as "SS:LS=1;DS=0", or null if the frame is malformed
+     */
+    static String toRequest(byte[] frame) {
+        if (frame.length < 2) {
+            return null;
+        }
+        int type = frame[0] & 0xff;
+        int count = frame[1] & 0xff;
+        if (type == 0 || type >= TYPES.length || frame.length != 2 + 3 * count) {
+            return null;
+        }
+        if (count == 0) {
+            return TYPES[type];
+        }
+
+        StringBuilder request = new StringBuilder(TYPES[type]).append(VirtualHouse.MSG_DELIM);
+        for (int pos = 2; pos < frame.length; pos += 3) {
+            int field = frame[pos] & 0xff;
+            if (field == 0 || field >= FIELDS.length) {
+                continue;
+            }
+            short value = (short) (((frame[pos + 1] & 0xff) << 8) | (frame[pos + 2] & 0xff));
+            if (request.charAt(request.length() - 1) != VirtualHouse.MSG_DELIM.charAt(0)) {
+                request.append(VirtualHouse.PARAM_DELIM);
+            }
+            request.append(FIELDS[field]).append(VirtualHouse.PARAM_EQ).append(value);
+        }
+        return request.toString();
+    }
+
+    /**
+     * Translate a text response into a frame
+     * @param response the response, such as "SU:TR=71;HR=42." or "OK."
+     * @return the frame, including its length
+     */
+    static byte[] fromResponse(String response) {
+        if (response.endsWith(VirtualHouse.MSG_END)) {
+            response = response.substring(0, response.length() - 1);
+        }
+        int delim = response.indexOf(VirtualHouse.MSG_DELIM);
+        String type = delim < 0 ? response : response.substring(0, delim);
+
+        byte[] frame = new byte[MAX_FRAME + 2];
+        frame[2] = (byte) typeId(type);
+        int pos = 4;
+        int count = 0;
+        if (delim >= 0) {
+            StringTokenizer params = new StringTokenizer(response.substring(delim + 1), VirtualHouse.PARAM_DELIM);
+            while (params.hasMoreTokens() && count < 32) {
+                String param = params.nextToken();
+                int eq = param.indexOf(VirtualHouse.PARAM_EQ);
+                int field = eq < 0 ? -1 : fieldId(param.substring(0, eq));
+                if (field < 0) {
+                    continue;
+                }
+                int value = Integer.parseInt(param.substring(eq + 1));
+                frame[pos++] = (byte) field;
+                frame[pos++] = (byte) (value >> 8);
+                frame[pos++] = (byte) value;
+                count++;
+            }
+        }
+        frame[0] = (byte) ((pos - 2) >> 8);
+        frame[1] = (byte) (pos - 2);
+        frame[3] = (byte) count;
+
+        byte[] trimmed = new byte[pos];
+        System.arraycopy(frame, 0, trimmed, 0, pos);
+        return trimmed;
+    }
+
+    /**
+     * Translate a text response from a house behind a gateway into a multiplexed frame
+     * @param response the response
+     * @param houseId the house's ID on the gateway
+     * @return the frame, including its length and the house ID
+     */
+    static byte[] fromResponse(String response, int houseId) {
+        byte[] frame = fromResponse(response);
+        byte[] multiplexed = new byte[frame.length + 2];
+        int length = frame.length;
+        multiplexed[0] = (byte) (length >> 8);
+        multiplexed[1] = (byte) length;
+        multiplexed[2] = (byte) (houseId >> 8);
+        multiplexed[3] = (byte) houseId;
+        System.arraycopy(frame, 2, multiplexed, 4, frame.length - 2);
+        return multiplexed;
+    }
+
+    private static int typeId(String type) {
+        for (int i = 1; i < TYPES.length; i++) {
+            if (TYPES[i].equals(type)) {
+                return i;
+            }
+        }
+        // anything the house can't express in binary is an error
+        return typeId(VirtualHouse.ERROR);
+    }
+
+    private static int fieldId(String field) {
+        for (int i = 1; i < FIELDS.length; i++) {
+            if (FIELDS[i].equals(field)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
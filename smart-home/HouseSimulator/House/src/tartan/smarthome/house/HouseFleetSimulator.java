@@ -0,0 +1,649 @@
+package tartan.smarthome.house;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Simulates a fleet of houses on one NIO selector thread. House N listens on basePort + N, so the platform
+ * can be pointed at thousands of houses on one machine. Latency, lost responses and disconnects can be
+ * injected, and everything random is derived from one seed.
+ *
+ * Houses speak the text protocol, and switch a connection to binary frames when the platform offers them.
+ * With --gateways=N the houses are spread over N building gateways instead: house N is reached through
+ * gateway port basePort + N % gateways as gateway house ID N + 1, in multiplexed binary frames.
+ *
+ * Run with --name=value settings, see {@link SimulatorSettings}.
+ */
+public class HouseFleetSimulator implements Runnable {
+
+    private final SimulatorSettings settings;
+    private final List<HouseEndpoint> endpoints;
+    private final List<Gateway> gateways = new ArrayList<>();
+
+    private Selector selector;
+    private volatile boolean running;
+
+    // responses held back by the injected latency, ordered by the time they are due
+    private final PriorityQueue<PendingResponse> pending = new PriorityQueue<>();
+    private long sequence = 0;
+
+    // simulated time, in seconds
+    private long clock;
+    private long nextTick;
+
+    // traffic statistics since the last report
+    private long requests, responses, pushes, bytesIn, bytesOut, dropped, disconnects;
+    private long nextReport;
+    private int openSessions;
+
+    /**
+     * A house, the port it is reached on, and the generator that decides its faults
+     */
+    private static class HouseEndpoint {
+        final VirtualHouse house;
+        final int port;
+        final int gatewayId; // the house ID on its gateway, or 0 if it listens on its own port
+        final Random faults;
+        final List<Session> sessions = new ArrayList<>(); // connections that get this house's pushes
+
+        HouseEndpoint(VirtualHouse house, int port, int gatewayId, Random faults) {
+            this.house = house;
+            this.port = port;
+            this.gatewayId = gatewayId;
+            this.faults = faults;
+        }
+    }
+
+    /**
+     * A building gateway and the houses behind it
+     */
+    private static class Gateway {
+        final int port;
+        final Map<Integer, HouseEndpoint> houses = new HashMap<>();
+
+        Gateway(int port) {
+            this.port = port;
+        }
+    }
+
+    /**
+     * A connection from the platform to a house or to a gateway
+     */
+    private static class Session {
+        final HouseEndpoint endpoint; // null for a gateway connection
+        final Gateway gateway; // null for a house connection
+        final SocketChannel channel;
+        final StringBuilder request = new StringBuilder();
+        final ByteBuffer frames = ByteBuffer.allocate(4 * (BinaryFrames.MAX_FRAME + 2));
+        final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+        final HashSet<HouseEndpoint> subscriptions = new HashSet<>(); // houses whose changes are pushed
+        boolean binary; // the platform switched to binary frames
+        boolean multiplexed; // the frames carry a gateway house ID
+        boolean closed;
+
+        Session(HouseEndpoint endpoint, Gateway gateway, SocketChannel channel) {
+            this.endpoint = endpoint;
+            this.gateway = gateway;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * A response waiting for its injected latency to pass
+     */
+    private static class PendingResponse implements Comparable<PendingResponse> {
+        final long due;
+        final long sequence;
+        final Session session;
+        final ByteBuffer data;
+
+        PendingResponse(long due, long sequence, Session session, ByteBuffer data) {
+            this.due = due;
+            this.sequence = sequence;
+            this.session = session;
+            this.data = data;
+        }
+
+        @Override
+        public int compareTo(PendingResponse o) {
+            if (due != o.due) {
+                return Long.compare(due, o.due);
+            }
+            return Long.compare(sequence, o.sequence);
+        }
+    }
+
+    /**
+     * Create the fleet. Houses are built immediately but nothing listens until {@link #start()}
+     * @param settings the simulation settings
+     */
+    public HouseFleetSimulator(SimulatorSettings settings) {
+        this.settings = settings;
+        this.endpoints = new ArrayList<>(settings.getHouses());
+
+        for (int g = 0; g < settings.getGateways(); g++) {
+            gateways.add(new Gateway(settings.getBasePort() + g));
+        }
+
+        Random seeds = new Random(settings.getSeed());
+        for (int i = 0; i < settings.getHouses(); i++) {
+            VirtualHouse house = new VirtualHouse(houseName(i), seeds.nextLong(), settings);
+            Random faults = new Random(seeds.nextLong());
+            if (gateways.isEmpty()) {
+                endpoints.add(new HouseEndpoint(house, settings.getBasePort() + i, 0, faults));
+            } else {
+                Gateway gateway = gateways.get(i % gateways.size());
+                HouseEndpoint endpoint = new HouseEndpoint(house, gateway.port, i + 1, faults);
+                gateway.houses.put(endpoint.gatewayId, endpoint);
+                endpoints.add(endpoint);
+            }
+        }
+
+        // start the simulated day at 6am, shortly before the first occupants leave
+        this.clock = 6 * 3600;
+    }
+
+    /**
+     * The name of a simulated house
+     * @param index the house number
+     * @return the name
+     */
+    public static String houseName(int index) {
+        return String.format("house%05d", index);
+    }
+
+    /**
+     * Get the simulated houses
+     * @return the houses, in port order
+     */
+    public List<VirtualHouse> getHouses() {
+        List<VirtualHouse> houses = new ArrayList<>(endpoints.size());
+        for (HouseEndpoint endpoint : endpoints) {
+            houses.add(endpoint.house);
+        }
+        return houses;
+    }
+
+    /**
+     * Bind every house port and start the selector thread
+     * @throws IOException if a port cannot be bound
+     */
+    public void start() throws IOException {
+        selector = Selector.open();
+        if (gateways.isEmpty()) {
+            for (HouseEndpoint endpoint : endpoints) {
+                listen(endpoint.port, endpoint);
+            }
+        } else {
+            for (Gateway gateway : gateways) {
+                listen(gateway.port, gateway);
+            }
+        }
+        running = true;
+
+        Thread thread = new Thread(this, "house-fleet-simulator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void listen(int port, Object attachment) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.bind(new InetSocketAddress(settings.getHost(), port));
+        server.register(selector, SelectionKey.OP_ACCEPT, attachment);
+    }
+
+    /**
+     * Stop the simulator and close every connection
+     */
+    public void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        long now = System.currentTimeMillis();
+        nextTick = now + settings.getTickMillis();
+        nextReport = now + settings.getReportSeconds() * 1000L;
+
+        try {
+            while (running) {
+                long timeout = Math.max(1, nextDeadline() - System.currentTimeMillis());
+                selector.select(timeout);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            accept(key);
+                        } else {
+                            if (key.isReadable()) {
+                                read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key);
+                            }
+                        }
+                    } catch (IOException ioe) {
+                        if (key.attachment() instanceof Session) {
+                            close((Session) key.attachment());
+                        }
+                    }
+                }
+
+                now = System.currentTimeMillis();
+                releaseResponses(now);
+                if (now >= nextTick) {
+                    tick(now);
+                }
+                if (now >= nextReport) {
+                    report(now);
+                }
+            }
+        } catch (IOException | ClosedSelectorException x) {
+            System.err.println("Simulator stopped: " + x);
+        } finally {
+            closeAll();
+        }
+    }
+
+    private long nextDeadline() {
+        long deadline = Math.min(nextTick, nextReport);
+        PendingResponse next = pending.peek();
+        if (next != null) {
+            deadline = Math.min(deadline, next.due);
+        }
+        return deadline;
+    }
+
+    private void accept(SelectionKey key) throws IOException {
+        SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+
+        Session session;
+        if (key.attachment() instanceof Gateway) {
+            session = new Session(null, (Gateway) key.attachment(), channel);
+        } else {
+            HouseEndpoint endpoint = (HouseEndpoint) key.attachment();
+            session = new Session(endpoint, null, channel);
+            endpoint.sessions.add(session);
+        }
+        channel.register(selector, SelectionKey.OP_READ, session);
+        openSessions++;
+    }
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+
+    private void read(SelectionKey key) throws IOException {
+        Session session = (Session) key.attachment();
+        readBuffer.clear();
+        int n = session.channel.read(readBuffer);
+        if (n < 0) {
+            close(session);
+            return;
+        }
+        bytesIn += n;
+        readBuffer.flip();
+
+        // requests are terminated by '.', with no line ending
+        while (readBuffer.hasRemaining()) {
+            if (session.binary) {
+                // everything after the version handshake is framed
+                readFrames(session);
+                return;
+            }
+            char c = (char) readBuffer.get();
+            if (c == '\n' || c == '\r') {
+                continue;
+            }
+            if (c != '.') {
+                session.request.append(c);
+                continue;
+            }
+            String request = session.request.toString();
+            session.request.setLength(0);
+            requests++;
+            handle(session, session.endpoint, request);
+            if (session.closed) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Take binary frames out of the read buffer and answer them. A frame can be split across reads, so
+     * partial frames wait in the session. On a gateway connection each frame starts with the house ID
+     * @param session the connection
+     */
+    private void readFrames(Session session) {
+        ByteBuffer frames = session.frames;
+        while (readBuffer.hasRemaining()) {
+            int n = Math.min(readBuffer.remaining(), frames.remaining());
+            ByteBuffer chunk = readBuffer.slice();
+            chunk.limit(n);
+            frames.put(chunk);
+            readBuffer.position(readBuffer.position() + n);
+
+            frames.flip();
+            while (frames.remaining() >= 2) {
+                int length = frames.getShort(frames.position()) & 0xffff;
+                if (length > BinaryFrames.MAX_FRAME + 2) {
+                    close(session);
+                    return;
+                }
+                if (frames.remaining() < 2 + length) {
+                    break;
+                }
+                frames.position(frames.position() + 2);
+                HouseEndpoint endpoint = session.endpoint;
+                if (session.multiplexed) {
+                    endpoint = session.gateway.houses.get(frames.getShort() & 0xffff);
+                    length -= 2;
+                }
+                byte[] frame = new byte[length];
+                frames.get(frame);
+
+                String request = BinaryFrames.toRequest(frame);
+                if (request == null || endpoint == null) {
+                    close(session);
+                    return;
+                }
+                requests++;
+                handle(session, endpoint, request);
+                if (session.closed) {
+                    return;
+                }
+            }
+            frames.compact();
+        }
+    }
+
+    /**
+     * Answer a request, subject to the injected faults
+     * @param session the connection
+     * @param endpoint the house the request is for, or null for a gateway that has not switched to frames
+     * @param request the request, without its terminator
+     */
+    private void handle(Session session, HouseEndpoint endpoint, String request) {
+        if (request.startsWith(VirtualHouse.VERSION)) {
+            // the version handshake is answered in text, is never lost, and switches the framing after it.
+            // Houses take the binary version and gateways the multiplexed one
+            String version = session.gateway == null ? BinaryFrames.VERSION : BinaryFrames.GATEWAY_VERSION;
+            boolean accepted = request.equals(VirtualHouse.VERSION + VirtualHouse.MSG_DELIM + version);
+            String response = (accepted ? VirtualHouse.OK : VirtualHouse.ERROR) + VirtualHouse.MSG_END + "\n";
+            send(session, ByteBuffer.wrap(response.getBytes(StandardCharsets.US_ASCII)));
+            session.binary = accepted;
+            session.multiplexed = accepted && session.gateway != null;
+            return;
+        }
+        if (endpoint == null) {
+            // a gateway only talks to houses once the platform has switched to multiplexed frames
+            String response = VirtualHouse.ERROR + VirtualHouse.MSG_END + "\n";
+            send(session, ByteBuffer.wrap(response.getBytes(StandardCharsets.US_ASCII)));
+            return;
+        }
+
+        Random faults = endpoint.faults;
+
+        if (settings.getDisconnectRate() > 0 && faults.nextDouble() < settings.getDisconnectRate()) {
+            disconnects++;
+            close(session);
+            return;
+        }
+
+        String response;
+        if (request.equals(VirtualHouse.SUBSCRIBE)) {
+            // from now on the house sends its state whenever it changes
+            if (session.subscriptions.add(endpoint) && session.multiplexed) {
+                endpoint.sessions.add(session);
+            }
+            response = VirtualHouse.OK + VirtualHouse.MSG_END;
+        } else {
+            response = endpoint.house.handleRequest(request);
+        }
+
+        if (settings.getPacketLoss() > 0 && faults.nextDouble() < settings.getPacketLoss()) {
+            dropped++;
+            return;
+        }
+
+        long delay = settings.getLatencyMillis();
+        if (settings.getJitterMillis() > 0) {
+            delay += faults.nextInt(settings.getJitterMillis() + 1);
+        }
+        ByteBuffer data = ByteBuffer.wrap(encode(session, endpoint, response));
+        if (delay == 0) {
+            send(session, data);
+        } else {
+            pending.add(new PendingResponse(System.currentTimeMillis() + delay, sequence++, session, data));
+        }
+    }
+
+    /**
+     * Put a response in the session's framing
+     * @param session the connection
+     * @param endpoint the house that is responding
+     * @param response the text response, without its line ending
+     * @return the bytes to send
+     */
+    private static byte[] encode(Session session, HouseEndpoint endpoint, String response) {
+        if (session.multiplexed) {
+            return BinaryFrames.fromResponse(response, endpoint.gatewayId);
+        }
+        if (session.binary) {
+            return BinaryFrames.fromResponse(response);
+        }
+        return (response + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private void releaseResponses(long now) {
+        while (!pending.isEmpty() && pending.peek().due <= now) {
+            PendingResponse response = pending.poll();
+            if (!response.session.closed) {
+                send(response.session, response.data);
+            }
+        }
+    }
+
+    private void send(Session session, ByteBuffer data) {
+        responses++;
+        session.output.add(data);
+        try {
+            write(session.channel.keyFor(selector));
+        } catch (IOException ioe) {
+            close(session);
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Session session = (Session) key.attachment();
+        while (!session.output.isEmpty()) {
+            ByteBuffer data = session.output.peek();
+            bytesOut += session.channel.write(data);
+            if (data.hasRemaining()) {
+                // the socket is full; wait until it can take more
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            session.output.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void close(Session session) {
+        if (session.closed) {
+            return;
+        }
+        session.closed = true;
+        if (session.endpoint != null) {
+            session.endpoint.sessions.remove(session);
+        }
+        for (HouseEndpoint endpoint : session.subscriptions) {
+            endpoint.sessions.remove(session);
+        }
+        openSessions--;
+        try {
+            session.channel.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Advance the physics of every house
+     * @param now the current time
+     */
+    private void tick(long now) {
+        int elapsed = (int) ((long) settings.getTickMillis() * settings.getTimeScale() / 1000);
+        clock += elapsed;
+        for (HouseEndpoint endpoint : endpoints) {
+            if (endpoint.house.tick(clock, elapsed)) {
+                push(endpoint);
+            }
+        }
+        nextTick = now + settings.getTickMillis();
+    }
+
+    /**
+     * Push a changed house state to every subscribed connection. Pushes are subject to the same latency
+     * and loss as responses
+     * @param endpoint the house that changed
+     */
+    private void push(HouseEndpoint endpoint) {
+        String update = null;
+        // backwards, because a connection that fails while sending is removed from the list
+        for (int i = endpoint.sessions.size() - 1; i >= 0; i--) {
+            Session session = endpoint.sessions.get(i);
+            if (!session.subscriptions.contains(endpoint) || session.closed) {
+                continue;
+            }
+            if (update == null) {
+                update = endpoint.house.getStateUpdate();
+            }
+            if (settings.getPacketLoss() > 0 && endpoint.faults.nextDouble() < settings.getPacketLoss()) {
+                dropped++;
+                continue;
+            }
+            pushes++;
+            long delay = settings.getLatencyMillis();
+            if (settings.getJitterMillis() > 0) {
+                delay += endpoint.faults.nextInt(settings.getJitterMillis() + 1);
+            }
+            ByteBuffer data = ByteBuffer.wrap(encode(session, endpoint, update));
+            if (delay == 0) {
+                send(session, data);
+            } else {
+                pending.add(new PendingResponse(System.currentTimeMillis() + delay, sequence++, session, data));
+            }
+        }
+    }
+
+    private void report(long now) {
+        long day = clock / 86400;
+        long time = clock % 86400;
+        System.out.printf("[day %d %02d:%02d] sessions=%d requests=%d responses=%d pushes=%d in=%dB out=%dB dropped=%d disconnects=%d%n",
+                day, time / 3600, (time / 60) % 60, openSessions, requests, responses, pushes, bytesIn, bytesOut,
+                dropped, disconnects);
+        requests = responses = pushes = bytesIn = bytesOut = dropped = disconnects = 0;
+        nextReport = now + settings.getReportSeconds() * 1000L;
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Write the house list for the platform's config.yml. Each house gets its own password because the
+     * platform identifies the house from the credentials
+     * @param path the file to write
+     * @param address the address the platform should connect to
+     * @throws IOException if the file cannot be written
+     */
+    public void writePlatformConfig(String path, String address) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(path))) {
+            out.println("# generated by HouseFleetSimulator for " + endpoints.size() + " houses, seed "
+                    + settings.getSeed());
+            out.println("houses:");
+            for (int i = 0; i < endpoints.size(); i++) {
+                HouseEndpoint endpoint = endpoints.get(i);
+                out.println("  - name: " + endpoint.house.getName());
+                out.println("    address: " + address);
+                out.println("    port: " + endpoint.port);
+                if (endpoint.gatewayId > 0) {
+                    out.println("    gatewayId: " + endpoint.gatewayId);
+                }
+                out.println("    user: admin");
+                out.println("    password: pw" + i);
+                out.println("    targetTemp: 70");
+                out.println("    alarmDelay: 30");
+                out.println("    alarmPasscode: stop");
+                out.println("    protocol: " + settings.getProtocol());
+            }
+        }
+    }
+
+    /**
+     * Run the simulator until killed
+     * @param args --name=value settings
+     * @throws Exception if the simulator cannot start
+     */
+    public static void main(String[] args) throws Exception {
+        SimulatorSettings settings = SimulatorSettings.fromArgs(args);
+        HouseFleetSimulator simulator = new HouseFleetSimulator(settings);
+
+        if (settings.getPlatformConfig() != null) {
+            String address = settings.getHost().equals("0.0.0.0") ? "localhost" : settings.getHost();
+            simulator.writePlatformConfig(settings.getPlatformConfig(), address);
+            System.out.println("Wrote house configuration to " + settings.getPlatformConfig());
+        }
+
+        simulator.start();
+        int ports = settings.getGateways() > 0 ? settings.getGateways() : settings.getHouses();
+        System.out.println("Simulating " + settings.getHouses() + " houses on ports " + settings.getBasePort()
+                + "-" + (settings.getBasePort() + ports - 1) + " with seed " + settings.getSeed());
+
+        Runtime.getRuntime().addShutdownHook(new Thread(simulator::stop));
+        Thread.currentThread().join();
+    }
+}
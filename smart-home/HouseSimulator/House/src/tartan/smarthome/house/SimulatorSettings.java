@@ -0,0 +1,291 @@
+package tartan.smarthome.house;
+
+/**
+ * Settings for a simulated fleet of houses. Settings are given on the command line as --name=value pairs,
+ * for example: --houses=2000 --basePort=6000 --seed=7 --latency=20 --loss=0.01
+ */
+public class SimulatorSettings {
+
+    /** network settings */
+    private String host = "0.0.0.0";
+    private int basePort = 5050; // house N listens on basePort + N
+    private int houses = 1;
+    private int gateways = 0; // if set, houses share this many gateway ports instead of one port each
+
+    /** simulation settings */
+    private long seed = 1L; // the same seed always produces the same houses and the same faults
+    private int tickMillis = 1000; // how often the physics are advanced
+    private int timeScale = 60; // simulated seconds per real second, so a day passes in 24 minutes
+    private double ambientTemp = 55.0; // outside temperature, in F
+    private double driftRate = 0.002; // fraction of the indoor/outdoor difference lost per simulated second
+    private double hvacRate = 0.01; // degrees F per simulated second while the heater or chiller runs
+
+    /** occupancy, in hours of the simulated day */
+    private double leaveFrom = 7.0; // occupants leave at a random time between leaveFrom and leaveUntil
+    private double leaveUntil = 9.0;
+    private double returnFrom = 16.0; // and come back between returnFrom and returnUntil
+    private double returnUntil = 20.0;
+    private double stayHome = 0.2; // fraction of houses whose occupants never leave
+
+    /** fault injection */
+    private int latencyMillis = 0; // fixed delay before each response
+    private int jitterMillis = 0; // random extra delay, up to this many ms
+    private double packetLoss = 0.0; // probability that a response is never sent
+    private double disconnectRate = 0.0; // probability that a request closes the connection instead
+
+    /** output */
+    private String platformConfig = null; // if set, write a config.yml house list for the fleet here
+    private String protocol = "ascii"; // the protocol the generated config asks the platform to use
+    private int reportSeconds = 10; // how often to print traffic statistics
+
+    /**
+     * Parse settings from the command line
+     * @param args --name=value pairs
+     * @return the settings
+     */
+    public static SimulatorSettings fromArgs(String[] args) {
+        SimulatorSettings settings = new SimulatorSettings();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+
+            if (name.equals("host")) {
+                settings.host = value;
+            } else if (name.equals("basePort")) {
+                settings.basePort = Integer.parseInt(value);
+            } else if (name.equals("houses")) {
+                settings.houses = Integer.parseInt(value);
+            } else if (name.equals("gateways")) {
+                settings.gateways = Integer.parseInt(value);
+            } else if (name.equals("seed")) {
+                settings.seed = Long.parseLong(value);
+            } else if (name.equals("tick")) {
+                settings.tickMillis = Integer.parseInt(value);
+            } else if (name.equals("timeScale")) {
+                settings.timeScale = Integer.parseInt(value);
+            } else if (name.equals("ambient")) {
+                settings.ambientTemp = Double.parseDouble(value);
+            } else if (name.equals("drift")) {
+                settings.driftRate = Double.parseDouble(value);
+            } else if (name.equals("hvacRate")) {
+                settings.hvacRate = Double.parseDouble(value);
+            } else if (name.equals("leaveFrom")) {
+                settings.leaveFrom = Double.parseDouble(value);
+            } else if (name.equals("leaveUntil")) {
+                settings.leaveUntil = Double.parseDouble(value);
+            } else if (name.equals("returnFrom")) {
+                settings.returnFrom = Double.parseDouble(value);
+            } else if (name.equals("returnUntil")) {
+                settings.returnUntil = Double.parseDouble(value);
+            } else if (name.equals("stayHome")) {
+                settings.stayHome = Double.parseDouble(value);
+            } else if (name.equals("latency")) {
+                settings.latencyMillis = Integer.parseInt(value);
+            } else if (name.equals("jitter")) {
+                settings.jitterMillis = Integer.parseInt(value);
+            } else if (name.equals("loss")) {
+                settings.packetLoss = Double.parseDouble(value);
+            } else if (name.equals("disconnect")) {
+                settings.disconnectRate = Double.parseDouble(value);
+            } else if (name.equals("platformConfig")) {
+                settings.platformConfig = value;
+            } else if (name.equals("protocol")) {
+                settings.protocol = value;
+            } else if (name.equals("report")) {
+                settings.reportSeconds = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("Unknown setting " + name);
+            }
+        }
+        // a house is away between the two times, so the windows must fall in that order within one day
+        if (settings.leaveFrom < 0 || settings.leaveFrom > settings.leaveUntil
+                || settings.leaveUntil > settings.returnFrom || settings.returnFrom > settings.returnUntil
+                || settings.returnUntil > 24) {
+            throw new IllegalArgumentException("Expected 0 <= leaveFrom <= leaveUntil <= returnFrom <= returnUntil"
+                    + " <= 24");
+        }
+        if (settings.stayHome < 0 || settings.stayHome > 1) {
+            throw new IllegalArgumentException("stayHome is a fraction between 0 and 1, not " + settings.stayHome);
+        }
+        return settings;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    public int getBasePort() {
+        return basePort;
+    }
+
+    public void setBasePort(int basePort) {
+        this.basePort = basePort;
+    }
+
+    public int getHouses() {
+        return houses;
+    }
+
+    public void setHouses(int houses) {
+        this.houses = houses;
+    }
+
+    public int getGateways() {
+        return gateways;
+    }
+
+    public void setGateways(int gateways) {
+        this.gateways = gateways;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public int getTickMillis() {
+        return tickMillis;
+    }
+
+    public void setTickMillis(int tickMillis) {
+        this.tickMillis = tickMillis;
+    }
+
+    public int getTimeScale() {
+        return timeScale;
+    }
+
+    public void setTimeScale(int timeScale) {
+        this.timeScale = timeScale;
+    }
+
+    public double getAmbientTemp() {
+        return ambientTemp;
+    }
+
+    public void setAmbientTemp(double ambientTemp) {
+        this.ambientTemp = ambientTemp;
+    }
+
+    public double getDriftRate() {
+        return driftRate;
+    }
+
+    public void setDriftRate(double driftRate) {
+        this.driftRate = driftRate;
+    }
+
+    public double getHvacRate() {
+        return hvacRate;
+    }
+
+    public void setHvacRate(double hvacRate) {
+        this.hvacRate = hvacRate;
+    }
+
+    public double getLeaveFrom() {
+        return leaveFrom;
+    }
+
+    public void setLeaveFrom(double leaveFrom) {
+        this.leaveFrom = leaveFrom;
+    }
+
+    public double getLeaveUntil() {
+        return leaveUntil;
+    }
+
+    public void setLeaveUntil(double leaveUntil) {
+        this.leaveUntil = leaveUntil;
+    }
+
+    public double getReturnFrom() {
+        return returnFrom;
+    }
+
+    public void setReturnFrom(double returnFrom) {
+        this.returnFrom = returnFrom;
+    }
+
+    public double getReturnUntil() {
+        return returnUntil;
+    }
+
+    public void setReturnUntil(double returnUntil) {
+        this.returnUntil = returnUntil;
+    }
+
+    public double getStayHome() {
+        return stayHome;
+    }
+
+    public void setStayHome(double stayHome) {
+        this.stayHome = stayHome;
+    }
+
+    public int getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    public void setLatencyMillis(int latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public int getJitterMillis() {
+        return jitterMillis;
+    }
+
+    public void setJitterMillis(int jitterMillis) {
+        this.jitterMillis = jitterMillis;
+    }
+
+    public double getPacketLoss() {
+        return packetLoss;
+    }
+
+    public void setPacketLoss(double packetLoss) {
+        this.packetLoss = packetLoss;
+    }
+
+    public double getDisconnectRate() {
+        return disconnectRate;
+    }
+
+    public void setDisconnectRate(double disconnectRate) {
+        this.disconnectRate = disconnectRate;
+    }
+
+    public String getPlatformConfig() {
+        return platformConfig;
+    }
+
+    public void setPlatformConfig(String platformConfig) {
+        this.platformConfig = platformConfig;
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public void setProtocol(String protocol) {
+        this.protocol = protocol;
+    }
+
+    public int getReportSeconds() {
+        return reportSeconds;
+    }
+
+    public void setReportSeconds(int reportSeconds) {
+        this.reportSeconds = reportSeconds;
+    }
+}
@@ -7,13 +7,13 @@ import java.util.Hashtable;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.net.UnknownHostException;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.BufferedWriter;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.EOFException;
+import java.nio.charset.StandardCharsets;
 
 public class TartanHouseSimulator implements Runnable {
 
@@ -36,10 +36,9 @@ public class TartanHouseSimulator implements Runnable {
 
     /** The connection is private so it can be controlled */
     private Socket houseSocket = null;
-    private BufferedWriter out = null;
-    private BufferedReader in = null;
 
-    private Boolean isConnected = false;
+    /** cleared by the request loop when the platform goes away, and read by the push thread */
+    private volatile boolean isConnected = false;
 
     // state readings
     private final String TEMP_READING = "TR";
@@ -114,17 +113,17 @@ public class TartanHouseSimulator implements Runnable {
         try {
             serverSocket = new ServerSocket(port);
             houseSocket = serverSocket.accept();
-            out = new BufferedWriter(new OutputStreamWriter(houseSocket.getOutputStream()));
-            in = new BufferedReader(new InputStreamReader(houseSocket.getInputStream()));
+            houseIn = new BufferedInputStream(houseSocket.getInputStream());
+            houseOut = new BufferedOutputStream(houseSocket.getOutputStream());
         }
         catch(Exception x) { 
             try {
                 serverSocket.close();
             } catch (IOException e) {  }
         }
-        new Thread( this). start();
-
         isConnected = true;
+
+        new Thread( this). start();
     }
 
     /**
@@ -137,10 +136,12 @@ public class TartanHouseSimulator implements Runnable {
         
         try {
 
-            out.write(msg, 0, msg.length());
-            out.flush();
+            synchronized (houseOut) {
+                houseOut.write(msg.getBytes(StandardCharsets.US_ASCII));
+                houseOut.flush();
+            }
 
-            return in.readLine();
+            return readLine();
 
         } catch (IOException ioe) {
             //ioe.printStackTrace();
@@ -394,8 +395,181 @@ public class TartanHouseSimulator implements Runnable {
             return state;
         }
 
+    /** the simulated house and its clock, shared by the request loop and the push thread */
+    private VirtualHouse house;
+    private long clock = 0;
+    private long last;
+    private volatile boolean subscribed = false;
+
+    /** the serving side of the connection, which can switch to binary frames */
+    private InputStream houseIn = null;
+    private OutputStream houseOut = null;
+    private volatile boolean binary = false;
+
+    /**
+     * Serve the connected platform: read requests terminated by '.', answer them from a simulated house
+     * and advance the house physics between requests, like simple_server.py does. If the platform
+     * subscribes, changes are also pushed as they happen. If it offers binary frames, the rest of the
+     * connection uses them
+     */
     @Override
     public void run() {
-        // TODO: read and write 
+        house = new VirtualHouse("house" + port, port, new SimulatorSettings());
+        last = System.currentTimeMillis();
+        try {
+            String request;
+            while ((request = binary ? readFrame() : readRequest()) != null) {
+                String response;
+                boolean switchToBinary = false;
+                if (request.equals(VirtualHouse.SUBSCRIBE)) {
+                    response = OK + MSG_END;
+                    startPushing();
+                } else if (request.startsWith(VirtualHouse.VERSION)) {
+                    switchToBinary = request.equals(VirtualHouse.VERSION + MSG_DELIM + BinaryFrames.VERSION);
+                    response = (switchToBinary ? OK : VirtualHouse.ERROR) + MSG_END;
+                } else {
+                    response = house.handleRequest(request);
+                }
+                // the answer to the version handshake is still text
+                write(response);
+                if (switchToBinary) {
+                    binary = true;
+                }
+                advance();
+            }
+        } catch (IOException ioe) {
+            // the platform went away
+        }
+        isConnected = false;
+    }
+
+    /**
+     * Read a text request
+     * @return the request without its terminator, or null if the platform went away
+     * @throws IOException if the connection failed
+     */
+    private String readRequest() throws IOException {
+        StringBuilder request = new StringBuilder();
+        int c;
+        while ((c = houseIn.read()) != -1) {
+            if (c == '\n' || c == '\r') {
+                continue;
+            }
+            if (c == '.') {
+                return request.toString();
+            }
+            request.append((char) c);
+        }
+        return null;
+    }
+
+    /**
+     * Read a line from the connection, through the same stream the requests are read from
+     * @return the line without its ending, or null if the platform went away
+     * @throws IOException if the connection failed
+     */
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = houseIn.read()) != -1) {
+            if (c == '\n') {
+                return line.toString();
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    /**
+     * Read a binary frame and translate it into a text request
+     * @return the request without its terminator, or null if the platform went away
+     * @throws IOException if the connection failed or the frame is malformed
+     */
+    private String readFrame() throws IOException {
+        int hi = houseIn.read();
+        int lo = houseIn.read();
+        if (hi == -1 || lo == -1) {
+            return null;
+        }
+        int length = (hi << 8) | lo;
+        if (length > BinaryFrames.MAX_FRAME) {
+            throw new IOException("Frame too long: " + length);
+        }
+        byte[] frame = new byte[length];
+        for (int read = 0; read < length; ) {
+            int n = houseIn.read(frame, read, length - read);
+            if (n == -1) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+        String request = BinaryFrames.toRequest(frame);
+        if (request == null) {
+            throw new IOException("Malformed frame");
+        }
+        return request;
+    }
+
+    /**
+     * Advance the house physics to the current time
+     * @return true if the house state changed
+     */
+    private synchronized boolean advance() {
+        long now = System.currentTimeMillis();
+        int elapsed = (int) ((now - last) / 1000);
+        if (elapsed <= 0) {
+            return false;
+        }
+        clock += elapsed;
+        last += elapsed * 1000L;
+        return house.tick(clock, elapsed);
+    }
+
+    /**
+     * Send one message to the platform, as a line or a frame. Responses and pushes share the connection,
+     * so writes are serialized
+     * @param line the message, without its line ending
+     * @throws IOException if the platform went away
+     */
+    private void write(String line) throws IOException {
+        synchronized (houseOut) {
+            houseOut.write(binary ? BinaryFrames.fromResponse(line) : (line + "\n").getBytes(StandardCharsets.US_ASCII));
+            houseOut.flush();
+        }
+    }
+
+    /**
+     * Start a thread that advances the house every second and pushes the state when it changes
+     */
+    private void startPushing() {
+        if (subscribed) {
+            return;
+        }
+        subscribed = true;
+        Thread pusher = new Thread(() -> {
+            try {
+                while (isConnected) {
+                    Thread.sleep(1000);
+                    if (advance()) {
+                        write(house.getStateUpdate());
+                    }
+                }
+            } catch (IOException | InterruptedException x) {
+                // the platform went away
+            }
+        }, "house-push-" + port);
+        pusher.setDaemon(true);
+        pusher.start();
+    }
+
+    /**
+     * Run a single simulated house
+     * @param args the port to listen on
+     */
+    public static void main(String[] args) {
+        Integer port = args.length > 0 ? Integer.parseInt(args[0]) : 5050;
+        new TartanHouseSimulator(port).runSimulator();
     }
 }
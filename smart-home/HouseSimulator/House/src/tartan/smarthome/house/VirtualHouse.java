@@ -0,0 +1,244 @@
+package tartan.smarthome.house;
+
+import java.util.Random;
+import java.util.StringTokenizer;
+
+/**
+ * A single simulated house. The house speaks the same protocol as simple_server.py and adds simple physics:
+ * the temperature drifts towards the outside temperature, the HVAC pushes it back, and the occupants leave
+ * in the morning and come back in the evening. The house is built from its own seed, so it behaves the same
+ * way on every run with the same seed.
+ */
+public class VirtualHouse {
+
+    // protocol values, shared with the platform's IoTValues
+    static final String TEMP_READING = "TR";
+    static final String HUMIDITY_READING = "HR";
+    static final String HUMIDIFIER_STATE = "HUS";
+    static final String DOOR_STATE = "DS";
+    static final String LIGHT_STATE = "LS";
+    static final String PROXIMITY_STATE = "PS";
+    static final String ALARM_STATE = "AS";
+    static final String HVAC_MODE = "HM";
+    static final String ALARM_ACTIVE = "AA";
+    static final String HEATER_STATE = "HES";
+    static final String CHILLER_STATE = "CHS";
+
+    static final String PARAM_DELIM = ";";
+    static final String MSG_DELIM = ":";
+    static final String PARAM_EQ = "=";
+    static final String MSG_END = ".";
+
+    static final String GET_STATE = "GS";
+    static final String SET_STATE = "SS";
+    static final String STATE_UPDATE = "SU";
+    static final String SUBSCRIBE = "SUB";
+    static final String VERSION = "VER";
+    static final String OK = "OK";
+    static final String ERROR = "ERR";
+
+    private static final int DAY = 24 * 60 * 60;
+
+    // how long the door stays open when somebody comes or goes, in simulated seconds
+    private static final int DOOR_OPEN_SECONDS = 60;
+
+    /** Internal state variables */
+    private double temperature; // the current temperature
+    private double humidity; // the current humidity
+    private boolean door; // the state of the door (true if open, false if closed)
+    private boolean light; // the state of the light (true if on, false if off)
+    private boolean proximity; // the state of the proximity sensor (true of house occupied, false if vacant)
+    private boolean alarmState; // the alarm state (true if enabled, false if disabled)
+    private boolean alarmActive; // the alarm active state (true if alarm sounding, false if alarm not sounding)
+    private boolean dehumidifier; // the dehumidifier state (true if on, false if off)
+    private boolean heater; // the heater state (true if on, false if off)
+    private boolean chiller; // the chiller state (true if on, false if off)
+    private boolean heaterMode; // the HVAC mode, true for Heater and false for Chiller
+
+    /** occupancy pattern, in seconds since midnight */
+    private final int leaveAt;
+    private final int returnAt;
+    private final boolean stayHome; // some occupants never leave
+    private int doorClosesAt = -1;
+
+    private final String name;
+    private final SimulatorSettings settings;
+
+    /**
+     * Create a new house
+     * @param name the house name
+     * @param seed the seed for this house
+     * @param settings the simulation settings
+     */
+    public VirtualHouse(String name, long seed, SimulatorSettings settings) {
+        this.name = name;
+        this.settings = settings;
+        Random random = new Random(seed);
+
+        this.temperature = 60 + random.nextInt(15);
+        this.humidity = 30 + random.nextInt(40);
+        this.door = false;
+        this.light = true;
+        this.proximity = true;
+        this.heaterMode = true;
+
+        // by default, leave between 7 and 9 in the morning, and return between 4 and 8 in the evening
+        this.leaveAt = timeBetween(random, settings.getLeaveFrom(), settings.getLeaveUntil());
+        this.returnAt = timeBetween(random, settings.getReturnFrom(), settings.getReturnUntil());
+        this.stayHome = random.nextDouble() < settings.getStayHome();
+    }
+
+    /**
+     * Pick a time of day in a window
+     * @param random the house's random numbers
+     * @param from the start of the window, in hours
+     * @param until the end of the window, in hours
+     * @return the time, in seconds since midnight
+     */
+    private static int timeBetween(Random random, double from, double until) {
+        int start = (int) (from * 3600);
+        int window = (int) (until * 3600) - start;
+        return window > 0 ? start + random.nextInt(window) : start;
+    }
+
+    /**
+     * Get the house name
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Advance the physics of the house
+     * @param clock the simulated time, in seconds since the start of the simulation
+     * @param elapsed the simulated seconds since the last tick
+     * @return true if anything the house reports has changed
+     */
+    public synchronized boolean tick(long clock, int elapsed) {
+        String before = getState();
+
+        // the temperature drifts towards the outside temperature, and the HVAC pushes back
+        temperature += (settings.getAmbientTemp() - temperature) * settings.getDriftRate() * elapsed;
+        if (heater) {
+            temperature += settings.getHvacRate() * elapsed;
+        }
+        if (chiller) {
+            temperature -= settings.getHvacRate() * elapsed;
+        }
+
+        if (humidity < 100 && humidity > 0) {
+            if (dehumidifier) {
+                humidity -= 0.01 * elapsed;
+            } else {
+                humidity += 0.002 * elapsed;
+            }
+        }
+
+        // occupants come and go on a daily schedule
+        int timeOfDay = (int) (clock % DAY);
+        boolean home = stayHome || timeOfDay < leaveAt || timeOfDay >= returnAt;
+        // the time of day wraps at midnight, so the door is due to close once the time is past the
+        // stretch it stays open for, even if it opened just before midnight
+        boolean doorDue = doorClosesAt >= 0
+                && Math.floorMod(timeOfDay - doorClosesAt, DAY) < DAY - DOOR_OPEN_SECONDS;
+        if (home != proximity) {
+            proximity = home;
+            door = true;
+            doorClosesAt = (timeOfDay + DOOR_OPEN_SECONDS) % DAY;
+        } else if (doorDue) {
+            door = false;
+            doorClosesAt = -1;
+        }
+
+        return !before.equals(getState());
+    }
+
+    /**
+     * Handle a request from the platform
+     * @param request the request, without its terminator
+     * @return the response, without its line ending
+     */
+    public synchronized String handleRequest(String request) {
+        if (request.startsWith(GET_STATE)) {
+            return getStateUpdate();
+        } else if (request.startsWith(SET_STATE)) {
+            setState(request);
+            return OK + MSG_END;
+        }
+        return ERROR + MSG_END;
+    }
+
+    /**
+     * Handle set state requests
+     * @param request the request, SS:name=value;name=value
+     */
+    private void setState(String request) {
+        int start = request.indexOf(MSG_DELIM);
+        if (start < 0) {
+            return;
+        }
+        StringTokenizer params = new StringTokenizer(request.substring(start + 1), PARAM_DELIM);
+        while (params.hasMoreTokens()) {
+            String param = params.nextToken();
+            int eq = param.indexOf(PARAM_EQ);
+            if (eq < 0) {
+                continue;
+            }
+            String key = param.substring(0, eq);
+            boolean on = param.substring(eq + 1).equals("1");
+
+            if (key.equals(LIGHT_STATE)) {
+                light = on;
+            } else if (key.equals(ALARM_STATE)) {
+                alarmState = on;
+            } else if (key.equals(ALARM_ACTIVE)) {
+                alarmActive = on;
+            } else if (key.equals(DOOR_STATE)) {
+                door = on;
+            } else if (key.equals(HUMIDIFIER_STATE)) {
+                dehumidifier = on;
+            } else if (key.equals(PROXIMITY_STATE)) {
+                proximity = on;
+            } else if (key.equals(HEATER_STATE)) {
+                heater = on;
+            } else if (key.equals(CHILLER_STATE)) {
+                chiller = on;
+            } else if (key.equals(HVAC_MODE)) {
+                heaterMode = on;
+            }
+        }
+    }
+
+    /**
+     * Get the state as an unsolicited update, for houses that push their changes
+     * @return the update message, without its line ending
+     */
+    public synchronized String getStateUpdate() {
+        return STATE_UPDATE + MSG_DELIM + getState() + MSG_END;
+    }
+
+    /**
+     * Get the state in the wire format
+     * @return the state
+     */
+    public synchronized String getState() {
+        StringBuilder state = new StringBuilder(64);
+        state.append(TEMP_READING).append(PARAM_EQ).append(Math.round(temperature)).append(PARAM_DELIM);
+        state.append(HUMIDITY_READING).append(PARAM_EQ).append(Math.round(humidity)).append(PARAM_DELIM);
+        state.append(DOOR_STATE).append(PARAM_EQ).append(bit(door)).append(PARAM_DELIM);
+        state.append(LIGHT_STATE).append(PARAM_EQ).append(bit(light)).append(PARAM_DELIM);
+        state.append(PROXIMITY_STATE).append(PARAM_EQ).append(bit(proximity)).append(PARAM_DELIM);
+        state.append(ALARM_STATE).append(PARAM_EQ).append(bit(alarmState)).append(PARAM_DELIM);
+        state.append(ALARM_ACTIVE).append(PARAM_EQ).append(bit(alarmActive)).append(PARAM_DELIM);
+        state.append(HEATER_STATE).append(PARAM_EQ).append(bit(heater)).append(PARAM_DELIM);
+        state.append(CHILLER_STATE).append(PARAM_EQ).append(bit(chiller)).append(PARAM_DELIM);
+        state.append(HVAC_MODE).append(PARAM_EQ).append(bit(heaterMode)).append(PARAM_DELIM);
+        state.append(HUMIDIFIER_STATE).append(PARAM_EQ).append(bit(dehumidifier));
+        return state.toString();
+    }
+
+    private static char bit(boolean b) {
+        return b ? '1' : '0';
+    }
+}
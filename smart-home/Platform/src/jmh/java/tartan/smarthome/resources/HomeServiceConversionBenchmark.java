@@ -0,0 +1,86 @@
+package tartan.smarthome.resources;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import tartan.smarthome.TartanHomeSettings;
+import tartan.smarthome.core.TartanHome;
+import tartan.smarthome.core.TartanHomeValues;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable;
+import tartan.smarthome.resources.iotcontroller.IoTValues;
+
+import java.util.Hashtable;
+import java.util.Map;
+
+/**
+ * Benchmarks for the conversions between the REST representation of a house and the hardware state
+ */
+@State(Scope.Benchmark)
+public class HomeServiceConversionBenchmark {
+
+    private TartanHomeService service;
+    private Map<String, Object> iotState;
+    private FleetStateTable table;
+    private long handle;
+    private FleetStateTable.Row row;
+    private TartanHome update;
+
+    @Setup
+    public void setup() {
+        TartanHomeSettings settings = new TartanHomeSettings();
+        settings.setName("bench");
+        settings.setAddress("localhost");
+        settings.setPort(5050);
+        settings.setUser("admin");
+        settings.setPassword("1234");
+        settings.setTargetTemp("70");
+        settings.setAlarmDelay("30");
+        settings.setAlarmPasscode("stop");
+
+        // the service is configured but never connected; the conversions do not touch the house
+        service = new TartanHomeService(null);
+        service.initializeSettings(settings, 5);
+
+        iotState = new Hashtable<>();
+        iotState.put(IoTValues.TEMP_READING, 71);
+        iotState.put(IoTValues.HUMIDITY_READING, 42);
+        iotState.put(IoTValues.TARGET_TEMP, 70);
+        iotState.put(IoTValues.HUMIDIFIER_STATE, false);
+        iotState.put(IoTValues.DOOR_STATE, false);
+        iotState.put(IoTValues.DOOR_LOCK_STATE, true);
+        iotState.put(IoTValues.LIGHT_STATE, true);
+        iotState.put(IoTValues.PROXIMITY_STATE, true);
+        iotState.put(IoTValues.ALARM_STATE, false);
+        iotState.put(IoTValues.ALARM_ACTIVE, false);
+        iotState.put(IoTValues.HEATER_STATE, true);
+        iotState.put(IoTValues.CHILLER_STATE, false);
+        iotState.put(IoTValues.HVAC_MODE, "Heater");
+
+        table = new FleetStateTable();
+        handle = table.allocate("bench");
+        table.write(handle, iotState, true, 1);
+        row = new FleetStateTable.Row();
+
+        update = new TartanHome();
+        update.setDoor(TartanHomeValues.CLOSED);
+        update.setLight(TartanHomeValues.ON);
+        update.setHumidifier(TartanHomeValues.OFF);
+        update.setAlarmArmed(TartanHomeValues.ARMED);
+        update.setAlarmDelay("30");
+        update.setTargetTemp("72");
+        update.setHvacMode(TartanHomeValues.HEAT);
+        update.setHvacState(TartanHomeValues.ON);
+    }
+
+    @Benchmark
+    public TartanHome toTartanHome() {
+        table.read(handle, row);
+        return service.toTartanHome(new TartanHome(), row);
+    }
+
+    @Benchmark
+    public Map<String, Object> toIotState() {
+        return service.toIotState(update);
+    }
+}
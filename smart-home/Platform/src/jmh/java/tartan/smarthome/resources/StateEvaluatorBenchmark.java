@@ -0,0 +1,72 @@
+package tartan.smarthome.resources;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import tartan.smarthome.resources.iotcontroller.IoTValues;
+
+import java.util.Hashtable;
+import java.util.Map;
+
+/**
+ * Benchmark for a single evaluation of the house rules
+ */
+@State(Scope.Benchmark)
+public class StateEvaluatorBenchmark {
+
+    private StaticTartanStateEvaluator evaluator;
+    private Map<String, Object> occupiedState;
+    private Map<String, Object> vacantArmedState;
+
+    @Setup
+    public void setup() {
+        evaluator = new StaticTartanStateEvaluator();
+
+        occupiedState = baseState();
+
+        // a vacant house with the alarm armed and the door opened is the busiest path through the rules
+        vacantArmedState = baseState();
+        vacantArmedState.put(IoTValues.PROXIMITY_STATE, false);
+        vacantArmedState.put(IoTValues.ALARM_STATE, true);
+        vacantArmedState.put(IoTValues.DOOR_STATE, true);
+    }
+
+    /**
+     * A complete state as the controller would pass it: the house readings plus the user settings
+     * @return the state
+     */
+    private Map<String, Object> baseState() {
+        Map<String, Object> state = new Hashtable<>();
+        state.put(IoTValues.TEMP_READING, 68);
+        state.put(IoTValues.HUMIDITY_READING, 40);
+        state.put(IoTValues.TARGET_TEMP, 70);
+        state.put(IoTValues.HUMIDIFIER_STATE, false);
+        state.put(IoTValues.DOOR_STATE, false);
+        state.put(IoTValues.LIGHT_STATE, true);
+        state.put(IoTValues.PROXIMITY_STATE, true);
+        state.put(IoTValues.ALARM_STATE, false);
+        state.put(IoTValues.HEATER_STATE, false);
+        state.put(IoTValues.CHILLER_STATE, false);
+        state.put(IoTValues.HVAC_MODE, "Heater");
+        state.put(IoTValues.ALARM_PASSCODE, "stop");
+        state.put(IoTValues.GIVEN_PASSCODE, "");
+        state.put(IoTValues.AWAY_TIMER, false);
+        state.put(IoTValues.ALARM_ACTIVE, false);
+        state.put(IoTValues.DOOR_LOCK_STATE, false);
+        state.put(IoTValues.OWNERS_PHONE_NEARBY, false);
+        state.put(IoTValues.NIGHT_LOCK_START, "0");
+        state.put(IoTValues.NIGHT_LOCK_END, "0");
+        return state;
+    }
+
+    @Benchmark
+    public Map<String, Object> evaluateOccupied() {
+        return evaluator.evaluateState(occupiedState, new StringBuffer());
+    }
+
+    @Benchmark
+    public Map<String, Object> evaluateVacantArmed() {
+        return evaluator.evaluateState(vacantArmedState, new StringBuffer());
+    }
+}
@@ -0,0 +1,76 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Hashtable;
+import java.util.Map;
+
+/**
+ * Benchmarks for the house wire protocol: parsing state updates and encoding set state requests, in both the
+ * text and the binary framing. The setup also prints how many bytes a poll costs in each
+ */
+@State(Scope.Benchmark)
+public class IoTProtocolBenchmark {
+
+    // a typical state update from the house, as it arrives on the socket
+    private static final String STATE_UPDATE = "SU:TR=71;HR=42;DS=0;LS=1;PS=1;AS=0;AA=0;HES=1;CHS=0;HM=1;HUS=0.\n";
+
+    private final AsciiFrameCodec ascii = new AsciiFrameCodec();
+    private final BinaryFrameCodec binary = new BinaryFrameCodec();
+
+    private byte[] asciiUpdate;
+    private byte[] binaryUpdate;
+    private HouseFrame newState;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+
+    @Setup
+    public void setup() throws IOException {
+        asciiUpdate = STATE_UPDATE.getBytes(StandardCharsets.US_ASCII);
+        binaryUpdate = binary.encode(ascii.read(new ByteArrayInputStream(asciiUpdate)));
+
+        Map<String, Object> state = new Hashtable<>();
+        state.put(IoTValues.DOOR_STATE, false);
+        state.put(IoTValues.LIGHT_STATE, true);
+        state.put(IoTValues.ALARM_STATE, false);
+        state.put(IoTValues.ALARM_ACTIVE, false);
+        state.put(IoTValues.HUMIDIFIER_STATE, false);
+        state.put(IoTValues.HEATER_STATE, true);
+        state.put(IoTValues.CHILLER_STATE, false);
+        newState = new HouseFrame(IoTValues.SET_STATE, state);
+
+        HouseFrame getState = new HouseFrame(IoTValues.GET_STATE);
+        System.out.println("Bytes per poll: ascii=" + (ascii.encode(getState).length() + asciiUpdate.length)
+                + " binary=" + (binary.encode(getState).length + binaryUpdate.length));
+    }
+
+    @Benchmark
+    public HouseFrame parseStateUpdate() throws IOException {
+        return ascii.read(new ByteArrayInputStream(asciiUpdate));
+    }
+
+    @Benchmark
+    public HouseFrame parseStateUpdateBinary() throws IOException {
+        return binary.read(new ByteArrayInputStream(binaryUpdate));
+    }
+
+    @Benchmark
+    public int encodeSetState() throws IOException {
+        out.reset();
+        ascii.write(out, newState);
+        return out.size();
+    }
+
+    @Benchmark
+    public int encodeSetStateBinary() throws IOException {
+        out.reset();
+        binary.write(out, newState);
+        return out.size();
+    }
+}
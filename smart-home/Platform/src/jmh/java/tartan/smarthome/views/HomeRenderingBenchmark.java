@@ -0,0 +1,95 @@
+package tartan.smarthome.views;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.views.freemarker.FreemarkerViewRenderer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import tartan.smarthome.core.TartanHome;
+import tartan.smarthome.core.TartanHomeValues;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Benchmarks for the two representations returned by the state resource: JSON and the HTML control panel,
+ * encoded on every request and served from the {@link StateResponseCache} for an unchanged house
+ */
+@State(Scope.Benchmark)
+public class HomeRenderingBenchmark {
+
+    // the event log grows with uptime, so measure a fresh house and a long-running one
+    @Param({"10", "1000"})
+    public int logEntries;
+
+    private ObjectMapper mapper;
+    private FreemarkerViewRenderer renderer;
+    private TartanHome home;
+    private StateResponseCache cache;
+
+    @Setup
+    public void setup() {
+        mapper = Jackson.newObjectMapper();
+
+        renderer = new FreemarkerViewRenderer();
+        renderer.configure(Collections.emptyMap());
+
+        home = new TartanHome();
+        home.setName("bench");
+        home.setAddress("localhost");
+        home.setTargetTemp("70");
+        home.setTemperature("71");
+        home.setHumidity("42");
+        home.setDoor(TartanHomeValues.CLOSED);
+        home.setDoorLocked(TartanHomeValues.LOCKED);
+        home.setLight(TartanHomeValues.ON);
+        home.setHumidifier(TartanHomeValues.OFF);
+        home.setProximity(TartanHomeValues.OCCUPIED);
+        home.setHvacMode(TartanHomeValues.HEAT);
+        home.setHvacState(TartanHomeValues.ON);
+        home.setAlarmActive(TartanHomeValues.INACTIVE);
+        home.setAlarmArmed(TartanHomeValues.DISARMED);
+        home.setAlarmDelay("30");
+        home.setNightLockStart("0");
+        home.setNightLockEnd("0");
+        home.setAuthenticated("true");
+
+        List<String> log = new ArrayList<>(logEntries);
+        for (int i = 0; i < logEntries; i++) {
+            log.add("[Jan 01,2024 12:00]: Closed door\n[Jan 01,2024 12:00]: Alarm disabled\n");
+        }
+        home.setEventLog(log);
+
+        cache = new StateResponseCache(mapper, renderer, new MetricRegistry());
+    }
+
+    @Benchmark
+    public byte[] serializeJson() throws IOException {
+        return mapper.writeValueAsBytes(new SmartHomeView(home));
+    }
+
+    @Benchmark
+    public byte[] renderHtml() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+        renderer.render(new SmartHomeView(home), Locale.US, out);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] cachedJson() {
+        return cache.getJson("bench", 1, () -> home);
+    }
+
+    @Benchmark
+    public byte[] cachedHtml() {
+        return cache.getHtml("bench", 1, () -> home);
+    }
+}
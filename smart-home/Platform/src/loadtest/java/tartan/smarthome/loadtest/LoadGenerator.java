@@ -0,0 +1,193 @@
+package tartan.smarthome.loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An open-loop load generator. Requests are scheduled at a fixed arrival rate whether or not earlier
+ * requests have completed, and each latency is measured from the time the request was scheduled to start.
+ * A slow server therefore shows up as queueing in the latencies instead of as a lower request rate, which
+ * avoids coordinated omission.
+ */
+public class LoadGenerator {
+
+    /**
+     * The measurements for one phase of the run
+     */
+    public static class Phase {
+        final Recorder stateLatency = new Recorder(3); // microseconds
+        final Recorder updateLatency = new Recorder(3);
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        long startNanos;
+        long endNanos;
+
+        /**
+         * Take the state GET latencies recorded so far. Each call returns only what was recorded since the last
+         * @return the latencies in microseconds
+         */
+        public Histogram takeStateLatencies() {
+            return stateLatency.getIntervalHistogram();
+        }
+
+        /**
+         * Take the update POST latencies recorded so far. Each call returns only what was recorded since the last
+         * @return the latencies in microseconds
+         */
+        public Histogram takeUpdateLatencies() {
+            return updateLatency.getIntervalHistogram();
+        }
+
+        public long getSent() {
+            return sent.get();
+        }
+
+        public long getCompleted() {
+            return completed.get();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        public double getSeconds() {
+            return (endNanos - startNanos) / 1e9;
+        }
+    }
+
+    private final String baseUrl;
+    private final List<String> houses;
+    private final String[] authorization;
+    private final LoadTestSettings settings;
+    private final Random random;
+    private final HttpClient client;
+    private final ExecutorService executor;
+
+    /**
+     * Create a generator
+     * @param baseUrl the platform URL, for example http://localhost:8080
+     * @param houses the house names
+     * @param passwords the password for each house, in the same order
+     * @param settings the load settings
+     */
+    public LoadGenerator(String baseUrl, List<String> houses, List<String> passwords, LoadTestSettings settings) {
+        this.baseUrl = baseUrl;
+        this.houses = houses;
+        this.settings = settings;
+        this.random = new Random(settings.getSeed());
+
+        this.authorization = new String[houses.size()];
+        for (int i = 0; i < houses.size(); i++) {
+            String credentials = "admin:" + passwords.get(i);
+            authorization[i] = "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+        }
+
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "load-generator-client");
+            t.setDaemon(true);
+            return t;
+        });
+        // Dropwizard 1.0 serves HTTP/1.1 only, so don't spend a round trip trying to upgrade to HTTP/2
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .executor(executor)
+                .connectTimeout(Duration.ofSeconds(settings.getTimeout()))
+                .build();
+    }
+
+    /**
+     * Offer load at the configured rate for a number of seconds. Requests still in flight at the end are
+     * waited for, up to the request timeout
+     * @param seconds how long to offer load
+     * @return the measurements
+     */
+    public Phase run(int seconds) {
+        Phase phase = new Phase();
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / settings.getRate());
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        phase.startNanos = start;
+
+        for (long i = 0; ; i++) {
+            long intended = start + i * interval;
+            if (intended >= end) {
+                break;
+            }
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            send(phase, intended);
+        }
+
+        // let the last requests finish before closing the phase
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(settings.getTimeout());
+        while (phase.completed.get() + phase.errors.get() < phase.sent.get() && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        phase.endNanos = System.nanoTime();
+        return phase;
+    }
+
+    /**
+     * Start one request
+     * @param phase the phase to record into
+     * @param intended when the request was scheduled to start
+     */
+    private void send(Phase phase, long intended) {
+        int house = random.nextInt(houses.size());
+        boolean get = random.nextDouble() < settings.getGetRatio();
+
+        HttpRequest.Builder request = HttpRequest.newBuilder()
+                .timeout(Duration.ofSeconds(settings.getTimeout()))
+                .header("Authorization", authorization[house])
+                .header("Accept", "application/json");
+        if (get) {
+            request.uri(URI.create(baseUrl + "/smarthome/state/" + houses.get(house))).GET();
+        } else {
+            // toggle the light and nudge the target temperature; other fields are left alone
+            String body = "{\"light\":\"" + (random.nextBoolean() ? "on" : "off") + "\",\"targetTemp\":\""
+                    + (65 + random.nextInt(10)) + "\"}";
+            request.uri(URI.create(baseUrl + "/smarthome/update/" + houses.get(house)))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(body));
+        }
+
+        phase.sent.incrementAndGet();
+        Recorder latency = get ? phase.stateLatency : phase.updateLatency;
+        CompletableFuture<HttpResponse<Void>> response =
+                client.sendAsync(request.build(), HttpResponse.BodyHandlers.discarding());
+        response.whenComplete((r, x) -> {
+            latency.recordValue(Math.max(0, (System.nanoTime() - intended) / 1000));
+            if (x != null || r.statusCode() >= 400) {
+                phase.errors.incrementAndGet();
+            } else {
+                phase.completed.incrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Stop the client threads
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
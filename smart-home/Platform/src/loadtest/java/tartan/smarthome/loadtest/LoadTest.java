@@ -0,0 +1,162 @@
+package tartan.smarthome.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.dropwizard.testing.DropwizardTestSupport;
+import tartan.smarthome.TartanHomeApplication;
+import tartan.smarthome.TartanHomeConfiguration;
+import tartan.smarthome.house.HouseFleetSimulator;
+import tartan.smarthome.house.SimulatorSettings;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The end-to-end load test. This starts a simulated fleet of houses and the platform in this JVM, with the
+ * platform using an in-memory H2 database, and then drives the REST API at a fixed rate. The run is
+ * summarized on the console and in a JSON report, and the process exits with 1 if the acceptance gate fails.
+ *
+ * Run it with ./gradlew loadTest --args='--houses=500 --rate=2000 --maxP99=250'
+ */
+public class LoadTest {
+
+    /**
+     * Run the load test
+     * @param args --name=value settings, see {@link LoadTestSettings}
+     * @throws Exception if the fleet or the platform cannot start
+     */
+    public static void main(String[] args) throws Exception {
+        LoadTestSettings settings = LoadTestSettings.fromArgs(args);
+        System.exit(new LoadTest().run(settings) ? 0 : 1);
+    }
+
+    /**
+     * Run the load test
+     * @param settings the run settings
+     * @return true if the run passed the acceptance gate
+     * @throws Exception if the fleet or the platform cannot start
+     */
+    public boolean run(LoadTestSettings settings) throws Exception {
+
+        // the simulated fleet runs in real time so that the houses change while the test runs
+        SimulatorSettings fleetSettings = new SimulatorSettings();
+        fleetSettings.setHost("127.0.0.1");
+        fleetSettings.setHouses(settings.getHouses());
+        fleetSettings.setBasePort(settings.getBasePort());
+        fleetSettings.setSeed(settings.getSeed());
+        fleetSettings.setLatencyMillis(settings.getHouseLatency());
+        fleetSettings.setProtocol(settings.getProtocol());
+        fleetSettings.setGateways(settings.getGateways());
+        HouseFleetSimulator fleet = new HouseFleetSimulator(fleetSettings);
+
+        File config = File.createTempFile("loadtest", ".yml");
+        config.deleteOnExit();
+        fleet.writePlatformConfig(config.getPath(), "127.0.0.1");
+        writePlatformSettings(config);
+
+        List<String> houses = new ArrayList<>();
+        List<String> passwords = new ArrayList<>();
+        for (int i = 0; i < settings.getHouses(); i++) {
+            houses.add(HouseFleetSimulator.houseName(i));
+            passwords.add("pw" + i);
+        }
+
+        fleet.start();
+        DropwizardTestSupport<TartanHomeConfiguration> platform =
+                new DropwizardTestSupport<>(TartanHomeApplication.class, config.getPath());
+        platform.before();
+
+        LoadGenerator generator = null;
+        try {
+            String baseUrl = "http://127.0.0.1:" + platform.getLocalPort();
+            System.out.println("Platform started at " + baseUrl + " with " + settings.getHouses() + " houses");
+            generator = new LoadGenerator(baseUrl, houses, passwords, settings);
+
+            if (settings.getWarmup() > 0) {
+                System.out.println("Warming up for " + settings.getWarmup() + "s");
+                generator.run(settings.getWarmup());
+            }
+
+            long gcCount = gcCount();
+            long gcMillis = gcMillis();
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            threads.resetPeakThreadCount();
+
+            System.out.println("Measuring for " + settings.getDuration() + "s at " + settings.getRate() + " requests/s");
+            LoadGenerator.Phase phase = generator.run(settings.getDuration());
+
+            LoadTestReport report = new LoadTestReport(settings, phase);
+            report.setJvm(gcCount() - gcCount, gcMillis() - gcMillis, threads.getThreadCount(),
+                    threads.getPeakThreadCount());
+            boolean passed = report.check(settings);
+
+            File reportFile = new File(settings.getReport());
+            if (reportFile.getParentFile() != null) {
+                reportFile.getParentFile().mkdirs();
+            }
+            new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(reportFile, report);
+
+            System.out.println(report);
+            System.out.println("Report written to " + reportFile);
+            return passed;
+        } finally {
+            if (generator != null) {
+                generator.shutdown();
+            }
+            platform.after();
+            fleet.stop();
+        }
+    }
+
+    /**
+     * Add everything but the houses to the platform configuration. The platform listens on free ports and
+     * keeps its history in memory, so nothing needs to be set up before a run
+     * @param config the configuration file, which already has the houses
+     * @throws IOException if the file cannot be written
+     */
+    private void writePlatformSettings(File config) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(config, true))) {
+            out.println("historyTimer: 5");
+            out.println("database:");
+            out.println("  driverClass: org.h2.Driver");
+            out.println("  user: sa");
+            out.println("  password: \"\"");
+            out.println("  url: jdbc:h2:mem:TartanHome;DB_CLOSE_DELAY=-1");
+            out.println("  properties:");
+            out.println("    hibernate.dialect: org.hibernate.dialect.H2Dialect");
+            out.println("    hibernate.hbm2ddl.auto: create");
+            out.println("server:");
+            out.println("  applicationConnectors:");
+            out.println("    - type: http");
+            out.println("      port: 0");
+            out.println("  adminConnectors:");
+            out.println("    - type: http");
+            out.println("      port: 0");
+            out.println("logging:");
+            out.println("  level: WARN");
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,181 @@
+package tartan.smarthome.loadtest;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.HdrHistogram.Histogram;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The result of a load test run, written as JSON so runs can be compared
+ */
+public class LoadTestReport {
+
+    /**
+     * Latency percentiles for one kind of request, in milliseconds
+     */
+    public static class Latency {
+        @JsonProperty
+        private long count;
+        @JsonProperty
+        private double p50;
+        @JsonProperty
+        private double p90;
+        @JsonProperty
+        private double p99;
+        @JsonProperty
+        private double p999;
+        @JsonProperty
+        private double max;
+
+        public Latency() { }
+
+        /**
+         * Summarize a histogram recorded in microseconds
+         * @param histogram the histogram
+         */
+        public Latency(Histogram histogram) {
+            this.count = histogram.getTotalCount();
+            this.p50 = histogram.getValueAtPercentile(50) / 1000.0;
+            this.p90 = histogram.getValueAtPercentile(90) / 1000.0;
+            this.p99 = histogram.getValueAtPercentile(99) / 1000.0;
+            this.p999 = histogram.getValueAtPercentile(99.9) / 1000.0;
+            this.max = histogram.getMaxValue() / 1000.0;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d p50=%.2fms p90=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms",
+                    count, p50, p90, p99, p999, max);
+        }
+    }
+
+    // the offered load
+    @JsonProperty
+    private int houses;
+    @JsonProperty
+    private double offeredRate;
+    @JsonProperty
+    private double getRatio;
+    @JsonProperty
+    private double seconds;
+
+    // what the platform did with it
+    @JsonProperty
+    private long sent;
+    @JsonProperty
+    private long completed;
+    @JsonProperty
+    private long errors;
+    @JsonProperty
+    private double throughput;
+    @JsonProperty
+    private Latency all;
+    @JsonProperty
+    private Latency state;
+    @JsonProperty
+    private Latency update;
+
+    // what it cost the JVM
+    @JsonProperty
+    private long gcCount;
+    @JsonProperty
+    private long gcMillis;
+    @JsonProperty
+    private int threads;
+    @JsonProperty
+    private int peakThreads;
+
+    // the acceptance gate
+    @JsonProperty
+    private boolean passed;
+    @JsonProperty
+    private List<String> failures = new ArrayList<>();
+
+    /**
+     * Empty constructor needed by Jackson
+     */
+    public LoadTestReport() { }
+
+    /**
+     * Build the report for a measured phase
+     * @param settings the run settings
+     * @param phase the measurements
+     */
+    public LoadTestReport(LoadTestSettings settings, LoadGenerator.Phase phase) {
+        this.houses = settings.getHouses();
+        this.offeredRate = settings.getRate();
+        this.getRatio = settings.getGetRatio();
+        this.seconds = phase.getSeconds();
+        this.sent = phase.getSent();
+        this.completed = phase.getCompleted();
+        this.errors = phase.getErrors();
+        this.throughput = completed / seconds;
+
+        Histogram stateLatencies = phase.takeStateLatencies();
+        Histogram updateLatencies = phase.takeUpdateLatencies();
+        Histogram allLatencies = stateLatencies.copy();
+        allLatencies.add(updateLatencies);
+        this.state = new Latency(stateLatencies);
+        this.update = new Latency(updateLatencies);
+        this.all = new Latency(allLatencies);
+    }
+
+    /**
+     * Record the JVM cost of the run
+     * @param gcCount collections during the run
+     * @param gcMillis time spent collecting during the run
+     * @param threads live threads at the end of the run
+     * @param peakThreads the most live threads during the run
+     */
+    public void setJvm(long gcCount, long gcMillis, int threads, int peakThreads) {
+        this.gcCount = gcCount;
+        this.gcMillis = gcMillis;
+        this.threads = threads;
+        this.peakThreads = peakThreads;
+    }
+
+    /**
+     * Apply the acceptance gate
+     * @param settings the thresholds
+     * @return true if the run passed
+     */
+    public boolean check(LoadTestSettings settings) {
+        failures.clear();
+        if (settings.getMaxP99() > 0 && all.getP99() > settings.getMaxP99()) {
+            failures.add(String.format("p99 latency %.2fms is above %.2fms", all.getP99(), settings.getMaxP99()));
+        }
+        if (settings.getMinThroughput() > 0 && throughput < settings.getMinThroughput()) {
+            failures.add(String.format("throughput %.1f/s is below %.1f/s", throughput, settings.getMinThroughput()));
+        }
+        double errorRate = sent == 0 ? 0 : (double) errors / sent;
+        if (errorRate > settings.getMaxErrorRate()) {
+            failures.add(String.format("error rate %.4f is above %.4f", errorRate, settings.getMaxErrorRate()));
+        }
+        passed = failures.isEmpty();
+        return passed;
+    }
+
+    public List<String> getFailures() {
+        return failures;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d houses, offered %.1f/s for %.1fs%n", houses, offeredRate, seconds)
+                + String.format("  sent=%d completed=%d errors=%d throughput=%.1f/s%n", sent, completed, errors, throughput)
+                + "  all:    " + all + System.lineSeparator()
+                + "  state:  " + state + System.lineSeparator()
+                + "  update: " + update + System.lineSeparator()
+                + String.format("  gc=%d (%dms) threads=%d peak=%d%n", gcCount, gcMillis, threads, peakThreads)
+                + "  " + (passed ? "PASSED" : "FAILED " + failures);
+    }
+}
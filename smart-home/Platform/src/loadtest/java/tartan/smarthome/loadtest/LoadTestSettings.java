@@ -0,0 +1,142 @@
+package tartan.smarthome.loadtest;
+
+/**
+ * Settings for a load test run. Settings are given on the command line as --name=value pairs, for example:
+ * --houses=500 --rate=2000 --getRatio=0.9 --duration=120 --maxP99=250
+ */
+public class LoadTestSettings {
+
+    /** the simulated fleet */
+    private int houses = 100;
+    private int basePort = 16000;
+    private long seed = 1L;
+    private int houseLatency = 0; // ms added to every house response
+    private String protocol = "ascii"; // the house protocol, ascii or binary
+    private int gateways = 0; // if set, the houses are reached through this many gateways
+
+    /** the offered load */
+    private double rate = 200; // requests per second, across all houses
+    private double getRatio = 0.9; // the fraction of requests that are state GETs; the rest are update POSTs
+    private int warmup = 30; // seconds of load before measuring starts
+    private int duration = 60; // seconds of measured load
+    private int timeout = 30; // seconds before a request counts as failed
+
+    /** acceptance gate; a run that misses any of these fails */
+    private double maxP99 = 0; // ms, 0 to disable
+    private double minThroughput = 0; // completed requests per second, 0 to disable
+    private double maxErrorRate = 0.01; // fraction of requests that failed
+
+    /** output */
+    private String report = "build/reports/loadtest/report.json";
+
+    /**
+     * Parse settings from the command line
+     * @param args --name=value pairs
+     * @return the settings
+     */
+    public static LoadTestSettings fromArgs(String[] args) {
+        LoadTestSettings settings = new LoadTestSettings();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+
+            if (name.equals("houses")) {
+                settings.houses = Integer.parseInt(value);
+            } else if (name.equals("basePort")) {
+                settings.basePort = Integer.parseInt(value);
+            } else if (name.equals("seed")) {
+                settings.seed = Long.parseLong(value);
+            } else if (name.equals("houseLatency")) {
+                settings.houseLatency = Integer.parseInt(value);
+            } else if (name.equals("gateways")) {
+                settings.gateways = Integer.parseInt(value);
+            } else if (name.equals("protocol")) {
+                settings.protocol = value;
+            } else if (name.equals("rate")) {
+                settings.rate = Double.parseDouble(value);
+            } else if (name.equals("getRatio")) {
+                settings.getRatio = Double.parseDouble(value);
+            } else if (name.equals("warmup")) {
+                settings.warmup = Integer.parseInt(value);
+            } else if (name.equals("duration")) {
+                settings.duration = Integer.parseInt(value);
+            } else if (name.equals("timeout")) {
+                settings.timeout = Integer.parseInt(value);
+            } else if (name.equals("maxP99")) {
+                settings.maxP99 = Double.parseDouble(value);
+            } else if (name.equals("minThroughput")) {
+                settings.minThroughput = Double.parseDouble(value);
+            } else if (name.equals("maxErrorRate")) {
+                settings.maxErrorRate = Double.parseDouble(value);
+            } else if (name.equals("report")) {
+                settings.report = value;
+            } else {
+                throw new IllegalArgumentException("Unknown setting " + name);
+            }
+        }
+        return settings;
+    }
+
+    public int getHouses() {
+        return houses;
+    }
+
+    public int getBasePort() {
+        return basePort;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getHouseLatency() {
+        return houseLatency;
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public int getGateways() {
+        return gateways;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public double getGetRatio() {
+        return getRatio;
+    }
+
+    public int getWarmup() {
+        return warmup;
+    }
+
+    public int getDuration() {
+        return duration;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public double getMaxP99() {
+        return maxP99;
+    }
+
+    public double getMinThroughput() {
+        return minThroughput;
+    }
+
+    public double getMaxErrorRate() {
+        return maxErrorRate;
+    }
+
+    public String getReport() {
+        return report;
+    }
+}
@@ -0,0 +1,108 @@
+package tartan.smarthome.loadtest;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import tartan.smarthome.outbox.Outbox;
+import tartan.smarthome.outbox.OutboxLog;
+import tartan.smarthome.resources.iotcontroller.IoTValues;
+import tartan.smarthome.webhooks.WebhookService;
+import tartan.smarthome.webhooks.WebhookSubscription;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A webhook throughput test. This adds state changes to an outbox as fast as it can, as the houses would,
+ * while a {@link WebhookService} posts them to a {@link WebhookStubServer} on this machine. It reports how
+ * fast the events were added, the slowest add, and how fast they were posted. The slowest add should stay
+ * small however slow the receiver is, since the houses never wait for a webhook. The process exits with 1
+ * if not every event arrived, or if more posts were in progress at once than the webhook's concurrency.
+ *
+ * Run it with ./gradlew webhookLoadTest --args='--events=200000 --receiverLatency=50 --concurrency=4'
+ */
+public class WebhookLoadTest {
+
+    /**
+     * Run the test
+     * @param args --name=value settings: events, houses, receiverLatency (ms per post), batchMillis,
+     *             maxBatch, concurrency and timeout (seconds to wait for every event to arrive)
+     * @throws Exception if the outbox or the receiver cannot start
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, Integer> settings = new HashMap<>();
+        settings.put("events", 100000);
+        settings.put("houses", 1000);
+        settings.put("receiverLatency", 20);
+        settings.put("batchMillis", 100);
+        settings.put("maxBatch", 500);
+        settings.put("concurrency", 4);
+        settings.put("timeout", 120);
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            if (!settings.containsKey(name)) {
+                throw new IllegalArgumentException("Unknown setting " + name);
+            }
+            settings.put(name, Integer.parseInt(arg.substring(arg.indexOf('=') + 1)));
+        }
+        System.exit(run(settings) ? 0 : 1);
+    }
+
+    private static boolean run(Map<String, Integer> settings) throws Exception {
+        int events = settings.get("events");
+        int houses = settings.get("houses");
+        int concurrency = settings.get("concurrency");
+
+        File directory = Files.createTempDirectory("webhook-loadtest").toFile();
+        Outbox outbox = new Outbox(new OutboxLog(directory, 64 << 20, Long.MAX_VALUE, TimeUnit.DAYS.toMillis(1),
+                System::currentTimeMillis));
+        WebhookStubServer receiver = new WebhookStubServer(settings.get("receiverLatency"));
+        WebhookSubscription subscription = new WebhookSubscription("loadtest", receiver.getUrl(),
+                Collections.emptySet(), Collections.singleton(WebhookSubscription.STATE), settings.get("batchMillis"),
+                settings.get("maxBatch"), concurrency, TimeUnit.SECONDS.toMillis(10), 100, 5000);
+        WebhookService webhooks = new WebhookService(outbox, Collections.singletonList(subscription),
+                new File(directory, "webhooks"), new ObjectMapper(), new MetricRegistry());
+        webhooks.start();
+
+        long start = System.nanoTime();
+        long slowest = 0;
+        for (int i = 0; i < events; i++) {
+            long before = System.nanoTime();
+            outbox.stateChanged("house" + (i % houses), Collections.singletonMap(IoTValues.TEMP_READING, i % 100));
+            slowest = Math.max(slowest, System.nanoTime() - before);
+        }
+        double addSeconds = (System.nanoTime() - start) / 1e9;
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(settings.get("timeout"));
+        while (receiver.getEvents() < events && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        double deliverSeconds = (System.nanoTime() - start) / 1e9;
+        webhooks.stop();
+        receiver.stop();
+        outbox.stop();
+
+        System.out.printf("Added %d events in %.2fs (%.0f per second), slowest add %.3f ms%n", events, addSeconds,
+                events / addSeconds, slowest / 1e6);
+        System.out.printf("Posted %d events in %d posts in %.2fs (%.0f per second), at most %d posts at once%n",
+                receiver.getEvents(), receiver.getPosts(), deliverSeconds, receiver.getEvents() / deliverSeconds,
+                receiver.getMaxInProgress());
+
+        boolean passed = true;
+        if (receiver.getEvents() < events) {
+            System.out.println("FAILED: " + (events - receiver.getEvents()) + " events did not arrive");
+            passed = false;
+        }
+        if (receiver.getMaxInProgress() > concurrency) {
+            System.out.println("FAILED: more than " + concurrency + " posts were in progress at once");
+            passed = false;
+        }
+        return passed;
+    }
+}
@@ -0,0 +1,100 @@
+package tartan.smarthome.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import tartan.smarthome.core.TartanWebhookBatch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local webhook receiver for load tests. It takes every post, after an optional delay to stand in for a
+ * slow receiver, and counts the events and how many posts were in progress at once.
+ */
+public class WebhookStubServer {
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong posts = new AtomicLong();
+    private final AtomicInteger inProgress = new AtomicInteger();
+    private final AtomicInteger maxInProgress = new AtomicInteger();
+
+    /**
+     * Start a receiver on a free local port
+     * @param latencyMillis how long to take over each post
+     * @throws IOException if the port could not be opened
+     */
+    public WebhookStubServer(int latencyMillis) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/hook", exchange -> {
+            int now = inProgress.incrementAndGet();
+            maxInProgress.accumulateAndGet(now, Math::max);
+            try (InputStream in = exchange.getRequestBody()) {
+                TartanWebhookBatch batch = mapper.readValue(in, TartanWebhookBatch.class);
+                if (latencyMillis > 0) {
+                    Thread.sleep(latencyMillis);
+                }
+                events.addAndGet(batch.getEvents().size());
+                posts.incrementAndGet();
+                exchange.sendResponseHeaders(204, -1);
+            } catch (InterruptedException e) {
+                exchange.sendResponseHeaders(503, -1);
+            } finally {
+                inProgress.decrementAndGet();
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Get the url to post to
+     * @return the url
+     */
+    public URI getUrl() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/hook");
+    }
+
+    /**
+     * Get the number of events received
+     * @return the count
+     */
+    public long getEvents() {
+        return events.get();
+    }
+
+    /**
+     * Get the number of posts received
+     * @return the count
+     */
+    public long getPosts() {
+        return posts.get();
+    }
+
+    /**
+     * Get the most posts that were in progress at once
+     * @return the count
+     */
+    public int getMaxInProgress() {
+        return maxInProgress.get();
+    }
+
+    /**
+     * Stop the receiver
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
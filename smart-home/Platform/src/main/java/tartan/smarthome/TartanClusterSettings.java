@@ -0,0 +1,84 @@
+package tartan.smarthome;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import tartan.smarthome.cluster.ClusterCoordinator;
+import tartan.smarthome.db.ClusterDAO;
+
+import javax.validation.constraints.Min;
+import java.util.Set;
+
+/**
+ * The cluster settings from the cluster section of config.yml. See that file for definitions
+ */
+public class TartanClusterSettings {
+
+    @JsonProperty
+    private Boolean enabled = false;
+
+    @JsonProperty
+    private String nodeId;
+
+    @JsonProperty
+    private String url;
+
+    @Min(3)
+    @JsonProperty
+    private Integer leaseSeconds = 15;
+
+    @Min(1)
+    @JsonProperty
+    private Integer virtualNodes = 100;
+
+    /**
+     * Create the coordinator for this node
+     * @param dao the leases
+     * @param houses a live view of the names of every house in the cluster
+     * @return the coordinator, not yet started
+     */
+    public ClusterCoordinator build(ClusterDAO dao, Set<String> houses) {
+        if (nodeId == null || url == null) {
+            throw new IllegalArgumentException("A cluster node needs a nodeId and a url");
+        }
+        return new ClusterCoordinator(nodeId, url, leaseSeconds, virtualNodes, dao, houses);
+    }
+
+    public Boolean getEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(Boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public Integer getLeaseSeconds() {
+        return leaseSeconds;
+    }
+
+    public void setLeaseSeconds(Integer leaseSeconds) {
+        this.leaseSeconds = leaseSeconds;
+    }
+
+    public Integer getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    public void setVirtualNodes(Integer virtualNodes) {
+        this.virtualNodes = virtualNodes;
+    }
+}
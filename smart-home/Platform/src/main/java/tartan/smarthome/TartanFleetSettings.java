@@ -0,0 +1,83 @@
+package tartan.smarthome;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import tartan.smarthome.db.FleetDAO;
+import tartan.smarthome.fleet.ConfigFleetSource;
+import tartan.smarthome.fleet.DatabaseFleetSource;
+import tartan.smarthome.fleet.FileFleetSource;
+import tartan.smarthome.fleet.FleetSource;
+
+import javax.validation.constraints.Min;
+import java.io.File;
+import java.util.List;
+
+/**
+ * The fleet settings from the fleet section of config.yml. See that file for definitions
+ */
+public class TartanFleetSettings {
+
+    /** the houses listed in config.yml */
+    public static final String CONFIG = "config";
+
+    /** the houses listed in a file of their own */
+    public static final String FILE = "file";
+
+    /** the houses kept in the database */
+    public static final String DATABASE = "database";
+
+    @JsonProperty
+    private String source = CONFIG;
+
+    @JsonProperty
+    private String file;
+
+    @Min(1)
+    @JsonProperty
+    private Integer reloadSeconds = 10;
+
+    /**
+     * Create the source of the houses
+     * @param houses the houses listed in config.yml
+     * @param dao the fleet table
+     * @param mapper encodes the settings for the database
+     * @return the source
+     */
+    public FleetSource build(List<TartanHomeSettings> houses, FleetDAO dao, ObjectMapper mapper) {
+        if (CONFIG.equals(source)) {
+            return new ConfigFleetSource(houses);
+        } else if (FILE.equals(source)) {
+            if (file == null) {
+                throw new IllegalArgumentException("The file fleet source needs a file");
+            }
+            return new FileFleetSource(new File(file));
+        } else if (DATABASE.equals(source)) {
+            return new DatabaseFleetSource(dao, mapper, houses);
+        }
+        throw new IllegalArgumentException("Unknown fleet source " + source);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public void setSource(String source) {
+        this.source = source;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public void setFile(String file) {
+        this.file = file;
+    }
+
+    public Integer getReloadSeconds() {
+        return reloadSeconds;
+    }
+
+    public void setReloadSeconds(Integer reloadSeconds) {
+        this.reloadSeconds = reloadSeconds;
+    }
+}
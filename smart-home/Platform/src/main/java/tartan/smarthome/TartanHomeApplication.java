@@ -1,6 +1,7 @@
 package tartan.smarthome;
 
 import io.dropwizard.Application;
+import io.dropwizard.assets.AssetsBundle;
 import io.dropwizard.auth.AuthDynamicFeature;
 import io.dropwizard.auth.AuthValueFactoryProvider;
 import io.dropwizard.auth.basic.BasicCredentialAuthFilter;
@@ -9,11 +10,40 @@ import io.dropwizard.hibernate.HibernateBundle;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
 import io.dropwizard.views.ViewBundle;
+import io.dropwizard.views.freemarker.FreemarkerViewRenderer;
 import tartan.smarthome.auth.TartanAuthenticator;
 import tartan.smarthome.auth.TartanUser;
+import tartan.smarthome.cluster.ClusterCoordinator;
+import tartan.smarthome.cluster.ClusterForwardingFilter;
+import tartan.smarthome.core.TartanFleetHouse;
 import tartan.smarthome.core.TartanHomeData;
+import tartan.smarthome.core.TartanHouseLease;
+import tartan.smarthome.core.TartanNodeLease;
+import tartan.smarthome.db.ClusterDAO;
+import tartan.smarthome.db.FleetDAO;
+import tartan.smarthome.fleet.FleetAdminServlet;
+import tartan.smarthome.fleet.FleetIndex;
+import tartan.smarthome.fleet.FleetRegistry;
+import tartan.smarthome.fleet.FleetSource;
+import tartan.smarthome.fleet.FleetSummary;
 import tartan.smarthome.db.HomeDAO;
+import tartan.smarthome.outbox.Outbox;
+import tartan.smarthome.patterns.PatternEngine;
+import tartan.smarthome.patterns.StatePattern;
+import tartan.smarthome.resources.ControlChannel;
+import tartan.smarthome.resources.ControlServlet;
+import tartan.smarthome.resources.TartanHomeService;
 import tartan.smarthome.resources.TartanResource;
+import tartan.smarthome.resources.iotcontroller.ShardedRuntime;
+import tartan.smarthome.views.StateResponseCache;
+import tartan.smarthome.webhooks.WebhookService;
+import tartan.smarthome.webhooks.WebhookSubscription;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * This is the driver for the program.
@@ -22,7 +52,8 @@ import tartan.smarthome.resources.TartanResource;
 public class TartanHomeApplication extends Application<TartanHomeConfiguration> {
 
     private final HibernateBundle<TartanHomeConfiguration> hibernateBundle =
-            new HibernateBundle<TartanHomeConfiguration>(TartanHomeData.class) {
+            new HibernateBundle<TartanHomeConfiguration>(TartanHomeData.class, TartanNodeLease.class,
+                    TartanHouseLease.class, TartanFleetHouse.class) {
                 @Override
                 public DataSourceFactory getDataSourceFactory(TartanHomeConfiguration configuration) {
                     return configuration.getDataSourceFactory();
@@ -53,8 +84,9 @@ public class TartanHomeApplication extends Application<TartanHomeConfiguration>
      */
     @Override
     public void initialize(final Bootstrap<TartanHomeConfiguration> bootstrap) {
-        // We need the view bundle for rendering
+        // We need the view bundle for rendering, and the assets bundle for the scripts the views use
         bootstrap.addBundle(new ViewBundle());
+        bootstrap.addBundle(new AssetsBundle("/assets", "/assets", null, "assets"));
         bootstrap.addBundle(hibernateBundle);
     }
 
@@ -65,16 +97,101 @@ public class TartanHomeApplication extends Application<TartanHomeConfiguration>
      */
     @Override
     public void run(final TartanHomeConfiguration configuration,
-                    final Environment environment) {
+                    final Environment environment) throws IOException {
         HomeDAO dao = new HomeDAO(hibernateBundle.getSessionFactory());
 
+        // the users are added with their houses, as the fleet is loaded
         TartanAuthenticator auth = new TartanAuthenticator();
-        auth.setValidUsers(configuration);
+        for (TartanOperatorSettings operator : configuration.getOperators()) {
+            auth.addOperator(operator);
+        }
+
+        // the state resource renders the house itself, so it can keep the result; the renderer is set up
+        // the same way the view bundle sets up its own
+        FreemarkerViewRenderer renderer = new FreemarkerViewRenderer();
+        renderer.configure(Collections.emptyMap());
+        StateResponseCache stateCache = new StateResponseCache(environment.getObjectMapper(), renderer,
+                environment.metrics());
+
+        ShardedRuntime runtime = configuration.getRuntime().build();
+
+        // the outbox is opened before the houses are made, since each house adds its changes to it
+        Outbox outbox = null;
+        if (configuration.getOutbox().getEnabled()) {
+            outbox = configuration.getOutbox().build();
+            runtime.setOutbox(outbox);
+            environment.lifecycle().manage(outbox);
+        }
+        FleetIndex index = new FleetIndex(runtime.getStateTable());
+        FleetSummary summary = new FleetSummary(runtime.getStateTable());
+        FleetRegistry fleet = new FleetRegistry(dao, Integer.parseInt(configuration.getHistoryTimer()),
+                configuration.getPolling(), runtime, environment.metrics(), configuration.getCommandDirectory(),
+                auth, configuration.getCluster().getEnabled());
+
+        // in a cluster each node runs only the houses it holds leases on, and forwards the rest
+        ClusterCoordinator cluster = null;
+        if (configuration.getCluster().getEnabled()) {
+            cluster = configuration.getCluster().build(new ClusterDAO(hibernateBundle.getSessionFactory()),
+                    fleet.getNames());
+            cluster.setMember(fleet);
+        }
 
-        final TartanResource resource = new TartanResource(configuration.getHouses(),
-                dao, Integer.parseInt(configuration.getHistoryTimer()));
+        // patterns in the way each house changes are noted in that house's event log, and in the outbox
+        List<StatePattern> patterns = new ArrayList<>();
+        for (TartanPatternSettings pattern : configuration.getPatterns()) {
+            patterns.add(pattern.build());
+        }
+        PatternEngine patternEngine = new PatternEngine(runtime.getStateTable(), patterns);
+        final Outbox patternOutbox = outbox;
+        patternEngine.addMatchListener(match -> {
+            TartanHomeService service = fleet.get(match.getHouse());
+            if (service != null) {
+                service.logEvent("Pattern " + match);
+            }
+            if (patternOutbox != null) {
+                patternOutbox.patternMatched(match.getHouse(), match.getPattern(), match.getDescription());
+            }
+        });
+
+        // the webhooks read their events from the outbox, each on its own thread
+        if (!configuration.getWebhooks().isEmpty()) {
+            if (outbox == null) {
+                throw new IllegalArgumentException("Webhooks need the outbox to be enabled");
+            }
+            List<WebhookSubscription> subscriptions = new ArrayList<>();
+            for (TartanWebhookSettings webhook : configuration.getWebhooks()) {
+                subscriptions.add(webhook.build());
+            }
+            environment.lifecycle().manage(new WebhookService(outbox, subscriptions,
+                    new File(configuration.getOutbox().getDirectory(), "webhooks"), environment.getObjectMapper(),
+                    environment.metrics()));
+        }
+
+        final TartanResource resource = new TartanResource(fleet, runtime, environment.metrics(), stateCache,
+                index, summary, outbox);
+
+        // load the houses, and keep watching for houses added, changed or removed
+        TartanFleetSettings fleetSettings = configuration.getFleet();
+        FleetSource source = fleetSettings.build(configuration.getHouses(),
+                new FleetDAO(hibernateBundle.getSessionFactory()), environment.getObjectMapper());
+        fleet.watch(source, fleetSettings.getReloadSeconds());
+        environment.admin().addServlet("fleet", new FleetAdminServlet(fleet, source,
+                environment.getObjectMapper(), environment.getValidator(), auth)).addMapping("/fleet/*");
 
         environment.jersey().register(resource);
+        environment.lifecycle().manage(resource.getSummaryStreams());
+
+        // the dashboards send commands and get the changes to their house over one socket each
+        ControlChannel control = new ControlChannel(fleet, runtime.getStateTable(), stateCache,
+                resource.getCommandTracker(), environment.getObjectMapper(), environment.metrics());
+        environment.lifecycle().manage(control);
+        environment.servlets().addServlet("control", new ControlServlet(control, auth))
+                .addMapping("/smarthome/control");
+
+        if (cluster != null) {
+            environment.lifecycle().manage(cluster);
+            environment.jersey().register(new ClusterForwardingFilter(cluster));
+        }
         environment.jersey().register(new AuthDynamicFeature(new BasicCredentialAuthFilter.Builder<TartanUser>()
                 .setAuthenticator(auth)
                 .buildAuthFilter()));
@@ -6,6 +6,7 @@ import io.dropwizard.db.DataSourceFactory;
 import org.hibernate.validator.constraints.NotEmpty;
 import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -15,9 +16,29 @@ import java.util.List;
  */
 public class TartanHomeConfiguration extends Configuration {
 
-    @NotEmpty
+    // the starting fleet; with another fleet source this may be empty
+    @Valid
+    @NotNull
+    @JsonProperty
+    private List<TartanHomeSettings> houses = new ArrayList<>();
+
+    // the accounts that may use the fleet-wide APIs
+    @Valid
+    @NotNull
+    @JsonProperty
+    private List<TartanOperatorSettings> operators = new ArrayList<>();
+
+    // the patterns to look for in the way the houses change
+    @Valid
+    @NotNull
     @JsonProperty
-    private List<TartanHomeSettings> houses;
+    private List<TartanPatternSettings> patterns = new ArrayList<>();
+
+    // the webhooks to post house events to; these need the outbox
+    @Valid
+    @NotNull
+    @JsonProperty
+    private List<TartanWebhookSettings> webhooks = new ArrayList<>();
 
     @NotEmpty
     @JsonProperty
@@ -27,6 +48,34 @@ public class TartanHomeConfiguration extends Configuration {
     @NotNull
     private DataSourceFactory database = new DataSourceFactory();
 
+    @Valid
+    @NotNull
+    @JsonProperty
+    private TartanPollingSettings polling = new TartanPollingSettings();
+
+    @Valid
+    @NotNull
+    @JsonProperty
+    private TartanRuntimeSettings runtime = new TartanRuntimeSettings();
+
+    @Valid
+    @NotNull
+    @JsonProperty
+    private TartanClusterSettings cluster = new TartanClusterSettings();
+
+    @Valid
+    @NotNull
+    @JsonProperty
+    private TartanFleetSettings fleet = new TartanFleetSettings();
+
+    @Valid
+    @NotNull
+    @JsonProperty
+    private TartanOutboxSettings outbox = new TartanOutboxSettings();
+
+    @JsonProperty
+    private String commandDirectory;
+
     @JsonProperty
     public List<TartanHomeSettings> getHouses() {
         return houses;
@@ -37,6 +86,36 @@ public class TartanHomeConfiguration extends Configuration {
         this.houses = houses;
     }
 
+    @JsonProperty
+    public List<TartanOperatorSettings> getOperators() {
+        return operators;
+    }
+
+    @JsonProperty
+    public void setOperators(List<TartanOperatorSettings> operators) {
+        this.operators = operators;
+    }
+
+    @JsonProperty
+    public List<TartanPatternSettings> getPatterns() {
+        return patterns;
+    }
+
+    @JsonProperty
+    public void setPatterns(List<TartanPatternSettings> patterns) {
+        this.patterns = patterns;
+    }
+
+    @JsonProperty
+    public List<TartanWebhookSettings> getWebhooks() {
+        return webhooks;
+    }
+
+    @JsonProperty
+    public void setWebhooks(List<TartanWebhookSettings> webhooks) {
+        this.webhooks = webhooks;
+    }
+
     @JsonProperty("database")
     public DataSourceFactory getDataSourceFactory() {
         return database;
@@ -51,4 +130,64 @@ public class TartanHomeConfiguration extends Configuration {
     public String getHistoryTimer() {
         return historyTimer;
     }
+
+    @JsonProperty
+    public TartanPollingSettings getPolling() {
+        return polling;
+    }
+
+    @JsonProperty
+    public void setPolling(TartanPollingSettings polling) {
+        this.polling = polling;
+    }
+
+    @JsonProperty
+    public TartanRuntimeSettings getRuntime() {
+        return runtime;
+    }
+
+    @JsonProperty
+    public void setRuntime(TartanRuntimeSettings runtime) {
+        this.runtime = runtime;
+    }
+
+    @JsonProperty
+    public TartanClusterSettings getCluster() {
+        return cluster;
+    }
+
+    @JsonProperty
+    public void setCluster(TartanClusterSettings cluster) {
+        this.cluster = cluster;
+    }
+
+    @JsonProperty
+    public TartanOutboxSettings getOutbox() {
+        return outbox;
+    }
+
+    @JsonProperty
+    public void setOutbox(TartanOutboxSettings outbox) {
+        this.outbox = outbox;
+    }
+
+    @JsonProperty
+    public TartanFleetSettings getFleet() {
+        return fleet;
+    }
+
+    @JsonProperty
+    public void setFleet(TartanFleetSettings fleet) {
+        this.fleet = fleet;
+    }
+
+    @JsonProperty
+    public String getCommandDirectory() {
+        return commandDirectory;
+    }
+
+    @JsonProperty
+    public void setCommandDirectory(String commandDirectory) {
+        this.commandDirectory = commandDirectory;
+    }
 }
@@ -3,6 +3,8 @@ package tartan.smarthome;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.hibernate.validator.constraints.NotEmpty;
 
+import javax.validation.constraints.NotNull;
+
 /**
  * This is Jackson-compatible a configuration class for the initial
  * configuration setting in the primiary
@@ -10,6 +12,9 @@ import org.hibernate.validator.constraints.NotEmpty;
  */
 public class TartanHomeSettings {
 
+    /** the protocol setting that offers the house the binary wire format */
+    public static final String BINARY_PROTOCOL = "binary";
+
     @NotEmpty
     @JsonProperty
     private String name;
@@ -18,7 +23,7 @@ public class TartanHomeSettings {
     @JsonProperty
     private String address;
 
-    @NotEmpty
+    @NotNull
     @JsonProperty
     private Integer port;
 
@@ -42,26 +47,30 @@ public class TartanHomeSettings {
     @JsonProperty
     private String alarmPasscode;
 
-    @NotEmpty
+    // optional: the rest of the settings take their defaults when a house leaves them out
     @JsonProperty
     private String doorLocked;
 
-    @NotEmpty
     @JsonProperty
     private String nightLockStart;
 
-    @NotEmpty
     @JsonProperty
     private String nightLockEnd;
 
-    @NotEmpty
     @JsonProperty
     private String ownersPhoneNearby;
 
-    @NotEmpty
     @JsonProperty
     private String doorLockedPasscode;
 
+    // optional: ascii (the default) or binary
+    @JsonProperty
+    private String protocol;
+
+    // optional: the house's ID on the building gateway at address:port
+    @JsonProperty
+    private Integer gatewayId;
+
     public String getTargetTemp() {
         return targetTemp;
     }
@@ -157,4 +166,20 @@ public class TartanHomeSettings {
     public void setNightLockEnd(String nightLockEnd) {
         this.nightLockEnd = nightLockEnd;
     }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public void setProtocol(String protocol) {
+        this.protocol = protocol;
+    }
+
+    public Integer getGatewayId() {
+        return gatewayId;
+    }
+
+    public void setGatewayId(Integer gatewayId) {
+        this.gatewayId = gatewayId;
+    }
 }
@@ -0,0 +1,35 @@
+package tartan.smarthome;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.hibernate.validator.constraints.NotEmpty;
+
+/**
+ * An operator account from the operators section of config.yml. Operators are not tied to a house and may
+ * use the fleet-wide APIs. See that file for definitions
+ */
+public class TartanOperatorSettings {
+
+    @NotEmpty
+    @JsonProperty
+    private String user;
+
+    @NotEmpty
+    @JsonProperty
+    private String password;
+
+    public String getUser() {
+        return user;
+    }
+
+    public void setUser(String user) {
+        this.user = user;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public void setPassword(String password) {
+        this.password = password;
+    }
+}
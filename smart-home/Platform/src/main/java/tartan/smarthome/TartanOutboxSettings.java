@@ -0,0 +1,85 @@
+package tartan.smarthome;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import tartan.smarthome.outbox.Outbox;
+import tartan.smarthome.outbox.OutboxLog;
+
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outbox settings from the outbox section of config.yml. See that file for definitions
+ */
+public class TartanOutboxSettings {
+
+    @JsonProperty
+    private Boolean enabled = false;
+
+    @JsonProperty
+    private String directory = "outbox";
+
+    @Min(1)
+    @Max(1024)
+    @JsonProperty
+    private Integer segmentMegabytes = 64;
+
+    @Min(1)
+    @JsonProperty
+    private Integer retentionMegabytes = 1024;
+
+    @Min(1)
+    @JsonProperty
+    private Integer retentionHours = 168;
+
+    /**
+     * Open the outbox
+     * @return the outbox, not yet started
+     */
+    public Outbox build() {
+        OutboxLog log = new OutboxLog(new File(directory), segmentMegabytes << 20,
+                (long) retentionMegabytes << 20, TimeUnit.HOURS.toMillis(retentionHours), System::currentTimeMillis);
+        return new Outbox(log);
+    }
+
+    public Boolean getEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(Boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public Integer getSegmentMegabytes() {
+        return segmentMegabytes;
+    }
+
+    public void setSegmentMegabytes(Integer segmentMegabytes) {
+        this.segmentMegabytes = segmentMegabytes;
+    }
+
+    public Integer getRetentionMegabytes() {
+        return retentionMegabytes;
+    }
+
+    public void setRetentionMegabytes(Integer retentionMegabytes) {
+        this.retentionMegabytes = retentionMegabytes;
+    }
+
+    public Integer getRetentionHours() {
+        return retentionHours;
+    }
+
+    public void setRetentionHours(Integer retentionHours) {
+        this.retentionHours = retentionHours;
+    }
+}
@@ -0,0 +1,133 @@
+package tartan.smarthome;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.hibernate.validator.constraints.NotEmpty;
+import tartan.smarthome.patterns.ChangePattern;
+import tartan.smarthome.patterns.CountPattern;
+import tartan.smarthome.patterns.HeldPattern;
+import tartan.smarthome.patterns.StatePattern;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable.Reading;
+
+import javax.validation.constraints.Min;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A state pattern from the patterns section of config.yml. See that file for definitions
+ */
+public class TartanPatternSettings {
+
+    /** a condition that holds for longer than the time */
+    public static final String HELD = "held";
+
+    /** a reading that falls by more than the amount within the time */
+    public static final String FALL = "fall";
+
+    /** a reading that rises by more than the amount within the time */
+    public static final String RISE = "rise";
+
+    /** a condition that starts to hold more than the amount of times within the time */
+    public static final String COUNT = "count";
+
+    @NotEmpty
+    @JsonProperty
+    private String name;
+
+    @NotEmpty
+    @JsonProperty
+    private String type;
+
+    @JsonProperty
+    private String condition;
+
+    @JsonProperty
+    private String reading;
+
+    @JsonProperty
+    private Integer amount;
+
+    @Min(1)
+    @JsonProperty
+    private Integer minutes;
+
+    /**
+     * Create the pattern
+     * @return the pattern
+     * @throws IllegalArgumentException if the settings do not make a pattern
+     */
+    public StatePattern build() {
+        if (minutes == null) {
+            throw new IllegalArgumentException("The pattern " + name + " needs minutes");
+        }
+        long millis = TimeUnit.MINUTES.toMillis(minutes);
+        if (HELD.equals(type)) {
+            return new HeldPattern(name, require(condition, "a condition"), millis);
+        } else if (COUNT.equals(type)) {
+            return new CountPattern(name, require(condition, "a condition"), require(amount, "an amount"), millis);
+        } else if (FALL.equals(type) || RISE.equals(type)) {
+            String wanted = require(reading, "a reading").toLowerCase(Locale.ROOT);
+            for (Reading value : Reading.values()) {
+                if (value.name().replace("_", "").toLowerCase(Locale.ROOT).equals(wanted)) {
+                    return new ChangePattern(name, value, require(amount, "an amount"), millis, FALL.equals(type));
+                }
+            }
+            throw new IllegalArgumentException("The pattern " + name + " has an unknown reading " + reading);
+        }
+        throw new IllegalArgumentException("Unknown pattern type " + type);
+    }
+
+    private <T> T require(T value, String what) {
+        if (value == null) {
+            throw new IllegalArgumentException("The " + type + " pattern " + name + " needs " + what);
+        }
+        return value;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public String getCondition() {
+        return condition;
+    }
+
+    public void setCondition(String condition) {
+        this.condition = condition;
+    }
+
+    public String getReading() {
+        return reading;
+    }
+
+    public void setReading(String reading) {
+        this.reading = reading;
+    }
+
+    public Integer getAmount() {
+        return amount;
+    }
+
+    public void setAmount(Integer amount) {
+        this.amount = amount;
+    }
+
+    public Integer getMinutes() {
+        return minutes;
+    }
+
+    public void setMinutes(Integer minutes) {
+        this.minutes = minutes;
+    }
+}
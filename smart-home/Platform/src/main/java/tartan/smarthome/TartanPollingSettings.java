@@ -0,0 +1,80 @@
+package tartan.smarthome;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import tartan.smarthome.resources.iotcontroller.AdaptivePollPolicy;
+import tartan.smarthome.resources.iotcontroller.FixedPollPolicy;
+import tartan.smarthome.resources.iotcontroller.PollPolicy;
+
+import javax.validation.constraints.Min;
+
+/**
+ * The house polling settings from the polling section of config.yml. See that file for definitions
+ */
+public class TartanPollingSettings {
+
+    /** the fixed policy polls every house at the same interval */
+    public static final String FIXED = "fixed";
+
+    /** the adaptive policy polls between the minimum and maximum interval depending on activity */
+    public static final String ADAPTIVE = "adaptive";
+
+    @JsonProperty
+    private String policy = ADAPTIVE;
+
+    @Min(1)
+    @JsonProperty
+    private Integer interval = 5;
+
+    @Min(1)
+    @JsonProperty
+    private Integer minInterval = 2;
+
+    @Min(1)
+    @JsonProperty
+    private Integer maxInterval = 60;
+
+    /**
+     * Create a policy for one house
+     * @return a new policy
+     */
+    public PollPolicy build() {
+        if (FIXED.equals(policy)) {
+            return new FixedPollPolicy(interval);
+        } else if (ADAPTIVE.equals(policy)) {
+            return new AdaptivePollPolicy(minInterval, maxInterval);
+        }
+        throw new IllegalArgumentException("Unknown polling policy " + policy);
+    }
+
+    public String getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(String policy) {
+        this.policy = policy;
+    }
+
+    public Integer getInterval() {
+        return interval;
+    }
+
+    public void setInterval(Integer interval) {
+        this.interval = interval;
+    }
+
+    public Integer getMinInterval() {
+        return minInterval;
+    }
+
+    public void setMinInterval(Integer minInterval) {
+        this.minInterval = minInterval;
+    }
+
+    public Integer getMaxInterval() {
+        return maxInterval;
+    }
+
+    public void setMaxInterval(Integer maxInterval) {
+        this.maxInterval = maxInterval;
+    }
+}
@@ -0,0 +1,67 @@
+package tartan.smarthome;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import tartan.smarthome.resources.iotcontroller.ShardedRuntime;
+
+import javax.validation.constraints.Min;
+
+/**
+ * The house runtime settings from the runtime section of config.yml. See that file for definitions
+ */
+public class TartanRuntimeSettings {
+
+    @Min(0)
+    @JsonProperty
+    private Integer shards = 0;
+
+    @Min(1)
+    @JsonProperty
+    private Integer threadsPerShard = 1;
+
+    @Min(1)
+    @JsonProperty
+    private Integer ioThreadsPerShard = ShardedRuntime.DEFAULT_IO_THREADS;
+
+    @JsonProperty
+    private Boolean rebalance = true;
+
+    /**
+     * Create and start the runtime
+     * @return the runtime
+     */
+    public ShardedRuntime build() {
+        return new ShardedRuntime(shards, threadsPerShard, ioThreadsPerShard, rebalance);
+    }
+
+    public Integer getShards() {
+        return shards;
+    }
+
+    public void setShards(Integer shards) {
+        this.shards = shards;
+    }
+
+    public Integer getThreadsPerShard() {
+        return threadsPerShard;
+    }
+
+    public void setThreadsPerShard(Integer threadsPerShard) {
+        this.threadsPerShard = threadsPerShard;
+    }
+
+    public Integer getIoThreadsPerShard() {
+        return ioThreadsPerShard;
+    }
+
+    public void setIoThreadsPerShard(Integer ioThreadsPerShard) {
+        this.ioThreadsPerShard = ioThreadsPerShard;
+    }
+
+    public Boolean getRebalance() {
+        return rebalance;
+    }
+
+    public void setRebalance(Boolean rebalance) {
+        this.rebalance = rebalance;
+    }
+}
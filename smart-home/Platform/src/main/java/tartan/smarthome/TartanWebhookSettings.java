@@ -0,0 +1,154 @@
+package tartan.smarthome;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.hibernate.validator.constraints.NotEmpty;
+import tartan.smarthome.webhooks.WebhookSubscription;
+
+import javax.validation.constraints.Min;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A webhook from the webhooks section of config.yml. See that file for definitions
+ */
+public class TartanWebhookSettings {
+
+    @NotEmpty
+    @JsonProperty
+    private String name;
+
+    @NotEmpty
+    @JsonProperty
+    private String url;
+
+    @JsonProperty
+    private List<String> houses = new ArrayList<>();
+
+    @NotEmpty
+    @JsonProperty
+    private List<String> events = new ArrayList<>();
+
+    @Min(0)
+    @JsonProperty
+    private Integer batchMillis = 500;
+
+    @Min(1)
+    @JsonProperty
+    private Integer maxBatch = 100;
+
+    @Min(1)
+    @JsonProperty
+    private Integer concurrency = 2;
+
+    @Min(1)
+    @JsonProperty
+    private Integer timeoutSeconds = 10;
+
+    @Min(1)
+    @JsonProperty
+    private Integer retryMillis = 1000;
+
+    @Min(1)
+    @JsonProperty
+    private Integer maxRetrySeconds = 60;
+
+    /**
+     * Create the subscription
+     * @return the subscription
+     * @throws IllegalArgumentException if the settings do not make a webhook
+     */
+    public WebhookSubscription build() {
+        URI uri;
+        try {
+            uri = URI.create(url);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("The webhook " + name + " has a bad url " + url, e);
+        }
+        return new WebhookSubscription(name, uri, new HashSet<>(houses), new HashSet<>(events), batchMillis,
+                maxBatch, concurrency, TimeUnit.SECONDS.toMillis(timeoutSeconds), retryMillis,
+                Math.max(retryMillis, TimeUnit.SECONDS.toMillis(maxRetrySeconds)));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public List<String> getHouses() {
+        return houses;
+    }
+
+    public void setHouses(List<String> houses) {
+        this.houses = houses;
+    }
+
+    public List<String> getEvents() {
+        return events;
+    }
+
+    public void setEvents(List<String> events) {
+        this.events = events;
+    }
+
+    public Integer getBatchMillis() {
+        return batchMillis;
+    }
+
+    public void setBatchMillis(Integer batchMillis) {
+        this.batchMillis = batchMillis;
+    }
+
+    public Integer getMaxBatch() {
+        return maxBatch;
+    }
+
+    public void setMaxBatch(Integer maxBatch) {
+        this.maxBatch = maxBatch;
+    }
+
+    public Integer getConcurrency() {
+        return concurrency;
+    }
+
+    public void setConcurrency(Integer concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    public Integer getTimeoutSeconds() {
+        return timeoutSeconds;
+    }
+
+    public void setTimeoutSeconds(Integer timeoutSeconds) {
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    public Integer getRetryMillis() {
+        return retryMillis;
+    }
+
+    public void setRetryMillis(Integer retryMillis) {
+        this.retryMillis = retryMillis;
+    }
+
+    public Integer getMaxRetrySeconds() {
+        return maxRetrySeconds;
+    }
+
+    public void setMaxRetrySeconds(Integer maxRetrySeconds) {
+        this.maxRetrySeconds = maxRetrySeconds;
+    }
+}
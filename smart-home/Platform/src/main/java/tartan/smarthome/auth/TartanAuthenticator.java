@@ -3,21 +3,27 @@ package tartan.smarthome.auth;
 import io.dropwizard.auth.AuthenticationException;
 import io.dropwizard.auth.Authenticator;
 import io.dropwizard.auth.basic.BasicCredentials;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.AbstractMap;
+import java.util.concurrent.ConcurrentHashMap;
 import tartan.smarthome.TartanHomeConfiguration;
 import tartan.smarthome.TartanHomeSettings;
+import tartan.smarthome.TartanOperatorSettings;
 
 /***
- * Authentication class for the Tartan Home System. A simple username and password is required
+ * Authentication class for the Tartan Home System. A simple username and password is required. Houses can
+ * be added and removed while the system runs, and their users with them
  */
 public class TartanAuthenticator implements Authenticator<BasicCredentials, TartanUser> {
 
 
-    private  Map<Map.Entry<String, String>, String> VALID_USERS = new HashMap<>();
+    private  Map<Map.Entry<String, String>, String> VALID_USERS = new ConcurrentHashMap<>();
+
+    private  Map<Map.Entry<String, String>, Boolean> OPERATORS = new ConcurrentHashMap<>();
 
     /**
      * Empty constructor
@@ -31,13 +37,37 @@ public class TartanAuthenticator implements Authenticator<BasicCredentials, Tart
     public void setValidUsers(TartanHomeConfiguration config) {
         List<TartanHomeSettings> houses = config.getHouses();
         for (TartanHomeSettings h : houses) {
-            Map.Entry<String,String> key =
-                    new AbstractMap.SimpleEntry<>(h.getUser(), h.getPassword());
-
-            VALID_USERS.put(key, h.getName());
+            addHouse(h);
         }
     }
 
+    /**
+     * Let the user of a house in
+     * @param house the house settings
+     */
+    public void addHouse(TartanHomeSettings house) {
+        Map.Entry<String,String> key =
+                new AbstractMap.SimpleEntry<>(house.getUser(), house.getPassword());
+
+        VALID_USERS.put(key, house.getName());
+    }
+
+    /**
+     * Stop letting the user of a house in
+     * @param house the house settings
+     */
+    public void removeHouse(TartanHomeSettings house) {
+        VALID_USERS.remove(new AbstractMap.SimpleEntry<>(house.getUser(), house.getPassword()), house.getName());
+    }
+
+    /**
+     * Let an operator in
+     * @param operator the operator settings
+     */
+    public void addOperator(TartanOperatorSettings operator) {
+        OPERATORS.put(new AbstractMap.SimpleEntry<>(operator.getUser(), operator.getPassword()), true);
+    }
+
     /**
      * Authenticate the user
      * @param credentials the user login information
@@ -52,6 +82,37 @@ public class TartanAuthenticator implements Authenticator<BasicCredentials, Tart
         if (VALID_USERS.containsKey(p)) {
             return Optional.of(new TartanUser(credentials.getUsername(), VALID_USERS.get(p)));
         }
+        if (OPERATORS.containsKey(p)) {
+            return Optional.of(TartanUser.operator(credentials.getUsername()));
+        }
         return Optional.empty();
     }
+
+    /**
+     * Authenticate the basic credentials in an Authorization header, for the servlets that Jersey's
+     * authentication filter does not cover
+     * @param authorization the header, or null if there was none
+     * @return the authenticated user, or empty if the credentials are missing, malformed or wrong
+     */
+    public Optional<TartanUser> authenticateHeader(String authorization) {
+        if (authorization == null || !authorization.regionMatches(true, 0, "Basic ", 0, 6)) {
+            return Optional.empty();
+        }
+        String decoded;
+        try {
+            decoded = new String(Base64.getDecoder().decode(authorization.substring(6).trim()),
+                    StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+        int colon = decoded.indexOf(':');
+        if (colon < 0) {
+            return Optional.empty();
+        }
+        try {
+            return authenticate(new BasicCredentials(decoded.substring(0, colon), decoded.substring(colon + 1)));
+        } catch (AuthenticationException e) {
+            return Optional.empty();
+        }
+    }
 }
@@ -10,6 +10,9 @@ public class TartanUser implements Principal {
     private String name=null;
     private String house = null;
 
+    // operators have no house, but may use the fleet-wide APIs
+    private boolean operator = false;
+
     /**
      * Create a new TartanUser. Note that this is the only place to set name and house
      * @param name The user name
@@ -20,6 +23,17 @@ public class TartanUser implements Principal {
         this.house = house;
     }
 
+    /**
+     * Create a new operator
+     * @param name The user name
+     * @return the operator, who has no house
+     */
+    public static TartanUser operator(String name) {
+        TartanUser user = new TartanUser(name, null);
+        user.operator = true;
+        return user;
+    }
+
     /**
      * Get the user name
      * @return the user name
@@ -36,4 +50,12 @@ public class TartanUser implements Principal {
     public String getHouse() {
         return house;
     }
+
+    /**
+     * Check whether the user is an operator
+     * @return true if the user may use the fleet-wide APIs
+     */
+    public boolean isOperator() {
+        return operator;
+    }
 }
@@ -0,0 +1,283 @@
+package tartan.smarthome.cluster;
+
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tartan.smarthome.core.TartanHouseLease;
+import tartan.smarthome.core.TartanNodeLease;
+import tartan.smarthome.db.ClusterDAO;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares the houses between the platform nodes of a cluster. Every node lists the same houses and keeps
+ * leases in the shared database: one for itself, renewed while it runs, and one for each house it owns.
+ *
+ * A few times per lease period each node renews its leases, reads which nodes are alive and places every
+ * house on a {@link HashRing} of those nodes. A node starts a house that the ring gives it once it holds
+ * the house's lease, and stops a house the ring gives to someone else, then releases the lease so the new
+ * owner can take it. A house therefore has at most one owner at a time, and is moved automatically when a
+ * node joins, leaves, or stops renewing its leases.
+ *
+ * A node that cannot renew its leases stops its houses while a sixth of the lease period is still left, so
+ * they are disconnected before the leases run out and another node may take them. The check runs on a thread
+ * of its own, so a database call that hangs cannot hold it up.
+ */
+public class ClusterCoordinator implements Managed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClusterCoordinator.class);
+
+    private final String nodeId;
+    private final String url;
+    private final long leaseMillis;
+    private final int virtualNodes;
+    private final ClusterDAO dao;
+    private final Set<String> houses;
+    private ClusterMember member;
+
+    /** the houses this node runs, or is starting */
+    private final Set<String> running = ConcurrentHashMap.newKeySet();
+
+    /** the houses being stopped, whose leases are kept until they are disconnected */
+    private final Set<String> stopping = ConcurrentHashMap.newKeySet();
+
+    /** the base URL of the node to send each house's requests to */
+    private volatile Map<String, String> routes = Collections.emptyMap();
+
+    /** when the leases were last renewed; only the renewal writes this */
+    private volatile long lastRenewed = 0;
+
+    private final ScheduledExecutorService leases;
+
+    /** starts and stops houses, one at a time so a house's stop never overtakes its start */
+    private final ExecutorService handoff;
+
+    /**
+     * Create a coordinator
+     * @param nodeId the ID of this node, unique in the cluster
+     * @param url the base URL other nodes reach this node on
+     * @param leaseSeconds how long a lease lasts without being renewed
+     * @param virtualNodes how many points each node has on the hash ring
+     * @param dao the leases
+     * @param houses a live view of the names of every house in the cluster, which may change as it runs
+     */
+    public ClusterCoordinator(String nodeId, String url, int leaseSeconds, int virtualNodes, ClusterDAO dao,
+                              Set<String> houses) {
+        this.nodeId = nodeId;
+        this.url = url;
+        this.leaseMillis = TimeUnit.SECONDS.toMillis(leaseSeconds);
+        this.virtualNodes = virtualNodes;
+        this.dao = dao;
+        this.houses = houses;
+        // one thread renews the leases and the other fences the houses if it stops renewing them
+        this.leases = Executors.newScheduledThreadPool(2, r -> {
+            Thread t = new Thread(r, "cluster-leases");
+            t.setDaemon(true);
+            return t;
+        });
+        this.handoff = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "cluster-handoff");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Set what runs the houses this node owns. Must be set before the coordinator starts
+     * @param member the houses
+     */
+    public void setMember(ClusterMember member) {
+        this.member = member;
+    }
+
+    /**
+     * Join the cluster. Houses are taken as the leases allow
+     */
+    @Override
+    public void start() {
+        LOGGER.info("Node " + nodeId + " joining the cluster at " + url);
+        lastRenewed = System.currentTimeMillis();
+        leases.scheduleWithFixedDelay(this::renew, 0, leaseMillis / 3, TimeUnit.MILLISECONDS);
+        leases.scheduleWithFixedDelay(this::fence, leaseMillis / 6, leaseMillis / 6, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Leave the cluster. The houses are stopped and released so the other nodes can take them at once
+     */
+    @Override
+    public void stop() throws InterruptedException {
+        leases.shutdownNow();
+        leases.awaitTermination(leaseMillis, TimeUnit.MILLISECONDS);
+        for (String house : new ArrayList<>(running)) {
+            stopHouse(house);
+        }
+        handoff.shutdown();
+        handoff.awaitTermination(leaseMillis, TimeUnit.MILLISECONDS);
+        try {
+            dao.leave(nodeId);
+        } catch (RuntimeException e) {
+            LOGGER.error("Could not leave the cluster, the houses move when the leases run out: " + e);
+        }
+    }
+
+    /**
+     * Get this node's ID
+     * @return the ID
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Check whether a house belongs to the cluster
+     * @param house the house name
+     * @return true if it is one of the configured houses
+     */
+    public boolean isManaged(String house) {
+        return houses.contains(house);
+    }
+
+    /**
+     * Check whether this node runs a house
+     * @param house the house name
+     * @return true if the house is run here
+     */
+    public boolean isLocal(String house) {
+        return running.contains(house);
+    }
+
+    /**
+     * Find the node to send a house's requests to
+     * @param house the house name
+     * @return the node's base URL, or null while no live node has the house
+     */
+    public String getOwnerUrl(String house) {
+        return routes.get(house);
+    }
+
+    /**
+     * Renew the leases and move houses to match the ring. Runs on the lease thread
+     */
+    private void renew() {
+        long now = System.currentTimeMillis();
+        long expires = now + leaseMillis;
+        try {
+            dao.heartbeat(nodeId, url, expires);
+            dao.renew(nodeId, expires);
+            lastRenewed = now;
+
+            Map<String, String> nodes = new HashMap<>();
+            for (TartanNodeLease node : dao.liveNodes(now)) {
+                nodes.put(node.getNodeId(), node.getUrl());
+            }
+            nodes.put(nodeId, url);
+            HashRing ring = new HashRing(nodes.keySet(), virtualNodes);
+
+            Map<String, String> holders = new HashMap<>();
+            for (TartanHouseLease lease : dao.liveHouses(now)) {
+                holders.put(lease.getHomeName(), lease.getOwner());
+            }
+
+            Map<String, String> next = new HashMap<>();
+            for (String house : houses) {
+                String wanted = ring.owner(house);
+                String holder = holders.get(house);
+                boolean mine = nodeId.equals(wanted);
+
+                if (stopping.contains(house)) {
+                    // still connected until its handoff finishes, which then releases the lease itself
+                    next.put(house, nodes.get(wanted));
+                    continue;
+                }
+                if (running.contains(house)) {
+                    if (!mine || !nodeId.equals(holder)) {
+                        // the house belongs elsewhere now, or our lease was lost and someone else may have it
+                        stopHouse(house);
+                        holder = null;
+                    }
+                } else if (mine && (holder == null || nodeId.equals(holder))) {
+                    if (dao.claim(house, nodeId, expires, now)) {
+                        startHouse(house);
+                        holder = nodeId;
+                    }
+                } else if (nodeId.equals(holder)) {
+                    // a lease left over from before, which would otherwise keep being renewed
+                    dao.release(house, nodeId);
+                    holder = null;
+                }
+
+                next.put(house, nodes.get(holder != null ? holder : wanted));
+            }
+
+            // houses that have left the fleet are given up
+            for (String house : new ArrayList<>(running)) {
+                if (!houses.contains(house)) {
+                    stopHouse(house);
+                }
+            }
+            for (Map.Entry<String, String> lease : holders.entrySet()) {
+                if (nodeId.equals(lease.getValue()) && !houses.contains(lease.getKey())
+                        && !running.contains(lease.getKey()) && !stopping.contains(lease.getKey())) {
+                    dao.release(lease.getKey(), nodeId);
+                }
+            }
+            routes = next;
+        } catch (RuntimeException e) {
+            LOGGER.error("Could not renew the cluster leases: " + e);
+        }
+    }
+
+    /**
+     * Stop every house once two thirds of the lease period have gone by without a renewal. This runs every
+     * sixth of the period, so the houses start stopping while at least a sixth of their leases is left
+     */
+    private void fence() {
+        if (System.currentTimeMillis() - lastRenewed > leaseMillis * 2 / 3 && !running.isEmpty()) {
+            LOGGER.error("Node " + nodeId + " could not renew its leases, stopping " + running.size() + " houses");
+            for (String house : new ArrayList<>(running)) {
+                stopHouse(house);
+            }
+        }
+    }
+
+    private void startHouse(String house) {
+        LOGGER.info("Node " + nodeId + " taking house " + house);
+        running.add(house);
+        handoff.execute(() -> member.acquire(house));
+    }
+
+    /**
+     * Stop a house, and release its lease once it is disconnected so the next owner never overlaps with us.
+     * Until then the house is stopping: its lease is still renewed, and nothing else claims or releases it.
+     * Both the renewal and the fence stop houses, so only the first call for a house does anything
+     * @param house the house
+     */
+    private synchronized void stopHouse(String house) {
+        if (!running.contains(house)) {
+            // already stopped by the renewal or the fence
+            return;
+        }
+        LOGGER.info("Node " + nodeId + " giving up house " + house);
+        stopping.add(house);
+        running.remove(house);
+        handoff.execute(() -> {
+            try {
+                member.release(house);
+                dao.release(house, nodeId);
+            } catch (RuntimeException e) {
+                LOGGER.error("Could not release house " + house + ", it moves when the lease runs out: " + e);
+            } finally {
+                stopping.remove(house);
+            }
+        });
+    }
+}
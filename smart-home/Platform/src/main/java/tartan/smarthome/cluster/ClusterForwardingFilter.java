@@ -0,0 +1,139 @@
+package tartan.smarthome.cluster;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tartan.smarthome.auth.TartanUser;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.Principal;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sends requests for a house this node does not run to the node that does, and returns its answer as is.
+ * The filter runs after authentication, so only requests from a known user are forwarded; the owner checks
+ * them again. Requests name their house in the path, except the command lookups, which go to the owner
+ * of the user's house.
+ */
+@Priority(Priorities.USER)
+public class ClusterForwardingFilter implements ContainerRequestFilter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClusterForwardingFilter.class);
+
+    /** marks a forwarded request, so a house that is between owners is never sent round in circles */
+    public static final String FORWARDED_HEADER = "X-Tartan-Forwarded-By";
+
+    /** how long to wait for the owner; an update can wait on its house for up to ten seconds */
+    private static final Duration FORWARD_TIMEOUT = Duration.ofSeconds(30);
+
+    /** headers that belong to one connection, or that the HTTP client sets itself */
+    private static final Set<String> HOP_HEADERS = new HashSet<>(Arrays.asList(
+            "connection", "content-length", "date", "expect", "from", "host", "keep-alive", "transfer-encoding",
+            "upgrade", "via", "warning"));
+
+    private final ClusterCoordinator cluster;
+    private final HttpClient client = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+
+    /**
+     * Create the filter
+     * @param cluster knows which node owns each house
+     */
+    public ClusterForwardingFilter(ClusterCoordinator cluster) {
+        this.cluster = cluster;
+    }
+
+    @Override
+    public void filter(ContainerRequestContext request) throws IOException {
+        Principal principal = request.getSecurityContext().getUserPrincipal();
+        if (!(principal instanceof TartanUser)) {
+            return;
+        }
+        String house = request.getUriInfo().getPathParameters().getFirst("house");
+        if (house == null) {
+            house = ((TartanUser) principal).getHouse();
+        }
+        // an operator asking about the fleet is answered by the node asked
+        if (house == null) {
+            return;
+        }
+        if (!cluster.isManaged(house) || cluster.isLocal(house)) {
+            return;
+        }
+
+        String owner = cluster.getOwnerUrl(house);
+        if (owner == null || request.getHeaderString(FORWARDED_HEADER) != null) {
+            request.abortWith(Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .header("Retry-After", 5)
+                    .entity("House " + house + " is moving between nodes, try again shortly")
+                    .type(MediaType.TEXT_PLAIN_TYPE)
+                    .build());
+            return;
+        }
+        request.abortWith(forward(owner, house, request));
+    }
+
+    /**
+     * Send a request to the owner and turn its answer into ours
+     * @param owner the owner's base URL
+     * @param house the house, for error messages
+     * @param request the request
+     * @return the owner's answer
+     * @throws IOException if the request body cannot be read
+     */
+    private Response forward(String owner, String house, ContainerRequestContext request) throws IOException {
+        URI uri = request.getUriInfo().getRequestUri();
+        String target = owner + uri.getRawPath() + (uri.getRawQuery() != null ? "?" + uri.getRawQuery() : "");
+        byte[] body = request.hasEntity() ? request.getEntityStream().readAllBytes() : new byte[0];
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(target))
+                .timeout(FORWARD_TIMEOUT)
+                .method(request.getMethod(), body.length > 0
+                        ? HttpRequest.BodyPublishers.ofByteArray(body)
+                        : HttpRequest.BodyPublishers.noBody());
+        for (Map.Entry<String, List<String>> header : request.getHeaders().entrySet()) {
+            if (!HOP_HEADERS.contains(header.getKey().toLowerCase())) {
+                for (String value : header.getValue()) {
+                    builder.header(header.getKey(), value);
+                }
+            }
+        }
+        builder.header(FORWARDED_HEADER, cluster.getNodeId());
+
+        try {
+            HttpResponse<byte[]> answer = client.send(builder.build(), HttpResponse.BodyHandlers.ofByteArray());
+            Response.ResponseBuilder response = Response.status(answer.statusCode()).entity(answer.body());
+            for (Map.Entry<String, List<String>> header : answer.headers().map().entrySet()) {
+                if (!HOP_HEADERS.contains(header.getKey().toLowerCase())) {
+                    for (String value : header.getValue()) {
+                        response.header(header.getKey(), value);
+                    }
+                }
+            }
+            return response.build();
+        } catch (IOException e) {
+            LOGGER.error("Could not forward a request for house " + house + " to " + owner + ": " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return Response.status(Response.Status.BAD_GATEWAY)
+                .entity("The node that runs house " + house + " did not answer")
+                .type(MediaType.TEXT_PLAIN_TYPE)
+                .build();
+    }
+}
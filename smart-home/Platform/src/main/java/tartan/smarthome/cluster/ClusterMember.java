@@ -0,0 +1,20 @@
+package tartan.smarthome.cluster;
+
+/**
+ * Runs the houses a node owns. The cluster hands houses to it and takes them away as nodes join and leave
+ */
+public interface ClusterMember {
+
+    /**
+     * Start running a house. The node holds the house's lease
+     * @param house the house name
+     */
+    void acquire(String house);
+
+    /**
+     * Stop running a house and disconnect from it, so another node can take it. Returns once the house is
+     * disconnected, since its lease is released straight after
+     * @param house the house name
+     */
+    void release(String house);
+}
@@ -0,0 +1,72 @@
+package tartan.smarthome.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A consistent hash ring that places houses on nodes. Each node is hashed onto the ring at many points, and
+ * a house belongs to the first node point at or after its own hash. When a node joins it takes over only
+ * the houses that now hash next to its points, and when it leaves only its houses move, so every node
+ * computes the same placement from the same list of nodes without talking to the others.
+ */
+public class HashRing {
+
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    /**
+     * Build a ring
+     * @param nodes the node IDs
+     * @param virtualNodes how many points each node has on the ring; more points spread the houses more evenly
+     */
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        for (String node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * Find the node a house belongs on
+     * @param house the house name
+     * @return the node ID, or null if the ring is empty
+     */
+    public String owner(String house) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        SortedMap<Long, String> tail = ring.tailMap(hash(house));
+        return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail.firstKey());
+    }
+
+    /**
+     * Check whether the ring has any nodes
+     * @return true if it has none
+     */
+    public boolean isEmpty() {
+        return ring.isEmpty();
+    }
+
+    /**
+     * Hash a key to a point on the ring. MD5 is used for its spread, not its security
+     * @param key the key
+     * @return the first 8 bytes of the key's MD5 digest
+     */
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < 8; i++) {
+                h = (h << 8) | (digest[i] & 0xff);
+            }
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has MD5
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package tartan.smarthome.core;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * A state change sent to a house, as returned by the update and command APIs. The status is one of
+ * queued, sent, acked or failed; the timings are in milliseconds after the command was accepted.
+ */
+public class TartanCommand {
+
+    // the command ID
+    @JsonProperty
+    private long id;
+
+    // the house the command is for
+    @JsonProperty
+    private String house;
+
+    // where the command is
+    @JsonProperty
+    private String status;
+
+    // when the command was accepted, in milliseconds since the epoch
+    @JsonProperty
+    private long acceptedAt;
+
+    // when the command was last sent to the house, or null if it has not been
+    @JsonProperty
+    private Double sentAfterMillis;
+
+    // when the house acknowledged the command or it failed, or null if neither has happened
+    @JsonProperty
+    private Double completedAfterMillis;
+
+    // why the command failed
+    @JsonProperty
+    private String error;
+
+    /**
+     * Empty constructor needed by Jackson deserialization
+     */
+    public TartanCommand() {  }
+
+    /**
+     * Create a command
+     * @param id the command ID
+     * @param house the house the command is for
+     * @param status where the command is
+     * @param acceptedAt when the command was accepted
+     * @param sentAfterMillis when it was sent, after it was accepted, or null
+     * @param completedAfterMillis when it finished, after it was accepted, or null
+     * @param error why it failed, or null
+     */
+    public TartanCommand(long id, String house, String status, long acceptedAt, Double sentAfterMillis,
+                         Double completedAfterMillis, String error) {
+        this.id = id;
+        this.house = house;
+        this.status = status;
+        this.acceptedAt = acceptedAt;
+        this.sentAfterMillis = sentAfterMillis;
+        this.completedAfterMillis = completedAfterMillis;
+        this.error = error;
+    }
+
+    /**
+     * Get the command ID
+     * @return the ID
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Get the house
+     * @return the house the command is for
+     */
+    public String getHouse() {
+        return house;
+    }
+
+    /**
+     * Get the status
+     * @return queued, sent, acked or failed
+     */
+    public String getStatus() {
+        return status;
+    }
+
+    /**
+     * Get when the command was accepted
+     * @return milliseconds since the epoch
+     */
+    public long getAcceptedAt() {
+        return acceptedAt;
+    }
+
+    /**
+     * Get when the command was sent
+     * @return milliseconds after it was accepted, or null if it has not been sent
+     */
+    public Double getSentAfterMillis() {
+        return sentAfterMillis;
+    }
+
+    /**
+     * Get when the command finished
+     * @return milliseconds after it was accepted, or null if it is not done
+     */
+    public Double getCompletedAfterMillis() {
+        return completedAfterMillis;
+    }
+
+    /**
+     * Get why the command failed
+     * @return the reason, or null
+     */
+    public String getError() {
+        return error;
+    }
+}
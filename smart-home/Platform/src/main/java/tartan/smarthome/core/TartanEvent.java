@@ -0,0 +1,49 @@
+package tartan.smarthome.core;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * One entry of a house's event log, as returned by the events API. The ID only grows, so it can be used
+ * as a cursor to page through the log.
+ */
+public class TartanEvent {
+
+    // the position of the entry in the log
+    @JsonProperty
+    private long id;
+
+    // the log message
+    @JsonProperty
+    private String message;
+
+    /**
+     * Empty constructor needed by Jackson deserialization
+     */
+    public TartanEvent() {  }
+
+    /**
+     * Create an event
+     * @param id the position of the entry in the log
+     * @param message the log message
+     */
+    public TartanEvent(long id, String message) {
+        this.id = id;
+        this.message = message;
+    }
+
+    /**
+     * Get the ID
+     * @return the ID
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Get the message
+     * @return the message
+     */
+    public String getMessage() {
+        return message;
+    }
+}
@@ -0,0 +1,78 @@
+package tartan.smarthome.core;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/**
+ * A page of a house's event log. Pass {@link #getNext()} as the cursor for the following page.
+ */
+public class TartanEventPage {
+
+    // the entries, oldest first
+    @JsonProperty
+    private List<TartanEvent> events;
+
+    // the cursor for the next page
+    @JsonProperty
+    private long next;
+
+    // true if there are newer entries than the ones on this page
+    @JsonProperty
+    private boolean more;
+
+    // entries after the cursor that were dropped from the log before they could be read
+    @JsonProperty
+    private long missed;
+
+    /**
+     * Empty constructor needed by Jackson deserialization
+     */
+    public TartanEventPage() {  }
+
+    /**
+     * Create a page
+     * @param events the entries, oldest first
+     * @param next the cursor for the next page
+     * @param more true if there are newer entries
+     * @param missed how many entries after the cursor were already dropped
+     */
+    public TartanEventPage(List<TartanEvent> events, long next, boolean more, long missed) {
+        this.events = events;
+        this.next = next;
+        this.more = more;
+        this.missed = missed;
+    }
+
+    /**
+     * Get the entries
+     * @return the entries, oldest first
+     */
+    public List<TartanEvent> getEvents() {
+        return events;
+    }
+
+    /**
+     * Get the cursor for the next page
+     * @return the ID of the last entry on this page, or the cursor this page was read from if it is empty
+     */
+    public long getNext() {
+        return next;
+    }
+
+    /**
+     * Check for newer entries
+     * @return true if there are entries after this page
+     */
+    public boolean isMore() {
+        return more;
+    }
+
+    /**
+     * Get the number of entries that were dropped before they could be read
+     * @return the count
+     */
+    public long getMissed() {
+        return missed;
+    }
+}
@@ -0,0 +1,71 @@
+package tartan.smarthome.core;
+
+import javax.persistence.*;
+
+/**
+ * Represents a database table of the houses in the fleet, for a fleet that is kept in the database. Each
+ * row holds a house's settings as they would appear in config.yml, encoded as JSON
+ */
+@Entity
+@Table(name = "FleetHouse")
+public class TartanFleetHouse {
+
+    // the house name
+    @Id
+    @Column(name = "home_name")
+    private String homeName;
+
+    // the house settings as JSON
+    @Column(name = "settings", nullable = false, length = 4000)
+    private String settings;
+
+    // when the row was last changed, in milliseconds since the epoch
+    @Column(name = "updated", nullable = false)
+    private long updated;
+
+    /**
+     * Empty constructor needed by Hibernate
+     */
+    public TartanFleetHouse() {
+    }
+
+    /**
+     * Create a row for a house
+     *
+     * @param homeName the house name
+     * @param settings the house settings as JSON
+     * @param updated when the house was changed
+     */
+    public TartanFleetHouse(String homeName, String settings, long updated) {
+        this.homeName = homeName;
+        this.settings = settings;
+        this.updated = updated;
+    }
+
+    /**
+     * Get the house name
+     *
+     * @return the name
+     */
+    public String getHomeName() {
+        return homeName;
+    }
+
+    /**
+     * Get the house settings
+     *
+     * @return the settings as JSON
+     */
+    public String getSettings() {
+        return settings;
+    }
+
+    /**
+     * Get when the house was last changed
+     *
+     * @return the time in milliseconds since the epoch
+     */
+    public long getUpdated() {
+        return updated;
+    }
+}
@@ -0,0 +1,279 @@
+package tartan.smarthome.core;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * An overview of the whole fleet for the operations dashboard: how many houses are in each state, and the
+ * spread of their readings.
+ */
+public class TartanFleetSummary {
+
+    /**
+     * The spread of one reading across the houses that report it
+     */
+    public static class Readings {
+
+        // how many houses report the reading
+        @JsonProperty
+        private long count;
+
+        @JsonProperty
+        private Double mean;
+
+        @JsonProperty
+        private Integer min;
+
+        @JsonProperty
+        private Integer max;
+
+        // the median, 90th and 99th percentiles
+        @JsonProperty
+        private Integer p50;
+
+        @JsonProperty
+        private Integer p90;
+
+        @JsonProperty
+        private Integer p99;
+
+        /**
+         * Empty constructor needed by Jackson deserialization
+         */
+        public Readings() {  }
+
+        /**
+         * Create the spread of a reading
+         * @param count how many houses report it
+         * @param mean the mean, or null if no house does
+         * @param min the lowest value
+         * @param max the highest value
+         * @param p50 the median
+         * @param p90 the 90th percentile
+         * @param p99 the 99th percentile
+         */
+        public Readings(long count, Double mean, Integer min, Integer max, Integer p50, Integer p90, Integer p99) {
+            this.count = count;
+            this.mean = mean;
+            this.min = min;
+            this.max = max;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+        }
+
+        /**
+         * Get the number of houses that report the reading
+         * @return the count
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Get the mean
+         * @return the mean, or null if no house reports the reading
+         */
+        public Double getMean() {
+            return mean;
+        }
+
+        /**
+         * Get the lowest value
+         * @return the value, or null if no house reports the reading
+         */
+        public Integer getMin() {
+            return min;
+        }
+
+        /**
+         * Get the highest value
+         * @return the value, or null if no house reports the reading
+         */
+        public Integer getMax() {
+            return max;
+        }
+
+        /**
+         * Get the median
+         * @return the value, or null if no house reports the reading
+         */
+        public Integer getP50() {
+            return p50;
+        }
+
+        /**
+         * Get the 90th percentile
+         * @return the value, or null if no house reports the reading
+         */
+        public Integer getP90() {
+            return p90;
+        }
+
+        /**
+         * Get the 99th percentile
+         * @return the value, or null if no house reports the reading
+         */
+        public Integer getP99() {
+            return p99;
+        }
+    }
+
+    // changes whenever any of the numbers may have changed
+    @JsonProperty
+    private long version;
+
+    // the houses with a known state
+    @JsonProperty
+    private int houses;
+
+    @JsonProperty
+    private int connected;
+
+    @JsonProperty
+    private int alarmsArmed;
+
+    @JsonProperty
+    private int alarmsActive;
+
+    @JsonProperty
+    private int doorsOpen;
+
+    @JsonProperty
+    private int occupied;
+
+    // houses with the heater or the chiller running
+    @JsonProperty
+    private int heating;
+
+    @JsonProperty
+    private int cooling;
+
+    @JsonProperty
+    private Readings temperature;
+
+    @JsonProperty
+    private Readings humidity;
+
+    /**
+     * Empty constructor needed by Jackson deserialization
+     */
+    public TartanFleetSummary() {  }
+
+    /**
+     * Create a summary
+     * @param version the summary version
+     * @param houses the houses with a known state
+     * @param connected the connected houses
+     * @param alarmsArmed the houses with the alarm armed
+     * @param alarmsActive the houses with the alarm sounding
+     * @param doorsOpen the houses with the door open
+     * @param occupied the houses with somebody home
+     * @param heating the houses with the heater running
+     * @param cooling the houses with the chiller running
+     * @param temperature the spread of the temperatures
+     * @param humidity the spread of the humidities
+     */
+    public TartanFleetSummary(long version, int houses, int connected, int alarmsArmed, int alarmsActive,
+                              int doorsOpen, int occupied, int heating, int cooling, Readings temperature,
+                              Readings humidity) {
+        this.version = version;
+        this.houses = houses;
+        this.connected = connected;
+        this.alarmsArmed = alarmsArmed;
+        this.alarmsActive = alarmsActive;
+        this.doorsOpen = doorsOpen;
+        this.occupied = occupied;
+        this.heating = heating;
+        this.cooling = cooling;
+        this.temperature = temperature;
+        this.humidity = humidity;
+    }
+
+    /**
+     * Get the summary version
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the number of houses with a known state
+     * @return the count
+     */
+    public int getHouses() {
+        return houses;
+    }
+
+    /**
+     * Get the number of connected houses
+     * @return the count
+     */
+    public int getConnected() {
+        return connected;
+    }
+
+    /**
+     * Get the number of houses with the alarm armed
+     * @return the count
+     */
+    public int getAlarmsArmed() {
+        return alarmsArmed;
+    }
+
+    /**
+     * Get the number of houses with the alarm sounding
+     * @return the count
+     */
+    public int getAlarmsActive() {
+        return alarmsActive;
+    }
+
+    /**
+     * Get the number of houses with the door open
+     * @return the count
+     */
+    public int getDoorsOpen() {
+        return doorsOpen;
+    }
+
+    /**
+     * Get the number of houses with somebody home
+     * @return the count
+     */
+    public int getOccupied() {
+        return occupied;
+    }
+
+    /**
+     * Get the number of houses with the heater running
+     * @return the count
+     */
+    public int getHeating() {
+        return heating;
+    }
+
+    /**
+     * Get the number of houses with the chiller running
+     * @return the count
+     */
+    public int getCooling() {
+        return cooling;
+    }
+
+    /**
+     * Get the spread of the temperatures
+     * @return the spread
+     */
+    public Readings getTemperature() {
+        return temperature;
+    }
+
+    /**
+     * Get the spread of the humidities
+     * @return the spread
+     */
+    public Readings getHumidity() {
+        return humidity;
+    }
+}
@@ -0,0 +1,71 @@
+package tartan.smarthome.core;
+
+import javax.persistence.*;
+
+/**
+ * Represents a database table of which node owns each house. Only the node holding a house's lease
+ * connects to it; another node can take the house once the lease is released or has expired
+ */
+@Entity
+@Table(name = "HouseLease")
+public class TartanHouseLease {
+
+    // the house name
+    @Id
+    @Column(name = "home_name")
+    private String homeName;
+
+    // the ID of the node that owns the house
+    @Column(name = "owner", nullable = false)
+    private String owner;
+
+    // when the lease runs out, in milliseconds since the epoch
+    @Column(name = "expires", nullable = false)
+    private long expires;
+
+    /**
+     * Empty constructor needed by Hibernate
+     */
+    public TartanHouseLease() {
+    }
+
+    /**
+     * Create a lease on a house
+     *
+     * @param homeName the house name
+     * @param owner the node taking the house
+     * @param expires when the lease runs out
+     */
+    public TartanHouseLease(String homeName, String owner, long expires) {
+        this.homeName = homeName;
+        this.owner = owner;
+        this.expires = expires;
+    }
+
+    /**
+     * Get the house name
+     *
+     * @return the name
+     */
+    public String getHomeName() {
+        return homeName;
+    }
+
+    /**
+     * Get the node that owns the house
+     *
+     * @return the node ID
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * Get when the lease runs out
+     *
+     * @return the time in milliseconds since the epoch
+     */
+    public long getExpires() {
+        return expires;
+    }
+}
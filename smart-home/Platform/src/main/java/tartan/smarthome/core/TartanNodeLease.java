@@ -0,0 +1,71 @@
+package tartan.smarthome.core;
+
+import javax.persistence.*;
+
+/**
+ * Represents a database table of the platform nodes in a cluster. Each node renews its row while it runs;
+ * a node whose lease has expired is taken to be gone
+ */
+@Entity
+@Table(name = "NodeLease")
+public class TartanNodeLease {
+
+    // the node ID from the cluster settings
+    @Id
+    @Column(name = "node_id")
+    private String nodeId;
+
+    // the base URL requests for the node's houses are forwarded to
+    @Column(name = "url", nullable = false)
+    private String url;
+
+    // when the lease runs out, in milliseconds since the epoch
+    @Column(name = "expires", nullable = false)
+    private long expires;
+
+    /**
+     * Empty constructor needed by Hibernate
+     */
+    public TartanNodeLease() {
+    }
+
+    /**
+     * Create a lease for a node
+     *
+     * @param nodeId the node ID
+     * @param url the node's base URL
+     * @param expires when the lease runs out
+     */
+    public TartanNodeLease(String nodeId, String url, long expires) {
+        this.nodeId = nodeId;
+        this.url = url;
+        this.expires = expires;
+    }
+
+    /**
+     * Get the node ID
+     *
+     * @return the ID
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Get the node's base URL
+     *
+     * @return the URL
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Get when the lease runs out
+     *
+     * @return the time in milliseconds since the epoch
+     */
+    public long getExpires() {
+        return expires;
+    }
+}
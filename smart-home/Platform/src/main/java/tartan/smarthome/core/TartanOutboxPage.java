@@ -0,0 +1,64 @@
+package tartan.smarthome.core;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/**
+ * A page of the outbox. Pass {@link #getNext()} as the offset to read the following page from.
+ */
+public class TartanOutboxPage {
+
+    // the records, oldest first
+    @JsonProperty
+    private List<TartanOutboxRecord> records;
+
+    // the offset to read the next page from
+    @JsonProperty
+    private long next;
+
+    // records from the offset asked for that were deleted before they could be read
+    @JsonProperty
+    private long missed;
+
+    /**
+     * Empty constructor needed by Jackson deserialization
+     */
+    public TartanOutboxPage() {  }
+
+    /**
+     * Create a page
+     * @param records the records, oldest first
+     * @param next the offset to read the next page from
+     * @param missed how many records from the offset asked for were already deleted
+     */
+    public TartanOutboxPage(List<TartanOutboxRecord> records, long next, long missed) {
+        this.records = records;
+        this.next = next;
+        this.missed = missed;
+    }
+
+    /**
+     * Get the records
+     * @return the records, oldest first
+     */
+    public List<TartanOutboxRecord> getRecords() {
+        return records;
+    }
+
+    /**
+     * Get the offset to read the next page from
+     * @return the offset after the last record on this page
+     */
+    public long getNext() {
+        return next;
+    }
+
+    /**
+     * Get the number of records that were deleted before they could be read
+     * @return the count
+     */
+    public long getMissed() {
+        return missed;
+    }
+}
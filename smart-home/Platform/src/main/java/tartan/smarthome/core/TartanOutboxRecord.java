@@ -0,0 +1,109 @@
+package tartan.smarthome.core;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Map;
+
+/**
+ * A record of the outbox: a change to a house's state, a command sent to it, or a pattern matched in the way
+ * it changes.
+ */
+public class TartanOutboxRecord {
+
+    // the record's place in the outbox
+    @JsonProperty
+    private long offset;
+
+    // when the record was added, in milliseconds since the epoch
+    @JsonProperty
+    private long time;
+
+    // the house
+    @JsonProperty
+    private String house;
+
+    // state, command or pattern
+    @JsonProperty
+    private String type;
+
+    // the ID of the command, for a command
+    @JsonProperty
+    private Long command;
+
+    // the values that changed, or that the command asked for, by their IoT names; for a pattern, its name and
+    // description
+    @JsonProperty
+    private Map<String, Object> changes;
+
+    /**
+     * Empty constructor needed by Jackson deserialization
+     */
+    public TartanOutboxRecord() {  }
+
+    /**
+     * Create a record
+     * @param offset the record's place in the outbox
+     * @param time when it was added
+     * @param house the house
+     * @param type state, command or pattern
+     * @param command the ID of the command, or null for a state change
+     * @param changes the values
+     */
+    public TartanOutboxRecord(long offset, long time, String house, String type, Long command,
+                              Map<String, Object> changes) {
+        this.offset = offset;
+        this.time = time;
+        this.house = house;
+        this.type = type;
+        this.command = command;
+        this.changes = changes;
+    }
+
+    /**
+     * Get the record's place in the outbox
+     * @return the offset
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Get when the record was added
+     * @return the time in milliseconds since the epoch
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Get the house
+     * @return the house name
+     */
+    public String getHouse() {
+        return house;
+    }
+
+    /**
+     * Get the kind of record
+     * @return state, command or pattern
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Get the command
+     * @return the command ID, or null if the record is not a command
+     */
+    public Long getCommand() {
+        return command;
+    }
+
+    /**
+     * Get the values
+     * @return the values that changed, or that the command asked for, or the pattern matched
+     */
+    public Map<String, Object> getChanges() {
+        return changes;
+    }
+}
@@ -0,0 +1,50 @@
+package tartan.smarthome.core;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/**
+ * The houses that match a fleet query. The count is every match; the list of houses may be cut short.
+ */
+public class TartanQueryResult {
+
+    // how many houses match
+    @JsonProperty
+    private int count;
+
+    // the names of the matching houses, up to the limit asked for
+    @JsonProperty
+    private List<String> houses;
+
+    /**
+     * Empty constructor needed by Jackson deserialization
+     */
+    public TartanQueryResult() {  }
+
+    /**
+     * Create a result
+     * @param count how many houses match
+     * @param houses the names of the matching houses, up to the limit
+     */
+    public TartanQueryResult(int count, List<String> houses) {
+        this.count = count;
+        this.houses = houses;
+    }
+
+    /**
+     * Get the number of matching houses
+     * @return the count
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Get the matching houses
+     * @return the names, up to the limit asked for
+     */
+    public List<String> getHouses() {
+        return houses;
+    }
+}
@@ -0,0 +1,51 @@
+package tartan.smarthome.core;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/**
+ * A batch of house events posted to a webhook. The events are outbox records, so each carries its offset;
+ * a receiver that sees an offset again can ignore it.
+ */
+public class TartanWebhookBatch {
+
+    // the name of the webhook
+    @JsonProperty
+    private String webhook;
+
+    // the events, oldest first
+    @JsonProperty
+    private List<TartanOutboxRecord> events;
+
+    /**
+     * Empty constructor needed by Jackson deserialization
+     */
+    public TartanWebhookBatch() {  }
+
+    /**
+     * Create a batch
+     * @param webhook the name of the webhook
+     * @param events the events, oldest first
+     */
+    public TartanWebhookBatch(String webhook, List<TartanOutboxRecord> events) {
+        this.webhook = webhook;
+        this.events = events;
+    }
+
+    /**
+     * Get the webhook the batch is for
+     * @return the name
+     */
+    public String getWebhook() {
+        return webhook;
+    }
+
+    /**
+     * Get the events
+     * @return the events, oldest first
+     */
+    public List<TartanOutboxRecord> getEvents() {
+        return events;
+    }
+}
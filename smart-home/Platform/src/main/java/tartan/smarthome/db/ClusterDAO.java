@@ -0,0 +1,153 @@
+package tartan.smarthome.db;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import tartan.smarthome.core.TartanHouseLease;
+import tartan.smarthome.core.TartanNodeLease;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * The data access object for the cluster leases. Every change is a single statement or a short
+ * transaction, so nodes racing for the same house are decided by the database
+ */
+public class ClusterDAO {
+    // Keep a reference to the session
+    private final SessionFactory factory;
+
+    public ClusterDAO(SessionFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Announce a node, or renew its lease
+     * @param nodeId the node
+     * @param url the node's base URL
+     * @param expires when the lease runs out
+     */
+    public void heartbeat(String nodeId, String url, long expires) {
+        inTransaction(session -> {
+            session.saveOrUpdate(new TartanNodeLease(nodeId, url, expires));
+            return null;
+        });
+    }
+
+    /**
+     * Get the nodes whose leases have not run out
+     * @param now the current time
+     * @return the live nodes
+     */
+    @SuppressWarnings("unchecked")
+    public List<TartanNodeLease> liveNodes(long now) {
+        return inTransaction(session -> (List<TartanNodeLease>) session
+                .createQuery("from TartanNodeLease where expires > :now")
+                .setParameter("now", now)
+                .list());
+    }
+
+    /**
+     * Remove a node that is shutting down, and release its houses so other nodes can take them right away
+     * @param nodeId the node
+     */
+    public void leave(String nodeId) {
+        inTransaction(session -> {
+            session.createQuery("update TartanHouseLease set expires = 0 where owner = :owner")
+                    .setParameter("owner", nodeId)
+                    .executeUpdate();
+            session.createQuery("delete from TartanNodeLease where nodeId = :node")
+                    .setParameter("node", nodeId)
+                    .executeUpdate();
+            return null;
+        });
+    }
+
+    /**
+     * Get the house leases that have not run out
+     * @param now the current time
+     * @return the leases
+     */
+    @SuppressWarnings("unchecked")
+    public List<TartanHouseLease> liveHouses(long now) {
+        return inTransaction(session -> (List<TartanHouseLease>) session
+                .createQuery("from TartanHouseLease where expires > :now")
+                .setParameter("now", now)
+                .list());
+    }
+
+    /**
+     * Take a house if no other node holds it, or renew the lease if this node does
+     * @param house the house
+     * @param owner the node taking it
+     * @param expires when the lease runs out
+     * @param now the current time; a lease that ran out before this is free
+     * @return true if the node now holds the house
+     */
+    public boolean claim(String house, String owner, long expires, long now) {
+        try {
+            return inTransaction(session -> {
+                int updated = session.createQuery("update TartanHouseLease set owner = :owner, expires = :expires "
+                        + "where homeName = :house and (owner = :owner or expires < :now)")
+                        .setParameter("owner", owner)
+                        .setParameter("expires", expires)
+                        .setParameter("house", house)
+                        .setParameter("now", now)
+                        .executeUpdate();
+                if (updated > 0) {
+                    return true;
+                }
+                if (session.get(TartanHouseLease.class, house) != null) {
+                    // another node holds it
+                    return false;
+                }
+                session.save(new TartanHouseLease(house, owner, expires));
+                return true;
+            });
+        } catch (RuntimeException e) {
+            // another node inserted the lease first
+            return false;
+        }
+    }
+
+    /**
+     * Renew every house lease a node holds. A lease it has released stays released
+     * @param owner the node
+     * @param expires when the leases run out
+     */
+    public void renew(String owner, long expires) {
+        inTransaction(session -> session
+                .createQuery("update TartanHouseLease set expires = :expires where owner = :owner and expires > 0")
+                .setParameter("expires", expires)
+                .setParameter("owner", owner)
+                .executeUpdate());
+    }
+
+    /**
+     * Give up a house so another node can take it
+     * @param house the house
+     * @param owner the node giving it up; nothing happens if another node holds it
+     */
+    public void release(String house, String owner) {
+        inTransaction(session -> session
+                .createQuery("update TartanHouseLease set expires = 0 where homeName = :house and owner = :owner")
+                .setParameter("house", house)
+                .setParameter("owner", owner)
+                .executeUpdate());
+    }
+
+    private <T> T inTransaction(Function<Session, T> work) {
+        // a session of our own, as in HomeDAO, since this runs outside of Jersey
+        Session session = factory.openSession();
+        try {
+            session.beginTransaction();
+            T result = work.apply(session);
+            session.getTransaction().commit();
+            return result;
+        } catch (RuntimeException e) {
+            session.getTransaction().rollback();
+            throw e;
+        } finally {
+            session.close();
+        }
+    }
+}
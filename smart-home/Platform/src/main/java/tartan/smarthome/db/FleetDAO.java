@@ -0,0 +1,82 @@
+package tartan.smarthome.db;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import tartan.smarthome.core.TartanFleetHouse;
+
+import java.util.List;
+
+/**
+ * The data access object for a fleet kept in the database
+ */
+public class FleetDAO {
+    // Keep a reference to the session
+    private final SessionFactory factory;
+
+    public FleetDAO(SessionFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Get every house
+     * @return the houses
+     */
+    @SuppressWarnings("unchecked")
+    public List<TartanFleetHouse> list() {
+        Session session = factory.openSession();
+        try {
+            return (List<TartanFleetHouse>) session.createQuery("from TartanFleetHouse").list();
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Get a summary that changes whenever a house is added, changed or removed, so the fleet is only read
+     * again when it has changed
+     * @return the number of houses and the time of the newest change
+     */
+    public String version() {
+        Session session = factory.openSession();
+        try {
+            Object[] row = (Object[]) session
+                    .createQuery("select count(*), max(updated) from TartanFleetHouse")
+                    .list().get(0);
+            return row[0] + "@" + row[1];
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Add or replace a house
+     * @param house the house
+     */
+    public void save(TartanFleetHouse house) {
+        Session session = factory.openSession();
+        try {
+            session.beginTransaction();
+            session.saveOrUpdate(house);
+            session.getTransaction().commit();
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Remove a house
+     * @param name the house name
+     */
+    public void delete(String name) {
+        Session session = factory.openSession();
+        try {
+            session.beginTransaction();
+            session.createQuery("delete from TartanFleetHouse where homeName = :name")
+                    .setParameter("name", name)
+                    .executeUpdate();
+            session.getTransaction().commit();
+        } finally {
+            session.close();
+        }
+    }
+}
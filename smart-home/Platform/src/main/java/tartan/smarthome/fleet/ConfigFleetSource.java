@@ -0,0 +1,43 @@
+package tartan.smarthome.fleet;
+
+import tartan.smarthome.TartanHomeSettings;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The houses listed in config.yml. The file is only read at startup, so changes made while the system runs
+ * last until it restarts
+ */
+public class ConfigFleetSource implements FleetSource {
+
+    private final List<TartanHomeSettings> houses;
+
+    /**
+     * Create the source
+     * @param houses the houses from the configuration
+     */
+    public ConfigFleetSource(List<TartanHomeSettings> houses) {
+        this.houses = houses;
+    }
+
+    @Override
+    public List<TartanHomeSettings> load() {
+        return new ArrayList<>(houses);
+    }
+
+    @Override
+    public boolean hasChanged() {
+        return false;
+    }
+
+    @Override
+    public void save(TartanHomeSettings house) {
+        // kept in the registry only
+    }
+
+    @Override
+    public void delete(String name) {
+        // kept in the registry only
+    }
+}
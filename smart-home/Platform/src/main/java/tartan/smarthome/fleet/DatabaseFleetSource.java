@@ -0,0 +1,71 @@
+package tartan.smarthome.fleet;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import tartan.smarthome.TartanHomeSettings;
+import tartan.smarthome.core.TartanFleetHouse;
+import tartan.smarthome.db.FleetDAO;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The houses kept in the FleetHouse table, which every node of a cluster can share. The table is checked
+ * for changes every few seconds. An empty table is filled from config.yml the first time it is read
+ */
+public class DatabaseFleetSource implements FleetSource {
+
+    private final FleetDAO dao;
+    private final ObjectMapper mapper;
+    private final List<TartanHomeSettings> seed;
+
+    /** the table's summary when it was last read */
+    private String version = null;
+
+    /**
+     * Create the source
+     * @param dao the table
+     * @param mapper encodes the settings
+     * @param seed the houses to start an empty table with
+     */
+    public DatabaseFleetSource(FleetDAO dao, ObjectMapper mapper, List<TartanHomeSettings> seed) {
+        this.dao = dao;
+        this.mapper = mapper;
+        this.seed = seed;
+    }
+
+    @Override
+    public synchronized List<TartanHomeSettings> load() throws IOException {
+        String current = dao.version();
+        List<TartanFleetHouse> rows = dao.list();
+        if (version == null && rows.isEmpty() && !seed.isEmpty()) {
+            for (TartanHomeSettings house : seed) {
+                save(house);
+            }
+            current = dao.version();
+            rows = dao.list();
+        }
+        List<TartanHomeSettings> houses = new ArrayList<>(rows.size());
+        for (TartanFleetHouse row : rows) {
+            houses.add(mapper.readValue(row.getSettings(), TartanHomeSettings.class));
+        }
+        version = current;
+        return houses;
+    }
+
+    @Override
+    public synchronized boolean hasChanged() {
+        return !dao.version().equals(version);
+    }
+
+    @Override
+    public void save(TartanHomeSettings house) throws IOException {
+        dao.save(new TartanFleetHouse(house.getName(), mapper.writeValueAsString(house),
+                System.currentTimeMillis()));
+    }
+
+    @Override
+    public void delete(String name) {
+        dao.delete(name);
+    }
+}
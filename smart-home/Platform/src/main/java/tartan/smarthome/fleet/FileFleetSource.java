@@ -0,0 +1,138 @@
+package tartan.smarthome.fleet;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import tartan.smarthome.TartanHomeSettings;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The houses listed in a YAML file of their own, under a houses key as in config.yml. The file is watched,
+ * so an edit takes effect without a restart. Changes made through the admin endpoints rewrite the file,
+ * which drops any comments in it
+ */
+public class FileFleetSource implements FleetSource {
+
+    private final File file;
+    private final ObjectMapper yaml = new ObjectMapper(new YAMLFactory());
+
+    /** the file's modification time and size when it was last read or written */
+    private long modified = -1;
+    private long length = -1;
+
+    /** a hash of the file's content when it was last read or written, or null if there was no file */
+    private byte[] digest;
+
+    /**
+     * Create the source
+     * @param file the YAML file
+     */
+    public FileFleetSource(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public synchronized List<TartanHomeSettings> load() throws IOException {
+        List<TartanHomeSettings> houses = new ArrayList<>();
+        byte[] content = read();
+        stamp(content);
+        // an empty file has no houses yet
+        if (content == null || content.length == 0) {
+            return houses;
+        }
+        JsonNode root = yaml.readTree(content);
+        if (root == null) {
+            return houses;
+        }
+        for (JsonNode house : root.path("houses")) {
+            houses.add(yaml.treeToValue(house, TartanHomeSettings.class));
+        }
+        return houses;
+    }
+
+    @Override
+    public synchronized boolean hasChanged() throws IOException {
+        // an edit within the same millisecond that keeps the size is only caught by the content hash
+        if (file.lastModified() != modified || file.length() != length) {
+            return true;
+        }
+        return !Arrays.equals(digest, hash(read()));
+    }
+
+    @Override
+    public synchronized void save(TartanHomeSettings house) throws IOException {
+        List<TartanHomeSettings> houses = load();
+        houses.removeIf(h -> h.getName().equals(house.getName()));
+        houses.add(house);
+        write(houses);
+    }
+
+    @Override
+    public synchronized void delete(String name) throws IOException {
+        List<TartanHomeSettings> houses = load();
+        if (houses.removeIf(h -> h.getName().equals(name))) {
+            write(houses);
+        }
+    }
+
+    /**
+     * Replace the file. The new file is written beside the old one and moved over it, so the watcher never
+     * reads half a file
+     * @param houses the houses
+     * @throws IOException if the file cannot be written
+     */
+    private void write(List<TartanHomeSettings> houses) throws IOException {
+        ObjectNode root = yaml.createObjectNode();
+        ArrayNode list = root.putArray("houses");
+        for (TartanHomeSettings house : houses) {
+            list.add(yaml.valueToTree(house));
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        yaml.writeValue(temp, root);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        // our own change is already in the registry
+        stamp(read());
+    }
+
+    /**
+     * Read the whole file
+     * @return the content, or null if there is no file
+     * @throws IOException if the file cannot be read
+     */
+    private byte[] read() throws IOException {
+        return file.exists() ? Files.readAllBytes(file.toPath()) : null;
+    }
+
+    /**
+     * Remember the file as it is now, so that only later edits count as changes
+     * @param content the file's content, or null if there is no file
+     */
+    private void stamp(byte[] content) {
+        modified = file.lastModified();
+        length = file.length();
+        digest = hash(content);
+    }
+
+    private static byte[] hash(byte[] content) {
+        if (content == null) {
+            return null;
+        }
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package tartan.smarthome.fleet;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import tartan.smarthome.TartanHomeSettings;
+import tartan.smarthome.auth.TartanAuthenticator;
+import tartan.smarthome.auth.TartanUser;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The fleet admin endpoints, served on the admin port under /fleet:
+ * <pre>
+ *   GET    /fleet/houses          the names of every house
+ *   GET    /fleet/houses/{name}   a house's settings, without its passwords
+ *   PUT    /fleet/houses/{name}   add or change a house; the body is its settings as JSON, as in config.yml
+ *   DELETE /fleet/houses/{name}   remove a house
+ *   POST   /fleet/reload          read the fleet source again now
+ * </pre>
+ * Changes are saved to the fleet source and applied to the running system, touching only that house.
+ * Every request needs the basic credentials of an operator, since a house added here can log in to the
+ * platform and the admin port is reachable wherever the platform is.
+ */
+public class FleetAdminServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String HOUSES = "/houses";
+
+    /** settings that are never sent back */
+    private static final List<String> SECRETS = Arrays.asList("password", "alarmPasscode", "doorLockedPasscode");
+
+    private final transient FleetRegistry fleet;
+    private final transient FleetSource source;
+    private final transient ObjectMapper mapper;
+    private final transient Validator validator;
+    private final transient TartanAuthenticator authenticator;
+
+    /**
+     * Create the endpoints
+     * @param fleet the running houses
+     * @param source where changes are saved
+     * @param mapper reads and writes the settings
+     * @param validator checks new settings the way config.yml is checked
+     * @param authenticator checks that the caller is an operator
+     */
+    public FleetAdminServlet(FleetRegistry fleet, FleetSource source, ObjectMapper mapper, Validator validator,
+                             TartanAuthenticator authenticator) {
+        this.fleet = fleet;
+        this.source = source;
+        this.mapper = mapper;
+        this.validator = validator;
+        this.authenticator = authenticator;
+    }
+
+    @Override
+    protected void service(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        TartanUser user = authenticator.authenticateHeader(request.getHeader("Authorization")).orElse(null);
+        if (user == null) {
+            response.setHeader("WWW-Authenticate", "Basic realm=\"realm\"");
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Credentials are required");
+            return;
+        }
+        if (!user.isOperator()) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "The fleet endpoints are for operators");
+            return;
+        }
+        super.service(request, response);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String path = request.getPathInfo();
+        if (HOUSES.equals(path)) {
+            List<String> names = new ArrayList<>(fleet.getNames());
+            Collections.sort(names);
+            writeJson(response, HttpServletResponse.SC_OK, names);
+            return;
+        }
+        String name = houseName(path);
+        TartanHomeSettings house = name == null ? null : fleet.getSettings(name);
+        if (house == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such house");
+            return;
+        }
+        ObjectNode json = mapper.valueToTree(house);
+        json.remove(SECRETS);
+        writeJson(response, HttpServletResponse.SC_OK, json);
+    }
+
+    @Override
+    protected void doPut(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String name = houseName(request.getPathInfo());
+        if (name == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "PUT a house to /fleet/houses/{name}");
+            return;
+        }
+        TartanHomeSettings house;
+        try {
+            house = mapper.readValue(request.getInputStream(), TartanHomeSettings.class);
+        } catch (JsonProcessingException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The house settings are not valid JSON");
+            return;
+        }
+        if (house.getName() == null) {
+            house.setName(name);
+        } else if (!house.getName().equals(name)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The name in the body must match the URL");
+            return;
+        }
+        Set<ConstraintViolation<TartanHomeSettings>> violations = validator.validate(house);
+        if (!violations.isEmpty()) {
+            StringBuilder message = new StringBuilder();
+            for (ConstraintViolation<TartanHomeSettings> violation : violations) {
+                message.append(violation.getPropertyPath()).append(' ').append(violation.getMessage()).append("; ");
+            }
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, message.toString());
+            return;
+        }
+
+        source.save(house);
+        FleetRegistry.Change change = fleet.put(house);
+        response.setStatus(change == FleetRegistry.Change.ADDED
+                ? HttpServletResponse.SC_CREATED : HttpServletResponse.SC_NO_CONTENT);
+    }
+
+    @Override
+    protected void doDelete(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String name = houseName(request.getPathInfo());
+        if (name == null || fleet.getSettings(name) == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such house");
+            return;
+        }
+        source.delete(name);
+        fleet.remove(name);
+        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!"/reload".equals(request.getPathInfo())) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "POST to /fleet/reload");
+            return;
+        }
+        fleet.sync(source.load());
+        writeJson(response, HttpServletResponse.SC_OK, Collections.singletonMap("houses", fleet.getNames().size()));
+    }
+
+    /**
+     * Get the house name from a path
+     * @param path the path after /fleet
+     * @return the name, or null if the path does not name a house
+     */
+    private static String houseName(String path) {
+        if (path == null || !path.startsWith(HOUSES + "/") || path.length() == HOUSES.length() + 1) {
+            return null;
+        }
+        return path.substring(HOUSES.length() + 1);
+    }
+
+    private void writeJson(HttpServletResponse response, int status, Object body) throws IOException {
+        response.setStatus(status);
+        response.setContentType("application/json");
+        mapper.writeValue(response.getOutputStream(), body);
+    }
+}
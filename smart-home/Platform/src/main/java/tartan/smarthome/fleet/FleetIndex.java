@@ -0,0 +1,258 @@
+package tartan.smarthome.fleet;
+
+import tartan.smarthome.core.TartanQueryResult;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable.Flag;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable.Reading;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable.Row;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Indexes over the state table, so questions about the whole fleet are answered without looking at every
+ * house. Each boolean value has a bitmap of the houses where it is true, and each reading has a bitmap per
+ * range of values. The indexes listen to the table and are changed as each house writes its row, only for
+ * the values that changed.
+ *
+ * Two values compare a house's reading to its target: above target and below target, kept as if they were
+ * reported by the house.
+ */
+public class FleetIndex implements FleetStateTable.Listener {
+
+    /** the width of the ranges the readings are indexed by */
+    static final int BUCKET_WIDTH = 5;
+
+    private final FleetStateTable table;
+
+    /** every row that has a house with a known state */
+    private final RowBitmap live = new RowBitmap();
+
+    private final Map<Flag, RowBitmap> flags = new EnumMap<>(Flag.class);
+    private final RowBitmap aboveTarget = new RowBitmap();
+    private final RowBitmap belowTarget = new RowBitmap();
+
+    /** for each reading, the rows in each range, by the range's lowest value divided by the width */
+    private final Map<Reading, ConcurrentHashMap<Integer, RowBitmap>> buckets = new EnumMap<>(Reading.class);
+
+    /** a row for each querying thread, to check readings against */
+    private static final ThreadLocal<Row> ROW = ThreadLocal.withInitial(Row::new);
+
+    /**
+     * Index a state table. Rows written before this are indexed the next time they are written
+     * @param table the table
+     */
+    public FleetIndex(FleetStateTable table) {
+        this.table = table;
+        for (Flag flag : Flag.values()) {
+            flags.put(flag, new RowBitmap());
+        }
+        for (Reading reading : Reading.values()) {
+            buckets.put(reading, new ConcurrentHashMap<>());
+        }
+        table.addListener(this);
+    }
+
+    @Override
+    public void rowWritten(int row, Row before, Row after) {
+        live.set(row);
+        for (Flag flag : Flag.values()) {
+            boolean is = after.is(flag);
+            if (is != before.is(flag)) {
+                update(flags.get(flag), row, is);
+            }
+        }
+        for (Reading reading : Reading.values()) {
+            int was = before.get(reading);
+            int is = after.get(reading);
+            if (was != is) {
+                if (was != FleetStateTable.UNKNOWN) {
+                    RowBitmap old = buckets.get(reading).get(bucket(was));
+                    if (old != null) {
+                        old.clear(row);
+                    }
+                }
+                if (is != FleetStateTable.UNKNOWN) {
+                    buckets.get(reading).computeIfAbsent(bucket(is), b -> new RowBitmap()).set(row);
+                }
+            }
+        }
+        int temperature = after.get(Reading.TEMPERATURE);
+        int target = after.get(Reading.TARGET_TEMP);
+        boolean known = temperature != FleetStateTable.UNKNOWN && target != FleetStateTable.UNKNOWN;
+        update(aboveTarget, row, known && temperature > target);
+        update(belowTarget, row, known && temperature < target);
+    }
+
+    @Override
+    public void rowFreed(int row, Row before) {
+        live.clear(row);
+        for (Flag flag : Flag.values()) {
+            if (before.is(flag)) {
+                flags.get(flag).clear(row);
+            }
+        }
+        for (Reading reading : Reading.values()) {
+            int was = before.get(reading);
+            if (was != FleetStateTable.UNKNOWN) {
+                RowBitmap old = buckets.get(reading).get(bucket(was));
+                if (old != null) {
+                    old.clear(row);
+                }
+            }
+        }
+        aboveTarget.clear(row);
+        belowTarget.clear(row);
+    }
+
+    /**
+     * Get the state table the index covers
+     * @return the table
+     */
+    public FleetStateTable getTable() {
+        return table;
+    }
+
+    /**
+     * Get the number of houses with a known state
+     * @return the count
+     */
+    public int getHouseCount() {
+        return live.cardinality();
+    }
+
+    /**
+     * Get the memory the bitmaps take
+     * @return the size in bytes
+     */
+    public long getBytes() {
+        long bytes = live.getBytes() + aboveTarget.getBytes() + belowTarget.getBytes();
+        for (RowBitmap bitmap : flags.values()) {
+            bytes += bitmap.getBytes();
+        }
+        for (Map<Integer, RowBitmap> ranges : buckets.values()) {
+            for (RowBitmap bitmap : ranges.values()) {
+                bytes += bitmap.getBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Run a query
+     * @param where the condition, see {@link FleetQuery}
+     * @param limit the most house names to return
+     * @return the houses that match, in row order, and how many there are
+     * @throws IllegalArgumentException if the condition is not valid
+     */
+    public TartanQueryResult query(String where, int limit) {
+        FleetQuery query = FleetQuery.parse(where);
+        long[] words = query.evaluate(this, newWords());
+
+        // the bits of a house that leaves are cleared as it goes, so only the names need the table
+        Row row = ROW.get();
+        List<String> houses = new ArrayList<>();
+        int count = 0;
+        for (int w = 0; w < words.length; w++) {
+            long word = words[w];
+            count += Long.bitCount(word);
+            while (word != 0 && houses.size() < limit) {
+                int r = w * 64 + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                if (table.read(r, row)) {
+                    houses.add(row.getHouse());
+                }
+            }
+        }
+        return new TartanQueryResult(count, houses);
+    }
+
+    /**
+     * Get words big enough for every row in the table
+     * @return the words, all zero
+     */
+    long[] newWords() {
+        return new long[(table.getRowCount() + 63) / 64];
+    }
+
+    /**
+     * Copy the rows with a known state into words
+     * @param words where to copy them
+     */
+    void live(long[] words) {
+        live.copyInto(words);
+    }
+
+    /**
+     * Copy the rows where a boolean value is true into words
+     * @param flag the value
+     * @param words where to copy them
+     */
+    void flag(Flag flag, long[] words) {
+        flags.get(flag).copyInto(words);
+    }
+
+    /**
+     * Copy the rows whose reading is above or below their target into words
+     * @param above true for above, false for below
+     * @param words where to copy them
+     */
+    void target(boolean above, long[] words) {
+        (above ? aboveTarget : belowTarget).copyInto(words);
+    }
+
+    /**
+     * Copy the rows whose reading is in a range into words. Ranges that lie wholly inside are copied from
+     * their bitmaps; in a range that is cut by a bound each row is checked against the table
+     * @param reading the reading
+     * @param min the lowest value wanted
+     * @param max the highest value wanted
+     * @param words where to copy them
+     */
+    void range(Reading reading, long min, long max, long[] words) {
+        long[] bucketWords = new long[words.length];
+        Row row = ROW.get();
+        for (Map.Entry<Integer, RowBitmap> entry : buckets.get(reading).entrySet()) {
+            long low = (long) entry.getKey() * BUCKET_WIDTH;
+            long high = low + BUCKET_WIDTH - 1;
+            if (high < min || low > max) {
+                continue;
+            }
+            entry.getValue().copyInto(bucketWords);
+            boolean whole = low >= min && high <= max;
+            for (int w = 0; w < words.length; w++) {
+                long word = bucketWords[w];
+                if (whole) {
+                    words[w] |= word;
+                    continue;
+                }
+                while (word != 0) {
+                    int r = w * 64 + Long.numberOfTrailingZeros(word);
+                    long bit = word & -word;
+                    word &= word - 1;
+                    if (table.read(r, row)) {
+                        int value = row.get(reading);
+                        if (value != FleetStateTable.UNKNOWN && value >= min && value <= max) {
+                            words[w] |= bit;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static int bucket(int value) {
+        return Math.floorDiv(value, BUCKET_WIDTH);
+    }
+
+    private static void update(RowBitmap bitmap, int row, boolean set) {
+        if (set) {
+            bitmap.set(row);
+        } else {
+            bitmap.clear(row);
+        }
+    }
+}
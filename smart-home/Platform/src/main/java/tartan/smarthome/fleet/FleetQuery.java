@@ -0,0 +1,396 @@
+package tartan.smarthome.fleet;
+
+import tartan.smarthome.resources.iotcontroller.FleetStateTable;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable.Flag;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable.Reading;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable.Row;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A condition on the houses of the fleet, answered from a {@link FleetIndex} or tested against one house's
+ * row. A condition is made of:
+ * <pre>
+ *   alarmActive                 a boolean value that is true: connected, humidifier, doorOpen, doorLocked,
+ *                               light, occupied, alarmArmed, alarmActive, heater, chiller, awayTimer,
+ *                               ownerNearby, intruder, aboveTarget or belowTarget
+ *   vacant                      a boolean value that is false: vacant, doorClosed, doorUnlocked, disarmed
+ *   heating, cooling            the same as heater and chiller
+ *   temperature &gt; 75            a reading compared to a number with &lt;, &lt;=, &gt;, &gt;=, = or !=:
+ *                               temperature, humidity or targetTemp
+ *   not, and, or, ( )           the usual way, with not binding tightest and or loosest
+ * </pre>
+ * For example {@code vacant and doorUnlocked} or {@code heating and aboveTarget}. A house matches not x
+ * unless x is known to be true of it, so a house that has not reported a value matches its negation.
+ */
+public class FleetQuery {
+
+    /** the names of the boolean values, and whether they mean the value is true */
+    private static final Map<String, Object[]> FLAGS = new HashMap<>();
+
+    /** the names of the readings */
+    private static final Map<String, Reading> READINGS = new HashMap<>();
+
+    /** the lowest value a reading can have; the one below it means the reading is unknown */
+    private static final long LOWEST = FleetStateTable.UNKNOWN + 1L;
+
+    private static final Pattern TOKEN = Pattern.compile("\\s*(<=|>=|!=|[<>=()]|-?\\d+|[A-Za-z]+)");
+
+    static {
+        for (Flag flag : Flag.values()) {
+            FLAGS.put(lowerName(flag.name()), new Object[] {flag, true});
+        }
+        FLAGS.put("vacant", new Object[] {Flag.OCCUPIED, false});
+        FLAGS.put("doorclosed", new Object[] {Flag.DOOR_OPEN, false});
+        FLAGS.put("doorunlocked", new Object[] {Flag.DOOR_LOCKED, false});
+        FLAGS.put("disarmed", new Object[] {Flag.ALARM_ARMED, false});
+        FLAGS.put("heating", new Object[] {Flag.HEATER, true});
+        FLAGS.put("cooling", new Object[] {Flag.CHILLER, true});
+        for (Reading reading : Reading.values()) {
+            READINGS.put(lowerName(reading.name()), reading);
+        }
+    }
+
+    /** one part of a condition */
+    private interface Node {
+
+        /**
+         * Find the rows that match
+         * @param index the index
+         * @param words zeroed words, one bit per row, to set the matching rows in
+         * @return the words
+         */
+        long[] evaluate(FleetIndex index, long[] words);
+
+        /**
+         * Test one house
+         * @param row the house's row
+         * @return true if it matches
+         */
+        boolean test(Row row);
+    }
+
+    private final Node root;
+
+    private FleetQuery(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Parse a condition
+     * @param where the condition
+     * @return the query
+     * @throws IllegalArgumentException if the condition is not valid
+     */
+    public static FleetQuery parse(String where) {
+        if (where == null || where.trim().isEmpty()) {
+            throw new IllegalArgumentException("The condition is empty");
+        }
+        List<String> tokens = new ArrayList<>();
+        Matcher m = TOKEN.matcher(where);
+        int end = 0;
+        while (end < where.length() && m.find(end) && m.start() == end) {
+            tokens.add(m.group(1));
+            end = m.end();
+        }
+        if (!where.substring(end).trim().isEmpty()) {
+            throw new IllegalArgumentException("Unexpected text at: " + where.substring(end).trim());
+        }
+        Parser parser = new Parser(tokens);
+        Node root = parser.or();
+        if (parser.position < tokens.size()) {
+            throw new IllegalArgumentException("Unexpected " + tokens.get(parser.position));
+        }
+        return new FleetQuery(root);
+    }
+
+    /**
+     * Find the rows that match
+     * @param index the index
+     * @param words zeroed words big enough for every row
+     * @return the words with the matching rows set
+     */
+    long[] evaluate(FleetIndex index, long[] words) {
+        return root.evaluate(index, words);
+    }
+
+    /**
+     * Test one house, as read from the state table
+     * @param row the house's row
+     * @return true if the house matches
+     */
+    public boolean matches(Row row) {
+        return root.test(row);
+    }
+
+    /** a recursive descent parser over the tokens */
+    private static class Parser {
+        private final List<String> tokens;
+        private int position = 0;
+
+        Parser(List<String> tokens) {
+            this.tokens = tokens;
+        }
+
+        Node or() {
+            Node left = and();
+            while (accept("or")) {
+                left = new Or(left, and());
+            }
+            return left;
+        }
+
+        Node and() {
+            Node left = not();
+            while (accept("and")) {
+                left = new And(left, not());
+            }
+            return left;
+        }
+
+        Node not() {
+            if (accept("not")) {
+                return new Not(not());
+            }
+            if (accept("(")) {
+                Node inner = or();
+                expect(")");
+                return inner;
+            }
+            return term();
+        }
+
+        Node term() {
+            String name = next("a value").toLowerCase(Locale.ROOT);
+            Object[] flag = FLAGS.get(name);
+            if (flag != null) {
+                Node node = new FlagTerm((Flag) flag[0]);
+                return (Boolean) flag[1] ? node : new Not(node);
+            }
+            if (name.equals("abovetarget") || name.equals("belowtarget")) {
+                return new TargetTerm(name.equals("abovetarget"));
+            }
+            Reading reading = READINGS.get(name);
+            if (reading == null) {
+                throw new IllegalArgumentException("Unknown value " + name + ", expected one of "
+                        + new TreeSet<>(names()));
+            }
+            String op = next("a comparison");
+            int value;
+            try {
+                value = Integer.parseInt(next("a number"));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(reading + " must be compared to a whole number");
+            }
+            // the bounds are longs, so a bound one past a number at the end of the int range does not wrap
+            // around to the other end; a range that ends up empty matches nothing
+            long min;
+            long max;
+            switch (op) {
+                case "<":  min = LOWEST; max = (long) value - 1; break;
+                case "<=": min = LOWEST; max = value; break;
+                case ">":  min = (long) value + 1; max = Integer.MAX_VALUE; break;
+                case ">=": min = value; max = Integer.MAX_VALUE; break;
+                case "=":  min = value; max = value; break;
+                case "!=":
+                    // any known value but this one
+                    return new And(new Range(reading, LOWEST, Integer.MAX_VALUE),
+                            new Not(new Range(reading, value, value)));
+                default:
+                    throw new IllegalArgumentException("Expected a comparison after " + name + ", not " + op);
+            }
+            return new Range(reading, min, max);
+        }
+
+        private boolean accept(String token) {
+            if (position < tokens.size() && tokens.get(position).equalsIgnoreCase(token)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) {
+            if (!accept(token)) {
+                throw new IllegalArgumentException("Expected " + token);
+            }
+        }
+
+        private String next(String what) {
+            if (position == tokens.size()) {
+                throw new IllegalArgumentException("Expected " + what + " at the end");
+            }
+            return tokens.get(position++);
+        }
+    }
+
+    /** either side matches */
+    private static class Or implements Node {
+        private final Node left;
+        private final Node right;
+
+        Or(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public long[] evaluate(FleetIndex index, long[] words) {
+            left.evaluate(index, words);
+            long[] other = right.evaluate(index, new long[words.length]);
+            for (int w = 0; w < words.length; w++) {
+                words[w] |= other[w];
+            }
+            return words;
+        }
+
+        @Override
+        public boolean test(Row row) {
+            return left.test(row) || right.test(row);
+        }
+    }
+
+    /** both sides match */
+    private static class And implements Node {
+        private final Node left;
+        private final Node right;
+
+        And(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public long[] evaluate(FleetIndex index, long[] words) {
+            left.evaluate(index, words);
+            long[] other = right.evaluate(index, new long[words.length]);
+            for (int w = 0; w < words.length; w++) {
+                words[w] &= other[w];
+            }
+            return words;
+        }
+
+        @Override
+        public boolean test(Row row) {
+            return left.test(row) && right.test(row);
+        }
+    }
+
+    /** every house with a known state that does not match */
+    private static class Not implements Node {
+        private final Node inner;
+
+        Not(Node inner) {
+            this.inner = inner;
+        }
+
+        @Override
+        public long[] evaluate(FleetIndex index, long[] words) {
+            long[] matched = inner.evaluate(index, new long[words.length]);
+            index.live(words);
+            for (int w = 0; w < words.length; w++) {
+                words[w] &= ~matched[w];
+            }
+            return words;
+        }
+
+        @Override
+        public boolean test(Row row) {
+            return !inner.test(row);
+        }
+    }
+
+    /** a boolean value that is true */
+    private static class FlagTerm implements Node {
+        private final Flag flag;
+
+        FlagTerm(Flag flag) {
+            this.flag = flag;
+        }
+
+        @Override
+        public long[] evaluate(FleetIndex index, long[] words) {
+            index.flag(flag, words);
+            return words;
+        }
+
+        @Override
+        public boolean test(Row row) {
+            return row.is(flag);
+        }
+    }
+
+    /** a temperature above or below the target */
+    private static class TargetTerm implements Node {
+        private final boolean above;
+
+        TargetTerm(boolean above) {
+            this.above = above;
+        }
+
+        @Override
+        public long[] evaluate(FleetIndex index, long[] words) {
+            index.target(above, words);
+            return words;
+        }
+
+        @Override
+        public boolean test(Row row) {
+            int temperature = row.get(Reading.TEMPERATURE);
+            int target = row.get(Reading.TARGET_TEMP);
+            if (temperature == FleetStateTable.UNKNOWN || target == FleetStateTable.UNKNOWN) {
+                return false;
+            }
+            return above ? temperature > target : temperature < target;
+        }
+    }
+
+    /** a reading within a range */
+    private static class Range implements Node {
+        private final Reading reading;
+        private final long min;
+        private final long max;
+
+        Range(Reading reading, long min, long max) {
+            this.reading = reading;
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        public long[] evaluate(FleetIndex index, long[] words) {
+            index.range(reading, min, max, words);
+            return words;
+        }
+
+        @Override
+        public boolean test(Row row) {
+            int value = row.get(reading);
+            return value != FleetStateTable.UNKNOWN && value >= min && value <= max;
+        }
+    }
+
+    private static List<String> names() {
+        List<String> names = new ArrayList<>(FLAGS.keySet());
+        names.add("abovetarget");
+        names.add("belowtarget");
+        names.addAll(READINGS.keySet());
+        return names;
+    }
+
+    /**
+     * Turn an enum name into the name used in conditions, which are not case sensitive
+     * @param name the enum name, such as DOOR_OPEN
+     * @return the name, such as dooropen
+     */
+    private static String lowerName(String name) {
+        return name.replace("_", "").toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,314 @@
+package tartan.smarthome.fleet;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tartan.smarthome.TartanHomeSettings;
+import tartan.smarthome.TartanPollingSettings;
+import tartan.smarthome.auth.TartanAuthenticator;
+import tartan.smarthome.cluster.ClusterMember;
+import tartan.smarthome.db.HomeDAO;
+import tartan.smarthome.resources.TartanHomeConnectException;
+import tartan.smarthome.resources.TartanHomeService;
+import tartan.smarthome.resources.iotcontroller.ShardedRuntime;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * The houses the platform serves, by name. Houses can be added, changed and removed while the system runs;
+ * each change connects or disconnects only the house it is about, and the rest keep their connections.
+ *
+ * The houses come from a {@link FleetSource}, which is checked for changes every few seconds. On its own a
+ * node connects to every house as it is added. In a cluster the registry only lists the houses, and the
+ * cluster tells it which ones to connect to.
+ */
+public class FleetRegistry implements ClusterMember {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FleetRegistry.class);
+
+    /** how long a released house may take to disconnect; a house can be waiting up to ten seconds on a reply */
+    private static final long DISCONNECT_SECONDS = 15;
+
+    /** What a change did to the fleet */
+    public enum Change { ADDED, UPDATED, UNCHANGED }
+
+    private final ConcurrentHashMap<String, TartanHomeService> services = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TartanHomeSettings> settings = new ConcurrentHashMap<>();
+
+    /** the houses this node is connected to, or trying to connect to */
+    private final Set<String> running = ConcurrentHashMap.newKeySet();
+
+    /** told the name of each house that leaves the fleet or is replaced */
+    private final List<Consumer<String>> removalListeners = new CopyOnWriteArrayList<>();
+
+    // what every house service needs
+    private final HomeDAO homeDAO;
+    private final Integer historyTimer;
+    private final TartanPollingSettings polling;
+    private final ShardedRuntime runtime;
+    private final MetricRegistry metrics;
+    private final String commandDirectory;
+    private final TartanAuthenticator authenticator;
+    private final boolean clustered;
+
+    /** compares settings, so a house whose settings did not change keeps its connection */
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final ScheduledExecutorService watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "fleet-watcher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Create an empty registry
+     * @param homeDAO the historian
+     * @param historyTimer how often to log history, in seconds
+     * @param polling how often to poll each house
+     * @param runtime the shards the houses run on
+     * @param metrics where to report each house's metrics
+     * @param commandDirectory where to keep the commands for unreachable houses, or null to keep them in memory
+     * @param authenticator lets in the users of the houses in the fleet
+     * @param clustered true if a cluster decides which houses to connect to
+     */
+    public FleetRegistry(HomeDAO homeDAO, Integer historyTimer, TartanPollingSettings polling,
+                         ShardedRuntime runtime, MetricRegistry metrics, String commandDirectory,
+                         TartanAuthenticator authenticator, boolean clustered) {
+        this.homeDAO = homeDAO;
+        this.historyTimer = historyTimer;
+        this.polling = polling;
+        this.runtime = runtime;
+        this.metrics = metrics;
+        this.commandDirectory = commandDirectory;
+        this.authenticator = authenticator;
+        this.clustered = clustered;
+    }
+
+    /**
+     * Find a house
+     * @param name the house name
+     * @return the service for the house, or null if there is no such house
+     */
+    public TartanHomeService get(String name) {
+        return services.get(name);
+    }
+
+    /**
+     * Get a house's settings
+     * @param name the house name
+     * @return the settings, or null if there is no such house
+     */
+    public TartanHomeSettings getSettings(String name) {
+        return settings.get(name);
+    }
+
+    /**
+     * Get every house
+     * @return a live view of the services
+     */
+    public Collection<TartanHomeService> getServices() {
+        return services.values();
+    }
+
+    /**
+     * Get the names of every house
+     * @return a live view of the names
+     */
+    public Set<String> getNames() {
+        return services.keySet();
+    }
+
+    /**
+     * Be told when a house leaves the fleet or is replaced, to drop anything kept for it
+     * @param listener gets the house name
+     */
+    public void addRemovalListener(Consumer<String> listener) {
+        removalListeners.add(listener);
+    }
+
+    /**
+     * Add a house, or replace one with the same name. A house whose settings are unchanged is left alone;
+     * a changed house is disconnected and connected again with its new settings
+     * @param house the house settings
+     * @return what happened
+     */
+    public Change put(TartanHomeSettings house) {
+        String name = house.getName();
+        TartanHomeService old;
+        boolean wasRunning;
+        synchronized (this) {
+            TartanHomeSettings current = settings.get(name);
+            if (current != null && mapper.valueToTree(current).equals(mapper.valueToTree(house))) {
+                return Change.UNCHANGED;
+            }
+            old = detach(name);
+            wasRunning = running.remove(name);
+
+            TartanHomeService service = new TartanHomeService(homeDAO, runtime);
+            service.initializeSettings(house, historyTimer);
+            service.setPollPolicy(polling.build());
+            service.registerMetrics(metrics);
+            settings.put(name, house);
+            services.put(name, service);
+            authenticator.addHouse(house);
+        }
+
+        if (old != null) {
+            stop(old);
+        }
+        // in a cluster a new house waits for its lease, but a changed house keeps the lease it had
+        if (!clustered || wasRunning) {
+            acquire(name);
+        }
+        LOGGER.info((old == null ? "Added" : "Updated") + " house " + name);
+        return old == null ? Change.ADDED : Change.UPDATED;
+    }
+
+    /**
+     * Remove a house and disconnect from it
+     * @param name the house name
+     * @return true if the house was in the fleet
+     */
+    public boolean remove(String name) {
+        TartanHomeService old;
+        synchronized (this) {
+            old = detach(name);
+            running.remove(name);
+        }
+        if (old == null) {
+            return false;
+        }
+        stop(old);
+        LOGGER.info("Removed house " + name);
+        return true;
+    }
+
+    /**
+     * Make the fleet match a list of houses. Only the houses that were added, changed or left out are touched
+     * @param houses every house that should be in the fleet
+     */
+    public void sync(List<TartanHomeSettings> houses) {
+        Set<String> wanted = new HashSet<>();
+        for (TartanHomeSettings house : houses) {
+            wanted.add(house.getName());
+            put(house);
+        }
+        for (String name : new ArrayList<>(services.keySet())) {
+            if (!wanted.contains(name)) {
+                remove(name);
+            }
+        }
+    }
+
+    /**
+     * Load the fleet from a source, and keep checking the source for changes
+     * @param source the houses
+     * @param reloadSeconds how often to check the source
+     * @throws IOException if the houses cannot be read
+     */
+    public void watch(FleetSource source, int reloadSeconds) throws IOException {
+        sync(source.load());
+        LOGGER.info("Loaded " + services.size() + " houses");
+        watcher.scheduleWithFixedDelay(() -> {
+            try {
+                if (source.hasChanged()) {
+                    sync(source.load());
+                    LOGGER.info("Reloaded the fleet, " + services.size() + " houses");
+                }
+            } catch (IOException | RuntimeException e) {
+                LOGGER.error("Could not reload the fleet: " + e);
+            }
+        }, reloadSeconds, reloadSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Connect to a house and start logging its history. The house's command queue is read back first, so
+     * commands queued by its last owner are sent too if the command directory is shared
+     * @param house the house name
+     */
+    @Override
+    public void acquire(String house) {
+        TartanHomeService service = services.get(house);
+        if (service == null) {
+            return;
+        }
+        running.add(house);
+        service.setCommandDirectory(commandDirectory);
+        try {
+
+            service.connect();
+            LOGGER.info("Connected to house " + service.getName() + " @ " + service.getAddress());
+
+        } catch (TartanHomeConnectException thce) {
+            LOGGER.error("Could not connect to house " + service.getName() + " @ " + service.getAddress()
+                    + ", commands will be queued until it is reachable");
+        }
+        if (service.isConnected()) {
+            service.startHistorian();
+        }
+    }
+
+    /**
+     * Disconnect from a house and stop logging its history, so another node can take it
+     * @param house the house name
+     */
+    @Override
+    public void release(String house) {
+        TartanHomeService service = services.get(house);
+        if (service == null || !running.remove(house)) {
+            return;
+        }
+        service.stopHistorian();
+        try {
+            service.disconnect().get(DISCONNECT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            LOGGER.error("House " + service.getName() + " did not disconnect cleanly: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        LOGGER.info("Disconnected from house " + service.getName() + " @ " + service.getAddress());
+    }
+
+    /**
+     * Take a house out of the maps, so no new request finds it. Called with the registry locked
+     * @param name the house name
+     * @return the service that was there, or null
+     */
+    private TartanHomeService detach(String name) {
+        TartanHomeService old = services.remove(name);
+        TartanHomeSettings oldSettings = settings.remove(name);
+        if (oldSettings != null) {
+            authenticator.removeHouse(oldSettings);
+        }
+        if (old != null) {
+            old.unregisterMetrics(metrics);
+        }
+        return old;
+    }
+
+    /**
+     * Disconnect a house that has left the fleet or been replaced
+     * @param service the house
+     */
+    private void stop(TartanHomeService service) {
+        service.stopHistorian();
+        service.disconnect();
+        for (Consumer<String> listener : removalListeners) {
+            listener.accept(service.getName());
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package tartan.smarthome.fleet;
+
+import tartan.smarthome.TartanHomeSettings;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Where the list of houses comes from. Changes made through the admin endpoints are saved back to the
+ * source, so they last past a restart if the source does
+ */
+public interface FleetSource {
+
+    /**
+     * Read the houses
+     * @return every house
+     * @throws IOException if the houses cannot be read
+     */
+    List<TartanHomeSettings> load() throws IOException;
+
+    /**
+     * Check whether the houses changed since they were last read
+     * @return true if they should be read again
+     * @throws IOException if the source cannot be checked
+     */
+    boolean hasChanged() throws IOException;
+
+    /**
+     * Add or replace a house
+     * @param house the house settings
+     * @throws IOException if the house cannot be saved
+     */
+    void save(TartanHomeSettings house) throws IOException;
+
+    /**
+     * Remove a house
+     * @param name the house name
+     * @throws IOException if the house cannot be removed
+     */
+    void delete(String name) throws IOException;
+}
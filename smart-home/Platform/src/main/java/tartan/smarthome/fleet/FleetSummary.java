@@ -0,0 +1,165 @@
+package tartan.smarthome.fleet;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import tartan.smarthome.core.TartanFleetSummary;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable.Flag;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable.Reading;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable.Row;
+
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts across the whole fleet for the operations dashboard, kept up to date as each house changes rather
+ * than added up when asked. Each change to a house's row moves the counts of the values that changed by one,
+ * and moves its readings between the slots of their histograms, so reading the summary costs the same
+ * however many houses there are.
+ */
+public class FleetSummary implements FleetStateTable.Listener {
+
+    // the range the readings are counted over; readings outside it count as its ends
+    private static final int MIN_TEMPERATURE = -50;
+    private static final int MAX_TEMPERATURE = 150;
+    private static final int MIN_HUMIDITY = 0;
+    private static final int MAX_HUMIDITY = 100;
+
+    private final AtomicInteger houses = new AtomicInteger();
+    private final AtomicIntegerArray flags = new AtomicIntegerArray(Flag.values().length);
+    private final ReadingHistogram temperature = new ReadingHistogram(MIN_TEMPERATURE, MAX_TEMPERATURE);
+    private final ReadingHistogram humidity = new ReadingHistogram(MIN_HUMIDITY, MAX_HUMIDITY);
+
+    /** moves on whenever a count changes */
+    private final AtomicLong version = new AtomicLong();
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /** a summary encoded as JSON, and the version it was taken at */
+    private static final class Encoded {
+        final long version;
+        final byte[] json;
+
+        Encoded(long version, byte[] json) {
+            this.version = version;
+            this.json = json;
+        }
+    }
+
+    /** the summary last encoded, reused until the version moves on */
+    private volatile Encoded encoded = new Encoded(-1, null);
+
+    /**
+     * Count the houses in a state table. Rows written before this are counted the next time they are written
+     * @param table the table
+     */
+    public FleetSummary(FleetStateTable table) {
+        table.addListener(this);
+    }
+
+    @Override
+    public void rowWritten(int row, Row before, Row after) {
+        boolean changed = false;
+        if (before.getUpdated() == 0) {
+            houses.incrementAndGet();
+            changed = true;
+        }
+        for (Flag flag : Flag.values()) {
+            boolean is = after.is(flag);
+            if (is != before.is(flag)) {
+                flags.addAndGet(flag.ordinal(), is ? 1 : -1);
+                changed = true;
+            }
+        }
+        changed |= move(temperature, before.get(Reading.TEMPERATURE), after.get(Reading.TEMPERATURE));
+        changed |= move(humidity, before.get(Reading.HUMIDITY), after.get(Reading.HUMIDITY));
+        if (changed) {
+            version.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void rowFreed(int row, Row before) {
+        houses.decrementAndGet();
+        for (Flag flag : Flag.values()) {
+            if (before.is(flag)) {
+                flags.decrementAndGet(flag.ordinal());
+            }
+        }
+        move(temperature, before.get(Reading.TEMPERATURE), FleetStateTable.UNKNOWN);
+        move(humidity, before.get(Reading.HUMIDITY), FleetStateTable.UNKNOWN);
+        version.incrementAndGet();
+    }
+
+    /**
+     * Get the version of the counts. It moves on whenever a count changes
+     * @return the version
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Get the number of houses where a boolean value is true
+     * @param flag the value
+     * @return the count
+     */
+    public int count(Flag flag) {
+        return flags.get(flag.ordinal());
+    }
+
+    /**
+     * Get the summary. The counts are read one at a time, so a house that changes meanwhile may be counted
+     * before or after its change
+     * @return the summary
+     */
+    public TartanFleetSummary getSummary() {
+        return new TartanFleetSummary(version.get(), houses.get(), count(Flag.CONNECTED),
+                count(Flag.ALARM_ARMED), count(Flag.ALARM_ACTIVE), count(Flag.DOOR_OPEN), count(Flag.OCCUPIED),
+                count(Flag.HEATER), count(Flag.CHILLER), toReadings(temperature), toReadings(humidity));
+    }
+
+    /**
+     * Get the summary as JSON. The encoding is shared by every caller until the counts change
+     * @return the summary as UTF-8 JSON
+     */
+    public byte[] getJson() {
+        Encoded last = encoded;
+        long current = version.get();
+        if (last.version == current) {
+            return last.json;
+        }
+        try {
+            byte[] json = mapper.writeValueAsBytes(getSummary());
+            encoded = new Encoded(current, json);
+            return json;
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static TartanFleetSummary.Readings toReadings(ReadingHistogram histogram) {
+        return new TartanFleetSummary.Readings(histogram.getCount(), histogram.getMean(),
+                histogram.getPercentile(0), histogram.getPercentile(1), histogram.getPercentile(0.5),
+                histogram.getPercentile(0.9), histogram.getPercentile(0.99));
+    }
+
+    /**
+     * Move a house's reading in a histogram
+     * @return true if the reading changed
+     */
+    private static boolean move(ReadingHistogram histogram, int was, int is) {
+        if (was == is) {
+            return false;
+        }
+        if (was != FleetStateTable.UNKNOWN) {
+            histogram.remove(was);
+        }
+        if (is != FleetStateTable.UNKNOWN) {
+            histogram.add(is);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,93 @@
+package tartan.smarthome.fleet;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * How many houses have each value of a reading. Readings are whole numbers in a known range, so a count per
+ * value answers the mean, the lowest, the highest and any percentile exactly, in time that depends on the
+ * range and not on the number of houses. Unlike a sketch it can also take a house's old value back out
+ * when the house changes. Values outside the range are counted at its ends.
+ */
+class ReadingHistogram {
+
+    private final int min;
+    private final AtomicLongArray counts;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * Create an empty histogram
+     * @param min the lowest value counted on its own
+     * @param max the highest value counted on its own
+     */
+    ReadingHistogram(int min, int max) {
+        this.min = min;
+        this.counts = new AtomicLongArray(max - min + 1);
+    }
+
+    /**
+     * Count a house's value
+     * @param value the value
+     */
+    void add(int value) {
+        counts.incrementAndGet(slot(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+    }
+
+    /**
+     * Stop counting a house's value
+     * @param value the value that was added
+     */
+    void remove(int value) {
+        counts.decrementAndGet(slot(value));
+        count.decrementAndGet();
+        sum.addAndGet(-value);
+    }
+
+    /**
+     * Get the number of values counted
+     * @return the count
+     */
+    long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Get the mean of the values
+     * @return the mean, or null if there are none
+     */
+    Double getMean() {
+        long n = count.get();
+        return n <= 0 ? null : (double) sum.get() / n;
+    }
+
+    /**
+     * Get the value at a percentile: the lowest value that at least that share of the houses are at or below
+     * @param fraction the percentile as a fraction; 0 gives the lowest value and 1 the highest
+     * @return the value, or null if there are none
+     */
+    Integer getPercentile(double fraction) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        if (total <= 0) {
+            return null;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return min + i;
+            }
+        }
+        return min + counts.length() - 1;
+    }
+
+    private int slot(int value) {
+        return Math.max(0, Math.min(counts.length() - 1, value - min));
+    }
+}
@@ -0,0 +1,131 @@
+package tartan.smarthome.fleet;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A set of state table rows, one bit per row. The bits are kept in chunks of 4096 rows and a chunk is only
+ * allocated once one of its rows is set, so a flag few houses have, such as an active alarm, takes a few
+ * hundred bytes however large the fleet is.
+ *
+ * Houses set and clear their own bits from their own threads, so each word is changed atomically. A reader
+ * copies the words without locking and may see a house that changed while it was copying either way.
+ */
+class RowBitmap {
+
+    /** words per chunk; a chunk covers 64 times as many rows */
+    private static final int CHUNK_WORDS = 64;
+    private static final int CHUNK_ROWS = CHUNK_WORDS * 64;
+
+    private volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+
+    /**
+     * Add a row
+     * @param row the row number
+     */
+    void set(int row) {
+        AtomicLongArray chunk = chunk(row / CHUNK_ROWS);
+        chunk.accumulateAndGet((row % CHUNK_ROWS) >>> 6, 1L << row, (word, bit) -> word | bit);
+    }
+
+    /**
+     * Remove a row
+     * @param row the row number
+     */
+    void clear(int row) {
+        AtomicLongArray[] current = chunks;
+        int index = row / CHUNK_ROWS;
+        if (index >= current.length || current[index] == null) {
+            return;
+        }
+        current[index].accumulateAndGet((row % CHUNK_ROWS) >>> 6, ~(1L << row), (word, mask) -> word & mask);
+    }
+
+    /**
+     * Test a row
+     * @param row the row number
+     * @return true if the row is in the set
+     */
+    boolean get(int row) {
+        AtomicLongArray[] current = chunks;
+        int index = row / CHUNK_ROWS;
+        if (index >= current.length || current[index] == null) {
+            return false;
+        }
+        return (current[index].get((row % CHUNK_ROWS) >>> 6) & (1L << row)) != 0;
+    }
+
+    /**
+     * Copy the set into words, one bit per row, as {@link java.util.BitSet#toLongArray()} lays them out
+     * @param words where to copy the set; rows past its end are left out
+     */
+    void copyInto(long[] words) {
+        Arrays.fill(words, 0);
+        AtomicLongArray[] current = chunks;
+        for (int c = 0; c < current.length; c++) {
+            AtomicLongArray chunk = current[c];
+            if (chunk == null) {
+                continue;
+            }
+            int base = c * CHUNK_WORDS;
+            for (int w = 0; w < CHUNK_WORDS && base + w < words.length; w++) {
+                words[base + w] = chunk.get(w);
+            }
+        }
+    }
+
+    /**
+     * Count the rows in the set
+     * @return the number of rows
+     */
+    int cardinality() {
+        int count = 0;
+        for (AtomicLongArray chunk : chunks) {
+            if (chunk != null) {
+                for (int w = 0; w < CHUNK_WORDS; w++) {
+                    count += Long.bitCount(chunk.get(w));
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the memory the bits take
+     * @return the size in bytes, not counting object headers
+     */
+    long getBytes() {
+        long bytes = 0;
+        for (AtomicLongArray chunk : chunks) {
+            if (chunk != null) {
+                bytes += CHUNK_WORDS * 8;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Get a chunk, allocating it and growing the chunk array if needed
+     * @param index the chunk number
+     * @return the chunk
+     */
+    private AtomicLongArray chunk(int index) {
+        AtomicLongArray[] current = chunks;
+        if (index < current.length && current[index] != null) {
+            return current[index];
+        }
+        synchronized (this) {
+            current = chunks;
+            if (index >= current.length) {
+                current = Arrays.copyOf(current, index + 1);
+            } else if (current[index] != null) {
+                return current[index];
+            } else {
+                current = current.clone();
+            }
+            current[index] = new AtomicLongArray(CHUNK_WORDS);
+            chunks = current;
+            return current[index];
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package tartan.smarthome.outbox;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tartan.smarthome.core.TartanOutboxPage;
+import tartan.smarthome.core.TartanOutboxRecord;
+import tartan.smarthome.resources.iotcontroller.IoTValues;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The stream of house changes for other systems. Every state change the rules make, every command for a
+ * house and every pattern matched in the way a house changes is appended to an {@link OutboxLog} on local
+ * disk, and readers tail the log by offset. The houses only append, which is a copy into a mapped file;
+ * nothing is written to the database.
+ *
+ * A record that cannot be appended, say because the disk is full, is dropped and counted rather than
+ * holding up the house.
+ */
+public class Outbox implements Managed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Outbox.class);
+
+    /** a change to a house's state */
+    public static final String STATE = "state";
+
+    /** a command for a house */
+    public static final String COMMAND = "command";
+
+    /** a pattern matched in the way a house changes */
+    public static final String PATTERN = "pattern";
+
+    /** values that are never written to the outbox */
+    private static final Set<String> SECRETS = new HashSet<>(Arrays.asList(IoTValues.ALARM_PASSCODE,
+            IoTValues.GIVEN_PASSCODE, IoTValues.LOCKED_PASSCODE, IoTValues.GIVEN_LOCKED_PASSCODE));
+
+    /** how often old segments are deleted and the log written out to disk */
+    private static final long MAINTENANCE_SECONDS = 60;
+
+    private static final TypeReference<Map<String, Object>> RECORD = new TypeReference<Map<String, Object>>() { };
+
+    private final OutboxLog log;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private ScheduledExecutorService maintenance;
+
+    /**
+     * Create an outbox
+     * @param log where to keep the records
+     */
+    public Outbox(OutboxLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Add a change to a house's state
+     * @param house the house
+     * @param changes the values that changed
+     */
+    public void stateChanged(String house, Map<String, Object> changes) {
+        append(house, STATE, null, changes);
+    }
+
+    /**
+     * Add a command for a house, as it is accepted
+     * @param house the house
+     * @param command the command ID
+     * @param changes the values the command asks for
+     */
+    public void commandAccepted(String house, long command, Map<String, Object> changes) {
+        append(house, COMMAND, command, changes);
+    }
+
+    /**
+     * Add a pattern matched in the way a house changes
+     * @param house the house
+     * @param pattern the pattern's name
+     * @param description what was seen
+     */
+    public void patternMatched(String house, String pattern, String description) {
+        Map<String, Object> changes = new LinkedHashMap<>();
+        changes.put("pattern", pattern);
+        changes.put("description", description);
+        append(house, PATTERN, null, changes);
+    }
+
+    private void append(String house, String type, Long command, Map<String, Object> changes) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> e : changes.entrySet()) {
+            if (!SECRETS.contains(e.getKey())) {
+                values.put(e.getKey(), e.getValue());
+            }
+        }
+        if (values.isEmpty()) {
+            return;
+        }
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("house", house);
+        record.put("type", type);
+        if (command != null) {
+            record.put("command", command);
+        }
+        record.put("changes", values);
+        try {
+            log.append(mapper.writeValueAsBytes(record));
+        } catch (IOException | UncheckedIOException | IllegalArgumentException e) {
+            dropped.incrementAndGet();
+            LOGGER.error("Could not add a " + type + " record for house " + house + " to the outbox", e);
+        }
+    }
+
+    /**
+     * Read records, waiting for new ones if there are none yet
+     * @param from the first offset wanted
+     * @param limit the most records to return
+     * @param waitMillis how long to wait if there is nothing from that offset on yet
+     * @return the page
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public TartanOutboxPage read(long from, int limit, long waitMillis) throws InterruptedException {
+        if (waitMillis > 0) {
+            log.await(from, waitMillis);
+        }
+        long start = log.getStartOffset();
+        long missed = Math.max(0, start - Math.max(from, 0));
+        List<TartanOutboxRecord> records = new ArrayList<>();
+        for (OutboxLog.Entry entry : log.read(from, limit)) {
+            Map<String, Object> record;
+            try {
+                record = mapper.readValue(entry.getPayload(), RECORD);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            @SuppressWarnings("unchecked")
+            Map<String, Object> changes = (Map<String, Object>) record.get("changes");
+            Number command = (Number) record.get("command");
+            records.add(new TartanOutboxRecord(entry.getOffset(), entry.getTime(), (String) record.get("house"),
+                    (String) record.get("type"), command == null ? null : command.longValue(), changes));
+        }
+
+        // an offset from beyond the end, say from before the directory was cleared, is moved back
+        long next = records.isEmpty()
+                ? Math.min(Math.max(from, start), log.getEndOffset())
+                : records.get(records.size() - 1).getOffset() + 1;
+        return new TartanOutboxPage(records, next, missed);
+    }
+
+    /**
+     * Get the log the records are kept in
+     * @return the log
+     */
+    public OutboxLog getLog() {
+        return log;
+    }
+
+    /**
+     * Get the number of records that could not be added
+     * @return the count
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void start() {
+        maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "outbox-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
+        maintenance.scheduleWithFixedDelay(() -> {
+            try {
+                log.enforceRetention();
+                log.force();
+            } catch (RuntimeException e) {
+                LOGGER.error("Outbox maintenance failed", e);
+            }
+        }, MAINTENANCE_SECONDS, MAINTENANCE_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void stop() {
+        if (maintenance != null) {
+            maintenance.shutdownNow();
+        }
+        log.force();
+    }
+}
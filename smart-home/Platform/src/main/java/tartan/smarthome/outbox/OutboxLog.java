@@ -0,0 +1,262 @@
+package tartan.smarthome.outbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * An append-only log of records on local disk, split into {@link OutboxSegment}s. Every record gets the next
+ * offset, starting at 0, and keeps it for as long as it is kept; readers ask for records from an offset on.
+ * Records are only ever appended, to the newest segment, and a new segment is started when it is full.
+ * Whole segments are deleted, oldest first, once the log is larger than its size limit or a segment's
+ * newest record is older than its time limit. This is checked as each segment fills and whenever
+ * {@link #enforceRetention()} is called, and the newest segment is never deleted, so the log can run
+ * over its size limit by up to a segment.
+ *
+ * Appends are serialized; reads take no lock and may run alongside an append.
+ */
+public class OutboxLog {
+
+    /** a record read back from the log */
+    public static class Entry {
+        private final long offset;
+        private final long time;
+        private final byte[] payload;
+
+        Entry(long offset, long time, byte[] payload) {
+            this.offset = offset;
+            this.time = time;
+            this.payload = payload;
+        }
+
+        /**
+         * Get the record's offset
+         * @return the offset
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Get when the record was appended
+         * @return the time in milliseconds since the epoch
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Get the record's data
+         * @return the data
+         */
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    private final File directory;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final LongSupplier clock;
+
+    /** the segments, by base offset */
+    private final ConcurrentSkipListMap<Long, OutboxSegment> segments = new ConcurrentSkipListMap<>();
+
+    /** the segment being appended to */
+    private volatile OutboxSegment active;
+
+    /**
+     * Open a log, reading back the segments already in its directory
+     * @param directory where to keep the segments
+     * @param segmentBytes the size of each segment file
+     * @param retentionBytes the most bytes of records to keep
+     * @param retentionMillis how long to keep a segment after its newest record
+     * @param clock the time in milliseconds since the epoch
+     * @throws UncheckedIOException if the directory or a segment could not be opened
+     */
+    public OutboxLog(File directory, int segmentBytes, long retentionBytes, long retentionMillis,
+                     LongSupplier clock) {
+        if (segmentBytes < OutboxSegment.HEADER + 1) {
+            throw new IllegalArgumentException("Segments are too small to hold a record");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.clock = clock;
+
+        directory.mkdirs();
+        TreeSet<Long> bases = new TreeSet<>();
+        File[] files = directory.listFiles((dir, name) -> name.matches("\\d{20}\\.log"));
+        if (files == null) {
+            throw new UncheckedIOException(new IOException("Cannot read the outbox directory " + directory));
+        }
+        for (File file : files) {
+            bases.add(Long.parseLong(file.getName().substring(0, 20)));
+        }
+        try {
+            for (long base : bases) {
+                segments.put(base, new OutboxSegment(directory, base, segmentBytes));
+            }
+            if (segments.isEmpty()) {
+                segments.put(0L, new OutboxSegment(directory, 0, segmentBytes));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        active = segments.lastEntry().getValue();
+    }
+
+    /**
+     * Append a record
+     * @param payload the record's data, which must not be empty
+     * @return the record's offset
+     * @throws IllegalArgumentException if the record is empty or larger than a segment
+     * @throws UncheckedIOException if a new segment was needed and could not be made
+     */
+    public long append(byte[] payload) {
+        if (payload.length == 0 || payload.length > segmentBytes - OutboxSegment.HEADER) {
+            throw new IllegalArgumentException("A record must hold between 1 and "
+                    + (segmentBytes - OutboxSegment.HEADER) + " bytes");
+        }
+        long offset;
+        synchronized (this) {
+            if (!active.hasRoom(payload.length)) {
+                roll();
+            }
+            offset = active.append(clock.getAsLong(), payload);
+            notifyAll();
+        }
+        return offset;
+    }
+
+    /**
+     * Start a new segment after the full one. The full one is written out to disk later, by
+     * {@link #force()}, so appending never waits for the disk. Only called while appending
+     */
+    private void roll() {
+        OutboxSegment full = active;
+        try {
+            active = new OutboxSegment(directory, full.getNextOffset(), segmentBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        segments.put(active.getBaseOffset(), active);
+        enforceRetention();
+    }
+
+    /**
+     * Read records
+     * @param from the first offset wanted
+     * @param max the most records to read
+     * @return the records from that offset on, or from the oldest kept if it is no longer kept
+     */
+    public List<Entry> read(long from, int max) {
+        List<Entry> entries = new ArrayList<>(Math.min(max, 256));
+        long start = Math.max(from, getStartOffset());
+        Map.Entry<Long, OutboxSegment> floor = segments.floorEntry(start);
+        if (floor == null) {
+            return entries;
+        }
+        for (OutboxSegment segment : segments.tailMap(floor.getKey()).values()) {
+            if (entries.size() >= max) {
+                break;
+            }
+            if (segment.getNextOffset() > start) {
+                segment.read(start, max - entries.size(), entries);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Wait until there are records from an offset on
+     * @param from the first offset wanted
+     * @param millis the most time to wait
+     * @return true if there are records to read
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public synchronized boolean await(long from, long millis) throws InterruptedException {
+        long until = System.currentTimeMillis() + millis;
+        long left = millis;
+        while (getEndOffset() <= from && left > 0) {
+            wait(left);
+            left = until - System.currentTimeMillis();
+        }
+        return getEndOffset() > from;
+    }
+
+    /**
+     * Delete the oldest segments while the log is over its size or they are over its age
+     */
+    public synchronized void enforceRetention() {
+        long total = 0;
+        for (OutboxSegment segment : segments.values()) {
+            total += segment.getSize();
+        }
+        long now = clock.getAsLong();
+        while (segments.size() > 1) {
+            OutboxSegment oldest = segments.firstEntry().getValue();
+            boolean tooBig = total > retentionBytes;
+            boolean tooOld = now - oldest.getLastTime() > retentionMillis;
+            if (!tooBig && !tooOld) {
+                break;
+            }
+            segments.remove(oldest.getBaseOffset());
+            total -= oldest.getSize();
+            oldest.delete();
+        }
+    }
+
+    /**
+     * Write every segment out to disk. Appends go on meanwhile
+     */
+    public void force() {
+        for (OutboxSegment segment : segments.values()) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Get the offset of the oldest record kept
+     * @return the offset, or the end offset if the log is empty
+     */
+    public long getStartOffset() {
+        return segments.firstKey();
+    }
+
+    /**
+     * Get the offset the next record will get
+     * @return the offset
+     */
+    public long getEndOffset() {
+        return active.getNextOffset();
+    }
+
+    /**
+     * Get the bytes of records kept
+     * @return the size
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (OutboxSegment segment : segments.values()) {
+            bytes += segment.getSize();
+        }
+        return bytes;
+    }
+
+    /**
+     * Get the number of segments
+     * @return the count
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+}
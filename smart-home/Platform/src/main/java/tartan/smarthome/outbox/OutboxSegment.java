@@ -0,0 +1,294 @@
+package tartan.smarthome.outbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * One file of the outbox log, holding the records from a base offset on. The file is made at its full size
+ * and mapped into memory, so appending a record is a copy into the mapping with no system call. Each record
+ * is laid out as:
+ * <pre>
+ *   int  length    the length of the data
+ *   int  crc       the CRC-32 of the data
+ *   long offset    the record's offset in the log
+ *   long time      when it was appended, in milliseconds since the epoch
+ *   data
+ * </pre>
+ * The unused end of the file is zero, so the records end at the first length of zero, or at a record whose
+ * offset or CRC is wrong if the process died while writing it.
+ *
+ * Next to it an index file holds the offset and position of a record every {@link #INDEX_INTERVAL} bytes,
+ * so a reader can start close to the offset it wants instead of scanning the whole segment. Each entry is
+ * an int offset relative to the base and an int position; the first record is at position 0 and is not
+ * listed, so the entries end at the first position of zero.
+ *
+ * One thread appends at a time. Readers may read while it does: the end of the segment is only moved on
+ * once a record is in place.
+ */
+class OutboxSegment {
+
+    /** the bytes before each record's data */
+    static final int HEADER = 24;
+
+    /** the bytes of the log between index entries */
+    static final int INDEX_INTERVAL = 4096;
+
+    private static final int INDEX_ENTRY = 8;
+
+    private final long baseOffset;
+    private final File logFile;
+    private final File indexFile;
+    private final MappedByteBuffer data;
+    private final MappedByteBuffer index;
+
+    /** the bytes used, and the offset the next record gets; set after the record is in place */
+    private volatile int size;
+    private volatile long nextOffset;
+
+    /** when the newest record was appended */
+    private volatile long lastTime;
+
+    private int indexEntries;
+    private int lastIndexed;
+
+    /**
+     * Open a segment, making it if it does not exist, and find where its records end
+     * @param directory the log's directory
+     * @param baseOffset the offset of the segment's first record
+     * @param capacity the size of a new segment file, in bytes
+     * @throws IOException if the files could not be made or mapped
+     */
+    OutboxSegment(File directory, long baseOffset, int capacity) throws IOException {
+        this.baseOffset = baseOffset;
+        this.logFile = new File(directory, name(baseOffset) + ".log");
+        this.indexFile = new File(directory, name(baseOffset) + ".index");
+        this.data = map(logFile, capacity);
+        this.index = map(indexFile, (data.capacity() / INDEX_INTERVAL + 1) * INDEX_ENTRY);
+        recover();
+    }
+
+    /**
+     * Get the file name of a segment, which sorts in offset order
+     * @param baseOffset the segment's first offset
+     * @return the name without an extension
+     */
+    static String name(long baseOffset) {
+        return String.format("%020d", baseOffset);
+    }
+
+    private static MappedByteBuffer map(File file, int capacity) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() < capacity) {
+                raf.setLength(capacity);
+            }
+            // the mapping stays valid once the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+    }
+
+    /**
+     * Find the end of the records. The scan starts from the last index entry that points at a good record
+     */
+    private void recover() {
+        int entries = 0;
+        while ((entries + 1) * INDEX_ENTRY <= index.capacity() && index.getInt(entries * INDEX_ENTRY + 4) != 0) {
+            entries++;
+        }
+        int position = 0;
+        long offset = baseOffset;
+        while (entries > 0) {
+            int at = index.getInt((entries - 1) * INDEX_ENTRY + 4);
+            long atOffset = baseOffset + index.getInt((entries - 1) * INDEX_ENTRY);
+            if (valid(at, atOffset)) {
+                position = at;
+                offset = atOffset;
+                break;
+            }
+            entries--;
+        }
+        long time = 0;
+        while (valid(position, offset)) {
+            time = data.getLong(position + 16);
+            position += HEADER + data.getInt(position);
+            offset++;
+        }
+
+        // drop anything after the end, such as a record cut short, so new records are read back cleanly
+        for (int p = position; p < data.capacity() && p < position + HEADER; p++) {
+            data.put(p, (byte) 0);
+        }
+        for (int e = entries; e * INDEX_ENTRY < index.capacity(); e++) {
+            if (index.getInt(e * INDEX_ENTRY + 4) == 0) {
+                break;
+            }
+            index.putLong(e * INDEX_ENTRY, 0);
+        }
+
+        this.indexEntries = entries;
+        this.lastIndexed = entries == 0 ? 0 : index.getInt((entries - 1) * INDEX_ENTRY + 4);
+        this.lastTime = time;
+        this.nextOffset = offset;
+        this.size = position;
+    }
+
+    /**
+     * Check that a whole, undamaged record with the given offset starts at a position
+     */
+    private boolean valid(int position, long offset) {
+        if (position + HEADER > data.capacity()) {
+            return false;
+        }
+        int length = data.getInt(position);
+        if (length <= 0 || position + HEADER + length > data.capacity()) {
+            return false;
+        }
+        if (data.getLong(position + 8) != offset) {
+            return false;
+        }
+        ByteBuffer payload = data.duplicate();
+        payload.position(position + HEADER).limit(position + HEADER + length);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue() == data.getInt(position + 4);
+    }
+
+    /**
+     * Check whether a record fits
+     * @param length the length of its data
+     * @return true if there is room
+     */
+    boolean hasRoom(int length) {
+        return size + HEADER + length <= data.capacity();
+    }
+
+    /**
+     * Append a record. Only one thread may append at a time, and the record must fit
+     * @param time when it was appended
+     * @param payload the data
+     * @return the record's offset
+     */
+    long append(long time, byte[] payload) {
+        int position = size;
+        long offset = nextOffset;
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        // the length goes in last, so a reader or a recovery never sees a record that is not all there
+        data.putInt(position + 4, (int) crc.getValue());
+        data.putLong(position + 8, offset);
+        data.putLong(position + 16, time);
+        ByteBuffer target = data.duplicate();
+        target.position(position + HEADER);
+        target.put(payload);
+        data.putInt(position, payload.length);
+
+        if (position - lastIndexed >= INDEX_INTERVAL) {
+            index.putInt(indexEntries * INDEX_ENTRY, (int) (offset - baseOffset));
+            index.putInt(indexEntries * INDEX_ENTRY + 4, position);
+            indexEntries++;
+            lastIndexed = position;
+        }
+        lastTime = time;
+        nextOffset = offset + 1;
+        size = position + HEADER + payload.length;
+        return offset;
+    }
+
+    /**
+     * Read records
+     * @param from the first offset wanted; must be in this segment
+     * @param max the most records to read
+     * @param into where to add them
+     */
+    void read(long from, int max, List<OutboxLog.Entry> into) {
+        int end = size;
+        ByteBuffer view = data.duplicate();
+        int position = find(from);
+        int added = 0;
+        while (position < end && added < max) {
+            int length = view.getInt(position);
+            long offset = view.getLong(position + 8);
+            if (offset >= from) {
+                byte[] payload = new byte[length];
+                view.position(position + HEADER);
+                view.get(payload);
+                into.add(new OutboxLog.Entry(offset, view.getLong(position + 16), payload));
+                added++;
+            }
+            position += HEADER + length;
+        }
+    }
+
+    /**
+     * Find the position of the last indexed record at or before an offset
+     */
+    private int find(long offset) {
+        int low = 0;
+        int high = indexEntries - 1;
+        int position = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (baseOffset + index.getInt(mid * INDEX_ENTRY) <= offset) {
+                position = index.getInt(mid * INDEX_ENTRY + 4);
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Write the segment out to disk
+     */
+    void force() {
+        data.force();
+        index.force();
+    }
+
+    /**
+     * Delete the segment's files. Readers still reading it can finish
+     * @return true if both files were deleted
+     */
+    boolean delete() {
+        return logFile.delete() & indexFile.delete();
+    }
+
+    /**
+     * Get the offset of the first record
+     * @return the offset
+     */
+    long getBaseOffset() {
+        return baseOffset;
+    }
+
+    /**
+     * Get the offset the next record will get
+     * @return the offset
+     */
+    long getNextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * Get the bytes used by records
+     * @return the size
+     */
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Get when the newest record was appended
+     * @return the time in milliseconds since the epoch, or 0 if the segment is empty
+     */
+    long getLastTime() {
+        return lastTime;
+    }
+}
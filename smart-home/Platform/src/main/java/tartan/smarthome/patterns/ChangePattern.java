@@ -0,0 +1,68 @@
+package tartan.smarthome.patterns;
+
+import tartan.smarthome.resources.iotcontroller.FleetStateTable;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable.Reading;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable.Row;
+
+import java.util.Locale;
+
+/**
+ * A reading that falls or rises by more than a given amount within a given time, such as the temperature
+ * dropping more than 5 degrees in 15 minutes. Each house keeps the highest (or lowest) reading of the window
+ * in a {@link SlotWindow}, and the pattern matches when the newest reading is more than the amount away from
+ * it. The window then starts again from the newest reading, so a long fall matches once per amount.
+ */
+public class ChangePattern extends StatePattern {
+
+    private final Reading reading;
+    private final int amount;
+    private final long millis;
+    private final boolean falling;
+
+    /**
+     * Create a pattern
+     * @param name the name matches are reported under
+     * @param reading the reading to watch
+     * @param amount how far the reading must move
+     * @param millis the time it must move within, in milliseconds
+     * @param falling true to look for a fall, false for a rise
+     */
+    public ChangePattern(String name, Reading reading, int amount, long millis, boolean falling) {
+        super(name);
+        this.reading = reading;
+        this.amount = amount;
+        this.millis = millis;
+        this.falling = falling;
+    }
+
+    @Override
+    PatternMatcher newMatcher() {
+        SlotWindow window = new SlotWindow(falling ? SlotWindow.Kind.MAX : SlotWindow.Kind.MIN, millis);
+        return new PatternMatcher() {
+            @Override
+            String update(Row before, Row after, long now) {
+                int is = after.get(reading);
+                if (is == FleetStateTable.UNKNOWN) {
+                    return null;
+                }
+
+                // the old reading held until now, so it counts even if the house only reports changes
+                int was = before.get(reading);
+                if (was != FleetStateTable.UNKNOWN) {
+                    window.add(now, was);
+                }
+                window.add(now, is);
+
+                int from = window.get(now, is);
+                if (falling ? from - is <= amount : is - from <= amount) {
+                    return null;
+                }
+                window.clear();
+                window.add(now, is);
+                return reading.name().toLowerCase(Locale.ROOT).replace('_', ' ')
+                        + (falling ? " fell" : " rose") + " from " + from + " to " + is
+                        + " within " + HeldPattern.describe(millis);
+            }
+        };
+    }
+}
@@ -0,0 +1,53 @@
+package tartan.smarthome.patterns;
+
+import tartan.smarthome.fleet.FleetQuery;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable.Row;
+
+/**
+ * A condition that starts to hold more than a given number of times within a given time, such as the alarm
+ * being armed again more than 3 times in an hour. Each house counts the times in a {@link SlotWindow}; the
+ * state a house has when it connects is not counted. The count starts again after each match.
+ */
+public class CountPattern extends StatePattern {
+
+    private final FleetQuery condition;
+    private final String where;
+    private final int times;
+    private final long millis;
+
+    /**
+     * Create a pattern
+     * @param name the name matches are reported under
+     * @param where the condition, see {@link FleetQuery}
+     * @param times how many times the condition may start to hold before the pattern matches
+     * @param millis the time to count over, in milliseconds
+     * @throws IllegalArgumentException if the condition is not valid
+     */
+    public CountPattern(String name, String where, int times, long millis) {
+        super(name);
+        this.condition = FleetQuery.parse(where);
+        this.where = where;
+        this.times = times;
+        this.millis = millis;
+    }
+
+    @Override
+    PatternMatcher newMatcher() {
+        SlotWindow window = new SlotWindow(SlotWindow.Kind.SUM, millis);
+        return new PatternMatcher() {
+            @Override
+            String update(Row before, Row after, long now) {
+                if (before.getUpdated() == 0 || condition.matches(before) || !condition.matches(after)) {
+                    return null;
+                }
+                window.add(now, 1);
+                int count = window.get(now, 0);
+                if (count <= times) {
+                    return null;
+                }
+                window.clear();
+                return where + " " + count + " times within " + HeldPattern.describe(millis);
+            }
+        };
+    }
+}
@@ -0,0 +1,84 @@
+package tartan.smarthome.patterns;
+
+import tartan.smarthome.fleet.FleetQuery;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable.Row;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A condition that holds for longer than a given time, such as a door open for more than 10 minutes while
+ * the house is vacant. The pattern matches once each time the condition holds for that long, as soon as the
+ * time is up, even if the house does not change again.
+ */
+public class HeldPattern extends StatePattern {
+
+    private final FleetQuery condition;
+    private final String where;
+    private final long millis;
+
+    /**
+     * Create a pattern
+     * @param name the name matches are reported under
+     * @param where the condition, see {@link FleetQuery}
+     * @param millis how long the condition must hold, in milliseconds
+     * @throws IllegalArgumentException if the condition is not valid
+     */
+    public HeldPattern(String name, String where, long millis) {
+        super(name);
+        this.condition = FleetQuery.parse(where);
+        this.where = where;
+        this.millis = millis;
+    }
+
+    @Override
+    PatternMatcher newMatcher() {
+        return new PatternMatcher() {
+
+            /** when the condition last started to hold, or 0 if it does not hold */
+            private long since = 0;
+
+            /** whether this spell has already matched */
+            private boolean matched = false;
+
+            @Override
+            String update(Row before, Row after, long now) {
+                if (!condition.matches(after)) {
+                    since = 0;
+                    matched = false;
+                    return null;
+                }
+                if (since == 0) {
+                    since = now;
+                }
+                return expire(now);
+            }
+
+            @Override
+            long getDeadline() {
+                return since == 0 || matched ? 0 : since + millis;
+            }
+
+            @Override
+            String expire(long now) {
+                if (since == 0 || matched || now - since < millis) {
+                    return null;
+                }
+                matched = true;
+                return where + " for more than " + describe(millis);
+            }
+        };
+    }
+
+    /**
+     * Describe a length of time
+     * @param millis the time in milliseconds
+     * @return the time in minutes, or in seconds if it is shorter than a minute
+     */
+    static String describe(long millis) {
+        long minutes = TimeUnit.MILLISECONDS.toMinutes(millis);
+        if (minutes == 0) {
+            return TimeUnit.MILLISECONDS.toSeconds(millis) + " seconds";
+        }
+        return minutes == 1 ? "1 minute" : minutes + " minutes";
+    }
+}
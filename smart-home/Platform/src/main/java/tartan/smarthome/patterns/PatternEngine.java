@@ -0,0 +1,209 @@
+package tartan.smarthome.patterns;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable.Row;
+import tartan.smarthome.resources.iotcontroller.HashedWheelTimer;
+import tartan.smarthome.resources.iotcontroller.TimerReason;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Looks for patterns in the way the houses change over time. The state rules only see one state at a time;
+ * the engine listens to the state table and follows every change of every house, so it can see a door
+ * left open for ten minutes or a temperature falling over a quarter of an hour.
+ *
+ * Each house has one {@link PatternMatcher} per pattern, made when the house first writes its row and
+ * dropped when the house leaves. A matcher holds a fixed amount of state, so memory grows with the number
+ * of houses and patterns but not with time or how often the houses report. A change costs a few
+ * comparisons per pattern, made on the house's own thread as it writes its row. Patterns that wait for time
+ * to pass, rather than for the next change, set a timer on a wheel shared by every house.
+ */
+public class PatternEngine implements FleetStateTable.Listener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PatternEngine.class);
+
+    /** one house's matchers, one per pattern */
+    private static class House {
+        final String name;
+        final PatternMatcher[] matchers;
+
+        House(String name, PatternMatcher[] matchers) {
+            this.name = name;
+            this.matchers = matchers;
+        }
+    }
+
+    private final List<StatePattern> patterns;
+    private final HashedWheelTimer timer;
+    private final LongSupplier clock;
+
+    /** the houses, by row */
+    private final Map<Integer, House> houses = new ConcurrentHashMap<>();
+
+    private final List<Consumer<PatternMatch>> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong matches = new AtomicLong();
+
+    /**
+     * Follow the houses in a state table, with a timer of its own
+     * @param table the table
+     * @param patterns the patterns to look for
+     */
+    public PatternEngine(FleetStateTable table, List<StatePattern> patterns) {
+        this(table, patterns, new HashedWheelTimer(1000, 512), System::currentTimeMillis);
+    }
+
+    /**
+     * Follow the houses in a state table. Rows written before this are followed from their next write
+     * @param table the table
+     * @param patterns the patterns to look for
+     * @param timer the timer for patterns that wait for time to pass
+     * @param clock the time in milliseconds since the epoch
+     */
+    public PatternEngine(FleetStateTable table, List<StatePattern> patterns, HashedWheelTimer timer,
+                         LongSupplier clock) {
+        this.patterns = new ArrayList<>(patterns);
+        this.timer = timer;
+        this.clock = clock;
+
+        // without patterns there is nothing to follow, and the houses need not call the engine at all
+        if (!this.patterns.isEmpty()) {
+            table.addListener(this);
+        }
+    }
+
+    /**
+     * Add a listener that is told of every match. Listeners are called on the thread of the house that
+     * matched, or on the timer thread, so they must be short
+     * @param listener the listener
+     */
+    public void addMatchListener(Consumer<PatternMatch> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void rowWritten(int row, Row before, Row after) {
+        House house = houses.get(row);
+        if (house == null || before.getUpdated() == 0) {
+            if (house != null) {
+                cancelTimers(house);
+            }
+            PatternMatcher[] matchers = new PatternMatcher[patterns.size()];
+            for (int i = 0; i < matchers.length; i++) {
+                matchers[i] = patterns.get(i).newMatcher();
+            }
+            house = new House(after.getHouse(), matchers);
+            houses.put(row, house);
+        }
+
+        long now = clock.getAsLong();
+        for (int i = 0; i < house.matchers.length; i++) {
+            PatternMatcher matcher = house.matchers[i];
+            String description;
+            long was;
+            long is;
+            synchronized (matcher) {
+                was = matcher.getDeadline();
+                description = matcher.update(before, after, now);
+                is = matcher.getDeadline();
+            }
+            if (description != null) {
+                matched(house, i, now, description);
+            }
+            if (is != was) {
+                if (was != 0) {
+                    timer.cancel(matcher, TimerReason.PATTERN);
+                }
+                if (is != 0) {
+                    House owner = house;
+                    int pattern = i;
+                    timer.schedule(matcher, TimerReason.PATTERN, Math.max(0, is - now), TimeUnit.MILLISECONDS,
+                            () -> expire(row, owner, pattern));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void rowFreed(int row, Row before) {
+        House house = houses.remove(row);
+        if (house != null) {
+            cancelTimers(house);
+        }
+    }
+
+    /**
+     * Get the number of houses being followed
+     * @return the count
+     */
+    public int getHouseCount() {
+        return houses.size();
+    }
+
+    /**
+     * Get the number of matches since the engine started
+     * @return the count
+     */
+    public long getMatchCount() {
+        return matches.get();
+    }
+
+    /**
+     * Stop the timer
+     */
+    public void stop() {
+        timer.stop();
+    }
+
+    /**
+     * Check a pattern whose deadline has passed. Runs on the timer thread
+     * @param row the house's row
+     * @param house the house
+     * @param pattern the pattern's position
+     */
+    private void expire(int row, House house, int pattern) {
+        // the house may have left, and its row gone to another house, since the timer was set
+        if (houses.get(row) != house) {
+            return;
+        }
+        PatternMatcher matcher = house.matchers[pattern];
+        long now = clock.getAsLong();
+        String description;
+        long deadline;
+        synchronized (matcher) {
+            description = matcher.expire(now);
+            deadline = matcher.getDeadline();
+        }
+        if (description != null) {
+            matched(house, pattern, now, description);
+        } else if (deadline != 0) {
+            // the wheel and the clock disagree a little; try again when the clock says it is time
+            timer.schedule(matcher, TimerReason.PATTERN, Math.max(1, deadline - now), TimeUnit.MILLISECONDS,
+                    () -> expire(row, house, pattern));
+        }
+    }
+
+    private void matched(House house, int pattern, long now, String description) {
+        matches.incrementAndGet();
+        PatternMatch match = new PatternMatch(house.name, patterns.get(pattern).getName(), now, description);
+        LOGGER.info("House {} matched {}", house.name, match);
+        for (Consumer<PatternMatch> listener : listeners) {
+            listener.accept(match);
+        }
+    }
+
+    private void cancelTimers(House house) {
+        for (PatternMatcher matcher : house.matchers) {
+            timer.cancel(matcher, TimerReason.PATTERN);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package tartan.smarthome.patterns;
+
+/**
+ * A house that matched a pattern.
+ */
+public class PatternMatch {
+
+    private final String house;
+    private final String pattern;
+    private final long time;
+    private final String description;
+
+    /**
+     * Create a match
+     * @param house the house
+     * @param pattern the name of the pattern
+     * @param time when it matched, in milliseconds since the epoch
+     * @param description what was seen
+     */
+    public PatternMatch(String house, String pattern, long time, String description) {
+        this.house = house;
+        this.pattern = pattern;
+        this.time = time;
+        this.description = description;
+    }
+
+    /**
+     * Get the house that matched
+     * @return the house name
+     */
+    public String getHouse() {
+        return house;
+    }
+
+    /**
+     * Get the pattern that matched
+     * @return the pattern name
+     */
+    public String getPattern() {
+        return pattern;
+    }
+
+    /**
+     * Get the time of the match
+     * @return the time in milliseconds since the epoch
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Get what was seen
+     * @return the description, such as "temperature fell from 72 to 65 within 15 minutes"
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    @Override
+    public String toString() {
+        return pattern + ": " + description;
+    }
+}
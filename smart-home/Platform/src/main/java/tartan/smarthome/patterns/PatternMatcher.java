@@ -0,0 +1,36 @@
+package tartan.smarthome.patterns;
+
+import tartan.smarthome.resources.iotcontroller.FleetStateTable.Row;
+
+/**
+ * One house's progress through one pattern. A matcher is only called by the {@link PatternEngine}, which
+ * holds the matcher's lock while it does, so a matcher needs no locking of its own.
+ */
+abstract class PatternMatcher {
+
+    /**
+     * Follow a change to the house
+     * @param before the house's row before the change
+     * @param after the house's row after the change
+     * @param now the time of the change, in milliseconds
+     * @return a description of the match if the pattern matched, or null
+     */
+    abstract String update(Row before, Row after, long now);
+
+    /**
+     * Get the time the pattern will match unless the house changes first
+     * @return the time in milliseconds, or 0 if the pattern is not waiting for time to pass
+     */
+    long getDeadline() {
+        return 0;
+    }
+
+    /**
+     * Check the pattern once its deadline has passed without the house changing
+     * @param now the time, in milliseconds
+     * @return a description of the match if the pattern matched, or null
+     */
+    String expire(long now) {
+        return null;
+    }
+}
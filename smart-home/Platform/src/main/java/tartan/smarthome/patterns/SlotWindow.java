@@ -0,0 +1,96 @@
+package tartan.smarthome.patterns;
+
+import java.util.Arrays;
+
+/**
+ * A sliding window over a house's recent values, kept in a fixed number of slots rather than as a list of
+ * samples, so it takes the same memory however often the house reports. Each slot covers an equal share of
+ * the window and keeps one value for everything added during it: the highest, the lowest or the sum.
+ *
+ * Slots leave the window whole, so the window covers between all but one slot and the whole of its length.
+ * It never looks further back than asked, and may miss a change that takes nearly all of the window.
+ */
+class SlotWindow {
+
+    /** what a slot keeps of the values added during it */
+    enum Kind {
+        MAX, MIN, SUM
+    }
+
+    /** the number of slots in a window */
+    static final int SLOTS = 8;
+
+    private final Kind kind;
+    private final long slotMillis;
+
+    /** the time each slot covers, as a multiple of its length, or Long.MIN_VALUE if it is empty */
+    private final long[] slotTimes = new long[SLOTS];
+    private final int[] values = new int[SLOTS];
+
+    /**
+     * Create an empty window
+     * @param kind what each slot keeps
+     * @param windowMillis the length of the window
+     */
+    SlotWindow(Kind kind, long windowMillis) {
+        this.kind = kind;
+        this.slotMillis = Math.max(1, windowMillis / SLOTS);
+        clear();
+    }
+
+    /**
+     * Add a value
+     * @param now the time, in milliseconds
+     * @param value the value
+     */
+    void add(long now, int value) {
+        long time = now / slotMillis;
+        int slot = (int) Math.floorMod(time, (long) SLOTS);
+        if (slotTimes[slot] != time) {
+            slotTimes[slot] = time;
+            values[slot] = value;
+            return;
+        }
+        switch (kind) {
+            case MAX: values[slot] = Math.max(values[slot], value); break;
+            case MIN: values[slot] = Math.min(values[slot], value); break;
+            default: values[slot] += value; break;
+        }
+    }
+
+    /**
+     * Combine the values in the window
+     * @param now the time, in milliseconds
+     * @param empty what to return if no value was added in the window
+     * @return the highest, the lowest or the sum of the values
+     */
+    int get(long now, int empty) {
+        long time = now / slotMillis;
+        boolean found = false;
+        int result = 0;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (slotTimes[slot] <= time - SLOTS || slotTimes[slot] > time) {
+                continue;
+            }
+            int value = values[slot];
+            if (!found) {
+                result = value;
+                found = true;
+            } else if (kind == Kind.MAX) {
+                result = Math.max(result, value);
+            } else if (kind == Kind.MIN) {
+                result = Math.min(result, value);
+            } else {
+                result += value;
+            }
+        }
+        return found ? result : empty;
+    }
+
+    /**
+     * Empty the window
+     */
+    void clear() {
+        Arrays.fill(slotTimes, Long.MIN_VALUE);
+    }
+}
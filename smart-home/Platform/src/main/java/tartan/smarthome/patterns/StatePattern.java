@@ -0,0 +1,33 @@
+package tartan.smarthome.patterns;
+
+/**
+ * A pattern in the way a house's state changes over time, such as a door left open while nobody is home.
+ * A pattern only describes what to look for; each house gets a {@link PatternMatcher} of its own that
+ * follows that house's changes.
+ */
+public abstract class StatePattern {
+
+    private final String name;
+
+    /**
+     * Create a pattern
+     * @param name the name matches are reported under
+     */
+    protected StatePattern(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Get the name of the pattern
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Create the state one house needs to follow this pattern
+     * @return the matcher, which holds a fixed amount of state however long the house runs
+     */
+    abstract PatternMatcher newMatcher();
+}
@@ -0,0 +1,76 @@
+package tartan.smarthome.resources;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import tartan.smarthome.resources.iotcontroller.HouseCommand;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out the commands sent to the houses and keeps the most recent ones, so clients can look up how a
+ * command they did not wait for turned out. The time from accepting a command to the house acknowledging
+ * it is reported as the command latency.
+ */
+public class CommandTracker {
+
+    /** how many commands to remember */
+    private static final int CAPACITY = 10000;
+
+    // IDs start from the clock, so an ID from before a restart does not find a different command after it
+    private final AtomicLong nextId = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    private final Map<Long, HouseCommand> commands = new LinkedHashMap<Long, HouseCommand>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, HouseCommand> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    private final Timer latency;
+    private final Meter failures;
+
+    /**
+     * Create a tracker
+     * @param metrics where to report the command latency and failures
+     */
+    public CommandTracker(MetricRegistry metrics) {
+        this.latency = metrics.timer(MetricRegistry.name(CommandTracker.class, "command-latency"));
+        this.failures = metrics.meter(MetricRegistry.name(CommandTracker.class, "command-failures"));
+    }
+
+    /**
+     * Start a new command
+     * @param house the house it is for
+     * @return the command, queued
+     */
+    public HouseCommand create(String house) {
+        HouseCommand command = new HouseCommand(nextId.incrementAndGet(), house, this::completed);
+        synchronized (commands) {
+            commands.put(command.getId(), command);
+        }
+        return command;
+    }
+
+    /**
+     * Find a recent command
+     * @param id the command ID
+     * @return the command, or null if there is no such command or it has been forgotten
+     */
+    public HouseCommand find(long id) {
+        synchronized (commands) {
+            return commands.get(id);
+        }
+    }
+
+    private void completed(HouseCommand command) {
+        if (command.getStatus() == HouseCommand.Status.ACKED) {
+            latency.update(command.getCompletedAfterNanos(), TimeUnit.NANOSECONDS);
+        } else {
+            failures.mark();
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package tartan.smarthome.resources;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tartan.smarthome.core.TartanEventPage;
+import tartan.smarthome.core.TartanHome;
+import tartan.smarthome.fleet.FleetRegistry;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable;
+import tartan.smarthome.resources.iotcontroller.HouseCommand;
+import tartan.smarthome.views.StateResponseCache;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The control channel: one WebSocket per dashboard, over which the dashboard sends commands for its house
+ * and the platform sends back their acks and every change to the house. Messages are JSON objects with a
+ * type. From the dashboard:
+ * <pre>
+ *   {"type":"command","id":7,"state":{...}}   change the house, as a POST to /smarthome/update does
+ *   {"type":"resync"}                          send the whole state again
+ *   {"type":"ping"}                            answered with {"type":"pong"}
+ * </pre>
+ * From the platform:
+ * <pre>
+ *   {"type":"state","version":V,"state":{...}}  the whole house, when the socket opens or on a resync
+ *   {"type":"delta","version":V,"patch":{...}}  a JSON merge patch from the version sent before
+ *   {"type":"events","events":[...]}           new entries in the house's event log
+ *   {"type":"ack","id":7,"command":{...}}       how a command turned out: acked, failed or queued
+ *   {"type":"error","id":7,"message":"..."}     a message that could not be handled
+ * </pre>
+ * The event log is left out of the state and its patches, since a patch would repeat the whole log each
+ * time it grows; new entries are sent on their own instead, after a state message from the oldest kept.
+ *
+ * Changes are noticed as the house writes its row of the state table, and sent from this channel's own
+ * threads, so a house never waits for a dashboard. A dashboard that reads slowly gets fewer, larger
+ * patches: while its sends are backed up, changes only mark it as behind.
+ */
+public class ControlChannel implements FleetStateTable.Listener, Managed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ControlChannel.class);
+
+    /** the merge patch between two documents that are the same */
+    private static final byte[] EMPTY_PATCH = "{}".getBytes(StandardCharsets.UTF_8);
+
+    /** the threads that send changes to the dashboards */
+    private static final int SEND_THREADS = 2;
+
+    /** the most sockets open at once; each one costs little while its house is quiet */
+    private static final int MAX_CONNECTIONS = 10000;
+
+    /** the most event log entries in one message */
+    private static final int MAX_EVENTS = 100;
+
+    /** the state field that holds the event log */
+    private static final String EVENT_LOG = "eventLog";
+
+    // the houses, by name
+    private final FleetRegistry fleet;
+
+    // the encoded state of each house, and the patches between versions, shared with the REST API
+    private final StateResponseCache stateCache;
+
+    // the commands, shared with the REST API so they can be looked up there too
+    private final CommandTracker commands;
+
+    private final ObjectMapper mapper;
+
+    // the state fields sent to the dashboards: all of them but the event log
+    private final Set<String> fields;
+
+    // the open sockets, by house
+    private final ConcurrentHashMap<String, Set<ControlSocket>> sockets = new ConcurrentHashMap<>();
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private volatile ExecutorService senders;
+
+    /**
+     * Create the channel. It listens to the state table from the start, but sends nothing until started
+     * @param fleet the houses
+     * @param table the state table the houses write their changes to
+     * @param stateCache the cache of encoded house states
+     * @param commands the tracker to hand out commands from
+     * @param mapper the mapper for the messages
+     * @param metrics where to report the number of open sockets
+     */
+    public ControlChannel(FleetRegistry fleet, FleetStateTable table, StateResponseCache stateCache,
+                          CommandTracker commands, ObjectMapper mapper, MetricRegistry metrics) {
+        this.fleet = fleet;
+        this.stateCache = stateCache;
+        this.commands = commands;
+        this.mapper = mapper;
+        this.fields = new TreeSet<>(stateCache.getFields());
+        this.fields.remove(EVENT_LOG);
+        table.addListener(this);
+        metrics.register(MetricRegistry.name(ControlChannel.class, "connections"),
+                (Gauge<Integer>) connections::get);
+    }
+
+    /**
+     * Add a socket that has opened
+     * @param socket the socket
+     * @return false if there are too many sockets open already
+     */
+    boolean register(ControlSocket socket) {
+        if (connections.incrementAndGet() > MAX_CONNECTIONS) {
+            connections.decrementAndGet();
+            return false;
+        }
+        sockets.computeIfAbsent(socket.getHouse(), h -> ConcurrentHashMap.newKeySet()).add(socket);
+        return true;
+    }
+
+    /**
+     * Remove a socket that has closed
+     * @param socket the socket
+     */
+    void unregister(ControlSocket socket) {
+        Set<ControlSocket> open = sockets.get(socket.getHouse());
+        if (open != null && open.remove(socket)) {
+            connections.decrementAndGet();
+            sockets.computeIfPresent(socket.getHouse(), (h, s) -> s.isEmpty() ? null : s);
+        }
+    }
+
+    @Override
+    public void rowWritten(int row, FleetStateTable.Row before, FleetStateTable.Row after) {
+        Set<ControlSocket> open = sockets.get(after.getHouse());
+        if (open != null) {
+            for (ControlSocket socket : open) {
+                socket.changed();
+            }
+        }
+    }
+
+    @Override
+    public void rowFreed(int row, FleetStateTable.Row before) {
+        Set<ControlSocket> open = sockets.get(before.getHouse());
+        if (open != null) {
+            for (ControlSocket socket : open) {
+                socket.close("The house has left the fleet");
+            }
+        }
+    }
+
+    /**
+     * Run a send on the channel's threads
+     * @param send the send
+     */
+    void execute(Runnable send) {
+        ExecutorService running = senders;
+        if (running != null) {
+            try {
+                running.execute(send);
+            } catch (RejectedExecutionException e) {
+                // the channel is stopping
+            }
+        }
+    }
+
+    /**
+     * Get the version of a house's state
+     * @param house the house
+     * @return the version, or -1 if the house is not run here
+     */
+    long version(String house) {
+        TartanHomeService service = fleet.get(house);
+        return service == null ? -1 : service.getStateVersion();
+    }
+
+    /**
+     * Get the message that brings a socket up to a version of its house
+     * @param house the house
+     * @param version the house's current version, from {@link #version}
+     * @param since the version the socket was last sent, or -1 if it needs the whole state
+     * @return the message, an empty string if nothing the socket is sent has changed since then, or null if
+     * the house is not run here
+     */
+    String update(String house, long version, long since) {
+        TartanHomeService service = fleet.get(house);
+        if (service == null) {
+            return null;
+        }
+        byte[] patch = since < 0 ? null : stateCache.getPatch(house, version, since, fields, service::getState);
+        if (patch != null) {
+            // the version also moves when only the event log grew, which the state sent here leaves out
+            if (Arrays.equals(patch, EMPTY_PATCH)) {
+                return "";
+            }
+            return "{\"type\":\"delta\",\"version\":" + version + ",\"patch\":"
+                    + new String(patch, StandardCharsets.UTF_8) + "}";
+        }
+        return "{\"type\":\"state\",\"version\":" + version + ",\"state\":"
+                + new String(stateCache.getJson(house, version, fields, service::getState), StandardCharsets.UTF_8)
+                + "}";
+    }
+
+    /**
+     * Get the entries of a house's event log after a cursor
+     * @param house the house
+     * @param after the ID of the last entry already sent, or 0 to start at the oldest entry kept
+     * @return the page, or null if the house is not run here
+     */
+    TartanEventPage events(String house, long after) {
+        TartanHomeService service = fleet.get(house);
+        return service == null ? null : service.getEvents(after, MAX_EVENTS);
+    }
+
+    /**
+     * Make a message of event log entries
+     * @param page the entries
+     * @return the message
+     */
+    String events(TartanEventPage page) {
+        ObjectNode message = mapper.createObjectNode();
+        message.put("type", "events");
+        message.set("events", mapper.valueToTree(page.getEvents()));
+        return message.toString();
+    }
+
+    /**
+     * Send a house a command from a socket. The socket is sent the ack once the command is done, or queued
+     * for a house that cannot be reached
+     * @param socket the socket
+     * @param id the dashboard's ID for the command, sent back with the ack
+     * @param state the changes the command asks for
+     */
+    void command(ControlSocket socket, JsonNode id, JsonNode state) {
+        TartanHomeService service = fleet.get(socket.getHouse());
+        if (service == null) {
+            socket.send(error(id, "The house is not run here"));
+            return;
+        }
+        TartanHome h;
+        try {
+            h = mapper.treeToValue(state, TartanHome.class);
+        } catch (JsonProcessingException | IllegalArgumentException e) {
+            socket.send(error(id, "The state is not a house state"));
+            return;
+        }
+        HouseCommand command = commands.create(socket.getHouse());
+        try {
+            service.setState(h, command).whenComplete((done, t) -> execute(() -> socket.send(ack(id, command))));
+        } catch (RuntimeException e) {
+            LOGGER.warn("Could not send a command to " + socket.getHouse(), e);
+            command.failed(e.toString());
+            socket.send(ack(id, command));
+        }
+    }
+
+    /**
+     * Make an ack for a command
+     */
+    private String ack(JsonNode id, HouseCommand command) {
+        ObjectNode message = mapper.createObjectNode();
+        message.put("type", "ack");
+        message.set("id", id);
+        message.set("command", mapper.valueToTree(TartanResource.toCommand(command)));
+        return message.toString();
+    }
+
+    /**
+     * Make an error message
+     * @param id the ID of the message that could not be handled, or null
+     * @param reason what went wrong
+     * @return the message
+     */
+    String error(JsonNode id, String reason) {
+        ObjectNode message = mapper.createObjectNode();
+        message.put("type", "error");
+        if (id != null) {
+            message.set("id", id);
+        }
+        message.put("message", reason);
+        return message.toString();
+    }
+
+    /**
+     * Get the mapper for the messages
+     * @return the mapper
+     */
+    ObjectMapper getMapper() {
+        return mapper;
+    }
+
+    /**
+     * Get the number of sockets open
+     * @return the count
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    @Override
+    public void start() {
+        senders = Executors.newFixedThreadPool(SEND_THREADS, r -> {
+            Thread t = new Thread(r, "control-channel");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public void stop() {
+        ExecutorService running = senders;
+        senders = null;
+        for (Set<ControlSocket> open : sockets.values()) {
+            for (ControlSocket socket : open) {
+                socket.close("The platform is shutting down");
+            }
+        }
+        if (running != null) {
+            running.shutdownNow();
+        }
+    }
+}
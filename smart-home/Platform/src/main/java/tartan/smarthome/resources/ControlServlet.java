@@ -0,0 +1,98 @@
+package tartan.smarthome.resources;
+
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeResponse;
+import org.eclipse.jetty.websocket.servlet.WebSocketServlet;
+import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tartan.smarthome.auth.TartanAuthenticator;
+import tartan.smarthome.auth.TartanUser;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens the sockets of the {@link ControlChannel}. The upgrade request is authenticated with the same basic
+ * credentials as the REST API, which a browser sends for a page it has already logged in to, and the
+ * socket is for that user's house. A browser request from a page on another site is refused, since the
+ * browser would send the credentials for it too.
+ */
+public class ControlServlet extends WebSocketServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ControlServlet.class);
+
+    /** how long a socket may be quiet before it is closed; the dashboard pings well within this */
+    private static final long IDLE_TIMEOUT_SECONDS = 300;
+
+    /** the largest message a dashboard may send */
+    private static final int MAX_MESSAGE_BYTES = 64 * 1024;
+
+    private final transient ControlChannel channel;
+    private final transient TartanAuthenticator authenticator;
+
+    /**
+     * Create the servlet
+     * @param channel the channel the sockets are on
+     * @param authenticator checks the users' credentials
+     */
+    public ControlServlet(ControlChannel channel, TartanAuthenticator authenticator) {
+        this.channel = channel;
+        this.authenticator = authenticator;
+    }
+
+    @Override
+    public void configure(WebSocketServletFactory factory) {
+        factory.getPolicy().setIdleTimeout(TimeUnit.SECONDS.toMillis(IDLE_TIMEOUT_SECONDS));
+        factory.getPolicy().setMaxTextMessageSize(MAX_MESSAGE_BYTES);
+        factory.setCreator(this::open);
+    }
+
+    /**
+     * Accept or refuse an upgrade request
+     * @return the socket, or null if the request was refused
+     */
+    private Object open(ServletUpgradeRequest request, ServletUpgradeResponse response) {
+        try {
+            String origin = request.getHeader("Origin");
+            if (origin != null && !sameOrigin(origin, request.getHeader("Host"))) {
+                response.sendForbidden("The control channel only takes connections from its own pages");
+                return null;
+            }
+            TartanUser user = authenticator.authenticateHeader(request.getHeader("Authorization")).orElse(null);
+            if (user == null) {
+                response.setHeader("WWW-Authenticate", "Basic realm=\"realm\"");
+                response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Credentials are required");
+                return null;
+            }
+            if (user.getHouse() == null) {
+                response.sendForbidden("The control channel is for the users of a house");
+                return null;
+            }
+            return new ControlSocket(channel, user.getHouse());
+        } catch (IOException e) {
+            LOGGER.warn("Could not refuse a control channel request", e);
+            return null;
+        }
+    }
+
+    /**
+     * Check that an Origin header names the host the request was sent to
+     */
+    private static boolean sameOrigin(String origin, String host) {
+        if (host == null) {
+            return false;
+        }
+        try {
+            String authority = URI.create(origin).getAuthority();
+            return authority != null && authority.toLowerCase(Locale.ROOT).equals(host.toLowerCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package tartan.smarthome.resources;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tartan.smarthome.core.TartanEventPage;
+
+import java.io.IOException;
+
+/**
+ * One dashboard's socket on the {@link ControlChannel}. The socket belongs to the house of the user who
+ * opened it.
+ *
+ * Changes to the house are coalesced: a change only marks the socket as behind, and one send at a time
+ * brings it up to the house's current version. While {@link #MAX_IN_FLIGHT} messages are still being
+ * written to a slow dashboard, nothing more is sent until one of them is done.
+ */
+class ControlSocket implements WebSocketListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ControlSocket.class);
+
+    /** the most messages being written to the dashboard at once */
+    static final int MAX_IN_FLIGHT = 4;
+
+    private final ControlChannel channel;
+    private final String house;
+
+    private volatile Session session;
+
+    /** the version the dashboard was last sent, or -1 if it needs the whole state; only used by a push */
+    private long sent = -1;
+
+    /** the ID of the last event log entry the dashboard was sent; only used by a push */
+    private long event;
+
+    // guarded by this
+    private boolean behind;
+    private boolean pushing;
+    private boolean resync;
+    private int inFlight;
+
+    /**
+     * Create a socket
+     * @param channel the channel it is on
+     * @param house the house it is for
+     */
+    ControlSocket(ControlChannel channel, String house) {
+        this.channel = channel;
+        this.house = house;
+    }
+
+    /**
+     * Get the house the socket is for
+     * @return the house name
+     */
+    String getHouse() {
+        return house;
+    }
+
+    @Override
+    public void onWebSocketConnect(Session session) {
+        this.session = session;
+        if (!channel.register(this)) {
+            session.close(StatusCode.TRY_AGAIN_LATER, "Too many dashboards are connected");
+            return;
+        }
+        changed();
+    }
+
+    @Override
+    public void onWebSocketText(String text) {
+        JsonNode message;
+        try {
+            message = channel.getMapper().readTree(text);
+        } catch (IOException e) {
+            send(channel.error(null, "Messages must be JSON objects"));
+            return;
+        }
+        if (message == null || !message.isObject()) {
+            send(channel.error(null, "Messages must be JSON objects"));
+            return;
+        }
+        JsonNode id = message.get("id");
+        String type = message.path("type").asText();
+        if ("command".equals(type)) {
+            JsonNode state = message.get("state");
+            if (state == null || !state.isObject()) {
+                send(channel.error(id, "A command needs a state"));
+                return;
+            }
+            channel.command(this, id, state);
+        } else if ("resync".equals(type)) {
+            synchronized (this) {
+                resync = true;
+            }
+            changed();
+        } else if ("ping".equals(type)) {
+            send("{\"type\":\"pong\"}");
+        } else {
+            send(channel.error(id, "Unknown message type " + type));
+        }
+    }
+
+    @Override
+    public void onWebSocketBinary(byte[] payload, int offset, int length) {
+        send(channel.error(null, "Messages must be text"));
+    }
+
+    @Override
+    public void onWebSocketClose(int statusCode, String reason) {
+        channel.unregister(this);
+        session = null;
+    }
+
+    @Override
+    public void onWebSocketError(Throwable cause) {
+        LOGGER.debug("Control socket for " + house + " failed", cause);
+    }
+
+    /**
+     * Note that the house has changed, and bring the dashboard up to date unless a push is already due
+     */
+    void changed() {
+        synchronized (this) {
+            behind = true;
+            if (pushing || inFlight >= MAX_IN_FLIGHT) {
+                return;
+            }
+            pushing = true;
+        }
+        channel.execute(this::push);
+    }
+
+    /**
+     * Send the dashboard what it has missed. Only one push runs at a time
+     */
+    private void push() {
+        synchronized (this) {
+            behind = false;
+            if (resync) {
+                resync = false;
+                sent = -1;
+            }
+        }
+        try {
+            long version = channel.version(house);
+            if (version < 0) {
+                close("The house is not run here");
+                return;
+            }
+            if (version != sent) {
+                String message = channel.update(house, version, sent);
+                if (message != null) {
+                    // a whole state starts the event log again too
+                    if (sent < 0) {
+                        event = 0;
+                    }
+                    sent = version;
+                    if (!message.isEmpty()) {
+                        send(message);
+                    }
+                }
+            }
+            TartanEventPage page = channel.events(house, event);
+            if (page != null && !page.getEvents().isEmpty()) {
+                event = page.getNext();
+                send(channel.events(page));
+                if (page.isMore()) {
+                    synchronized (this) {
+                        behind = true;
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warn("Could not bring the control socket for " + house + " up to date", e);
+        } finally {
+            boolean again;
+            synchronized (this) {
+                pushing = false;
+                again = behind && inFlight < MAX_IN_FLIGHT;
+                pushing = again;
+            }
+            if (again) {
+                channel.execute(this::push);
+            }
+        }
+    }
+
+    /**
+     * Write a message to the dashboard without waiting for it
+     * @param message the message
+     */
+    void send(String message) {
+        Session open = session;
+        if (open == null || !open.isOpen()) {
+            return;
+        }
+        synchronized (this) {
+            inFlight++;
+        }
+        open.getRemote().sendString(message, new WriteCallback() {
+            @Override
+            public void writeSuccess() {
+                written();
+            }
+
+            @Override
+            public void writeFailed(Throwable x) {
+                LOGGER.debug("Could not write to the control socket for " + house, x);
+                written();
+                close("The message could not be written");
+            }
+        });
+    }
+
+    /**
+     * A write is done; if changes were held back while the dashboard was slow, send them now
+     */
+    private void written() {
+        boolean again;
+        synchronized (this) {
+            inFlight--;
+            again = behind && !pushing && inFlight < MAX_IN_FLIGHT;
+            if (again) {
+                pushing = true;
+            }
+        }
+        if (again) {
+            channel.execute(this::push);
+        }
+    }
+
+    /**
+     * Close the socket
+     * @param reason why, for the dashboard
+     */
+    void close(String reason) {
+        Session open = session;
+        if (open != null && open.isOpen()) {
+            open.close(StatusCode.NORMAL, reason);
+        }
+    }
+}
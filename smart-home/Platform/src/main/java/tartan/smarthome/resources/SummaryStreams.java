@@ -0,0 +1,162 @@
+package tartan.smarthome.resources;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.lifecycle.Managed;
+import org.glassfish.jersey.server.ChunkedOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tartan.smarthome.fleet.FleetSummary;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The fleet summary streams open to the wall dashboards. Each stream is a server-sent event stream that
+ * gets a summary event when it opens and again whenever the counts change, with a comment now and then so
+ * proxies keep a quiet stream open.
+ *
+ * No stream holds a request thread: the resource hands back a chunked output and returns, and one thread
+ * of this class checks the summary version once a second and writes to every stream when it has moved.
+ * A stream whose dashboard went away fails its next write and is dropped.
+ */
+public class SummaryStreams implements Managed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SummaryStreams.class);
+
+    /** the most streams open at once */
+    private static final int MAX_STREAMS = 16;
+
+    /** how often the summary is checked for changes, and how long a stream stays quiet before a keepalive */
+    private static final long CHECK_MILLIS = 1000;
+    private static final long KEEPALIVE_MILLIS = 15000;
+
+    private static final String KEEPALIVE = ": keepalive\n\n";
+
+    // the counts across the fleet
+    private final FleetSummary summary;
+
+    // the open streams
+    private final Set<Stream> streams = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger open = new AtomicInteger();
+
+    private volatile ScheduledExecutorService checker;
+
+    /** a dashboard's stream, and what it was last sent */
+    private final class Stream {
+        final ChunkedOutput<String> output = new ChunkedOutput<>(String.class);
+        long sent = -1;
+        long lastWrite;
+
+        /**
+         * Send the summary if it moved on since the last one sent, or a keepalive if the stream has been
+         * quiet too long. A stream that cannot be written to is closed and dropped
+         * @param now the time now
+         */
+        synchronized void check(long now) {
+            long version = summary.getVersion();
+            try {
+                if (version != sent) {
+                    output.write("event: summary\ndata: "
+                            + new String(summary.getJson(), StandardCharsets.UTF_8) + "\n\n");
+                    sent = version;
+                    lastWrite = now;
+                } else if (now - lastWrite >= KEEPALIVE_MILLIS) {
+                    output.write(KEEPALIVE);
+                    lastWrite = now;
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            if (streams.remove(this)) {
+                open.decrementAndGet();
+            }
+            try {
+                output.close();
+            } catch (IOException e) {
+                // the dashboard is gone already
+            }
+        }
+    }
+
+    /**
+     * Create the streams. None is written to after the first summary until started
+     * @param summary the counts across the fleet
+     * @param metrics where to report the number of open streams
+     */
+    public SummaryStreams(FleetSummary summary, MetricRegistry metrics) {
+        this.summary = summary;
+        metrics.register(MetricRegistry.name(TartanResource.class, "fleet-summary", "streams"),
+                (Gauge<Integer>) open::get);
+    }
+
+    /**
+     * Open a stream, with the current summary waiting in it
+     * @return the stream to return from the resource, or null if too many are open already
+     */
+    ChunkedOutput<String> open() {
+        if (open.incrementAndGet() > MAX_STREAMS) {
+            open.decrementAndGet();
+            return null;
+        }
+        Stream stream = new Stream();
+        streams.add(stream);
+        stream.check(System.currentTimeMillis());
+        return stream.output;
+    }
+
+    /**
+     * @return how many streams are open
+     */
+    public int getOpen() {
+        return open.get();
+    }
+
+    private void checkAll() {
+        long now = System.currentTimeMillis();
+        for (Stream stream : streams) {
+            try {
+                if (stream.output.isClosed()) {
+                    stream.close();
+                } else {
+                    stream.check(now);
+                }
+            } catch (RuntimeException e) {
+                // one bad write must not stop the checks for good
+                LOGGER.warn("Could not write to a summary stream", e);
+                stream.close();
+            }
+        }
+    }
+
+    @Override
+    public void start() {
+        checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "summary-streams");
+            t.setDaemon(true);
+            return t;
+        });
+        checker.scheduleWithFixedDelay(this::checkAll, CHECK_MILLIS, CHECK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        ScheduledExecutorService running = checker;
+        checker = null;
+        if (running != null) {
+            running.shutdownNow();
+        }
+        for (Stream stream : streams) {
+            stream.close();
+        }
+    }
+}
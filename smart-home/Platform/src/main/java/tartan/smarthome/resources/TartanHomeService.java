@@ -1,19 +1,32 @@
 package tartan.smarthome.resources;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import tartan.smarthome.resources.iotcontroller.CommandQueue;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable;
+import tartan.smarthome.resources.iotcontroller.HouseCommand;
 import tartan.smarthome.resources.iotcontroller.IoTControlManager;
 import tartan.smarthome.resources.iotcontroller.IoTValues;
+import tartan.smarthome.resources.iotcontroller.PollPolicy;
+import tartan.smarthome.resources.iotcontroller.ShardedRuntime;
 import io.dropwizard.hibernate.UnitOfWork;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import tartan.smarthome.TartanHomeSettings;
 import tartan.smarthome.core.TartanHome;
+import tartan.smarthome.core.TartanEventPage;
 import tartan.smarthome.core.TartanHomeData;
 import tartan.smarthome.core.TartanHomeValues;
 import tartan.smarthome.db.HomeDAO;
 
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
 
 /***
  * The service layer for the Tartan Home System. Additional inputs and control mechanisms should be accessed here.
@@ -27,16 +40,26 @@ public class TartanHomeService {
     // a logging system
     private static final Logger LOGGER = LoggerFactory.getLogger(TartanHomeService.class);
 
+    // the field that holds the event log
+    private static final String EVENT_LOG_FIELD = "eventLog";
+
+    // a row to read the state table into, one per thread so reading a house allocates nothing
+    private static final ThreadLocal<FleetStateTable.Row> STATE_ROW = ThreadLocal.withInitial(FleetStateTable.Row::new);
+
+    // the fields that are filled in without asking the house
+    private static final Set<String> SETTINGS_FIELDS = new HashSet<>(Arrays.asList("name", "address",
+            "alarmDelay", "nightLockStart", "nightLockEnd", "authenticated", EVENT_LOG_FIELD));
+
     // Home configuration parameters
     private String name;
     private String address;
     private Integer port;
-    private String alarmDelay;
+    private volatile String alarmDelay;
     private String alarmPasscode;
     private String nightLockStart;
     private String nightLockEnd;
     private String lockedPasscode;
-    private String targetTemp;
+    private volatile String targetTemp;
     private String user;
     private String password;
 
@@ -44,8 +67,12 @@ public class TartanHomeService {
     private HomeDAO homeDAO;
     private boolean authenticated;
 
+    // the shards the houses run on
+    private final ShardedRuntime runtime;
+
     // historian parameters
-    private Boolean logHistory;
+    private volatile Boolean logHistory;
+    private volatile Thread historian;
     private int historyTimer = 60000;
 
     /**
@@ -53,7 +80,17 @@ public class TartanHomeService {
      * @param dao handle to a database
      */
     public TartanHomeService(HomeDAO dao) {
+        this(dao, ShardedRuntime.getDefault());
+    }
+
+    /**
+     * Create a new Tartan Home Service
+     * @param dao handle to a database
+     * @param runtime the runtime the house runs on
+     */
+    public TartanHomeService(HomeDAO dao, ShardedRuntime runtime) {
         this.homeDAO = dao;
+        this.runtime = runtime;
     }
 
     /**
@@ -84,7 +121,12 @@ public class TartanHomeService {
         this.logHistory = true;
 
         // Create and initialize the controller for this house
-        this.controller = new IoTControlManager(user, password, new StaticTartanStateEvaluator());
+        this.controller = new IoTControlManager(user, password, new StaticTartanStateEvaluator(),
+                runtime.assign(name));
+        controller.setBinaryFraming(TartanHomeSettings.BINARY_PROTOCOL.equalsIgnoreCase(settings.getProtocol()));
+        controller.setGatewayId(settings.getGatewayId());
+        controller.setStateTable(runtime.getStateTable(), name);
+        controller.setOutbox(runtime.getOutbox(), name);
         
         TartanHome temp = new TartanHome();
         temp.setAlarmDelay(alarmDelay);
@@ -94,17 +136,85 @@ public class TartanHomeService {
         userSettings.put(IoTValues.TARGET_TEMP, Integer.parseInt(this.targetTemp));
         userSettings.put(IoTValues.ALARM_PASSCODE, this.alarmPasscode);
         userSettings.put(IoTValues.LOCKED_PASSCODE, this.lockedPasscode);
+        if (this.nightLockStart != null && this.nightLockEnd != null) {
+            userSettings.put(IoTValues.NIGHT_LOCK_START, Integer.parseInt(this.nightLockStart));
+            userSettings.put(IoTValues.NIGHT_LOCK_END, Integer.parseInt(this.nightLockEnd));
+        }
 
         controller.updateSettings(userSettings);
 
         LOGGER.info("House " + this.name + " configured");
     }
 
+    /**
+     * Keep the commands queued for this house while it is unreachable in a file, so they survive a restart.
+     * Must be called before connecting
+     * @param directory the directory for the file, or null to keep the commands in memory only
+     */
+    public void setCommandDirectory(String directory) {
+        if (directory != null) {
+            File dir = new File(directory);
+            dir.mkdirs();
+            controller.setCommandQueue(new CommandQueue(new File(dir, name + ".commands")));
+        }
+    }
+
+    /**
+     * Set how often the house is polled
+     * @param policy the policy for this house
+     */
+    public void setPollPolicy(PollPolicy policy) {
+        controller.setPollPolicy(policy);
+    }
+
+    /**
+     * Get the current poll interval
+     * @return the seconds until the next poll
+     */
+    public int getPollInterval() {
+        return controller.getPollInterval();
+    }
+
+    /**
+     * Get the version of this house's state. Anything {@link #getState()} returns stays the same until the
+     * version changes
+     * @return the version
+     */
+    public long getStateVersion() {
+        return controller.getStateVersion();
+    }
+
+    /**
+     * Report this house's metrics
+     * @param metrics the registry
+     */
+    public void registerMetrics(MetricRegistry metrics) {
+        metrics.register(MetricRegistry.name(TartanHomeService.class, name, "poll-interval"),
+                (Gauge<Integer>) controller::getPollInterval);
+    }
+
+    /**
+     * Remove the metrics for this house, once it has left the fleet
+     * @param metrics the registry they were reported to
+     */
+    public void unregisterMetrics(MetricRegistry metrics) {
+        metrics.remove(MetricRegistry.name(TartanHomeService.class, name, "poll-interval"));
+    }
+
+    /**
+     * Disconnect from the house. It can be connected again later
+     * @return completes once the house is disconnected
+     */
+    public CompletableFuture<Void> disconnect() {
+        return controller.disconnectFromHouse();
+    }
+
     /**
      * Stop logging history
      */
     public void stopHistorian() {
         this.logHistory = false;
+        this.historian = null;
     }
 
     /**
@@ -112,10 +222,12 @@ public class TartanHomeService {
      */
     public void startHistorian() {
 
-        new Thread(new Runnable() {
+        this.logHistory = true;
+        this.historian = new Thread(new Runnable() {
             @Override
             public void run() {
-                while (logHistory) {
+                // a historian that was stopped and replaced ends at its next wake up
+                while (logHistory && historian == Thread.currentThread()) {
                     try {
                         TartanHome state = getState();
                         if (state != null) {
@@ -130,7 +242,8 @@ public class TartanHomeService {
                     }
                 }
             }
-        }).start();
+        });
+        historian.start();
     }
 
     /**
@@ -329,27 +442,29 @@ public class TartanHomeService {
     }
 
     /**
-     * Set the house state in the hardware
+     * Set the house state in the hardware. The settings and the update are posted to the house's
+     * mailbox in order. If the house can't be reached the update is queued for it instead
      * @param h the new state
-     * @return true
+     * @param command the command to move along as the house is sent the state and answers
+     * @return completes once the command is done, or queued for an unreachable house
      */
-    public Boolean setState(TartanHome h) {
-        synchronized (controller) {
-                        
-            Map<String, Object> userSettings = new Hashtable<String, Object>();
-            if (h.getAlarmDelay()!=null) {
-                this.alarmDelay = h.getAlarmDelay();
-                userSettings.put(IoTValues.ALARM_DELAY, Integer.parseInt(this.alarmDelay)); 
+    public CompletableFuture<Void> setState(TartanHome h, HouseCommand command) {
+        Map<String, Object> userSettings = new Hashtable<String, Object>();
+        if (h.getAlarmDelay()!=null) {
+            this.alarmDelay = h.getAlarmDelay();
+            userSettings.put(IoTValues.ALARM_DELAY, Integer.parseInt(this.alarmDelay)); 
 
-            }
-            if (h.getTargetTemp()!=null) {
-                this.targetTemp = h.getTargetTemp();
-                userSettings.put(IoTValues.TARGET_TEMP, Integer.parseInt(this.targetTemp)); 
-            }           
-            controller.updateSettings(userSettings);  
-            controller.processStateUpdate(toIotState(h));  
         }
-        return true;
+        if (h.getTargetTemp()!=null) {
+            this.targetTemp = h.getTargetTemp();
+            userSettings.put(IoTValues.TARGET_TEMP, Integer.parseInt(this.targetTemp)); 
+        }           
+        controller.updateSettings(userSettings);  
+        return controller.processStateUpdate(toIotState(h), command).whenComplete((done, t) -> {
+            if (t != null) {
+                command.failed(t.toString());
+            }
+        });
     }
 
     /**
@@ -357,6 +472,16 @@ public class TartanHomeService {
      * @return the current state
      */
     public TartanHome getState() {
+        return getState(null);
+    }
+
+    /**
+     * Fetch part of the current state of the house. The event log is only copied, and the house state is
+     * only fetched, if one of the fields needs it; the other fields are left as they are
+     * @param fields the JSON fields wanted, or null for all of them
+     * @return the current state
+     */
+    public TartanHome getState(Set<String> fields) {
 
         TartanHome tartanHome = new TartanHome();
 
@@ -368,20 +493,30 @@ public class TartanHomeService {
         tartanHome.setNightLockStart(this.nightLockStart);
         tartanHome.setNightLockEnd(this.nightLockEnd);
 
-        tartanHome.setEventLog(controller.getLogMessages());
+        if (fields == null || fields.contains(EVENT_LOG_FIELD)) {
+            Vector<String> logMessages = controller.getLogMessages();
+            tartanHome.setEventLog(logMessages);
+            for (String l : logMessages) {
+                LOGGER.info(l);
+            }
+        }
         tartanHome.setAuthenticated(String.valueOf(this.authenticated));
 
         //tartanHome.setDoorLocked(this.doorLocked);
-        
 
-        Map<String, Object> state = null;
-        synchronized (controller) {
-            state = controller.getCurrentState();            
-            for (String l : controller.getLogMessages()) {
-                LOGGER.info(l);
-            }
+        if (fields != null && SETTINGS_FIELDS.containsAll(fields)) {
+            return tartanHome;
         }
-        if (state == null) {
+
+        // the state comes from the state table, which the house's mailbox keeps up to date, so the house
+        // is only asked if it has not reported anything since it connected
+        FleetStateTable.Row row = STATE_ROW.get();
+        boolean published = controller.readState(row);
+        if (!published && controller.isConnected()) {
+            controller.getCurrentState();
+            published = controller.readState(row);
+        }
+        if (!published || !row.is(FleetStateTable.Flag.CONNECTED)) {
             LOGGER.info("zUsing default state");
             // There is no state, but something must be returned.
 
@@ -402,89 +537,90 @@ public class TartanHomeService {
         }
 
         // A valid state was found, so use it
+        return toTartanHome(tartanHome, row);
+    }
 
-        Set<String> keys = state.keySet();
-        for (String key : keys) {
-            LOGGER.info("State element: " + key + "=" + state.get(key));
-            if (key.equals(IoTValues.TEMP_READING)) {
-                tartanHome.setTemperature(String.valueOf(state.get(key)));
-            } else if (key.equals(IoTValues.HUMIDITY_READING)) {
-                tartanHome.setHumidity(String.valueOf(state.get(key)));
-            }
-            else if (key.equals(IoTValues.TARGET_TEMP)) {
-                tartanHome.setTargetTemp(String.valueOf(state.get(key)));
-            }
-            else if (key.equals(IoTValues.HUMIDIFIER_STATE)) {
-                Boolean humidifierState = (Boolean)state.get(key);
-                if (humidifierState) {
-                    tartanHome.setHumidifier(String.valueOf(TartanHomeValues.ON));
-                } else {
-                    tartanHome.setHumidifier(String.valueOf(TartanHomeValues.OFF));
-                }
-            } else if (key.equals(IoTValues.DOOR_STATE)) {
-                Boolean doorState = (Boolean)state.get(key);
-                if (doorState) {
-                    tartanHome.setDoor(TartanHomeValues.OPEN);
-                } else {
-                    tartanHome.setDoor(TartanHomeValues.CLOSED);
-                }
-            } else if (key.equals(IoTValues.DOOR_LOCK_STATE)) {
-                Boolean doorLockState = (Boolean)state.get(key);
-                if (doorLockState) {
-                    tartanHome.setDoorLocked(TartanHomeValues.LOCKED);
-                } else {
-                    tartanHome.setDoorLocked(TartanHomeValues.UNLOCKED);
-                }
-            } else if (key.equals(IoTValues.LIGHT_STATE)) {
-                Boolean lightState = (Boolean)state.get(key);
-                if (lightState) {
-                    tartanHome.setLight(TartanHomeValues.ON);
-                } else {
-                    tartanHome.setLight(TartanHomeValues.OFF);
-                }
-            } else if (key.equals(IoTValues.PROXIMITY_STATE)) {
-                Boolean proxState = (Boolean)state.get(key);
-                if (proxState) {
-                    tartanHome.setProximity(TartanHomeValues.OCCUPIED);
-                } else {
-                    tartanHome.setProximity(TartanHomeValues.EMPTY);
-                }
-            } else if (key.equals(IoTValues.ALARM_STATE)) {
-                Boolean alarmState = (Boolean)state.get(key);
-                if (alarmState) {
-                    tartanHome.setAlarmArmed(TartanHomeValues.ARMED);
-                } else {
-                    tartanHome.setAlarmArmed(TartanHomeValues.DISARMED);
-                }
-            }
-            else if (key.equals(IoTValues.ALARM_ACTIVE)) {
-                Boolean alarmActiveState = (Boolean)state.get(key);
-                if (alarmActiveState) {
-                    tartanHome.setAlarmActive(TartanHomeValues.ACTIVE);
-                } else {
-                    tartanHome.setAlarmActive(TartanHomeValues.INACTIVE);
-                }
+    /**
+     * Read the house's event log after a cursor
+     * @param after the ID of the last entry already read, or 0 to start at the oldest entry kept
+     * @param limit the most entries to return
+     * @return the page
+     */
+    public TartanEventPage getEvents(long after, int limit) {
+        return controller.getLogPage(after, limit);
+    }
 
-            } else if (key.equals(IoTValues.HVAC_MODE)) {
-                if (state.get(key).equals("Heater")) {
-                    tartanHome.setHvacMode(TartanHomeValues.HEAT);
-                } else if (state.get(key).equals("Chiller")) {
-                    tartanHome.setHvacMode(TartanHomeValues.COOL);
-                }
+    /**
+     * Add an entry to the house's event log from outside the house, such as a state pattern that matched
+     * @param entry the entry
+     */
+    public void logEvent(String entry) {
+        controller.postLog(entry);
+    }
 
-                // If either heat or chill is on then the hvac is on
-                String heaterState = String.valueOf(state.get(IoTValues.HEATER_STATE));
-                String chillerState = String.valueOf(state.get(IoTValues.CHILLER_STATE));
+    /**
+     * Convert the hardware state to the format used by the REST API. Values the house has not reported are
+     * left as they are
+     * @param tartanHome the home to fill in
+     * @param row the house's row in the state table
+     * @return the updated home
+     */
+    TartanHome toTartanHome(TartanHome tartanHome, FleetStateTable.Row row) {
 
-                if (heaterState.equals("true") || chillerState.equals("true")) {
-                    tartanHome.setHvacState(TartanHomeValues.ON);
+        int temperature = row.get(FleetStateTable.Reading.TEMPERATURE);
+        if (temperature != FleetStateTable.UNKNOWN) {
+            tartanHome.setTemperature(String.valueOf(temperature));
+        }
+        int humidity = row.get(FleetStateTable.Reading.HUMIDITY);
+        if (humidity != FleetStateTable.UNKNOWN) {
+            tartanHome.setHumidity(String.valueOf(humidity));
+        }
+        int targetTemp = row.get(FleetStateTable.Reading.TARGET_TEMP);
+        if (targetTemp != FleetStateTable.UNKNOWN) {
+            tartanHome.setTargetTemp(String.valueOf(targetTemp));
+        }
 
-                } else {
-                    tartanHome.setHvacState(TartanHomeValues.OFF);
-                }
+        Boolean humidifierState = row.get(FleetStateTable.Flag.HUMIDIFIER);
+        if (humidifierState != null) {
+            tartanHome.setHumidifier(humidifierState ? TartanHomeValues.ON : TartanHomeValues.OFF);
+        }
+        Boolean doorState = row.get(FleetStateTable.Flag.DOOR_OPEN);
+        if (doorState != null) {
+            tartanHome.setDoor(doorState ? TartanHomeValues.OPEN : TartanHomeValues.CLOSED);
+        }
+        Boolean doorLockState = row.get(FleetStateTable.Flag.DOOR_LOCKED);
+        if (doorLockState != null) {
+            tartanHome.setDoorLocked(doorLockState ? TartanHomeValues.LOCKED : TartanHomeValues.UNLOCKED);
+        }
+        Boolean lightState = row.get(FleetStateTable.Flag.LIGHT);
+        if (lightState != null) {
+            tartanHome.setLight(lightState ? TartanHomeValues.ON : TartanHomeValues.OFF);
+        }
+        Boolean proxState = row.get(FleetStateTable.Flag.OCCUPIED);
+        if (proxState != null) {
+            tartanHome.setProximity(proxState ? TartanHomeValues.OCCUPIED : TartanHomeValues.EMPTY);
+        }
+        Boolean alarmState = row.get(FleetStateTable.Flag.ALARM_ARMED);
+        if (alarmState != null) {
+            tartanHome.setAlarmArmed(alarmState ? TartanHomeValues.ARMED : TartanHomeValues.DISARMED);
+        }
+        Boolean alarmActiveState = row.get(FleetStateTable.Flag.ALARM_ACTIVE);
+        if (alarmActiveState != null) {
+            tartanHome.setAlarmActive(alarmActiveState ? TartanHomeValues.ACTIVE : TartanHomeValues.INACTIVE);
+        }
+
+        String hvacMode = row.getHvacMode();
+        if (hvacMode != null) {
+            tartanHome.setHvacMode(hvacMode.equals("Heater") ? TartanHomeValues.HEAT : TartanHomeValues.COOL);
+
+            // If either heat or chill is on then the hvac is on
+            if (row.is(FleetStateTable.Flag.HEATER) || row.is(FleetStateTable.Flag.CHILLER)) {
+                tartanHome.setHvacState(TartanHomeValues.ON);
+            } else {
+                tartanHome.setHvacState(TartanHomeValues.OFF);
             }
         }
-        
+
         return tartanHome;
     }
 
@@ -493,7 +629,7 @@ public class TartanHomeService {
      * @param tartanHome the state
      * @return a map of settings appropriate for the hardware
      */
-    private Map<String, Object> toIotState(TartanHome tartanHome) {
+    Map<String, Object> toIotState(TartanHome tartanHome) {
         Map<String, Object> state = new Hashtable<>();
         
         if (tartanHome.getProximity()!=null) {
@@ -1,21 +1,42 @@
 package tartan.smarthome.resources;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.annotation.Timed;
 import io.dropwizard.auth.Auth;
 import io.dropwizard.hibernate.UnitOfWork;
+import org.glassfish.jersey.server.ChunkedOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import tartan.smarthome.TartanHomeSettings;
 import tartan.smarthome.auth.TartanUser;
+import tartan.smarthome.core.TartanCommand;
 import tartan.smarthome.core.TartanHome;
-import tartan.smarthome.db.HomeDAO;
-import tartan.smarthome.views.SmartHomeView;
+import tartan.smarthome.core.TartanOutboxPage;
+import tartan.smarthome.core.TartanQueryResult;
+import tartan.smarthome.fleet.FleetIndex;
+import tartan.smarthome.fleet.FleetRegistry;
+import tartan.smarthome.fleet.FleetSummary;
+import tartan.smarthome.outbox.Outbox;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable;
+import tartan.smarthome.resources.iotcontroller.HouseCommand;
+import tartan.smarthome.resources.iotcontroller.HouseShard;
+import tartan.smarthome.resources.iotcontroller.ShardedRuntime;
+import tartan.smarthome.views.StateResponseCache;
 
 import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
-import java.util.ArrayList;
+import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.Variant;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The resource class implements the HTTP handlers via Jersey.
@@ -27,46 +48,133 @@ public class TartanResource {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(TartanResource.class);
 
-    // There is one service per home
-    private ArrayList<TartanHomeService> services;
+    // the representations of a house's state, in order of preference
+    private static final List<Variant> STATE_VARIANTS =
+            Variant.mediaTypes(MediaType.TEXT_HTML_TYPE, MediaType.APPLICATION_JSON_TYPE).add().build();
+
+    // the type of a JSON merge patch (RFC 7386)
+    public static final String MERGE_PATCH_JSON = "application/merge-patch+json";
+
+    // the header that tells a client which version of the house it was sent
+    public static final String STATE_VERSION_HEADER = "X-State-Version";
+
+    // the most event log entries returned at once
+    private static final int MAX_EVENT_PAGE = 1000;
+
+    // the most house names a fleet query returns
+    private static final int MAX_QUERY_HOUSES = 10000;
+
+    // the type of a server-sent event stream
+    public static final String EVENT_STREAM = "text/event-stream";
+
+    // the most outbox records returned at once, and the longest a reader may wait for new ones
+    private static final int MAX_OUTBOX_PAGE = 1000;
+    private static final int MAX_OUTBOX_WAIT_SECONDS = 30;
+
+    // the houses, by name
+    private final FleetRegistry fleet;
+
+    // the encoded state of each house, reused until the house changes
+    private final StateResponseCache stateCache;
+
+    // the recent commands, so clients can see how they went
+    private final CommandTracker commandTracker;
+
+    // answers questions about the whole fleet
+    private final FleetIndex index;
+
+    // the counts across the whole fleet, for the dashboard
+    private final FleetSummary summary;
+
+    // the summary streams open now
+    private final SummaryStreams summaryStreams;
+
+    // the house changes for other systems, or null if there is no outbox
+    private final Outbox outbox;
 
     /**
-     * Create and connect to a list of houses
-     * @param houses the settings for each hose
-     * @param homeDAO the historian
-     * @param historyTimer how often to log history
+     * Create the resource for a fleet of houses
+     * @param fleet the houses
+     * @param runtime the shards the houses run on
+     * @param metrics where to report the poll intervals
+     * @param stateCache the cache for encoded house states
+     * @param index the indexes over the house states
+     * @param summary the counts across the fleet
+     * @param outbox the house changes for other systems, or null if there is no outbox
      */
-    public TartanResource(List<TartanHomeSettings> houses, HomeDAO homeDAO, Integer historyTimer) {
+    public TartanResource(FleetRegistry fleet, ShardedRuntime runtime, MetricRegistry metrics,
+                          StateResponseCache stateCache, FleetIndex index, FleetSummary summary,
+                          Outbox outbox) {
 
-        this.services = new ArrayList<>(houses.size());
-        for (TartanHomeSettings homeSettings : houses) {
-            TartanHomeService service = new TartanHomeService(homeDAO);
-            service.initializeSettings(homeSettings, historyTimer);
+        this.fleet = fleet;
+        this.index = index;
+        this.summary = summary;
+        this.outbox = outbox;
+        this.stateCache = stateCache;
+        this.commandTracker = new CommandTracker(metrics);
+        this.summaryStreams = new SummaryStreams(summary, metrics);
 
-            if (!service.isConnected()) {
-                try {
+        // a house that leaves the fleet leaves nothing behind in the cache
+        fleet.addRemovalListener(stateCache::evict);
 
-                    service.connect();
-                    this.services.add(service);
-                    LOGGER.info("Connected to house " + service.getName() + " @ " + service.getAddress());
+        // the total poll rate across every house, which is what the polling policy is meant to keep down
+        metrics.register(MetricRegistry.name(TartanResource.class, "polls-per-second"), (Gauge<Double>) () -> {
+            double rate = 0;
+            for (TartanHomeService service : fleet.getServices()) {
+                rate += 1.0 / service.getPollInterval();
+            }
+            return rate;
+        });
 
-                } catch (TartanHomeConnectException thce) {
-                    LOGGER.error("Could not connect to house " + service.getName() + " @ " + service.getAddress());
-                }
+        // how the work is spread over the shards, which is what the rebalancer acts on
+        for (HouseShard shard : runtime.getShards()) {
+            String prefix = "shard-" + shard.getIndex();
+            metrics.register(MetricRegistry.name(TartanResource.class, prefix, "utilization"),
+                    (Gauge<Double>) shard::getUtilization);
+            metrics.register(MetricRegistry.name(TartanResource.class, prefix, "houses"),
+                    (Gauge<Integer>) shard::getHouseCount);
+            metrics.register(MetricRegistry.name(TartanResource.class, prefix, "queue-depth"),
+                    (Gauge<Integer>) shard::getQueueDepth);
+            metrics.register(MetricRegistry.name(TartanResource.class, prefix, "io-rejected"),
+                    (Gauge<Long>) shard::getIoRejected);
+        }
 
-                startHistorian(service);
-            }
+        // the native memory the house states take, which grows with the fleet instead of the heap
+        FleetStateTable stateTable = runtime.getStateTable();
+        metrics.register(MetricRegistry.name(TartanResource.class, "state-table", "rows"),
+                (Gauge<Integer>) stateTable::getRowCount);
+        metrics.register(MetricRegistry.name(TartanResource.class, "state-table", "off-heap-bytes"),
+                (Gauge<Long>) stateTable::getOffHeapBytes);
+        metrics.register(MetricRegistry.name(TartanResource.class, "fleet-index", "bytes"),
+                (Gauge<Long>) index::getBytes);
+
+        // how far the outbox has got, how much disk it takes, and whether anything could not be added
+        if (outbox != null) {
+            metrics.register(MetricRegistry.name(TartanResource.class, "outbox", "end-offset"),
+                    (Gauge<Long>) outbox.getLog()::getEndOffset);
+            metrics.register(MetricRegistry.name(TartanResource.class, "outbox", "bytes"),
+                    (Gauge<Long>) outbox.getLog()::getBytes);
+            metrics.register(MetricRegistry.name(TartanResource.class, "outbox", "segments"),
+                    (Gauge<Integer>) outbox.getLog()::getSegmentCount);
+            metrics.register(MetricRegistry.name(TartanResource.class, "outbox", "dropped"),
+                    (Gauge<Long>) outbox::getDropped);
         }
     }
 
     /**
-     * Start the historian
-     * @param service the service to start logging
+     * Get the tracker the commands are handed out from, so commands sent another way can be looked up here
+     * @return the tracker
      */
-    public void startHistorian(TartanHomeService service) {
-        if (service.isConnected()) {
-            service.startHistorian();
-        }
+    public CommandTracker getCommandTracker() {
+        return commandTracker;
+    }
+
+    /**
+     * Get the fleet summary streams, which send nothing after the first summary until they are started
+     * @return the streams
+     */
+    public SummaryStreams getSummaryStreams() {
+        return summaryStreams;
     }
 
     /**
@@ -75,58 +183,157 @@ public class TartanResource {
      * @return the service or null if not found
      */
     private TartanHomeService getHomeService(String houseName) {
-        for (TartanHomeService h : services) {
-            if (h.getName().equals(houseName)) {
-                return h;
-            }
-        }
-        return null;
+        return fleet.get(houseName);
     }
 
     /**
-     * Fetch the current house state via HTTP GET. Managed by Jersey
+     * Fetch the current house state via HTTP GET. Managed by Jersey. The state is encoded once per state
+     * version and the same bytes are returned until the house changes. Every answer carries the version
+     * in the X-State-Version header; a JSON client that sends it back as since gets a merge patch from
+     * that version to the current one, or the whole document if that version is no longer kept
      * @param house the house
      * @param user the user allowed to access this house
+     * @param fields a comma separated list of the fields to return, as JSON, or null for the whole house
+     * @param since the version the client already has, or null
+     * @param request the request, to choose between HTML and JSON
      * @return a view of the house or null
      */
     @GET
-    @Produces({MediaType.TEXT_HTML, MediaType.APPLICATION_JSON})
+    @Produces({MediaType.TEXT_HTML, MediaType.APPLICATION_JSON, MERGE_PATCH_JSON})
     @Path("/state/{house}")
     @Timed
     @UnitOfWork
-    public SmartHomeView state(@PathParam("house") String house,  @Auth TartanUser user) {
+    public Response state(@PathParam("house") String house, @Auth TartanUser user,
+                          @QueryParam("fields") String fields, @QueryParam("since") Long since,
+                          @Context Request request) {
         // There are better ways to check authorization, but this works fine
-        if (user.getHouse().equals(house)) {
+        if (house.equals(user.getHouse())) {
             LOGGER.info("Received a house GET for house: " + house);
             TartanHomeService service = getHomeService(house);
             if (service == null) return null;
 
-            return new SmartHomeView(service.getState());
+            // read the version before the state, so a change while encoding only makes the entry stale
+            long version = service.getStateVersion();
+            Set<String> wanted = null;
+            if (fields != null) {
+                wanted = new TreeSet<>();
+                for (String field : fields.split(",")) {
+                    if (!field.trim().isEmpty()) {
+                        wanted.add(field.trim());
+                    }
+                }
+                if (wanted.isEmpty() || !stateCache.getFields().containsAll(wanted)) {
+                    return Response.status(Response.Status.BAD_REQUEST)
+                            .entity("The fields must be some of " + stateCache.getFields())
+                            .type(MediaType.TEXT_PLAIN_TYPE)
+                            .build();
+                }
+            }
+
+            if (since != null) {
+                byte[] patch = stateCache.getPatch(house, version, since, wanted, service::getState);
+                if (patch != null) {
+                    return Response.ok(patch, MERGE_PATCH_JSON)
+                            .header(STATE_VERSION_HEADER, version)
+                            .build();
+                }
+            }
+
+            Variant variant = request.selectVariant(STATE_VARIANTS);
+            if (wanted != null || since != null
+                    || (variant != null && variant.getMediaType().isCompatible(MediaType.APPLICATION_JSON_TYPE))) {
+                return Response.ok(stateCache.getJson(house, version, wanted, service::getState),
+                        MediaType.APPLICATION_JSON_TYPE)
+                        .header(STATE_VERSION_HEADER, version)
+                        .build();
+            }
+            return Response.ok(stateCache.getHtml(house, version, service::getState), MediaType.TEXT_HTML_TYPE)
+                    .header(STATE_VERSION_HEADER, version)
+                    .build();
+        }
+        return null;
+    }
+
+    /**
+     * Page through a house's event log via HTTP GET. Managed by Jersey. Entries are returned oldest first;
+     * pass the page's next cursor as after to read on from there
+     * @param house the house
+     * @param user the user allowed to access this house
+     * @param after the ID of the last entry already read, or 0 to start at the oldest entry kept
+     * @param limit the most entries to return
+     * @return the page, or null
+     */
+    @GET
+    @Path("/events/{house}")
+    @Timed
+    public Response events(@PathParam("house") String house, @Auth TartanUser user,
+                           @QueryParam("after") @DefaultValue("0") long after,
+                           @QueryParam("limit") @DefaultValue("100") int limit) {
+        if (house.equals(user.getHouse())) {
+            TartanHomeService service = getHomeService(house);
+            if (service == null) return null;
+
+            if (limit < 1) {
+                return Response.status(Response.Status.BAD_REQUEST)
+                        .entity("The limit must be at least 1")
+                        .type(MediaType.TEXT_PLAIN_TYPE)
+                        .build();
+            }
+            return Response.ok(service.getEvents(after, Math.min(limit, MAX_EVENT_PAGE))).build();
         }
         return null;
     }
 
     /**
-     * update the house state via a HTTP POST. Managed by Jersey
+     * update the house state via a HTTP POST. Managed by Jersey. This waits for the house to answer and
+     * returns OK if it accepted the update or BAD_GATEWAY if it did not. With async, or if the house is
+     * unreachable and the update is queued for it, the answer is ACCEPTED right away; the command's
+     * progress can then be followed at the location returned
      * @param house the house
      * @param user the user allowed to access this house
+     * @param async true to return without waiting for the house
      * @param h the new state
-     * @return either HTTP OK or UNAUTHORIZED
+     * @return either HTTP OK, ACCEPTED, BAD_GATEWAY or UNAUTHORIZED, with the command
      */
     @POST
     @Path("/update/{house}")
     @Consumes(MediaType.APPLICATION_JSON)
     @Timed
-    public Response update(@PathParam("house") String house, @Auth TartanUser user, TartanHome h) {
-        if (user.getHouse().equals(house)) {
+    public Response update(@PathParam("house") String house, @Auth TartanUser user,
+                           @QueryParam("async") boolean async, TartanHome h) {
+        if (house.equals(user.getHouse())) {
             LOGGER.info("Received a house POST to house " + house);
             TartanHomeService service = getHomeService(house);
             if (service != null) {
                 // tell the house about the update
-                service.setState(h);
+                HouseCommand command = commandTracker.create(house);
+                CompletableFuture<Void> done = service.setState(h, command);
+                if (!async) {
+                    try {
+                        done.join();
+                    } catch (CompletionException e) {
+                        // the command has the reason
+                    }
+                }
 
+                if (command.getStatus() == HouseCommand.Status.ACKED) {
+                    return Response
+                            .status(Response.Status.OK)
+                            .entity(toCommand(command))
+                            .build();
+                }
+                if (command.getStatus() == HouseCommand.Status.FAILED) {
+                    return Response
+                            .status(Response.Status.BAD_GATEWAY)
+                            .entity(toCommand(command))
+                            .build();
+                }
                 return Response
-                        .status(Response.Status.OK)
+                        .status(Response.Status.ACCEPTED)
+                        .location(UriBuilder.fromResource(TartanResource.class)
+                                .path(TartanResource.class, "command")
+                                .build(command.getId()))
+                        .entity(toCommand(command))
                         .build();
             }
         }
@@ -134,5 +341,169 @@ public class TartanResource {
                 .status(Response.Status.UNAUTHORIZED)
                 .build();
     }
+
+    /**
+     * Fetch a recent command via HTTP GET. Managed by Jersey
+     * @param id the command ID
+     * @param user the user allowed to access the command's house
+     * @return the command, or NOT_FOUND if there is no such command for the user's house or it is too old
+     */
+    @GET
+    @Path("/commands/{id}")
+    @Timed
+    public Response command(@PathParam("id") long id, @Auth TartanUser user) {
+        HouseCommand command = commandTracker.find(id);
+        if (command == null || !command.getHouse().equals(user.getHouse())) {
+            return Response
+                    .status(Response.Status.NOT_FOUND)
+                    .build();
+        }
+        return Response.ok(toCommand(command)).build();
+    }
+
+    /**
+     * Find the houses that match a condition via HTTP GET. Managed by Jersey. The answer comes from indexes
+     * kept as the houses change, so no house is asked. Only operators may query the fleet; in a cluster
+     * the answer covers the houses the node asked runs
+     * @param user the operator
+     * @param where the condition, such as alarmActive or vacant and doorUnlocked
+     * @param limit the most house names to return; the count covers every match
+     * @return the matching houses, BAD_REQUEST if the condition is not valid, or UNAUTHORIZED
+     */
+    @GET
+    @Path("/fleet/query")
+    @Timed
+    public Response query(@Auth TartanUser user, @QueryParam("where") String where,
+                          @QueryParam("limit") @DefaultValue("100") int limit) {
+        if (!user.isOperator()) {
+            return Response
+                    .status(Response.Status.UNAUTHORIZED)
+                    .build();
+        }
+        if (limit < 0) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity("The limit must not be negative")
+                    .type(MediaType.TEXT_PLAIN_TYPE)
+                    .build();
+        }
+        TartanQueryResult result;
+        try {
+            result = index.query(where, Math.min(limit, MAX_QUERY_HOUSES));
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(e.getMessage())
+                    .type(MediaType.TEXT_PLAIN_TYPE)
+                    .build();
+        }
+        return Response.ok(result).build();
+    }
+
+    /**
+     * Fetch the counts across the fleet via HTTP GET. Managed by Jersey. The counts are kept as the houses
+     * change, so this costs the same however large the fleet is. Only operators may see them; in a cluster
+     * they cover the houses the node asked runs
+     * @param user the operator
+     * @return the summary, or UNAUTHORIZED
+     */
+    @GET
+    @Path("/fleet/summary")
+    @Timed
+    public Response summary(@Auth TartanUser user) {
+        if (!user.isOperator()) {
+            return Response
+                    .status(Response.Status.UNAUTHORIZED)
+                    .build();
+        }
+        return Response.ok(summary.getJson(), MediaType.APPLICATION_JSON_TYPE).build();
+    }
+
+    /**
+     * Stream the counts across the fleet as server-sent events via HTTP GET. Managed by Jersey. A summary
+     * event is sent at once and again whenever the counts change, at most once a second, with a comment
+     * now and then so proxies keep a quiet stream open. No request thread is held while the stream is
+     * open; the summary streams write to it until the dashboard goes away
+     * @param user the operator
+     * @return the stream, UNAUTHORIZED, or SERVICE_UNAVAILABLE if too many dashboards are streaming
+     */
+    @GET
+    @Path("/fleet/summary/stream")
+    @Produces(EVENT_STREAM)
+    public Response summaryStream(@Auth TartanUser user) {
+        if (!user.isOperator()) {
+            return Response
+                    .status(Response.Status.UNAUTHORIZED)
+                    .build();
+        }
+        ChunkedOutput<String> stream = summaryStreams.open();
+        if (stream == null) {
+            return Response
+                    .status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity("Too many summary streams are open")
+                    .type(MediaType.TEXT_PLAIN_TYPE)
+                    .build();
+        }
+        return Response.ok(stream, EVENT_STREAM)
+                .header("Cache-Control", "no-cache")
+                .build();
+    }
+
+    /**
+     * Read the outbox via HTTP GET. Managed by Jersey. The outbox holds every state change the rules made
+     * and every command accepted, across the houses this node runs, each with an offset. A reader passes
+     * the next offset of each page as from to get the following one, and can pass wait to be held until
+     * there is something new. Only operators may read it
+     * @param user the operator
+     * @param from the first offset wanted; offsets that were already deleted are counted as missed
+     * @param limit the most records to return
+     * @param wait how many seconds to wait if there is nothing new yet
+     * @return the page, NOT_FOUND if there is no outbox, BAD_REQUEST or UNAUTHORIZED
+     */
+    @GET
+    @Path("/outbox")
+    @Timed
+    public Response outbox(@Auth TartanUser user, @QueryParam("from") @DefaultValue("0") long from,
+                           @QueryParam("limit") @DefaultValue("100") int limit,
+                           @QueryParam("wait") @DefaultValue("0") int wait) {
+        if (!user.isOperator()) {
+            return Response
+                    .status(Response.Status.UNAUTHORIZED)
+                    .build();
+        }
+        if (outbox == null) {
+            return Response
+                    .status(Response.Status.NOT_FOUND)
+                    .build();
+        }
+        if (from < 0 || limit < 1 || wait < 0) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity("from and wait must not be negative, and limit must be positive")
+                    .type(MediaType.TEXT_PLAIN_TYPE)
+                    .build();
+        }
+        TartanOutboxPage page;
+        try {
+            page = outbox.read(from, Math.min(limit, MAX_OUTBOX_PAGE),
+                    TimeUnit.SECONDS.toMillis(Math.min(wait, MAX_OUTBOX_WAIT_SECONDS)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Response
+                    .status(Response.Status.SERVICE_UNAVAILABLE)
+                    .build();
+        }
+        return Response.ok(page).build();
+    }
+
+    /**
+     * Convert a command to the format used by the REST API
+     * @param command the command
+     * @return the command with its timings in milliseconds
+     */
+    static TartanCommand toCommand(HouseCommand command) {
+        long sent = command.getSentAfterNanos();
+        long completed = command.getCompletedAfterNanos();
+        return new TartanCommand(command.getId(), command.getHouse(),
+                command.getStatus().name().toLowerCase(Locale.ROOT), command.getAcceptedAt(),
+                sent < 0 ? null : sent / 1e6, completed < 0 ? null : completed / 1e6, command.getError());
+    }
 }
 
@@ -0,0 +1,49 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.Map;
+
+/**
+ * Polls a busy house often and a quiet one rarely. The interval drops to the minimum whenever the house
+ * changes or its alarm is armed, and doubles after each poll that sees no change, up to the maximum. An
+ * empty house that has stopped changing goes straight to the maximum.
+ */
+public class AdaptivePollPolicy implements PollPolicy {
+
+    private final int minSeconds;
+    private final int maxSeconds;
+
+    // polls in a row that saw no change
+    private int quietPolls = 0;
+    private int seconds;
+
+    /**
+     * Create the policy
+     * @param minSeconds the shortest interval, used while the house is changing
+     * @param maxSeconds the longest interval, used while the house is idle
+     */
+    public AdaptivePollPolicy(int minSeconds, int maxSeconds) {
+        this.minSeconds = minSeconds;
+        this.maxSeconds = Math.max(minSeconds, maxSeconds);
+        this.seconds = minSeconds;
+    }
+
+    @Override
+    public int nextPollSeconds(boolean changed, Map<String, Object> state) {
+        boolean armed = Boolean.TRUE.equals(state.get(IoTValues.ALARM_STATE))
+                || Boolean.TRUE.equals(state.get(IoTValues.ALARM_ACTIVE));
+        boolean vacant = Boolean.FALSE.equals(state.get(IoTValues.PROXIMITY_STATE));
+
+        if (changed || armed) {
+            quietPolls = 0;
+            seconds = minSeconds;
+        } else {
+            quietPolls++;
+            if (vacant && quietPolls > 1) {
+                seconds = maxSeconds;
+            } else {
+                seconds = Math.min(maxSeconds, seconds * 2);
+            }
+        }
+        return seconds;
+    }
+}
@@ -0,0 +1,326 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+/**
+ * The original text format of the house protocol. Requests end with '.', and the house answers each one
+ * with a line such as "SU:TR=71;HR=42.", "OK." or "ERR.".
+ */
+public class AsciiFrameCodec implements FrameCodec {
+
+    // the longest line a house sends is well under this; anything longer is not a house
+    private static final int MAX_LINE = 1024;
+
+    @Override
+    public void write(OutputStream out, HouseFrame frame) throws IOException {
+        out.write(encode(frame).getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    @Override
+    public HouseFrame read(InputStream in) throws IOException {
+        String line = readLine(in);
+        if (line == null) {
+            return null;
+        }
+        return decode(line);
+    }
+
+    /**
+     * Encode a message as the text the house expects
+     * @param frame the message
+     * @return the request, ending with '.'
+     */
+    String encode(HouseFrame frame) {
+        if (frame.is(IoTValues.SET_STATE)) {
+            return encodeState(frame.getState());
+        }
+        return frame.getType() + IoTValues.MSG_END;
+    }
+
+    /**
+     * Decode a line from the house
+     * @param line the line, without the newline
+     * @return the message; a state update the house garbled comes back as an error
+     */
+    HouseFrame decode(String line) {
+        if (line.startsWith(IoTValues.STATE_UPDATE + IoTValues.MSG_DELIM)) {
+            Map<String, Object> state = parseStateUpdate(line);
+            if (state == null) {
+                return new HouseFrame(IoTValues.ERROR);
+            }
+            return new HouseFrame(IoTValues.STATE_UPDATE, state);
+        }
+
+        // the other replies are a bare command, with or without the terminator
+        int end = line.length();
+        while (end > 0 && (line.charAt(end - 1) == '.' || Character.isWhitespace(line.charAt(end - 1)))) {
+            end--;
+        }
+        return new HouseFrame(line.substring(0, end));
+    }
+
+    /**
+     * Read a line a byte at a time, so nothing after it is taken off the stream. That matters because the
+     * house may switch to binary frames right after the line
+     * @param in the connection
+     * @return the line without its newline, or null at the end of the stream
+     * @throws IOException if the connection fails or the line is too long
+     */
+    private String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                return line.toString(StandardCharsets.US_ASCII.name());
+            }
+            if (c != '\r') {
+                if (line.size() == MAX_LINE) {
+                    throw new IOException("Line from house is too long");
+                }
+                line.write(c);
+            }
+        }
+        return line.size() == 0 ? null : line.toString(StandardCharsets.US_ASCII.name());
+    }
+
+    /**
+     * Encode a state change request in the house protocol
+     * @param state the new state
+     * @return the complete set state message
+     */
+    String encodeState(Map<String, Object> state) {
+
+        StringBuffer newState = new StringBuffer();
+        Set<String> keys = state.keySet();
+        int count = 0;
+        for (String key : keys) {
+
+            if (key.equals(IoTValues.DOOR_STATE)) {
+
+                Boolean newDoorState = (Boolean) state.get(key);
+                newState.append(IoTValues.DOOR_STATE);
+                newState.append(IoTValues.PARAM_EQ);
+                if (newDoorState) {
+                    newState.append(IoTValues.DOOR_OPEN);
+                } else {
+                    newState.append(IoTValues.DOOR_CLOSE);
+                }
+                count++;
+                if (count<keys.size()) {
+                    newState.append(IoTValues.PARAM_DELIM);
+                }
+            } else if (key.equals(IoTValues.LIGHT_STATE)) {
+                Boolean newLightState = (Boolean) state.get(key);
+                newState.append(IoTValues.LIGHT_STATE);
+                newState.append(IoTValues.PARAM_EQ);
+                if (newLightState) {
+                    newState.append(IoTValues.LIGHT_ON);
+                } else {
+                    newState.append(IoTValues.LIGHT_OFF);
+                }
+                count++;
+                if (count<keys.size()) {
+                    newState.append(IoTValues.PARAM_DELIM);
+                }
+            } else if (key.equals(IoTValues.LIGHT_STATE)) {
+                Boolean newLightState = (Boolean) state.get(key);
+                newState.append(IoTValues.LIGHT_STATE);
+                newState.append(IoTValues.PARAM_EQ);
+                if (newLightState) {
+                    newState.append(IoTValues.LIGHT_ON);
+                } else {
+                    newState.append(IoTValues.LIGHT_OFF);
+                }
+                count++;
+                if (count<keys.size()) {
+                    newState.append(IoTValues.PARAM_DELIM);
+                }
+            } else if (key.equals(IoTValues.ALARM_STATE)) {
+                Boolean newAlarmState = (Boolean) state.get(key);
+                newState.append(IoTValues.ALARM_STATE);
+                newState.append(IoTValues.PARAM_EQ);
+                if (newAlarmState) {
+                    newState.append(IoTValues.ALARM_ENABLED);
+                } else {
+                    newState.append(IoTValues.ALARM_DISABLED);
+                }
+                count++;
+                if (count<keys.size()) {
+                    newState.append(IoTValues.PARAM_DELIM);
+                }
+            } else if (key.equals(IoTValues.ALARM_ACTIVE)) {
+                Boolean newAlarmState = (Boolean) state.get(key);
+                newState.append(IoTValues.ALARM_ACTIVE);
+                newState.append(IoTValues.PARAM_EQ);
+                if (newAlarmState) {
+                    newState.append(IoTValues.ALARM_ON);
+                } else {
+                    newState.append(IoTValues.ALARM_OFF);
+                }
+                count++;
+                if (count<keys.size()) {
+                    newState.append(IoTValues.PARAM_DELIM);
+                }
+            }else if (key.equals(IoTValues.HUMIDIFIER_STATE)) {
+                Boolean newHumidifierState = (Boolean) state.get(key);
+                newState.append(IoTValues.HUMIDIFIER_STATE);
+                newState.append(IoTValues.PARAM_EQ);
+                if (newHumidifierState) {
+                    newState.append(IoTValues.HUMIDIFIER_ON);
+                } else {
+                    newState.append(IoTValues.HUMIDIFIER_OFF);
+                }
+                count++;
+                if (count<keys.size()) {
+                    newState.append(IoTValues.PARAM_DELIM);
+                }
+            } else if (key.equals(IoTValues.CHILLER_STATE)) {
+                Boolean newChillerState = (Boolean) state.get(key);
+                newState.append(IoTValues.CHILLER_STATE);
+                newState.append(IoTValues.PARAM_EQ);
+                if (newChillerState) {
+                    newState.append(IoTValues.CHILLER_ON);
+                } else {
+                    newState.append(IoTValues.CHILLER_OFF);
+                }
+                count++;
+                if (count<keys.size()) {
+                    newState.append(IoTValues.PARAM_DELIM);
+                }
+            } else if (key.equals(IoTValues.HEATER_STATE)) {
+                Boolean newHeaterState = (Boolean) state.get(key);
+                newState.append(IoTValues.HEATER_STATE);
+                newState.append(IoTValues.PARAM_EQ);
+                if (newHeaterState) {
+                    newState.append(IoTValues.HEATER_ON);
+                } else {
+                    newState.append(IoTValues.HEATER_OFF);
+                }
+                count++;
+                if (count<keys.size()) {
+                    newState.append(IoTValues.PARAM_DELIM);
+                }
+            }
+        }
+
+        //newState.append(IoTValues.MSG_END); // append protocol request terminator
+        return IoTValues.SET_STATE + IoTValues.MSG_DELIM + newState.toString() + IoTValues.MSG_END;
+    }
+
+    /**
+     * Parse the new state reported by the house
+     * @param stateUpdateMsg the new state message
+     * @return the new state
+     */
+    Map<String,Object> parseStateUpdate(String stateUpdateMsg) {
+
+        if (stateUpdateMsg == null) {
+            return null;
+        }
+        if (stateUpdateMsg.length() == 0) {
+            return null;
+        }
+
+        System.out.println("State Update: " + stateUpdateMsg);
+        Hashtable<String,Object> state = new Hashtable<String, Object>();
+
+        String[] req = stateUpdateMsg.split(IoTValues.MSG_DELIM);
+
+        // invalid state update
+        if (req.length != 2) {
+            return null;
+        }
+        // is this a state update
+        String cmd = req[0];
+        String body = req[1];
+
+        if (!cmd.equals(IoTValues.STATE_UPDATE)) { // only message that comes from house
+            return null;
+        }
+
+        if (String.valueOf(body.charAt(body.length()-1)).equals(IoTValues.MSG_END)) {
+            body = body.substring(0, body.length() - 1);
+        }
+        if (body==null) {
+            return null;
+        }
+        StringTokenizer pt = new StringTokenizer(body, IoTValues.PARAM_DELIM);
+
+        // process the new state
+        while (pt.hasMoreTokens()) {
+            String param = pt.nextToken();
+            String data[] = param.split(IoTValues.PARAM_EQ);
+            Integer val = Integer.parseInt(data[1]);
+
+            if (data[0].equals(IoTValues.LIGHT_STATE)) {
+                if (val == 1) {
+                    state.put(IoTValues.LIGHT_STATE, true);
+                } else {
+                    state.put(IoTValues.LIGHT_STATE, false);
+                }
+            } else if (data[0].equals(IoTValues.ALARM_STATE)) {
+                if (val == 1) {
+                    state.put(IoTValues.ALARM_STATE, true);
+                } else {
+                state.put(IoTValues.ALARM_STATE, false);
+                }
+            } else if (data[0].equals(IoTValues.DOOR_STATE)) {
+                if (val == 1) {
+                    state.put(IoTValues.DOOR_STATE, true);
+                } else {
+                    state.put(IoTValues.DOOR_STATE, false);
+                }
+            }  else if (data[0].equals(IoTValues.HUMIDIFIER_STATE)) {
+                if (val == 1) {
+                    state.put(IoTValues.HUMIDIFIER_STATE, true);
+                } else {
+                    state.put(IoTValues.HUMIDIFIER_STATE, false);
+                }
+            } else if (data[0].equals(IoTValues.PROXIMITY_STATE)) {
+                if (val == 1) {
+                    state.put(IoTValues.PROXIMITY_STATE, true);
+                } else {
+                    state.put(IoTValues.PROXIMITY_STATE, false);
+                }
+            } else if (data[0].equals(IoTValues.ALARM_ACTIVE)) {
+                if (val == 1) {
+                    state.put(IoTValues.ALARM_ACTIVE, true);
+                } else {
+                    state.put(IoTValues.ALARM_ACTIVE, false);
+                }
+            } else if (data[0].equals(IoTValues.HEATER_STATE)) {
+                if (val == 1) {
+                    state.put(IoTValues.HEATER_STATE, true);
+                } else {
+                    state.put(IoTValues.HEATER_STATE, false);
+                }
+            } else if (data[0].equals(IoTValues.CHILLER_STATE)) {
+                if (val == 1) {
+                    state.put(IoTValues.CHILLER_STATE, true);
+                } else {
+                    state.put(IoTValues.CHILLER_STATE, false);
+                }
+            } else if (data[0].equals(IoTValues.TEMP_READING)) {
+                state.put(IoTValues.TEMP_READING, val);
+            } else if (data[0].equals(IoTValues.HUMIDITY_READING)) {
+                state.put(IoTValues.HUMIDITY_READING, val);
+            } else if (data[0].equals(IoTValues.HVAC_MODE)) {
+                if (val == 1) {
+                    state.put(IoTValues.HVAC_MODE, "Heater");
+                } else {
+                    state.put(IoTValues.HVAC_MODE, "Chiller");
+                }
+            }
+        }
+        return state;
+    }
+}
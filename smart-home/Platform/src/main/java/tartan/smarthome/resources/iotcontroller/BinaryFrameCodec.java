@@ -0,0 +1,202 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Hashtable;
+import java.util.Map;
+
+/**
+ * The compact binary format of the house protocol. Each message is a length-prefixed frame:
+ *
+ * <pre>
+ *   [length: u16][type: u8][count: u8] then count times [field: u8][value: i16]
+ * </pre>
+ *
+ * Multi-byte values are big-endian and the length counts the bytes after it. Fields are numbered from the
+ * table below, which mirrors {@link IoTValues}; on/off settings are 0 or 1 and the HVAC mode is 1 for the
+ * heater. A full state update is 37 bytes against 64 in the text format, and parsing it needs no
+ * string splitting or number parsing.
+ *
+ * A house is asked for this format with the text request "VER:2." right after connecting. A house that
+ * answers OK switches both directions to binary frames; anything else and the connection stays in text.
+ */
+public class BinaryFrameCodec implements FrameCodec {
+
+    /** the protocol version offered in the handshake */
+    public static final int VERSION = 2;
+
+    /** the text request that offers the binary format */
+    public static final String VERSION_REQUEST = IoTValues.VERSION + IoTValues.MSG_DELIM + VERSION + IoTValues.MSG_END;
+
+    // the largest frame a house could send with every field set
+    static final int MAX_FRAME = 2 + 3 * 32;
+
+    // message types, indexed by their wire value
+    private static final String[] TYPES = {
+            null,
+            IoTValues.GET_STATE,
+            IoTValues.SET_STATE,
+            IoTValues.STATE_UPDATE,
+            IoTValues.OK,
+            IoTValues.ERROR,
+            IoTValues.SUBSCRIBE
+    };
+
+    // fields, indexed by their wire value; new fields are only ever added at the end
+    private static final String[] FIELDS = {
+            null,
+            IoTValues.TEMP_READING,
+            IoTValues.HUMIDITY_READING,
+            IoTValues.HUMIDIFIER_STATE,
+            IoTValues.DOOR_STATE,
+            IoTValues.LIGHT_STATE,
+            IoTValues.PROXIMITY_STATE,
+            IoTValues.ALARM_STATE,
+            IoTValues.HVAC_MODE,
+            IoTValues.ALARM_ACTIVE,
+            IoTValues.HEATER_STATE,
+            IoTValues.CHILLER_STATE
+    };
+
+    private static final Map<String, Integer> TYPE_IDS = index(TYPES);
+    private static final Map<String, Integer> FIELD_IDS = index(FIELDS);
+
+    private static Map<String, Integer> index(String[] names) {
+        Map<String, Integer> ids = new Hashtable<>();
+        for (int i = 1; i < names.length; i++) {
+            ids.put(names[i], i);
+        }
+        return ids;
+    }
+
+    @Override
+    public void write(OutputStream out, HouseFrame frame) throws IOException {
+        out.write(encode(frame));
+        out.flush();
+    }
+
+    @Override
+    public HouseFrame read(InputStream in) throws IOException {
+        int hi = in.read();
+        if (hi == -1) {
+            return null;
+        }
+        int lo = in.read();
+        if (lo == -1) {
+            throw new EOFException("House closed the connection inside a frame");
+        }
+        int length = (hi << 8) | lo;
+        if (length < 2 || length > MAX_FRAME) {
+            throw new IOException("Bad frame length from house: " + length);
+        }
+
+        byte[] frame = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(frame, read, length - read);
+            if (n == -1) {
+                throw new EOFException("House closed the connection inside a frame");
+            }
+            read += n;
+        }
+        return decode(frame);
+    }
+
+    /**
+     * Encode a message as a frame. Settings the house does not know, such as the controller's own, are left
+     * out
+     * @param frame the message
+     * @return the frame, including its length
+     */
+    byte[] encode(HouseFrame frame) {
+        Integer type = TYPE_IDS.get(frame.getType());
+        if (type == null) {
+            throw new IllegalArgumentException("No binary form for " + frame.getType());
+        }
+
+        Map<String, Object> state = frame.getState();
+        byte[] out = new byte[4 + 3 * state.size()];
+        int pos = 4;
+        int count = 0;
+        for (Map.Entry<String, Object> entry : state.entrySet()) {
+            Integer field = FIELD_IDS.get(entry.getKey());
+            if (field == null) {
+                continue;
+            }
+            int value = encodeValue(entry.getValue());
+            out[pos++] = (byte) (int) field;
+            out[pos++] = (byte) (value >> 8);
+            out[pos++] = (byte) value;
+            count++;
+        }
+
+        int length = pos - 2;
+        out[0] = (byte) (length >> 8);
+        out[1] = (byte) length;
+        out[2] = (byte) (int) type;
+        out[3] = (byte) count;
+        if (pos == out.length) {
+            return out;
+        }
+        byte[] trimmed = new byte[pos];
+        System.arraycopy(out, 0, trimmed, 0, pos);
+        return trimmed;
+    }
+
+    /**
+     * Decode a frame
+     * @param frame the frame, without its length
+     * @return the message
+     * @throws IOException if the frame is malformed
+     */
+    HouseFrame decode(byte[] frame) throws IOException {
+        int type = frame[0] & 0xff;
+        int count = frame[1] & 0xff;
+        if (type >= TYPES.length || type == 0) {
+            throw new IOException("Unknown frame type from house: " + type);
+        }
+        if (frame.length != 2 + 3 * count) {
+            throw new IOException("Frame from house has " + frame.length + " bytes for " + count + " fields");
+        }
+        if (count == 0) {
+            return new HouseFrame(TYPES[type]);
+        }
+
+        Hashtable<String, Object> state = new Hashtable<>();
+        for (int pos = 2; pos < frame.length; pos += 3) {
+            int field = frame[pos] & 0xff;
+            int value = (short) (((frame[pos + 1] & 0xff) << 8) | (frame[pos + 2] & 0xff));
+            // a newer house may send fields this controller doesn't know yet
+            if (field < FIELDS.length && field != 0) {
+                String name = FIELDS[field];
+                state.put(name, decodeValue(name, value));
+            }
+        }
+        return new HouseFrame(TYPES[type], state);
+    }
+
+    private static int encodeValue(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value ? 1 : 0;
+        }
+        if (value instanceof Integer) {
+            return (Integer) value;
+        }
+        if ("Heater".equals(value)) {
+            return 1;
+        }
+        return 0;
+    }
+
+    private static Object decodeValue(String field, int value) {
+        if (field.equals(IoTValues.TEMP_READING) || field.equals(IoTValues.HUMIDITY_READING)) {
+            return value;
+        }
+        if (field.equals(IoTValues.HVAC_MODE)) {
+            return value == 1 ? "Heater" : "Chiller";
+        }
+        return value == 1;
+    }
+}
@@ -0,0 +1,248 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * The state changes waiting for a house that could not be reached. Changes are merged as they arrive, so a
+ * setting changed twice is only sent once, with its last value, and everything waiting goes to the house
+ * together when it is back.
+ *
+ * The queue can be kept in a file so it survives a restart. Each command is appended to the file as it
+ * arrives; once the house has the changes the file is rewritten with whatever is still waiting. The file
+ * holds lines of two kinds:
+ * <pre>
+ *   N 41 8836453f                    the ID of the last command, so IDs keep growing after the file is rewritten
+ *   Q 42 DS=btrue;TT=i72; 9547427c   a command and its changes; values are typed b, i or s and URL encoded
+ * </pre>
+ * Every line ends with the CRC-32 of what comes before its last space, so a line that was cut short or
+ * garbled by a crash is skipped when the file is read back, wherever it was cut.
+ */
+public class CommandQueue {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommandQueue.class);
+
+    /** A waiting value and the command that set it */
+    private static final class Change {
+        private final long id;
+        private final Object value;
+
+        Change(long id, Object value) {
+            this.id = id;
+            this.value = value;
+        }
+    }
+
+    private final File file;
+    private final Map<String, Change> pending = new Hashtable<>();
+    private long lastId = 0;
+
+    /**
+     * Open a queue, reading back whatever was waiting in its file
+     * @param file where to keep the queue, or null to keep it in memory only
+     */
+    public CommandQueue(File file) {
+        this.file = file;
+        if (file != null && file.exists()) {
+            load();
+            rewrite();
+        }
+    }
+
+    /**
+     * Add a command. It is written to the file before this returns
+     * @param update the changes
+     * @return the command ID
+     * @throws UncheckedIOException if the command could not be saved
+     */
+    public synchronized long enqueue(Map<String, Object> update) {
+        long id = lastId + 1;
+        if (file != null) {
+            append("Q " + id + " " + encode(update));
+        }
+        lastId = id;
+        for (Map.Entry<String, Object> e : update.entrySet()) {
+            pending.put(e.getKey(), new Change(id, e.getValue()));
+        }
+        return id;
+    }
+
+    /**
+     * Get the waiting changes, merged
+     * @return a copy of the last value of each waiting setting
+     */
+    public synchronized Map<String, Object> getPending() {
+        Map<String, Object> state = new Hashtable<>();
+        for (Map.Entry<String, Change> e : pending.entrySet()) {
+            state.put(e.getKey(), e.getValue().value);
+        }
+        return state;
+    }
+
+    /**
+     * Get the ID of the newest command
+     * @return the ID, or 0 if there has never been one
+     */
+    public synchronized long getLastId() {
+        return lastId;
+    }
+
+    /**
+     * Check for waiting changes
+     * @return true if nothing is waiting
+     */
+    public synchronized boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Drop the changes the house now has. Changes from newer commands, which arrived while the house was
+     * being sent the older ones, keep waiting
+     * @param upTo the ID of the newest command the house was sent
+     */
+    public synchronized void delivered(long upTo) {
+        pending.values().removeIf(change -> change.id <= upTo);
+        if (file != null) {
+            rewrite();
+        }
+    }
+
+    private void load() {
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                try {
+                    int end = line.lastIndexOf(' ');
+                    if (end < 0 || !line.substring(end + 1).equals(checksum(line.substring(0, end)))) {
+                        throw new IllegalArgumentException("incomplete line");
+                    }
+                    String[] parts = line.substring(0, end).split(" ", 3);
+                    long id = Long.parseLong(parts[1]);
+                    if (parts[0].equals("Q")) {
+                        for (Map.Entry<String, Object> e : decode(parts.length > 2 ? parts[2] : "").entrySet()) {
+                            pending.put(e.getKey(), new Change(id, e.getValue()));
+                        }
+                    } else if (!parts[0].equals("N")) {
+                        throw new IllegalArgumentException("unknown line");
+                    }
+                    lastId = Math.max(lastId, id);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Skipping bad command in " + file + ": " + line);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error("Could not read commands from " + file, e);
+        }
+    }
+
+    /**
+     * Replace the file with the commands still waiting. The new file is written beside the old one and
+     * moved over it, so a crash leaves one or the other
+     */
+    private void rewrite() {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            // one line per command that still has changes waiting
+            Map<Long, Map<String, Object>> commands = new TreeMap<>();
+            for (Map.Entry<String, Change> e : pending.entrySet()) {
+                commands.computeIfAbsent(e.getValue().id, id -> new Hashtable<>())
+                        .put(e.getKey(), e.getValue().value);
+            }
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                writer.write(seal("N " + lastId));
+                for (Map.Entry<Long, Map<String, Object>> command : commands.entrySet()) {
+                    writer.write(seal("Q " + command.getKey() + " " + encode(command.getValue())));
+                }
+                writer.flush();
+                out.getFD().sync();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // the old file still has everything, so the worst case is sending some changes twice
+            LOGGER.error("Could not rewrite " + file, e);
+        }
+    }
+
+    private void append(String line) {
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(seal(line).getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not save command to " + file, e);
+        }
+    }
+
+    /**
+     * Finish a line with its checksum and a newline
+     * @param line the line
+     * @return the line as it goes in the file
+     */
+    private static String seal(String line) {
+        return line + " " + checksum(line) + "\n";
+    }
+
+    private static String checksum(String line) {
+        CRC32 crc = new CRC32();
+        crc.update(line.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+
+    private static String encode(Map<String, Object> update) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Object> e : update.entrySet()) {
+            Object value = e.getValue();
+            char type = value instanceof Boolean ? 'b' : value instanceof Integer ? 'i' : 's';
+            sb.append(e.getKey()).append('=').append(type)
+                    .append(URLEncoder.encode(String.valueOf(value), StandardCharsets.UTF_8)).append(';');
+        }
+        return sb.toString();
+    }
+
+    private static Map<String, Object> decode(String encoded) {
+        Map<String, Object> update = new Hashtable<>();
+        for (String pair : encoded.split(";")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int eq = pair.indexOf('=');
+            String key = pair.substring(0, eq);
+            String value = URLDecoder.decode(pair.substring(eq + 2), StandardCharsets.UTF_8);
+            switch (pair.charAt(eq + 1)) {
+                case 'b':
+                    update.put(key, Boolean.valueOf(value));
+                    break;
+                case 'i':
+                    update.put(key, Integer.valueOf(value));
+                    break;
+                case 's':
+                    update.put(key, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown type in " + pair);
+            }
+        }
+        return update;
+    }
+}
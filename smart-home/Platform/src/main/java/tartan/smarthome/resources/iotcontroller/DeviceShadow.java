@@ -0,0 +1,62 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.Hashtable;
+import java.util.Map;
+
+/**
+ * The platform's copy of what the house last reported for each setting it controls. The rules produce the
+ * desired state; only the settings where that differs from the reported state need to be sent to the house,
+ * and if none differ nothing is sent at all.
+ *
+ * The shadow is owned by the house's mailbox and is not thread safe.
+ */
+public class DeviceShadow {
+
+    /** the settings the house accepts in an SS request */
+    static final String[] HOUSE_SETTINGS = {
+            IoTValues.DOOR_STATE, IoTValues.LIGHT_STATE, IoTValues.ALARM_STATE, IoTValues.ALARM_ACTIVE,
+            IoTValues.HUMIDIFIER_STATE, IoTValues.CHILLER_STATE, IoTValues.HEATER_STATE
+    };
+
+    private final Map<String, Object> reported = new Hashtable<>();
+
+    /**
+     * Record what the house reported
+     * @param houseState the state from a GS reply or a pushed update
+     */
+    public void report(Map<String, Object> houseState) {
+        reported.putAll(houseState);
+    }
+
+    /**
+     * Find the settings that must be sent to bring the house to the desired state
+     * @param desired the evaluated state
+     * @return the settings that differ from what the house reported; empty if the house is up to date
+     */
+    public Map<String, Object> diff(Map<String, Object> desired) {
+        Map<String, Object> delta = new Hashtable<>();
+        for (String key : HOUSE_SETTINGS) {
+            Object value = desired.get(key);
+            if (value != null && !value.equals(reported.get(key))) {
+                delta.put(key, value);
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * Record that the house accepted some settings
+     * @param delta the settings the house acknowledged
+     */
+    public void acknowledge(Map<String, Object> delta) {
+        reported.putAll(delta);
+    }
+
+    /**
+     * Forget everything the house reported, so the next change sends every setting. Used when the house
+     * may have lost track, for example after a request went unanswered
+     */
+    public void reset() {
+        reported.clear();
+    }
+}
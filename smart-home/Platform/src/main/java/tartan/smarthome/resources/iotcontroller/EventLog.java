@@ -0,0 +1,98 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import tartan.smarthome.core.TartanEvent;
+import tartan.smarthome.core.TartanEventPage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * A house's event log. Only the newest entries are kept, in a ring, so the log stays the same size however
+ * long the house runs. Every entry gets the next ID, starting at 1, so a reader can page through the log
+ * with the ID of the last entry it saw and find out if entries were dropped before it got to them.
+ */
+public class EventLog {
+
+    private final String[] entries;
+
+    /** the ID of the newest entry, or 0 if the log is empty */
+    private long last = 0;
+
+    /**
+     * Create an empty log
+     * @param capacity how many entries to keep
+     */
+    public EventLog(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The log must hold at least one entry");
+        }
+        this.entries = new String[capacity];
+    }
+
+    /**
+     * Add an entry, dropping the oldest one if the log is full. An empty entry is not added, so it can't
+     * push a real one out of the ring
+     * @param message the entry
+     * @return the ID of the entry, or of the newest entry if this one was empty
+     */
+    public synchronized long append(String message) {
+        if (message == null || message.isEmpty()) {
+            return last;
+        }
+        last++;
+        entries[slot(last)] = message;
+        return last;
+    }
+
+    /**
+     * Get the entries the log still holds
+     * @return a copy of the entries, oldest first
+     */
+    public synchronized Vector<String> getMessages() {
+        Vector<String> messages = new Vector<String>((int) (last - first() + 1));
+        for (long id = first(); id <= last; id++) {
+            messages.add(entries[slot(id)]);
+        }
+        return messages;
+    }
+
+    /**
+     * Read the entries after a cursor
+     * @param after the ID of the last entry already read, or 0 to start at the beginning
+     * @param limit the most entries to return
+     * @return the page
+     */
+    public synchronized TartanEventPage page(long after, int limit) {
+        long start = Math.max(after + 1, first());
+        long missed = start - Math.max(after + 1, 1);
+        long end = Math.min(last, start + limit - 1);
+
+        List<TartanEvent> events = new ArrayList<>((int) Math.max(0, end - start + 1));
+        for (long id = start; id <= end; id++) {
+            events.add(new TartanEvent(id, entries[slot(id)]));
+        }
+        // a cursor from beyond the end, say from before a restart, is moved back so the reader catches up
+        long next = events.isEmpty() ? Math.min(Math.max(after, 0), last) : end;
+        return new TartanEventPage(events, next, end < last, missed);
+    }
+
+    /**
+     * Get the number of entries held
+     * @return the count
+     */
+    public synchronized int size() {
+        return (int) (last - first() + 1);
+    }
+
+    /**
+     * The ID of the oldest entry held. If the log is empty this is one more than {@link #last}
+     */
+    private long first() {
+        return Math.max(1, last - entries.length + 1);
+    }
+
+    private int slot(long id) {
+        return (int) ((id - 1) % entries.length);
+    }
+}
@@ -0,0 +1,24 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.Map;
+
+/**
+ * Polls a house at the same interval whatever it is doing
+ */
+public class FixedPollPolicy implements PollPolicy {
+
+    private final int seconds;
+
+    /**
+     * Create the policy
+     * @param seconds the poll interval
+     */
+    public FixedPollPolicy(int seconds) {
+        this.seconds = seconds;
+    }
+
+    @Override
+    public int nextPollSeconds(boolean changed, Map<String, Object> state) {
+        return seconds;
+    }
+}
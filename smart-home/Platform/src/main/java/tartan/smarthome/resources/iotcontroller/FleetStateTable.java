@@ -0,0 +1,492 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The last known state of every house, kept outside the Java heap in one table: a row per house and a column
+ * per state value. Each house writes its own row from its mailbox whenever its state changes; the REST API and
+ * anything that looks across the fleet read the rows without locking and without allocating.
+ *
+ * The table grows a block of rows at a time, and within a block each column is stored on its own, so a scan
+ * of one value across the fleet reads contiguous memory. Booleans are a byte each and readings an int each,
+ * so a house costs the table about 60 bytes of native memory and nothing on the heap but its name. The
+ * table is only what readers see: each house's controller still keeps the working state its rules run on.
+ *
+ * Each row has a sequence number that is odd while the row is being written. A reader takes the sequence,
+ * copies the row, and tries again if the sequence was odd or has moved on, so it never sees half of one
+ * update and half of another. Rows are reused when a house disconnects; the handle a house is given carries
+ * the row's generation, so a handle to a row that has since been given to another house reads nothing.
+ *
+ * Anything that keeps a fleet-wide view, such as an index, can listen to the table and be told of each row
+ * as it changes, with its values from before and after.
+ */
+public class FleetStateTable {
+
+    /** a boolean value of the house, by the state key it comes from */
+    public enum Flag {
+        CONNECTED(null),
+        HUMIDIFIER(IoTValues.HUMIDIFIER_STATE),
+        DOOR_OPEN(IoTValues.DOOR_STATE),
+        DOOR_LOCKED(IoTValues.DOOR_LOCK_STATE),
+        LIGHT(IoTValues.LIGHT_STATE),
+        OCCUPIED(IoTValues.PROXIMITY_STATE),
+        ALARM_ARMED(IoTValues.ALARM_STATE),
+        ALARM_ACTIVE(IoTValues.ALARM_ACTIVE),
+        HEATER(IoTValues.HEATER_STATE),
+        CHILLER(IoTValues.CHILLER_STATE),
+        AWAY_TIMER(IoTValues.AWAY_TIMER),
+        OWNER_NEARBY(IoTValues.OWNERS_PHONE_NEARBY),
+        INTRUDER(IoTValues.INTRUDER_DETECTED);
+
+        private final String key;
+
+        Flag(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Get the state key the flag is read from
+         * @return the key, or null for a flag the house does not report
+         */
+        public String getKey() {
+            return key;
+        }
+    }
+
+    /** a numeric value of the house, by the state key it comes from */
+    public enum Reading {
+        TEMPERATURE(IoTValues.TEMP_READING),
+        HUMIDITY(IoTValues.HUMIDITY_READING),
+        TARGET_TEMP(IoTValues.TARGET_TEMP);
+
+        private final String key;
+
+        Reading(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Get the state key the reading is read from
+         * @return the key
+         */
+        public String getKey() {
+            return key;
+        }
+    }
+
+    /**
+     * Told about every change to the table, on the thread of the house that made it. Listeners must be quick
+     * and must not keep the rows they are given, which are reused
+     */
+    public interface Listener {
+
+        /**
+         * A house wrote its row
+         * @param row the row number
+         * @param before the row as it was; a row that was never written has nothing known
+         * @param after the row as it is now
+         */
+        void rowWritten(int row, Row before, Row after);
+
+        /**
+         * A house gave its row back
+         * @param row the row number
+         * @param before the row as it was last written
+         */
+        void rowFreed(int row, Row before);
+    }
+
+    /** the value of a reading the house has not reported */
+    public static final int UNKNOWN = Integer.MIN_VALUE;
+
+    /** a handle that names no row */
+    public static final long NO_ROW = -1;
+
+    // how booleans and the HVAC mode are stored
+    private static final byte NOT_SET = -1;
+    private static final byte FALSE = 0;
+    private static final byte TRUE = 1;
+    private static final byte HEATER = 1;
+    private static final byte CHILLER = 2;
+
+    /** rows per block; the table grows by a block when it is full */
+    static final int BLOCK_ROWS = 1024;
+
+    private static final Flag[] FLAGS = Flag.values();
+    private static final Reading[] READINGS = Reading.values();
+
+    // where each column starts in a block. The longs come first so every value is aligned to its size
+    private static final int SEQ = 0;
+    private static final int VERSION = SEQ + 8 * BLOCK_ROWS;
+    private static final int UPDATED = VERSION + 8 * BLOCK_ROWS;
+    private static final int GENERATION = UPDATED + 8 * BLOCK_ROWS;
+    private static final int READING_COLUMNS = GENERATION + 4 * BLOCK_ROWS;
+    private static final int HVAC = READING_COLUMNS + 4 * BLOCK_ROWS * READINGS.length;
+    private static final int FLAG_COLUMNS = HVAC + BLOCK_ROWS;
+    private static final int BLOCK_BYTES = FLAG_COLUMNS + BLOCK_ROWS * FLAGS.length;
+
+    /** gives the sequence numbers the memory ordering the lock needs */
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    /** a block of rows: the columns in native memory, and the names of the houses on the heap */
+    private static final class Block {
+        final ByteBuffer data;
+        final AtomicReferenceArray<String> houses = new AtomicReferenceArray<>(BLOCK_ROWS);
+
+        Block() {
+            ByteBuffer raw = ByteBuffer.allocateDirect(BLOCK_BYTES + 7);
+            data = raw.alignedSlice(8).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private volatile Block[] blocks = new Block[0];
+
+    /** one past the highest row ever handed out */
+    private volatile int rowCount = 0;
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /** the rows handed to the listeners, one pair per writing thread */
+    private static final ThreadLocal<Row[]> CHANGE = ThreadLocal.withInitial(() -> new Row[] {new Row(), new Row()});
+
+    /** rows given back, to hand out again before the table grows; only used with the table locked */
+    private int[] free = new int[16];
+    private int freeCount = 0;
+
+    /**
+     * A copy of one row, filled in by {@link #read}. A reader keeps one and reuses it for every row it reads
+     */
+    public static final class Row {
+        private final byte[] flags = new byte[FLAGS.length];
+        private final int[] readings = new int[READINGS.length];
+        private byte hvac;
+        private long version;
+        private long updated;
+        private int row;
+        private String house;
+
+        /**
+         * Get the row number
+         * @return the row
+         */
+        public int getRow() {
+            return row;
+        }
+
+        /**
+         * Get the house the row belongs to
+         * @return the house name
+         */
+        public String getHouse() {
+            return house;
+        }
+
+        /**
+         * Get a boolean value
+         * @param flag the value
+         * @return the value, or null if the house has not reported it
+         */
+        public Boolean get(Flag flag) {
+            byte value = flags[flag.ordinal()];
+            return value == NOT_SET ? null : value == TRUE;
+        }
+
+        /**
+         * Test a boolean value
+         * @param flag the value
+         * @return true only if the house reported it as true
+         */
+        public boolean is(Flag flag) {
+            return flags[flag.ordinal()] == TRUE;
+        }
+
+        /**
+         * Get a numeric value
+         * @param reading the value
+         * @return the value, or {@link #UNKNOWN} if the house has not reported it
+         */
+        public int get(Reading reading) {
+            return readings[reading.ordinal()];
+        }
+
+        /**
+         * Get the HVAC mode
+         * @return the mode as the house reports it, Heater or Chiller, or null if it has not reported one
+         */
+        public String getHvacMode() {
+            return hvac == HEATER ? "Heater" : hvac == CHILLER ? "Chiller" : null;
+        }
+
+        /**
+         * Get the house's state version when the row was written
+         * @return the version
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Get when the row was written
+         * @return the time in milliseconds
+         */
+        public long getUpdated() {
+            return updated;
+        }
+    }
+
+    /**
+     * Be told about every row that is written or given back from now on
+     * @param listener the listener
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Give a house a row. The row starts with nothing known
+     * @param house the house name
+     * @return the handle the house writes its row with
+     */
+    public synchronized long allocate(String house) {
+        int row;
+        if (freeCount > 0) {
+            row = free[--freeCount];
+        } else {
+            row = rowCount;
+            if (row / BLOCK_ROWS == blocks.length) {
+                Block[] grown = Arrays.copyOf(blocks, blocks.length + 1);
+                grown[blocks.length] = new Block();
+                blocks = grown;
+            }
+            rowCount = row + 1;
+        }
+        Block block = blocks[row / BLOCK_ROWS];
+        int i = row % BLOCK_ROWS;
+        int generation = block.data.getInt(GENERATION + 4 * i) + 1;
+        block.houses.set(i, house);
+        long seq = begin(block, i);
+        clear(block, i);
+        block.data.putInt(GENERATION + 4 * i, generation);
+        end(block, i, seq);
+        return ((long) generation << 32) | row;
+    }
+
+    /**
+     * Give a row back when its house disconnects. Readers holding the old handle read nothing from then on
+     * @param handle the handle from {@link #allocate}
+     */
+    public synchronized void free(long handle) {
+        if (handle == NO_ROW) {
+            return;
+        }
+        int row = (int) handle;
+        Block block = blocks[row / BLOCK_ROWS];
+        int i = row % BLOCK_ROWS;
+        if (block.data.getInt(GENERATION + 4 * i) != (int) (handle >>> 32)) {
+            return;
+        }
+        Row before = CHANGE.get()[0];
+        boolean written = !listeners.isEmpty() && read(row, 0, before);
+        long seq = begin(block, i);
+        clear(block, i);
+        block.data.putInt(GENERATION + 4 * i, (int) (handle >>> 32) + 1);
+        end(block, i, seq);
+        block.houses.set(i, null);
+        if (written) {
+            for (Listener listener : listeners) {
+                listener.rowFreed(row, before);
+            }
+        }
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, free.length * 2);
+        }
+        free[freeCount++] = row;
+    }
+
+    /**
+     * Write a house's state into its row. Only the house's own mailbox writes its row, so writes never
+     * overlap; values missing from the state are written as unknown
+     * @param handle the handle from {@link #allocate}
+     * @param state the house state, as the controller keeps it
+     * @param connected true if the house is connected
+     * @param version the house's state version
+     */
+    public void write(long handle, Map<String, Object> state, boolean connected, long version) {
+        if (handle == NO_ROW) {
+            return;
+        }
+        int row = (int) handle;
+        Block block = blocks[row / BLOCK_ROWS];
+        int i = row % BLOCK_ROWS;
+        ByteBuffer data = block.data;
+        if (data.getInt(GENERATION + 4 * i) != (int) (handle >>> 32)) {
+            return;
+        }
+        Row[] change = null;
+        if (!listeners.isEmpty()) {
+            change = CHANGE.get();
+            read(row, 0, change[0]);
+        }
+
+        long seq = begin(block, i);
+        data.putLong(VERSION + 8 * i, version);
+        data.putLong(UPDATED + 8 * i, System.currentTimeMillis());
+        for (Reading reading : READINGS) {
+            data.putInt(READING_COLUMNS + 4 * (reading.ordinal() * BLOCK_ROWS + i), toInt(state.get(reading.getKey())));
+        }
+        Object mode = state.get(IoTValues.HVAC_MODE);
+        data.put(HVAC + i, "Heater".equals(mode) ? HEATER : "Chiller".equals(mode) ? CHILLER : NOT_SET);
+        for (Flag flag : FLAGS) {
+            byte value = flag == Flag.CONNECTED ? (connected ? TRUE : FALSE) : toByte(state.get(flag.getKey()));
+            data.put(FLAG_COLUMNS + flag.ordinal() * BLOCK_ROWS + i, value);
+        }
+        end(block, i, seq);
+
+        if (change != null) {
+            read(row, 0, change[1]);
+            for (Listener listener : listeners) {
+                listener.rowWritten(row, change[0], change[1]);
+            }
+        }
+    }
+
+    /**
+     * Read a house's row
+     * @param handle the handle from {@link #allocate}
+     * @param into where to copy the row
+     * @return true if the row still belongs to the handle and has been written since it was allocated
+     */
+    public boolean read(long handle, Row into) {
+        return handle != NO_ROW && read((int) handle, (int) (handle >>> 32), into);
+    }
+
+    /**
+     * Read a row, whichever house has it. Used to scan the fleet from row 0 to {@link #getRowCount()}
+     * @param row the row number
+     * @param into where to copy the row
+     * @return true if the row belongs to a house and has been written
+     */
+    public boolean read(int row, Row into) {
+        return read(row, 0, into);
+    }
+
+    /**
+     * Get the number of rows to scan. Rows below it may be unused
+     * @return one past the highest row handed out
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Get the native memory the table uses
+     * @return the size in bytes
+     */
+    public long getOffHeapBytes() {
+        return (long) blocks.length * BLOCK_BYTES;
+    }
+
+    /**
+     * Copy a row under its sequence lock
+     * @param row the row number
+     * @param generation the generation the row must have, or 0 for any
+     * @param into where to copy the row
+     * @return true if a written row was copied
+     */
+    private boolean read(int row, int generation, Row into) {
+        if (row < 0 || row >= rowCount) {
+            return false;
+        }
+        Block block = blocks[row / BLOCK_ROWS];
+        int i = row % BLOCK_ROWS;
+        ByteBuffer data = block.data;
+        while (true) {
+            long seq = (long) LONGS.getAcquire(data, SEQ + 8 * i);
+            if ((seq & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            int rowGeneration = data.getInt(GENERATION + 4 * i);
+            into.version = data.getLong(VERSION + 8 * i);
+            into.updated = data.getLong(UPDATED + 8 * i);
+            for (int r = 0; r < READINGS.length; r++) {
+                into.readings[r] = data.getInt(READING_COLUMNS + 4 * (r * BLOCK_ROWS + i));
+            }
+            into.hvac = data.get(HVAC + i);
+            for (int f = 0; f < FLAGS.length; f++) {
+                into.flags[f] = data.get(FLAG_COLUMNS + f * BLOCK_ROWS + i);
+            }
+            into.house = block.houses.get(i);
+            VarHandle.loadLoadFence();
+            if ((long) LONGS.getOpaque(data, SEQ + 8 * i) != seq) {
+                continue;
+            }
+            into.row = row;
+            return (generation == 0 || rowGeneration == generation) && into.updated != 0 && into.house != null;
+        }
+    }
+
+    /**
+     * Mark a row as being written
+     * @return the sequence number before the write
+     */
+    private static long begin(Block block, int i) {
+        long seq = (long) LONGS.getOpaque(block.data, SEQ + 8 * i);
+        LONGS.setOpaque(block.data, SEQ + 8 * i, seq + 1);
+        VarHandle.storeStoreFence();
+        return seq;
+    }
+
+    /**
+     * Mark a row as written, publishing the write to readers
+     * @param seq the sequence number from {@link #begin}
+     */
+    private static void end(Block block, int i, long seq) {
+        LONGS.setRelease(block.data, SEQ + 8 * i, seq + 2);
+    }
+
+    /**
+     * Set every value of a row to unknown. Only called with the row marked as being written
+     */
+    private static void clear(Block block, int i) {
+        ByteBuffer data = block.data;
+        data.putLong(VERSION + 8 * i, 0);
+        data.putLong(UPDATED + 8 * i, 0);
+        for (int r = 0; r < READINGS.length; r++) {
+            data.putInt(READING_COLUMNS + 4 * (r * BLOCK_ROWS + i), UNKNOWN);
+        }
+        data.put(HVAC + i, NOT_SET);
+        for (int f = 0; f < FLAGS.length; f++) {
+            data.put(FLAG_COLUMNS + f * BLOCK_ROWS + i, NOT_SET);
+        }
+    }
+
+    private static int toInt(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        if (value instanceof String) {
+            try {
+                return Integer.parseInt((String) value);
+            } catch (NumberFormatException e) {
+                return UNKNOWN;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    private static byte toByte(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value ? TRUE : FALSE;
+        }
+        return NOT_SET;
+    }
+}
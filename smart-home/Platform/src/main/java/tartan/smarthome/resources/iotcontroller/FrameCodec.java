@@ -0,0 +1,28 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reads and writes house messages in one wire format. A connection starts out with the text format and
+ * switches to the binary one if the house agrees to it.
+ */
+public interface FrameCodec {
+
+    /**
+     * Write a message and flush it
+     * @param out the connection to the house
+     * @param frame the message
+     * @throws IOException if the connection fails
+     */
+    void write(OutputStream out, HouseFrame frame) throws IOException;
+
+    /**
+     * Read the next message
+     * @param in the connection to the house
+     * @return the message, or null if the house closed the connection
+     * @throws IOException if the connection fails or the message is malformed
+     */
+    HouseFrame read(InputStream in) throws IOException;
+}
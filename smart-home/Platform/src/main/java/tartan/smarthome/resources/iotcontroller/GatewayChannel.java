@@ -0,0 +1,193 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * One house behind a building gateway. Requests are queued for the gateway's writer, and replies arrive
+ * from the gateway's reader; the house has no connection of its own.
+ */
+public class GatewayChannel implements HouseChannel {
+
+    /** how long to wait for the house to answer a request */
+    private static final int REQUEST_TIMEOUT_MILLIS = 10000;
+
+    /** how often a waiting request checks that the gateway is still connected */
+    private static final int CONNECTION_CHECK_MILLIS = 100;
+
+    private final GatewayConnection gateway;
+    private final int houseId;
+
+    /** requests waiting for the gateway's writer */
+    private final Queue<HouseFrame> requests = new ConcurrentLinkedQueue<>();
+
+    /** true while this house is in the gateway's queue of houses to serve */
+    private final AtomicBoolean queued = new AtomicBoolean(false);
+
+    /** replies to our requests, handed over by the gateway's reader */
+    private final BlockingQueue<HouseFrame> replies = new ArrayBlockingQueue<>(16);
+
+    /** true while a GS request is waiting, so the next SU is its reply */
+    private volatile boolean awaitingState = false;
+
+    private volatile boolean open = false;
+    private volatile boolean subscribed = false;
+
+    /** the gateway connection the subscription was made on; it ends with that connection */
+    private volatile int subscribedOn = 0;
+    private volatile Consumer<HouseFrame> listener = null;
+
+    GatewayChannel(GatewayConnection gateway, int houseId) {
+        this.gateway = gateway;
+        this.houseId = houseId;
+    }
+
+    /**
+     * Get the ID the gateway knows this house by
+     * @return the house ID
+     */
+    public int getHouseId() {
+        return houseId;
+    }
+
+    @Override
+    public Boolean connect() {
+        open = gateway.connect();
+        return open;
+    }
+
+    /**
+     * Stop talking to the house. The gateway stays connected for the other houses behind it
+     */
+    @Override
+    public void disconnect() {
+        open = false;
+        subscribed = false;
+        listener = null;
+    }
+
+    @Override
+    public Boolean isConnected() {
+        return open && gateway.isConnected();
+    }
+
+    @Override
+    public HouseFrame request(HouseFrame request) {
+        if (!isConnected()) {
+            return null;
+        }
+        // a reply that arrived after its request timed out must not answer this one
+        replies.clear();
+        awaitingState = request.is(IoTValues.GET_STATE);
+        requests.add(request);
+        if (queued.compareAndSet(false, true)) {
+            gateway.ready(this);
+        }
+        try {
+            // stop waiting as soon as the gateway is lost, rather than when the request times out
+            long deadline = System.currentTimeMillis() + REQUEST_TIMEOUT_MILLIS;
+            HouseFrame reply = null;
+            while (reply == null && gateway.isConnected() && System.currentTimeMillis() < deadline) {
+                reply = replies.poll(CONNECTION_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            if (reply == null) {
+                System.err.println("No answer from house " + houseId + " behind the gateway to " + request.getType());
+            }
+            return reply;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            // a GS that was never answered must not turn the next pushed update into a reply
+            awaitingState = false;
+        }
+    }
+
+    /**
+     * The gateway link is always binary, so there is nothing to negotiate
+     * @return true
+     */
+    @Override
+    public Boolean negotiateBinary() {
+        return true;
+    }
+
+    @Override
+    public boolean isBinary() {
+        return true;
+    }
+
+    /**
+     * Ask the house to push its updates. A subscription made before the gateway was connected again went with
+     * the old connection, so it is made again
+     * @param listener gets each pushed update, on the gateway's reader thread
+     * @return true if subscribed
+     */
+    @Override
+    public boolean subscribe(Consumer<HouseFrame> listener) {
+        if (isSubscribed()) {
+            return true;
+        }
+        int generation = gateway.getGeneration();
+        this.listener = listener;
+        HouseFrame reply = request(new HouseFrame(IoTValues.SUBSCRIBE));
+        subscribed = reply != null && reply.is(IoTValues.OK);
+        subscribedOn = generation;
+        if (!subscribed) {
+            this.listener = null;
+        }
+        return subscribed;
+    }
+
+    /**
+     * Check whether the house pushes its updates over the current gateway connection
+     * @return true if subscribed
+     */
+    @Override
+    public boolean isSubscribed() {
+        return subscribed && subscribedOn == gateway.getGeneration();
+    }
+
+    /**
+     * Take the next request for the gateway's writer. A house with more requests waiting goes to the back
+     * of the gateway's queue, so every house gets its turn
+     * @return the request, or null if there is none
+     */
+    HouseFrame nextRequest() {
+        HouseFrame request = requests.poll();
+        if (!requests.isEmpty()) {
+            gateway.ready(this);
+        } else {
+            queued.set(false);
+            // a request may have been added after the check; make sure it is not stranded
+            if (!requests.isEmpty() && queued.compareAndSet(false, true)) {
+                gateway.ready(this);
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Take a message the gateway received for this house. An SU is the reply to a waiting GS; otherwise
+     * it is a pushed update. Anything else is a reply
+     * @param frame the message
+     */
+    void received(HouseFrame frame) {
+        Consumer<HouseFrame> pushTo = listener;
+        if (frame.is(IoTValues.STATE_UPDATE) && !awaitingState && pushTo != null) {
+            try {
+                pushTo.accept(frame);
+            } catch (RuntimeException e) {
+                System.err.println("Bad update from house " + houseId + " behind the gateway: " + e);
+            }
+        } else {
+            awaitingState = false;
+            replies.offer(frame);
+        }
+    }
+}
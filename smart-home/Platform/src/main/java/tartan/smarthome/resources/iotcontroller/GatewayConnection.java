@@ -0,0 +1,278 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * One connection to a building gateway, shared by every house behind it. The connection starts with the
+ * text request "VER:3."; once the gateway answers OK, every message is a binary frame that also carries
+ * the house ID:
+ *
+ * <pre>
+ *   [length: u16][house: u16][type: u8][count: u8] then count times [field: u8][value: i16]
+ * </pre>
+ *
+ * which is the {@link BinaryFrameCodec} frame with the house ID after the length. Houses queue their
+ * requests on their {@link GatewayChannel}, and a single writer thread takes one request from each house
+ * with something to send in turn, so a busy house cannot hold up the others. A single reader thread hands
+ * each reply or pushed update to its house.
+ *
+ * Gateways are shared: every house configured with the same gateway address and port gets a channel on the
+ * same connection.
+ */
+public class GatewayConnection {
+
+    /** the protocol version that turns on multiplexed frames */
+    public static final int VERSION = 3;
+
+    /** how long to wait for the gateway to answer the handshake */
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 2000;
+
+    /** the open gateways, by address:port */
+    private static final Map<String, GatewayConnection> GATEWAYS = new ConcurrentHashMap<>();
+
+    /** connection settings */
+    private final String address;
+    private final int port;
+
+    private volatile Socket gatewaySocket = null;
+    private volatile OutputStream out = null;
+    private volatile boolean isConnected = false;
+
+    /** counts the connections made, so a house can tell that its subscription went with an old one */
+    private volatile int generation = 0;
+
+    private final BinaryFrameCodec codec = new BinaryFrameCodec();
+
+    /** the houses behind this gateway, by house ID */
+    private final Map<Integer, GatewayChannel> channels = new ConcurrentHashMap<>();
+
+    /** houses with requests waiting to be written, in the order they will be served */
+    private final BlockingQueue<GatewayChannel> ready = new LinkedBlockingQueue<>();
+
+    private Thread writer = null;
+
+    /**
+     * Get the shared connection to a gateway, creating it if needed. It is not connected until a house
+     * behind it connects
+     * @param address the gateway address
+     * @param port the gateway port
+     * @return the connection
+     */
+    public static GatewayConnection forGateway(String address, int port) {
+        return GATEWAYS.computeIfAbsent(address + ":" + port, key -> new GatewayConnection(address, port));
+    }
+
+    private GatewayConnection(String address, int port) {
+        this.address = address;
+        this.port = port;
+    }
+
+    /**
+     * Get the channel for a house behind this gateway
+     * @param houseId the house ID the gateway knows the house by
+     * @return the channel
+     */
+    public GatewayChannel channel(int houseId) {
+        if (houseId < 1 || houseId > 0xffff) {
+            throw new IllegalArgumentException("Gateway house IDs run from 1 to 65535, not " + houseId);
+        }
+        return channels.computeIfAbsent(houseId, id -> new GatewayChannel(this, id));
+    }
+
+    /**
+     * Get the number of houses using this gateway
+     * @return the count
+     */
+    public int getHouseCount() {
+        return channels.size();
+    }
+
+    /**
+     * Get connection state
+     * @return true if connected, false otherwise
+     */
+    public Boolean isConnected() {
+        return isConnected;
+    }
+
+    /**
+     * Get the number of the current connection. It changes every time the gateway is connected again
+     * @return the connection number
+     */
+    int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Connect to the gateway unless already connected. Every house behind the gateway calls this, but only
+     * the first one opens the connection
+     * @return true if connected
+     */
+    synchronized Boolean connect() {
+        if (isConnected) {
+            return true;
+        }
+        Socket socket = null;
+        InputStream input;
+        try {
+            socket = new Socket(address, port);
+            socket.setTcpNoDelay(true);
+            // one keepalive for the whole gateway, instead of one per house
+            socket.setKeepAlive(true);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            OutputStream output = new BufferedOutputStream(socket.getOutputStream());
+            input = new BufferedInputStream(socket.getInputStream());
+
+            String offer = IoTValues.VERSION + IoTValues.MSG_DELIM + VERSION + IoTValues.MSG_END;
+            output.write(offer.getBytes(StandardCharsets.US_ASCII));
+            output.flush();
+            HouseFrame reply = new AsciiFrameCodec().read(input);
+            if (reply == null || !reply.is(IoTValues.OK)) {
+                System.err.println("Gateway " + address + ":" + port + " refused multiplexing");
+                socket.close();
+                return false;
+            }
+            socket.setSoTimeout(0);
+
+            // the writer takes the socket and then its output, so it never pairs a new socket with an old output
+            out = output;
+            gatewaySocket = socket;
+        } catch (UnknownHostException uhe) {
+            System.err.println("Unknown host: " + address);
+            return false;
+        } catch (SocketTimeoutException ste) {
+            System.err.println("No answer from gateway " + address + ":" + port);
+            close(socket);
+            return false;
+        } catch (IOException ioe) {
+            close(socket);
+            return false;
+        }
+        generation++;
+        isConnected = true;
+
+        Socket connected = socket;
+        Thread reader = new Thread(() -> readFrames(connected, input), "gateway-reader-" + address + ":" + port);
+        reader.setDaemon(true);
+        reader.start();
+
+        if (writer == null) {
+            writer = new Thread(this::writeFrames, "gateway-writer-" + address + ":" + port);
+            writer.setDaemon(true);
+            writer.start();
+        }
+        return true;
+    }
+
+    /**
+     * Put a house at the back of the writer's queue
+     * @param channel the house
+     */
+    void ready(GatewayChannel channel) {
+        ready.offer(channel);
+    }
+
+    /**
+     * Write the houses' requests, one per house in turn. The output is flushed when no house has anything
+     * left to send, so a burst of requests goes out in a few packets
+     */
+    private void writeFrames() {
+        while (true) {
+            GatewayChannel channel;
+            try {
+                channel = ready.take();
+            } catch (InterruptedException ie) {
+                return;
+            }
+
+            HouseFrame frame = channel.nextRequest();
+            // a frame is written whole to one connection, even if the gateway is connected again meanwhile
+            Socket socket = gatewaySocket;
+            OutputStream output = out;
+            if (frame != null && isConnected) {
+                try {
+                    write(output, channel.getHouseId(), frame);
+                    if (ready.isEmpty()) {
+                        output.flush();
+                    }
+                } catch (IOException ioe) {
+                    // the houses waiting on this connection see it close
+                    close(socket);
+                }
+            }
+        }
+    }
+
+    private void write(OutputStream output, int houseId, HouseFrame frame) throws IOException {
+        // the house ID takes the place of the codec's own length
+        byte[] encoded = codec.encode(frame);
+        int length = encoded.length;
+        output.write(length >> 8);
+        output.write(length);
+        output.write(houseId >> 8);
+        output.write(houseId);
+        output.write(encoded, 2, encoded.length - 2);
+    }
+
+    /**
+     * Read every frame the gateway sends and hand it to its house
+     * @param socket the connection being read; a reconnect replaces it with a new one
+     * @param in its input
+     */
+    private void readFrames(Socket socket, InputStream in) {
+        DataInputStream data = new DataInputStream(in);
+        try {
+            while (true) {
+                int hi = data.read();
+                int lo = data.read();
+                if (hi == -1 || lo == -1) {
+                    break;
+                }
+                int length = (hi << 8) | lo;
+                if (length < 4 || length > BinaryFrameCodec.MAX_FRAME + 2) {
+                    throw new IOException("Bad frame length from gateway: " + length);
+                }
+                byte[] frame = new byte[length];
+                data.readFully(frame);
+
+                int houseId = ((frame[0] & 0xff) << 8) | (frame[1] & 0xff);
+                byte[] body = new byte[length - 2];
+                System.arraycopy(frame, 2, body, 0, body.length);
+
+                GatewayChannel channel = channels.get(houseId);
+                if (channel != null) {
+                    channel.received(codec.decode(body));
+                }
+            }
+        } catch (IOException ioe) {
+            System.err.println("Lost gateway " + address + ":" + port + ": " + ioe.getMessage());
+        }
+        close(socket);
+    }
+
+    /**
+     * Close a connection to the gateway. Only the current connection marks the gateway disconnected
+     * @param socket the connection
+     */
+    private synchronized void close(Socket socket) {
+        if (socket == null) {
+            return;
+        }
+        if (socket == gatewaySocket) {
+            isConnected = false;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed wheel timer shared by every house. Timers are kept in a ring of buckets, one bucket per tick, and
+ * a single thread advances the ring and fires whatever is due. Scheduling and cancelling are O(1) and never
+ * create a thread; the price is that timers fire on a tick boundary, up to one tick late.
+ *
+ * Each house has at most one timer for each {@link TimerReason}. Scheduling a timer that is already pending
+ * does nothing, so a house that keeps asking for the same timer does not pile them up.
+ *
+ * Timer tasks run on the wheel thread, so they must be short; the controller's tasks only post a message
+ * to the house's mailbox.
+ *
+ * A wheel can have a thread of its own or tick on an executor it shares, such as the thread of the shard
+ * whose houses it times.
+ */
+public class HashedWheelTimer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    /** A timer is identified by its owner and its reason */
+    private static final class Key {
+        private final Object owner;
+        private final TimerReason reason;
+
+        Key(Object owner, TimerReason reason) {
+            this.owner = owner;
+            this.reason = reason;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return owner == other.owner && reason == other.reason;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(owner) * 31 + reason.hashCode();
+        }
+    }
+
+    /** A pending timer. The links and rounds are only touched by the wheel thread */
+    private static final class Timeout {
+        private final Key key;
+        private final Runnable task;
+        private final long deadline; // nanoseconds since the wheel started
+        private volatile boolean cancelled = false;
+        private long rounds;
+        private Timeout next;
+        private Timeout prev;
+
+        Timeout(Key key, Runnable task, long deadline) {
+            this.key = key;
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+
+    /** A bucket is a doubly linked list of timers, so a cancelled timer can be unlinked in place */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout t) {
+            t.prev = tail;
+            t.next = null;
+            if (tail == null) {
+                head = t;
+            } else {
+                tail.next = t;
+            }
+            tail = t;
+        }
+
+        void remove(Timeout t) {
+            if (t.prev == null) {
+                head = t.next;
+            } else {
+                t.prev.next = t.next;
+            }
+            if (t.next == null) {
+                tail = t.prev;
+            } else {
+                t.next.prev = t.prev;
+            }
+            t.next = null;
+            t.prev = null;
+        }
+    }
+
+    // how many new timers to move into the wheel per tick, so a flood of timers can't stall the wheel
+    private static final int MAX_TRANSFER = 100000;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long start = System.nanoTime();
+
+    /** timers not yet placed in a bucket; any thread adds, only the wheel thread removes */
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+    /** the pending timer for each key */
+    private final ConcurrentHashMap<Key, Timeout> active = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService ticker;
+
+    /** true if the ticker was made for this wheel and stops with it */
+    private final boolean ownTicker;
+
+    private final ScheduledFuture<?> ticking;
+
+    /** the next tick to process; only touched by the wheel thread */
+    private long tick = 0;
+
+    /**
+     * Create and start a timer
+     * @param tickMillis the length of a tick, which is the timer resolution
+     * @param ticksPerWheel the number of buckets, rounded up to a power of two
+     */
+    public HashedWheelTimer(long tickMillis, int ticksPerWheel) {
+        this(tickMillis, ticksPerWheel, Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "house-timer");
+            t.setDaemon(true);
+            return t;
+        }), true);
+    }
+
+    /**
+     * Create and start a timer that ticks on a shared executor. Stopping the timer leaves the executor running
+     * @param tickMillis the length of a tick, which is the timer resolution
+     * @param ticksPerWheel the number of buckets, rounded up to a power of two
+     * @param ticker the executor to tick on
+     */
+    public HashedWheelTimer(long tickMillis, int ticksPerWheel, ScheduledExecutorService ticker) {
+        this(tickMillis, ticksPerWheel, ticker, false);
+    }
+
+    private HashedWheelTimer(long tickMillis, int ticksPerWheel, ScheduledExecutorService ticker,
+                             boolean ownTicker) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+
+        this.ticker = ticker;
+        this.ownTicker = ownTicker;
+        this.ticking = ticker.scheduleAtFixedRate(this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Set a timer unless the same timer is already pending
+     * @param owner the house that owns the timer
+     * @param reason why the timer is set
+     * @param delay how long until the timer fires
+     * @param unit the unit of the delay
+     * @param task what to run when it fires
+     * @return true if the timer was set, false if it was already pending
+     */
+    public boolean schedule(Object owner, TimerReason reason, long delay, TimeUnit unit, Runnable task) {
+        Key key = new Key(owner, reason);
+        Timeout timeout = new Timeout(key, task, System.nanoTime() - start + unit.toNanos(delay));
+        if (active.putIfAbsent(key, timeout) != null) {
+            return false;
+        }
+        pending.add(timeout);
+        return true;
+    }
+
+    /**
+     * Set a timer, replacing the same timer if it is pending
+     * @param owner the house that owns the timer
+     * @param reason why the timer is set
+     * @param delay how long until the timer fires
+     * @param unit the unit of the delay
+     * @param task what to run when it fires
+     */
+    public void reschedule(Object owner, TimerReason reason, long delay, TimeUnit unit, Runnable task) {
+        Key key = new Key(owner, reason);
+        Timeout timeout = new Timeout(key, task, System.nanoTime() - start + unit.toNanos(delay));
+        Timeout previous = active.put(key, timeout);
+        if (previous != null) {
+            previous.cancelled = true;
+        }
+        pending.add(timeout);
+    }
+
+    /**
+     * Cancel a timer. The timer is left in its bucket and dropped when the wheel next reaches it
+     * @param owner the house that owns the timer
+     * @param reason why the timer was set
+     * @return true if a pending timer was cancelled
+     */
+    public boolean cancel(Object owner, TimerReason reason) {
+        Timeout timeout = active.remove(new Key(owner, reason));
+        if (timeout == null) {
+            return false;
+        }
+        timeout.cancelled = true;
+        return true;
+    }
+
+    /**
+     * Cancel every timer a house owns
+     * @param owner the house
+     */
+    public void cancelAll(Object owner) {
+        for (TimerReason reason : TimerReason.values()) {
+            cancel(owner, reason);
+        }
+    }
+
+    /**
+     * Move every pending timer a house owns to another wheel. Each keeps the time it has left
+     * @param owner the house
+     * @param to the wheel to move the timers to
+     */
+    public void transfer(Object owner, HashedWheelTimer to) {
+        long now = System.nanoTime() - start;
+        for (TimerReason reason : TimerReason.values()) {
+            // once removed here the timer can't fire on this wheel any more
+            Timeout timeout = active.remove(new Key(owner, reason));
+            if (timeout != null) {
+                timeout.cancelled = true;
+                to.schedule(owner, reason, Math.max(0, timeout.deadline - now), TimeUnit.NANOSECONDS,
+                        timeout.task);
+            }
+        }
+    }
+
+    /**
+     * Check for a pending timer
+     * @param owner the house that owns the timer
+     * @param reason why the timer was set
+     * @return true if the timer is set and has not fired
+     */
+    public boolean isPending(Object owner, TimerReason reason) {
+        return active.containsKey(new Key(owner, reason));
+    }
+
+    /**
+     * Get the number of pending timers
+     * @return the count
+     */
+    public int size() {
+        return active.size();
+    }
+
+    /**
+     * Stop the wheel. Pending timers never fire
+     */
+    public void stop() {
+        ticking.cancel(false);
+        if (ownTicker) {
+            ticker.shutdownNow();
+        }
+    }
+
+    /**
+     * Process every tick that is due. Ticks can be late if the thread was delayed; they are caught up here
+     */
+    private void advance() {
+        long now = System.nanoTime() - start;
+        while ((tick + 1) * tickNanos <= now) {
+            transferPending();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    /**
+     * Move newly scheduled timers into their buckets
+     */
+    private void transferPending() {
+        for (int i = 0; i < MAX_TRANSFER; i++) {
+            Timeout timeout = pending.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.cancelled) {
+                continue;
+            }
+            // a timer that is already due goes in the current bucket
+            long due = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.rounds = (due - tick) / wheel.length;
+            wheel[(int) (due & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * Fire the timers in a bucket that are due this round, and drop the cancelled ones
+     * @param bucket the bucket for the current tick
+     */
+    private void expire(Bucket bucket) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.cancelled) {
+                bucket.remove(timeout);
+            } else if (timeout.rounds <= 0) {
+                bucket.remove(timeout);
+                if (active.remove(timeout.key, timeout)) {
+                    try {
+                        timeout.task.run();
+                    } catch (Throwable t) {
+                        LOGGER.error("Timer " + timeout.key.reason + " failed", t);
+                    }
+                }
+            } else {
+                timeout.rounds--;
+            }
+            timeout = next;
+        }
+    }
+}
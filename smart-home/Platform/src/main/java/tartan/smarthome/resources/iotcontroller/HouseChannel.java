@@ -0,0 +1,60 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.function.Consumer;
+
+/**
+ * The path the controller uses to talk to one house. A house either has a connection of its own, an
+ * {@link IoTConnection}, or shares a building gateway's connection with other houses, a
+ * {@link GatewayChannel}.
+ */
+public interface HouseChannel {
+
+    /**
+     * Connect to the house
+     * @return true if connection successful, false otherwise
+     */
+    Boolean connect();
+
+    /**
+     * Disconnect from the house
+     */
+    void disconnect();
+
+    /**
+     * Get connection state
+     * @return true if connected, false otherwise
+     */
+    Boolean isConnected();
+
+    /**
+     * Send a message to the house and get a response
+     * @param request the message to send
+     * @return the response, or null if the house did not answer in time
+     */
+    HouseFrame request(HouseFrame request);
+
+    /**
+     * Offer the house the binary format, before anything else is sent
+     * @return true if the house switched, false if it refused, or null if it did not answer at all
+     */
+    Boolean negotiateBinary();
+
+    /**
+     * Check whether the channel uses the binary format
+     * @return true if binary frames are in use
+     */
+    boolean isBinary();
+
+    /**
+     * Ask the house to push its state changes
+     * @param listener called with each SU message the house pushes
+     * @return true if the house agreed
+     */
+    boolean subscribe(Consumer<HouseFrame> listener);
+
+    /**
+     * Check whether the house pushes its updates
+     * @return true if subscribed
+     */
+    boolean isSubscribed();
+}
@@ -0,0 +1,153 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.function.Consumer;
+
+/**
+ * A state change on its way to a house. The controller moves it along as the change is sent and the house
+ * answers, and records when each step happened, so the time from accepting a command to the house
+ * acknowledging it can be measured.
+ *
+ * A command that is waiting for an unreachable house is sent, perhaps more than once, when the house is
+ * back; it is only acknowledged once the house accepts it.
+ */
+public class HouseCommand {
+
+    /** Where a command is */
+    public enum Status {
+        /** accepted, and waiting for the house or for its turn in the house's mailbox */
+        QUEUED,
+        /** sent to the house, which has not answered yet */
+        SENT,
+        /** the house accepted the change */
+        ACKED,
+        /** the house refused the change or did not answer */
+        FAILED
+    }
+
+    private final long id;
+    private final String house;
+    private final Consumer<HouseCommand> listener;
+
+    private final long acceptedAt = System.currentTimeMillis();
+    private final long acceptedNanos = System.nanoTime();
+    private volatile long sentNanos = 0;
+    private volatile long completedNanos = 0;
+    private volatile Status status = Status.QUEUED;
+    private volatile String error = null;
+
+    /**
+     * Create a command
+     * @param id the command ID
+     * @param house the house it is for
+     * @param listener told once when the command is acknowledged or fails; may be null
+     */
+    public HouseCommand(long id, String house, Consumer<HouseCommand> listener) {
+        this.id = id;
+        this.house = house;
+        this.listener = listener;
+    }
+
+    /**
+     * Record that the change was sent to the house
+     */
+    public synchronized void sent() {
+        if (isDone()) {
+            return;
+        }
+        sentNanos = System.nanoTime();
+        status = Status.SENT;
+    }
+
+    /**
+     * Record that the house accepted the change
+     */
+    public void acked() {
+        complete(Status.ACKED, null);
+    }
+
+    /**
+     * Record that the change did not get through
+     * @param reason why
+     */
+    public void failed(String reason) {
+        complete(Status.FAILED, reason);
+    }
+
+    private synchronized void complete(Status result, String reason) {
+        if (isDone()) {
+            return;
+        }
+        completedNanos = System.nanoTime();
+        error = reason;
+        status = result;
+        if (listener != null) {
+            listener.accept(this);
+        }
+    }
+
+    /**
+     * Check whether the command has finished
+     * @return true if it was acknowledged or failed
+     */
+    public boolean isDone() {
+        return status == Status.ACKED || status == Status.FAILED;
+    }
+
+    /**
+     * Get the command ID
+     * @return the ID
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Get the house the command is for
+     * @return the house name
+     */
+    public String getHouse() {
+        return house;
+    }
+
+    /**
+     * Get where the command is
+     * @return the status
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Get why the command failed
+     * @return the reason, or null if it did not fail
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Get the wall clock time the command was accepted
+     * @return milliseconds since the epoch
+     */
+    public long getAcceptedAt() {
+        return acceptedAt;
+    }
+
+    /**
+     * Get how long after it was accepted the command was last sent
+     * @return the delay in nanoseconds, or -1 if it has not been sent
+     */
+    public long getSentAfterNanos() {
+        long sent = sentNanos;
+        return sent == 0 ? -1 : sent - acceptedNanos;
+    }
+
+    /**
+     * Get how long after it was accepted the command finished
+     * @return the delay in nanoseconds, or -1 if it is not done
+     */
+    public long getCompletedAfterNanos() {
+        long completed = completedNanos;
+        return completed == 0 ? -1 : completed - acceptedNanos;
+    }
+}
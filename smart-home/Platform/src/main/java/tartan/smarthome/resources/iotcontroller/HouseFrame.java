@@ -0,0 +1,62 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.Hashtable;
+import java.util.Map;
+
+/**
+ * One message to or from the house, independent of how it is framed on the wire. The type is one of the
+ * protocol commands in {@link IoTValues}; set state requests and state updates also carry the state.
+ */
+public class HouseFrame {
+
+    private final String type;
+    private final Map<String, Object> state;
+
+    /**
+     * Create a message without a state
+     * @param type the command, such as GS or OK
+     */
+    public HouseFrame(String type) {
+        this(type, new Hashtable<>());
+    }
+
+    /**
+     * Create a message with a state
+     * @param type the command, SS or SU
+     * @param state the settings or readings it carries
+     */
+    public HouseFrame(String type, Map<String, Object> state) {
+        this.type = type;
+        this.state = state;
+    }
+
+    /**
+     * Get the command
+     * @return the command
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Check the command
+     * @param type the command to check for
+     * @return true if this message is that command
+     */
+    public boolean is(String type) {
+        return this.type.equals(type);
+    }
+
+    /**
+     * Get the state carried by the message
+     * @return the state, empty for messages without one
+     */
+    public Map<String, Object> getState() {
+        return state;
+    }
+
+    @Override
+    public String toString() {
+        return state.isEmpty() ? type : type + state;
+    }
+}
@@ -0,0 +1,222 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A mailbox that runs the messages for one house, one at a time and in the order they were posted. The
+ * messages run on a shared executor, so many houses can share a few threads, but no two messages for the
+ * same house ever run at once. Anything that is only touched from inside the mailbox needs no locking.
+ *
+ * A message that has to wait for the house, such as a request over its socket, hands the wait to
+ * {@link #await}. The call runs on a separate executor for blocking work, and the mailbox runs nothing else
+ * until its result is back, so the house still sees one message at a time while the thread it was using is
+ * free for other houses. If that executor refuses the call because it is full, the call is not made and the
+ * message gets no result, as if the house had not answered.
+ *
+ * The executors can be changed while the mailbox is in use, to move the house to another shard. Messages
+ * already running finish where they are and the rest run on the new executors, still one at a time.
+ */
+public class HouseMailbox implements Executor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HouseMailbox.class);
+
+    // how many messages to run before giving the thread to another house
+    private static final int BATCH = 32;
+
+    private final String name;
+    private volatile Executor executor;
+    private volatile Executor blocking;
+    private final Queue<Runnable> messages = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /** the thread running this mailbox, if any */
+    private volatile Thread owner;
+
+    /** the blocking call the running message is waiting for; only the running thread touches this */
+    private Runnable waiting;
+
+    /** what to run instead of the result if the blocking call is refused; only the running thread touches this */
+    private Runnable refused;
+
+    /** what to run with the result of a blocking call before any other message */
+    private volatile Runnable resumed;
+
+    /** the time spent running messages; only the running thread adds to it */
+    private volatile long busyNanos = 0;
+
+    /**
+     * Create a mailbox
+     * @param name the house name, for error messages
+     * @param executor the shared executor that runs the messages
+     * @param blocking the shared executor that runs the calls messages wait for
+     */
+    public HouseMailbox(String name, Executor executor, Executor blocking) {
+        this.name = name;
+        this.executor = executor;
+        this.blocking = blocking;
+    }
+
+    /**
+     * Post a message to the mailbox
+     * @param message the message to run
+     */
+    @Override
+    public void execute(Runnable message) {
+        messages.add(message);
+        schedule();
+    }
+
+    /**
+     * Post a message to the mailbox and get its result when it has run
+     * @param message the message to run
+     * @param <T> the result type
+     * @return the result, completed exceptionally if the message threw
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> message) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        execute(() -> {
+            try {
+                result.complete(message.call());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Make a call that blocks, such as a request to the house, without holding the mailbox's thread. Must
+     * be the last thing a message of this mailbox does: the call runs once the message returns, and no other
+     * message runs until the result has been passed on
+     * @param call the blocking call; it must not touch what the mailbox owns
+     * @param then gets the result, or null if the call threw; runs in the mailbox
+     * @param <T> the result type
+     */
+    public <T> void await(Supplier<T> call, Consumer<T> then) {
+        if (!isOwner()) {
+            throw new IllegalStateException("Only a message of the mailbox for " + name + " can wait");
+        }
+        if (waiting != null) {
+            throw new IllegalStateException("A message for " + name + " can only wait for one call");
+        }
+        waiting = () -> {
+            T result = null;
+            try {
+                result = call.get();
+            } catch (RuntimeException e) {
+                LOGGER.error("Blocking call for house " + name + " failed", e);
+            }
+            T value = result;
+            resumed = () -> then.accept(value);
+            executor.execute(this::drain);
+        };
+        refused = () -> then.accept(null);
+    }
+
+    /**
+     * Check whether the caller is running inside this mailbox
+     * @return true if called from a message of this mailbox
+     */
+    public boolean isOwner() {
+        return owner == Thread.currentThread();
+    }
+
+    /**
+     * Run the messages on other executors from the next batch on
+     * @param executor the new executor for the messages
+     * @param blocking the new executor for the calls they wait for
+     */
+    public void setExecutor(Executor executor, Executor blocking) {
+        this.executor = executor;
+        this.blocking = blocking;
+    }
+
+    /**
+     * Get the time spent running this house's messages, to see how much of its shard the house uses
+     * @return the total in nanoseconds
+     */
+    public long getBusyNanos() {
+        return busyNanos;
+    }
+
+    /**
+     * Get the number of messages waiting to run
+     * @return the queue depth
+     */
+    public int getPending() {
+        return messages.size();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Run a batch of messages. A message that throws is logged and does not stop the ones behind it. A
+     * message that waits for a blocking call ends the batch, and the mailbox stays scheduled until the call
+     * is back
+     */
+    private void drain() {
+        owner = Thread.currentThread();
+        long started = System.nanoTime();
+        try {
+            Runnable message = resumed;
+            resumed = null;
+            if (message != null) {
+                run(message);
+            }
+            for (int i = 0; i < BATCH && waiting == null && (message = messages.poll()) != null; i++) {
+                run(message);
+            }
+        } finally {
+            busyNanos += System.nanoTime() - started;
+            owner = null;
+        }
+
+        Runnable call = waiting;
+        if (call != null) {
+            Runnable skipped = refused;
+            waiting = null;
+            refused = null;
+            try {
+                blocking.execute(call);
+            } catch (RejectedExecutionException e) {
+                // too many houses are waiting already, so the message goes on without an answer
+                resumed = skipped;
+                try {
+                    executor.execute(this::drain);
+                } catch (RejectedExecutionException stopping) {
+                    // the shard is stopping, and the house with it
+                }
+            }
+            return;
+        }
+        scheduled.set(false);
+
+        // more messages may have arrived while the last one was running
+        if (!messages.isEmpty()) {
+            schedule();
+        }
+    }
+
+    private void run(Runnable message) {
+        try {
+            message.run();
+        } catch (Throwable t) {
+            LOGGER.error("Message for house " + name + " failed", t);
+        }
+    }
+}
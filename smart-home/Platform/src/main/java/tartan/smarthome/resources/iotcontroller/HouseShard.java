@@ -0,0 +1,198 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One shard of the house runtime: an event loop, usually a single thread, that runs the mailboxes of the
+ * houses assigned to it and ticks the timer wheel for their timers. A house's state, its rules and its timers
+ * are all handled on its shard's loop, so a busy house only delays the houses on its own shard.
+ *
+ * The loop never waits for a house. Requests over the houses' sockets, which can take until the request
+ * times out when a house stops answering, run on the shard's I/O threads, and the house's mailbox waits for
+ * the answer without holding the loop. The I/O threads are bounded: a shard runs at most its number of I/O
+ * threads requests at once, and {@link #IO_QUEUE_PER_THREAD} more per thread wait for a free one. A request
+ * beyond that is refused at once and the house treats it as unanswered, so a fleet of silent houses costs a
+ * fixed number of threads and the houses try again at their next poll.
+ *
+ * The shard keeps track of how busy its loop is so the runtime can move houses off a shard that has more
+ * than its share of the work.
+ */
+public class HouseShard {
+
+    /** how many requests may wait for each of the shard's I/O threads before more are refused */
+    public static final int IO_QUEUE_PER_THREAD = 64;
+
+    private final int index;
+    private final int threads;
+    private final ScheduledThreadPoolExecutor executor;
+    private final ThreadPoolExecutor io;
+    private final HashedWheelTimer timer;
+    private final Set<IoTControlManager> houses = ConcurrentHashMap.newKeySet();
+
+    /** the time the shard's threads spent running tasks, and when each running task started */
+    private final AtomicLong busyNanos = new AtomicLong();
+
+    /** the requests refused because every I/O thread and queue slot was taken */
+    private final AtomicLong ioRejected = new AtomicLong();
+    private final ThreadLocal<long[]> taskStart = ThreadLocal.withInitial(() -> new long[1]);
+
+    /** the share of the last sample period the threads were busy; only the runtime's sampler writes these */
+    private volatile double utilization = 0;
+    private long sampledBusy = 0;
+    private long sampledAt = System.nanoTime();
+
+    /**
+     * Create and start a shard
+     * @param index the shard number, for the thread names
+     * @param threads how many threads run the shard's houses
+     * @param ioThreads how many requests to the houses can be waiting for an answer at once
+     */
+    HouseShard(int index, int threads, int ioThreads) {
+        this.index = index;
+        this.threads = threads;
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ScheduledThreadPoolExecutor(threads, r -> {
+            Thread t = new Thread(r, "house-shard-" + index + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }) {
+            @Override
+            protected void beforeExecute(Thread t, Runnable r) {
+                taskStart.get()[0] = System.nanoTime();
+            }
+
+            @Override
+            protected void afterExecute(Runnable r, Throwable t) {
+                busyNanos.addAndGet(System.nanoTime() - taskStart.get()[0]);
+            }
+        };
+        // a fixed number of threads for the requests the houses wait for; idle ones go after a minute
+        AtomicInteger ioCount = new AtomicInteger();
+        this.io = new ThreadPoolExecutor(ioThreads, ioThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(ioThreads * IO_QUEUE_PER_THREAD), r -> {
+                    Thread t = new Thread(r, "house-io-" + index + "-" + ioCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, (r, pool) -> {
+                    if (!pool.isShutdown()) {
+                        ioRejected.incrementAndGet();
+                    }
+                    throw new RejectedExecutionException("Shard " + index + " has no I/O thread free");
+                });
+        io.allowCoreThreadTimeOut(true);
+        // the wheel ticks on the loop, between the houses' messages
+        this.timer = new HashedWheelTimer(100, 512, executor);
+    }
+
+    /**
+     * Get the executor that runs this shard's mailboxes
+     * @return the executor
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Get the executor for the requests this shard's houses wait for
+     * @return the executor
+     */
+    public Executor getIoExecutor() {
+        return io;
+    }
+
+    /**
+     * Get the timer wheel for this shard's houses
+     * @return the timer
+     */
+    public HashedWheelTimer getTimer() {
+        return timer;
+    }
+
+    /**
+     * Get the shard number
+     * @return the number, from 0
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Get the number of houses on this shard
+     * @return the count
+     */
+    public int getHouseCount() {
+        return houses.size();
+    }
+
+    /**
+     * Get the number of tasks waiting for the shard's loop
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Get the number of requests to the houses refused because the shard's I/O threads were all taken
+     * @return the count since the shard started
+     */
+    public long getIoRejected() {
+        return ioRejected.get();
+    }
+
+    /**
+     * Get how busy the shard was over the last sample period
+     * @return the share of the time its threads were running tasks, from 0 to 1
+     */
+    public double getUtilization() {
+        return utilization;
+    }
+
+    /**
+     * Get the houses on this shard
+     * @return a live view of the houses
+     */
+    Set<IoTControlManager> getHouses() {
+        return houses;
+    }
+
+    void add(IoTControlManager house) {
+        houses.add(house);
+    }
+
+    void remove(IoTControlManager house) {
+        houses.remove(house);
+    }
+
+    /**
+     * Work out the utilization since the last sample. Only called by the runtime's sampler
+     * @param now the sample time, from {@link System#nanoTime()}
+     */
+    void sample(long now) {
+        long busy = busyNanos.get();
+        long elapsed = now - sampledAt;
+        if (elapsed > 0) {
+            utilization = Math.min(1.0, (double) (busy - sampledBusy) / (elapsed * threads));
+        }
+        sampledBusy = busy;
+        sampledAt = now;
+    }
+
+    /**
+     * Stop the shard. Its houses stop running
+     */
+    void stop() {
+        timer.stop();
+        executor.shutdownNow();
+        io.shutdownNow();
+    }
+}
@@ -1,9 +1,7 @@
 package tartan.smarthome.resources.iotcontroller;
 
-import java.util.Hashtable;
 import java.util.Map;
-import java.util.Set;
-import java.util.StringTokenizer;
+import java.util.function.Consumer;
 
 /**
  * Manages connection to the IoT house
@@ -15,13 +13,13 @@ import java.util.StringTokenizer;
  */
 public class IoTConnectManager {
     // Connection to the house
-    private IoTConnection connection;
+    private HouseChannel connection;
 
     /**
      * Set up the connection manager with a connection
      * @param conn the (established) connection
      */
-    public IoTConnectManager(IoTConnection conn) {
+    public IoTConnectManager(HouseChannel conn) {
         connection = conn;
     }
 
@@ -41,16 +39,49 @@ public class IoTConnectManager {
         System.out.println("Requesting state");
 
         synchronized (connection) {
-            String update = connection.sendMessageToHouse(IoTValues.GET_STATE + IoTValues.MSG_END);
-            if (update == null) {
+            HouseFrame update = connection.request(new HouseFrame(IoTValues.GET_STATE));
+            if (update == null || !update.is(IoTValues.STATE_UPDATE)) {
                 return null;
             }
 
-            return handleStateUpdate(update);
+            System.out.println("State Update: " + update.getState());
+            return update.getState();
         }
     }
 
+    /**
+     * Offer the house the binary wire format
+     * @return true if the house switched to it, false if it refused, or null if it did not answer
+     */
+    public Boolean negotiateBinary() {
+        return connection.negotiateBinary();
+    }
+
+    /**
+     * Check whether the house speaks the binary wire format
+     * @return true if binary frames are in use
+     */
+    public Boolean isBinary() {
+        return connection.isBinary();
+    }
+
+
+    /**
+     * Ask the house to push its state whenever it changes
+     * @param listener called with each new state the house pushes, on the connection's reader thread
+     * @return true if the house will push; false if it must be polled
+     */
+    public Boolean subscribe(Consumer<Map<String, Object>> listener) {
+        return connection.subscribe(update -> listener.accept(update.getState()));
+    }
 
+    /**
+     * Check whether the house pushes its state
+     * @return true if subscribed
+     */
+    public Boolean isSubscribed() {
+        return connection.isSubscribed();
+    }
 
     /**
      * Send a state change request to the house
@@ -59,127 +90,11 @@ public class IoTConnectManager {
      */
     public synchronized Boolean setState(Map<String, Object> state) {
 
-        StringBuffer newState = new StringBuffer();
-        Set<String> keys = state.keySet();
-        int count = 0;
-        for (String key : keys) {
-
-            if (key.equals(IoTValues.DOOR_STATE)) {
-
-                Boolean newDoorState = (Boolean) state.get(key);
-                newState.append(IoTValues.DOOR_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newDoorState) {
-                    newState.append(IoTValues.DOOR_OPEN);
-                } else {
-                    newState.append(IoTValues.DOOR_CLOSE);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.LIGHT_STATE)) {
-                Boolean newLightState = (Boolean) state.get(key);
-                newState.append(IoTValues.LIGHT_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newLightState) {
-                    newState.append(IoTValues.LIGHT_ON);
-                } else {
-                    newState.append(IoTValues.LIGHT_OFF);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.LIGHT_STATE)) {
-                Boolean newLightState = (Boolean) state.get(key);
-                newState.append(IoTValues.LIGHT_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newLightState) {
-                    newState.append(IoTValues.LIGHT_ON);
-                } else {
-                    newState.append(IoTValues.LIGHT_OFF);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.ALARM_STATE)) {
-                Boolean newAlarmState = (Boolean) state.get(key);
-                newState.append(IoTValues.ALARM_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newAlarmState) {
-                    newState.append(IoTValues.ALARM_ENABLED);
-                } else {
-                    newState.append(IoTValues.ALARM_DISABLED);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.ALARM_ACTIVE)) {
-                Boolean newAlarmState = (Boolean) state.get(key);
-                newState.append(IoTValues.ALARM_ACTIVE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newAlarmState) {
-                    newState.append(IoTValues.ALARM_ON);
-                } else {
-                    newState.append(IoTValues.ALARM_OFF);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            }else if (key.equals(IoTValues.HUMIDIFIER_STATE)) {
-                Boolean newHumidifierState = (Boolean) state.get(key);
-                newState.append(IoTValues.HUMIDIFIER_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newHumidifierState) {
-                    newState.append(IoTValues.HUMIDIFIER_ON);
-                } else {
-                    newState.append(IoTValues.HUMIDIFIER_OFF);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.CHILLER_STATE)) {
-                Boolean newChillerState = (Boolean) state.get(key);
-                newState.append(IoTValues.CHILLER_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newChillerState) {
-                    newState.append(IoTValues.CHILLER_ON);
-                } else {
-                    newState.append(IoTValues.CHILLER_OFF);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.HEATER_STATE)) {
-                Boolean newHeaterState = (Boolean) state.get(key);
-                newState.append(IoTValues.HEATER_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newHeaterState) {
-                    newState.append(IoTValues.HEATER_ON);
-                } else {
-                    newState.append(IoTValues.HEATER_OFF);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            }
-        }
-
-        //newState.append(IoTValues.MSG_END); // append protocol request terminator
-        StringBuffer msg
-                = new StringBuffer(IoTValues.SET_STATE + IoTValues.MSG_DELIM + newState.toString() + IoTValues.MSG_END);
-        System.out.println("New state for house: " + msg.toString());
+        System.out.println("New state for house: " + state);
 
-        String response = null;
+        HouseFrame response = null;
         synchronized (connection) {
-            response = connection.sendMessageToHouse(msg.toString());
+            response = connection.request(new HouseFrame(IoTValues.SET_STATE, state));
         }
         if (response == null) {
             System.out.println("No response");
@@ -187,115 +102,7 @@ public class IoTConnectManager {
         }
         System.out.println("Response: " + response);
 
-        return response.equals(IoTValues.OK);
-    }
-
-    /**
-     * Process the new state reported by the house
-     * @param stateUpdateMsg the new state message
-     * @return the new state
-     */
-    private Map<String,Object> handleStateUpdate(String stateUpdateMsg) {
-
-        if (stateUpdateMsg == null) {
-            return null;
-        }
-        if (stateUpdateMsg.length() == 0) {
-            return null;
-        }
-
-        System.out.println("State Update: " + stateUpdateMsg);
-        Hashtable<String,Object> state = new Hashtable<String, Object>();
-
-        String[] req = stateUpdateMsg.split(IoTValues.MSG_DELIM);
-
-        // invalid state update
-        if (req.length != 2) {
-            return null;
-        }
-        // is this a state update
-        String cmd = req[0];
-        String body = req[1];
-
-        if (!cmd.equals(IoTValues.STATE_UPDATE)) { // only message that comes from house
-            return null;
-        }
-
-        if (String.valueOf(body.charAt(body.length()-1)).equals(IoTValues.MSG_END)) {
-            body = body.substring(0, body.length() - 1);
-        }
-        if (body==null) {
-            return null;
-        }
-        StringTokenizer pt = new StringTokenizer(body, IoTValues.PARAM_DELIM);
-
-        // process the new state
-        while (pt.hasMoreTokens()) {
-            String param = pt.nextToken();
-            String data[] = param.split(IoTValues.PARAM_EQ);
-            Integer val = Integer.parseInt(data[1]);
-
-            if (data[0].equals(IoTValues.LIGHT_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.LIGHT_STATE, true);
-                } else {
-                    state.put(IoTValues.LIGHT_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.ALARM_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.ALARM_STATE, true);
-                } else {
-                state.put(IoTValues.ALARM_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.DOOR_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.DOOR_STATE, true);
-                } else {
-                    state.put(IoTValues.DOOR_STATE, false);
-                }
-            }  else if (data[0].equals(IoTValues.HUMIDIFIER_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.HUMIDIFIER_STATE, true);
-                } else {
-                    state.put(IoTValues.HUMIDIFIER_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.PROXIMITY_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.PROXIMITY_STATE, true);
-                } else {
-                    state.put(IoTValues.PROXIMITY_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.ALARM_ACTIVE)) {
-                if (val == 1) {
-                    state.put(IoTValues.ALARM_ACTIVE, true);
-                } else {
-                    state.put(IoTValues.ALARM_ACTIVE, false);
-                }
-            } else if (data[0].equals(IoTValues.HEATER_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.HEATER_STATE, true);
-                } else {
-                    state.put(IoTValues.HEATER_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.CHILLER_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.CHILLER_STATE, true);
-                } else {
-                    state.put(IoTValues.CHILLER_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.TEMP_READING)) {
-                state.put(IoTValues.TEMP_READING, val);
-            } else if (data[0].equals(IoTValues.HUMIDITY_READING)) {
-                state.put(IoTValues.HUMIDITY_READING, val);
-            } else if (data[0].equals(IoTValues.HVAC_MODE)) {
-                if (val == 1) {
-                    state.put(IoTValues.HVAC_MODE, "Heater");
-                } else {
-                    state.put(IoTValues.HVAC_MODE, "Chiller");
-                }
-            }
-        }
-        return state;
+        return response.is(IoTValues.OK);
     }
 
     /**
@@ -1,19 +1,42 @@
 package tartan.smarthome.resources.iotcontroller;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * A connection to an IoT-enabled house. This class handles the network connection to the house
  *
+ * A house that supports it can be subscribed to. After that the house sends SU messages whenever its
+ * state changes, interleaved with the replies to our requests, so a reader thread takes every line off
+ * the socket and sorts the pushed updates from the replies.
+ *
+ * Messages go through a {@link FrameCodec}. The connection starts in the text format and can be switched to
+ * the binary one with {@link #negotiateBinary()} before anything else is sent.
+ *
  * Project: LG Exec Ed Program
  * Copyright: 2015 Jeffrey S. Gennari
  * Versions:
  * 1.0 November 2015 - initial version
  */
-public class IoTConnection {
-    private Boolean isConnected = false;
+public class IoTConnection implements HouseChannel {
+    private volatile Boolean isConnected = false;
+
+    /** how long to wait for the house to answer a request */
+    private static final int REQUEST_TIMEOUT_MILLIS = 10000;
+
+    /** how long to wait for the house to accept the connection */
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    /** how long to wait for the house to answer a handshake; houses that don't support it never answer */
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 2000;
 
     /** connection settings */
     private String address = null;
@@ -21,8 +44,20 @@ public class IoTConnection {
 
     /** The connection is private so it can be controlled */
     private Socket houseSocket=null;
-    private BufferedWriter out=null;
-    private BufferedReader in = null;
+    private OutputStream out = null;
+    private InputStream in = null;
+
+    /** the wire format in use */
+    private volatile FrameCodec codec = new AsciiFrameCodec();
+
+    /** set once the house has agreed to push its updates */
+    private volatile boolean subscribed = false;
+
+    /** replies to our requests, handed over by the reader thread */
+    private final BlockingQueue<HouseFrame> replies = new ArrayBlockingQueue<>(16);
+
+    /** true while a GS request is waiting, so the next SU is its reply */
+    private volatile boolean awaitingState = false;
 
     /**
      * Get the house address
@@ -55,32 +90,181 @@ public class IoTConnection {
      * Get connection state
      * @return true if connected, false otherwise
      */
+    @Override
     public Boolean isConnected() {
         return isConnected;
     }
 
+    /**
+     * Check whether the house pushes its updates
+     * @return true if subscribed
+     */
+    @Override
+    public boolean isSubscribed() {
+        return subscribed;
+    }
+
+    /**
+     * Check whether the connection uses the binary format
+     * @return true if binary frames are in use
+     */
+    @Override
+    public boolean isBinary() {
+        return codec instanceof BinaryFrameCodec;
+    }
+
     /**
      * Send a message to the house and get a response
-     * @param msg the message to send
-     * @return the response
+     * @param request the message to send
+     * @return the response, or null if the house did not answer in time
      */
-    public String sendMessageToHouse(String msg) {
+    @Override
+    public HouseFrame request(HouseFrame request) {
         try {
+            if (subscribed) {
+                // a reply that arrived after its request timed out must not answer this one
+                replies.clear();
+                awaitingState = request.is(IoTValues.GET_STATE);
+                try {
+                    codec.write(out, request);
+                    return replies.poll(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } finally {
+                    // a GS that was never answered must not turn the next pushed update into a reply
+                    awaitingState = false;
+                }
+            }
 
-            out.write(msg, 0, msg.length());
-            out.flush();
-
-            return in.readLine();
+            // drop any late reply to an earlier request that timed out
+            while (in.available() > 0) {
+                codec.read(in);
+            }
+            codec.write(out, request);
+            HouseFrame reply = codec.read(in);
+            if (reply == null) {
+                // the house closed the connection
+                isConnected = false;
+            }
+            return reply;
 
+        } catch (SocketTimeoutException ste) {
+            System.err.println("No answer from " + address + ":" + port + " to " + request.getType());
         } catch (IOException ioe) {
             //ioe.printStackTrace();
+            isConnected = false;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
         }
         return null;
     }
 
+    /**
+     * Offer the house the binary format. This must come before any other request. The offer is sent as
+     * text, and if the house answers OK both sides use binary frames from then on
+     * @return true if the house switched, false if it refused, or null if it did not answer at all, which
+     * means it is an old house that ignores requests it doesn't know
+     */
+    @Override
+    public Boolean negotiateBinary() {
+        if (!isConnected || subscribed) {
+            return false;
+        }
+        try {
+            out.write(BinaryFrameCodec.VERSION_REQUEST.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            HouseFrame reply = awaitHandshake();
+            if (reply == null) {
+                return null;
+            }
+            if (!reply.is(IoTValues.OK)) {
+                return false;
+            }
+        } catch (SocketTimeoutException ste) {
+            return null;
+        } catch (IOException ioe) {
+            return false;
+        }
+        codec = new BinaryFrameCodec();
+        return true;
+    }
+
+    /**
+     * Ask the house to push its state changes. Houses that don't know the request don't answer, so this
+     * waits only briefly before falling back to polling
+     * @param listener called with each SU message the house pushes, on the reader thread
+     * @return true if the house agreed
+     */
+    @Override
+    public boolean subscribe(Consumer<HouseFrame> listener) {
+        if (!isConnected || subscribed) {
+            return subscribed;
+        }
+        try {
+            codec.write(out, new HouseFrame(IoTValues.SUBSCRIBE));
+            HouseFrame reply = awaitHandshake();
+            if (reply == null || !reply.is(IoTValues.OK)) {
+                return false;
+            }
+        } catch (IOException ioe) {
+            return false;
+        }
+
+        // from now on the reader thread owns the input
+        subscribed = true;
+        Thread reader = new Thread(() -> readUpdates(listener), "house-reader-" + address + ":" + port);
+        reader.setDaemon(true);
+        reader.start();
+        return true;
+    }
+
+    /**
+     * Wait briefly for the answer to a handshake
+     * @return the answer
+     * @throws IOException if the house did not answer in time or the connection failed
+     */
+    private HouseFrame awaitHandshake() throws IOException {
+        houseSocket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        try {
+            return codec.read(in);
+        } finally {
+            try {
+                houseSocket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                // the socket is gone; the next request will find out
+            }
+        }
+    }
+
+    /**
+     * Read every message the house sends. An SU is the reply to a waiting GS; otherwise it is a pushed
+     * update. Anything else is a reply
+     * @param listener gets the pushed updates
+     */
+    private void readUpdates(Consumer<HouseFrame> listener) {
+        try {
+            houseSocket.setSoTimeout(0);
+            HouseFrame frame;
+            while ((frame = codec.read(in)) != null) {
+                if (frame.is(IoTValues.STATE_UPDATE) && !awaitingState) {
+                    try {
+                        listener.accept(frame);
+                    } catch (RuntimeException e) {
+                        System.err.println("Bad update from " + address + ":" + port + ": " + e);
+                    }
+                } else {
+                    awaitingState = false;
+                    replies.offer(frame);
+                }
+            }
+        } catch (IOException ioe) {
+            // the house went away
+        }
+        isConnected = false;
+    }
+
     /**
      * Disconnect from the house
      */
+    @Override
     public void disconnect() {
         if (houseSocket!=null) {
             if (houseSocket.isConnected()) {
@@ -98,13 +282,16 @@ public class IoTConnection {
      * Connect to the house
      * @return true if connection successful, false otherwise
      */
+    @Override
     public Boolean connect() {
 
         try {
-            houseSocket = new Socket(this.address, this.port);
+            houseSocket = new Socket();
+            houseSocket.connect(new InetSocketAddress(this.address, this.port), CONNECT_TIMEOUT_MILLIS);
+            houseSocket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
 
-            out = new BufferedWriter(new OutputStreamWriter(houseSocket.getOutputStream()));
-            in = new BufferedReader(new InputStreamReader( houseSocket.getInputStream()));
+            out = new BufferedOutputStream(houseSocket.getOutputStream());
+            in = new BufferedInputStream(houseSocket.getInputStream());
 
         } catch (UnknownHostException uhe) {
             System.err.println("Unknown host: " + address);
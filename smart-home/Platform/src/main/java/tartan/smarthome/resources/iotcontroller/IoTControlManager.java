@@ -2,8 +2,17 @@ package tartan.smarthome.resources.iotcontroller;
 
 import java.io.*;
 import java.text.SimpleDateFormat;
+import java.time.LocalTime;
 import java.util.*;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import tartan.smarthome.core.TartanEventPage;
+import tartan.smarthome.outbox.Outbox;
 import tartan.smarthome.resources.TartanStateEvaluator;
 
 /**
@@ -11,14 +20,40 @@ import tartan.smarthome.resources.TartanStateEvaluator;
  * the focal point for changing settings adding users, and ensuring that the
  * house remains in a consistent state
  *
+ * The house state is owned by a {@link HouseMailbox}. Polls, user commands and
+ * timers are all posted to the mailbox and run there one at a time, so the state
+ * and the connection are never touched by two threads at once.
+ *
+ * Each house lives on a {@link HouseShard}, whose thread runs the mailbox and
+ * whose timer wheel holds the house's timers. A request to the house waits on
+ * the shard's I/O threads instead, with the mailbox holding everything else for
+ * the house until the answer is back, so a house that stops answering never
+ * holds up the rest of its shard. The house can be moved to another shard while
+ * it runs.
+ *
  * Project: LG Exec Ed Program Copyright: 2015 Jeffrey S. Gennari Versions: 1.0
  * November 2015 - initial version
  */
 
 public class IoTControlManager {
 
+    /** how often to poll the house, in seconds, unless a poll policy is set */
+    private static final int POLL_SECONDS = 5;
+
+    /** how often to poll a house that pushes its updates, only to check that it is still there */
+    private static final int LIVENESS_SECONDS = 60;
+
+    /** how long to wait between attempts to reach a house that is not connected, in seconds */
+    private static final int RECONNECT_SECONDS = 10;
+
+    /** how many log messages to keep for each house */
+    private static final int LOG_CAPACITY = 1000;
+
+    /** the time stamp the rules put at the start of every line they log */
+    private static final Pattern RULES_LOG_STAMP = Pattern.compile("(?m)^\\[[^\\]]*\\]: ");
+
     /** connection to the house */
-    private IoTConnectManager connMgr;
+    private volatile IoTConnectManager connMgr;
 
     /** the user settings */
     private Hashtable<String, Object> userSettings;
@@ -28,18 +63,85 @@ public class IoTControlManager {
     /** the path to user settings and credentials */
     private String settingsPath;
 
-    /** the log messages */
-    private Vector<String> logMessages;
+    /** the newest log messages; older ones are dropped so the log stays the same size */
+    private EventLog logMessages;
 
     private LoginHandler loginHandler;
 
-    /** Thread to manage state updates */
-    private Thread updateThread;
+    /** runs everything that reads or changes the house state */
+    private HouseMailbox mailbox;
+
+    /** the shard the house runs on; its timer wheel holds the poll, away and night lock timers */
+    private volatile HouseShard shard;
+
+    /** polls in a row that got no answer from the house */
+    private int missedUpdates = 0;
+
+    /** decides when to poll next */
+    private PollPolicy pollPolicy = new FixedPollPolicy(POLL_SECONDS);
+
+    /** the interval chosen for the next poll, in seconds */
+    private volatile int pollInterval = POLL_SECONDS;
+
+    /** what the house last reported, so unchanged settings are not sent again */
+    private final DeviceShadow shadow = new DeviceShadow();
+
+    /** true to offer the house the binary wire format when connecting */
+    private volatile boolean binaryFraming = false;
+
+    /** the house's ID on its building gateway, or null if it has a connection of its own */
+    private volatile Integer gatewayId = null;
+
+    /** where the house is, kept so it can be reconnected */
+    private volatile String houseAddress = null;
+    private volatile Integer housePort = null;
+
+    /** set when the house is disconnected on purpose, so it is not reconnected */
+    private volatile boolean stopped = false;
+
+    /** the state changes waiting for the house to come back */
+    private volatile CommandQueue commands = new CommandQueue(null);
+
+    /** the commands behind the queued changes, by their place in the queue */
+    private final ConcurrentSkipListMap<Long, HouseCommand> waiting = new ConcurrentSkipListMap<>();
+
+    /**
+     * advances whenever the state, the settings or the log change, so readers can tell a snapshot is stale.
+     * It starts from the clock so that a version a client kept from before a restart is never taken for one
+     * after it
+     */
+    private final AtomicLong stateVersion = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    /** true if the house reported a change since the last poll was scheduled */
+    private boolean houseChanged = true;
 
     /** Handle updates to the house state */
     private TartanStateEvaluator stateEvaluator;
 
-    private Map<String, Object> lastState;  
+    /** what the rules logged last time, without time stamps, owned by the mailbox */
+    private String lastRulesLog = "";
+
+    /**
+     * the state the rules work on, owned by the mailbox. Besides what the state table holds it has the user
+     * settings, passcodes and night lock times the rules need. Nothing outside the mailbox reads it; they
+     * read the state table instead
+     */
+    private Map<String, Object> lastState;
+
+    /** where the state is published for readers outside the mailbox, or null to keep it private */
+    private volatile FleetStateTable stateTable;
+
+    /** the house name in the state table */
+    private volatile String tableName;
+
+    /** where the house's changes are added for other systems, or null if there is no outbox */
+    private volatile Outbox outbox;
+
+    /** the house name in the outbox */
+    private volatile String outboxHouse;
+
+    /** the house's row in the state table while it is connected */
+    private volatile long stateRow = FleetStateTable.NO_ROW;
 
     /**
      * Constructor for the controller
@@ -48,8 +150,19 @@ public class IoTControlManager {
      * @param password the password
      */
     public IoTControlManager(String user, String password, TartanStateEvaluator evaluator) {
+        this(user, password, evaluator, ShardedRuntime.getDefault().assign(user));
+    }
+
+    /**
+     * Constructor for a controller that runs on a given shard
+     *
+     * @param user     the user name
+     * @param password the password
+     * @param shard    the shard to run the house on
+     */
+    public IoTControlManager(String user, String password, TartanStateEvaluator evaluator, HouseShard shard) {
 
-        logMessages = new Vector<String>();
+        logMessages = new EventLog(LOG_CAPACITY);
 
         userSettings = new Hashtable<String, Object>();
 
@@ -63,7 +176,94 @@ public class IoTControlManager {
 
         connMgr = null;
 
+        this.shard = shard;
+        mailbox = new HouseMailbox(user, shard.getExecutor(), shard.getIoExecutor());
+        shard.add(this);
+
+        // the house does not report these, so start from safe values
         lastState = new Hashtable<>();
+        lastState.put(IoTValues.AWAY_TIMER, false);
+        lastState.put(IoTValues.DOOR_LOCK_STATE, false);
+        lastState.put(IoTValues.OWNERS_PHONE_NEARBY, false);
+        lastState.put(IoTValues.NIGHT_LOCK_START, 0);
+        lastState.put(IoTValues.NIGHT_LOCK_END, 0);
+    }
+
+    /**
+     * Get the mailbox that owns this house's state
+     * @return the mailbox
+     */
+    public HouseMailbox getMailbox() {
+        return mailbox;
+    }
+
+    /**
+     * Get the shard the house runs on
+     * @return the shard
+     */
+    public HouseShard getShard() {
+        return shard;
+    }
+
+    /**
+     * Move the house to another shard. The move runs in the mailbox, so nothing else is running for the
+     * house while its timers and its membership change hands; its next message runs on the new shard
+     * @param target the shard to move to
+     */
+    void moveTo(HouseShard target) {
+        mailbox.execute(() -> {
+            HouseShard from = shard;
+            if (from == target || stopped) {
+                return;
+            }
+            from.getTimer().transfer(this, target.getTimer());
+            from.remove(this);
+            target.add(this);
+            shard = target;
+            mailbox.setExecutor(target.getExecutor(), target.getIoExecutor());
+        });
+    }
+
+    /**
+     * Publish the house state to a table, where it can be read without asking the mailbox. The house is
+     * given a row when it connects and gives it back when it disconnects. Must be set before connecting
+     * @param table the table
+     * @param house the house name to list the row under
+     */
+    public void setStateTable(FleetStateTable table, String house) {
+        this.stateTable = table;
+        this.tableName = house;
+    }
+
+    /**
+     * Add every state change the rules make, and every command, to an outbox for other systems. Must be set
+     * before connecting
+     * @param outbox the outbox, or null for none
+     * @param house the house name to add the records under
+     */
+    public void setOutbox(Outbox outbox, String house) {
+        this.outbox = outbox;
+        this.outboxHouse = house;
+    }
+
+    /**
+     * Read the last state the house published, without waiting for the mailbox or the house
+     * @param into where to copy the state
+     * @return true if the house has published a state since it connected
+     */
+    public boolean readState(FleetStateTable.Row into) {
+        FleetStateTable table = stateTable;
+        return table != null && table.read(stateRow, into);
+    }
+
+    /**
+     * Write the last known state to the state table. Only called in the mailbox
+     */
+    private void publishState() {
+        FleetStateTable table = stateTable;
+        if (table != null) {
+            table.write(stateRow, lastState, isConnected(), stateVersion.get());
+        }
     }
 
     /**
@@ -116,20 +316,25 @@ public class IoTControlManager {
         initialSettings.put(IoTValues.LOCKED_PASSCODE, doorLockedPasscode);
 
         // The away timer is not set to start
-        lastState.put(IoTValues.AWAY_TIMER, false);
+        mailbox.execute(() -> lastState.put(IoTValues.AWAY_TIMER, false));
 
         // update the settings
         updateSettings(initialSettings);
     }
 
     /**
-     * Update user settings (the alarm delay)
+     * Update user settings (the alarm delay). The settings change in the mailbox,
+     * so they apply to every command posted after this call
      *
      * @param newSettings the new user settings.
      */
     public void updateSettings(Map<String, Object> newSettings) {
         if (userSettings != null && newSettings != null) {
-            userSettings.putAll(newSettings);
+            Map<String, Object> settings = new Hashtable<>(newSettings);
+            mailbox.execute(() -> {
+                userSettings.putAll(settings);
+                stateVersion.incrementAndGet();
+            });
         }
     }
 
@@ -142,113 +347,417 @@ public class IoTControlManager {
         return userSettings;
     }
 
-    public Thread getUpdateThread() {
-        return updateThread;
+    /**
+     * Keep the commands for an unreachable house in a queue of its own. Must be set before connecting
+     * @param commands the queue, which may hold commands from before a restart
+     */
+    public void setCommandQueue(CommandQueue commands) {
+        this.commands = commands;
     }
 
     /**
-     * User-initiated state update
-     * @param stateUpdate
+     * User-initiated state update. The update is posted to the mailbox and runs
+     * after everything already posted for this house. If the house can't be reached the update is queued
+     * instead and sent when the house is back. Either way this returns without waiting; the command
+     * records how the update went
+     * @param stateUpdate the requested changes
+     * @param command the command to move along as the update is sent and the house answers
+     * @return completes once the command is done or queued for an unreachable house
      */
-    public void processStateUpdate(Map<String, Object> stateUpdate) {
+    public CompletableFuture<Void> processStateUpdate(Map<String, Object> stateUpdate, HouseCommand command) {
+        Map<String, Object> update = new Hashtable<>(stateUpdate);
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        mailbox.execute(failOnError(done, () -> {
+            if (!isConnected()) {
+                queueCommand(update, command);
+                commandAccepted(update, command);
+                done.complete(null);
+                return;
+            }
 
-        StringBuffer log = new StringBuffer();
+            fetchState(current -> failOnError(done, () -> {
+                // User settings are part of the state
+                Map<String, Object> completeState = new Hashtable<>();
+                completeState.putAll(current != null ? current : lastState);
+                completeState.putAll(update);
+                command.sent();
+                applyRules(completeState, accepted -> {
+                    if (accepted) {
+                        command.acked();
+                        commandAccepted(update, command);
+                    } else {
+                        command.failed("The house did not accept the update");
+                    }
+
+                    // somebody is using the house, so watch it closely for a while
+                    houseChanged = true;
+                    schedulePoll();
+                    done.complete(null);
+                });
+            }).run());
+        }));
+        return done;
+    }
+
+    /**
+     * Wrap a step of an update so that if it throws, the update's future fails too rather than never
+     * completing
+     * @param done the update's future
+     * @param step the step
+     * @return the wrapped step
+     */
+    private static Runnable failOnError(CompletableFuture<?> done, Runnable step) {
+        return () -> {
+            try {
+                step.run();
+            } catch (RuntimeException e) {
+                done.completeExceptionally(e);
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * Add a command to the outbox once it is accepted: queued for an unreachable house, or taken by the
+     * house. A command the house refused is left out. Only called in the mailbox
+     * @param update the requested changes
+     * @param command the command
+     */
+    private void commandAccepted(Map<String, Object> update, HouseCommand command) {
+        Outbox out = outbox;
+        if (out != null) {
+            out.commandAccepted(outboxHouse, command.getId(), update);
+        }
+    }
 
-        // User settings are part of the state
-        Map<String, Object> completeState = new Hashtable<>();
-        completeState.putAll(fetchState());
-        completeState.putAll(stateUpdate);     
-        Map<String, Object> newState = stateEvaluator.evaluateState(completeState, log);
-        logMessages.add(log.toString());
-        synchronized(connMgr) {
-            connMgr.setState(newState);
+    /**
+     * Queue a state update for a house that can't be reached. Only called in the mailbox
+     * @param update the requested changes
+     * @param command the command for the update
+     */
+    private void queueCommand(Map<String, Object> update, HouseCommand command) {
+        long id;
+        try {
+            id = commands.enqueue(update);
+        } catch (UncheckedIOException e) {
+            command.failed("The command could not be queued: " + e.getMessage());
+            throw e;
         }
-        this.lastState.putAll(newState);
+        waiting.put(id, command);
+        updateLog("House unreachable, queued command " + command.getId());
+        publishState();
     }
 
+    /**
+     * Send the house everything that was queued while it was unreachable, merged into one update. The
+     * queue is only cleared once the house has accepted it. Only called in the mailbox, as the last thing
+     * a message does
+     * @param current the state the house just reported
+     * @param then runs in the mailbox once the house has answered
+     */
+    private void deliverCommands(Map<String, Object> current, Runnable then) {
+        long upTo = commands.getLastId();
+        Collection<HouseCommand> delivering = waiting.headMap(upTo, true).values();
+        for (HouseCommand command : delivering) {
+            command.sent();
+        }
+        Map<String, Object> completeState = new Hashtable<>(current);
+        completeState.putAll(commands.getPending());
+        applyRules(completeState, accepted -> {
+            if (accepted) {
+                commands.delivered(upTo);
+                for (HouseCommand command : delivering) {
+                    command.acked();
+                }
+                delivering.clear();
+                updateLog("Delivered queued commands");
+            }
+            houseChanged = true;
+            then.run();
+        });
+    }
+
+    /**
+     * Fetch the current state from the house. Waits for the mailbox and the house, so it must not be called
+     * from the mailbox
+     * @return a copy of the state, or null if the house is not connected
+     */
     public Map<String, Object> getCurrentState() {
-        return fetchState();
+        CompletableFuture<Map<String, Object>> result = new CompletableFuture<>();
+        mailbox.execute(failOnError(result,
+                () -> fetchState(state -> result.complete(state != null ? new Hashtable<>(state) : null))));
+        return result.join();
     }
 
     /**
-     * Fetch the complete state from the house
-     * @return
+     * Fetch the complete state from the house. The request runs on the shard's I/O threads. Only called in
+     * the mailbox, as the last thing a message does
+     * @param then gets the state, or null if the house did not answer; runs in the mailbox
      */
-    private Map<String, Object> fetchState() {
-        // Map<String, Object> state = null;
-        synchronized (connMgr) {
-            if (connMgr.isConnected() == false) {
-                return null;
+    private void fetchState(Consumer<Map<String, Object>> then) {
+        IoTConnectManager conn = connMgr;
+        if (conn == null || conn.isConnected() == false) {
+            then.accept(null);
+            return;
+        }
+        mailbox.await(conn::getState,
+                houseState -> then.accept(houseState != null ? mergeHouseState(houseState) : null));
+    }
+
+    /**
+     * Merge a state reported by the house into the last known state. Only called in the mailbox
+     * @param houseState what the house reported
+     * @return the complete state
+     */
+    private Map<String, Object> mergeHouseState(Map<String, Object> houseState) {
+        for (Map.Entry<String, Object> e : houseState.entrySet()) {
+            if (!e.getValue().equals(lastState.get(e.getKey()))) {
+                houseChanged = true;
+                stateVersion.incrementAndGet();
+                break;
             }
-            lastState = connMgr.getState();
         }
 
+        // The house only reports what it knows, so keep everything else
+        lastState.putAll(houseState);
+        shadow.report(houseState);
+
         // The away timer is controlled here
         lastState.put(IoTValues.AWAY_TIMER, false);
 
         // The state includes the user settings 
         lastState.putAll(userSettings);
-        // lastState.putAll(state);
+        publishState();
         return lastState;
     }
 
     /**
-     * Start a thread to poll the house state
+     * Start polling the house state. The handshakes are requests to the house, so each one waits in the
+     * mailbox for the answer before the next is sent
      */
-    private void startHouseUpdateThread() {
+    private void startHouseUpdates() {
+        mailbox.execute(() -> {
+            IoTConnectManager conn = connMgr;
+            mailbox.await(() -> binaryFraming ? conn.negotiateBinary() : Boolean.FALSE, binary -> {
+                if (Boolean.TRUE.equals(binary)) {
+                    updateLog("House speaks the binary protocol");
+                }
+                if (binary == null) {
+                    // a house that ignored the version offer is too old to push its updates
+                    deliverQueued();
+                    return;
+                }
+                mailbox.await(() -> conn.subscribe(state -> mailbox.execute(() -> housePushedState(state))),
+                        subscribed -> {
+                            if (Boolean.TRUE.equals(subscribed)) {
+                                updateLog("House pushes its updates");
+                            }
+                            deliverQueued();
+                        });
+            });
+        });
+        updateLog("Started update monitor");
+    }
 
-        updateThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
+    /**
+     * Send the house what was queued while it was away, then start polling. If the house doesn't answer,
+     * the next poll tries again. Only called in the mailbox, as the last thing a message does
+     */
+    private void deliverQueued() {
+        if (commands.isEmpty()) {
+            schedulePoll();
+            return;
+        }
+        fetchState(current -> {
+            if (current != null) {
+                deliverCommands(current, this::schedulePoll);
+            } else {
+                schedulePoll();
+            }
+        });
+    }
 
-                Integer missedUpdates = 0;
-                while (true) {
+    /**
+     * Schedule the next poll. The poll policy decides when; a house that pushes its updates is only
+     * polled now and then to check that it is still there
+     */
+    private void schedulePoll() {
+        int seconds = pollPolicy.nextPollSeconds(houseChanged, lastState);
+        if (connMgr.isSubscribed()) {
+            seconds = Math.max(seconds, LIVENESS_SECONDS);
+        }
+        houseChanged = false;
+        pollInterval = seconds;
+        shard.getTimer().reschedule(this, TimerReason.POLL, seconds, TimeUnit.SECONDS,
+                () -> mailbox.execute(this::pollHouse));
+    }
 
-                    Map<String, Object> currentState = fetchState();
-                    if (currentState != null) {
+    /**
+     * Set the poll policy. The new policy decides from the next poll on
+     * @param policy the policy
+     */
+    public void setPollPolicy(PollPolicy policy) {
+        mailbox.execute(() -> pollPolicy = policy);
+    }
 
-                        StringBuffer log = new StringBuffer();
-                        Map<String, Object> newState = stateEvaluator.evaluateState(currentState, log);
-                        logMessages.add(log.toString());
-                        
-                        // save this state 
-                        IoTControlManager.this.lastState.putAll(newState);
+    /**
+     * Choose whether to offer the house the binary wire format. Takes effect on the next connection; a
+     * house that doesn't support it stays on the text format
+     * @param binary true to offer binary frames
+     */
+    public void setBinaryFraming(boolean binary) {
+        this.binaryFraming = binary;
+    }
 
-                        synchronized (connMgr) {
-                            connMgr.setState(newState);
-                        }
-                        
-                        // Must handle away timer here
-                        if (true == (Boolean) newState.getOrDefault(IoTValues.AWAY_TIMER, false)) {
-                            startAwayTimer();
-                        }
-                        else 
-                        missedUpdates = 0;
+    /**
+     * Reach the house through a building gateway. The configured address and port are then the gateway's,
+     * and houses behind the same gateway share one connection. Takes effect on the next connection
+     * @param gatewayId the house's ID on the gateway, or null for a direct connection
+     */
+    public void setGatewayId(Integer gatewayId) {
+        this.gatewayId = gatewayId;
+    }
 
-                    } else {
-                        missedUpdates++;
-                    }
+    /**
+     * Get the current poll interval
+     * @return the seconds between the last poll and the next
+     */
+    public int getPollInterval() {
+        return pollInterval;
+    }
 
-                    if (missedUpdates > 6) { // 6 missed updates is 30 seconds
-                        revertState();
-                    }
+    /**
+     * Apply the rules as soon as the house reports a change. Only called in the mailbox
+     * @param houseState what the house pushed
+     */
+    private void housePushedState(Map<String, Object> houseState) {
+        if (isConnected()) {
+            missedUpdates = 0;
+            applyRules(mergeHouseState(houseState), accepted -> { });
+        }
+    }
 
-                    // currently a 5sec delay
-                    try {
-                        Thread.sleep(5000);
-                    } catch (InterruptedException ie) {
+    /**
+     * Poll the house and apply the rules to what it reports. Only called in the mailbox
+     */
+    private void pollHouse() {
+        if (stopped) {
+            return;
+        }
+        if (!isConnected()) {
+            reconnect();
+            return;
+        }
+        fetchState(currentState -> {
+            try {
+                if (currentState == null) {
+                    missedUpdates++;
+                    if (missedUpdates > 6) { // 6 missed updates is 30 seconds
+                        revertState(this::schedulePoll);
+                    } else {
+                        schedulePoll();
                     }
+                    return;
+                }
+                missedUpdates = 0;
+                if (commands.isEmpty()) {
+                    applyRules(currentState, accepted -> schedulePoll());
+                } else {
+                    deliverCommands(currentState, this::schedulePoll);
                 }
+            } catch (RuntimeException e) {
+                // keep polling whatever went wrong with this poll
+                schedulePoll();
+                throw e;
             }
         });
-        updateThread.start();
-        updateLog("Started update monitor");
     }
 
-    private void revertState() {
-        synchronized (connMgr) {
-            connMgr.setState(this.lastState);
+    /**
+     * Evaluate a state, send the result to the house and set the timers it needs. Only called in the
+     * mailbox, as the last thing a message does
+     * @param state the state to evaluate
+     * @param then gets true if the house accepted the new state or already had it; runs in the mailbox
+     */
+    private void applyRules(Map<String, Object> state, Consumer<Boolean> then) {
+        StringBuffer log = new StringBuffer();
+        Map<String, Object> newState = stateEvaluator.evaluateState(state, log);
+
+        Map<String, Object> changed = new Hashtable<>();
+        for (Map.Entry<String, Object> e : newState.entrySet()) {
+            if (!e.getValue().equals(lastState.get(e.getKey()))) {
+                changed.put(e.getKey(), e.getValue());
+            }
+        }
+        Outbox out = outbox;
+        if (out != null && !changed.isEmpty()) {
+            out.stateChanged(outboxHouse, changed);
+        }
+
+        // The rules tell the same story on every poll of a quiet house, so only log it, and only move the
+        // version, when the state or the story changed
+        String rulesLog = RULES_LOG_STAMP.matcher(log).replaceAll("");
+        boolean retold = !rulesLog.isEmpty() && !rulesLog.equals(lastRulesLog);
+        if (retold) {
+            logMessages.append(log.toString());
         }
+        lastRulesLog = rulesLog;
+
+        // save this state, and send the house only what it doesn't already have
+        lastState.putAll(newState);
+        // the rules ask for the away timer again on every poll of an empty house, which is no change
+        changed.remove(IoTValues.AWAY_TIMER);
+        if (retold || !changed.isEmpty()) {
+            stateVersion.incrementAndGet();
+        }
+        publishState();
+        Map<String, Object> changes = shadow.diff(newState);
+        if (changes.isEmpty()) {
+            rulesApplied(newState, true, then);
+            return;
+        }
+        IoTConnectManager conn = connMgr;
+        mailbox.await(() -> conn.setState(changes), reply -> {
+            boolean accepted = Boolean.TRUE.equals(reply);
+            if (accepted) {
+                shadow.acknowledge(changes);
+            } else {
+                shadow.reset();
+            }
+            rulesApplied(newState, accepted, then);
+        });
+    }
+
+    /**
+     * Set the timers a new state needs once the house has answered. Only called in the mailbox
+     * @param newState the state the rules chose
+     * @param accepted true if the house accepted it
+     * @param then gets whether the house accepted it
+     */
+    private void rulesApplied(Map<String, Object> newState, boolean accepted, Consumer<Boolean> then) {
+        // Must handle away timer here. The timer is only set once however many times the rules ask for it,
+        // and it is cancelled as soon as somebody is home again
+        boolean vacant = Boolean.FALSE.equals(newState.get(IoTValues.PROXIMITY_STATE));
+        if (true == (Boolean) newState.getOrDefault(IoTValues.AWAY_TIMER, false)) {
+            startAwayTimer();
+        } else if (!vacant) {
+            shard.getTimer().cancel(this, TimerReason.AWAY_LOCK);
+        }
+
+        startNightLockTimer();
+        then.accept(accepted);
+    }
+
+    /**
+     * Send the house the whole last known state again, after it has missed too many polls. Only called in
+     * the mailbox, as the last thing a message does
+     * @param then runs in the mailbox once the house has answered
+     */
+    private void revertState(Runnable then) {
+        shadow.reset();
+        IoTConnectManager conn = connMgr;
+        Map<String, Object> state = new Hashtable<>(lastState);
+        mailbox.await(() -> conn.setState(state), reply -> then.run());
     }
 
     /**
@@ -266,25 +775,102 @@ public class IoTControlManager {
             return false;
         }
 
-        IoTConnection conn = new IoTConnection(houseAddress, housePort);
-        conn.connect();
-        connMgr = new IoTConnectManager(conn);
+        this.houseAddress = houseAddress;
+        this.housePort = housePort;
+        this.stopped = false;
+        shard.add(this);
+        if (stateTable != null && stateRow == FleetStateTable.NO_ROW) {
+            stateRow = stateTable.allocate(tableName);
+        }
+        connMgr = new IoTConnectManager(openChannel());
 
         if (connMgr.isConnected()) {
-            startHouseUpdateThread();
+            startHouseUpdates();
             return true;
         }
         updateLog("Connected!");
+
+        // keep trying, so commands queued meanwhile reach the house when it is back
+        mailbox.execute(this::publishState);
+        scheduleReconnect();
         return false;
     }
 
     /**
-     * Disconnect from a house
+     * Open a new connection to the house, directly or through its gateway
+     * @return the connection, which may have failed to connect
      */
-    public void disconnectFromHouse() {
-        if (connMgr.isConnected()) {
-            connMgr.disconnectFromHouse();
+    private HouseChannel openChannel() {
+        HouseChannel conn;
+        if (gatewayId != null) {
+            conn = GatewayConnection.forGateway(houseAddress, housePort).channel(gatewayId);
+        } else {
+            conn = new IoTConnection(houseAddress, housePort);
         }
+        conn.connect();
+        return conn;
+    }
+
+    /**
+     * Try to reach the house again after it was lost. Connecting can take until the connection times out,
+     * so it runs on the shard's I/O threads. Only called in the mailbox
+     */
+    private void reconnect() {
+        IoTConnectManager old = connMgr;
+        mailbox.await(() -> {
+            old.disconnectFromHouse();
+            return new IoTConnectManager(openChannel());
+        }, conn -> {
+            if (conn != null) {
+                connMgr = conn;
+            }
+            if (isConnected()) {
+                updateLog("Reconnected");
+                missedUpdates = 0;
+                houseChanged = true;
+                shadow.reset();
+                startHouseUpdates();
+            } else {
+                publishState();
+                scheduleReconnect();
+            }
+        });
+    }
+
+    private void scheduleReconnect() {
+        shard.getTimer().reschedule(this, TimerReason.POLL, RECONNECT_SECONDS, TimeUnit.SECONDS,
+                () -> mailbox.execute(this::pollHouse));
+    }
+
+    /**
+     * Disconnect from a house
+     * @return completes once the house is disconnected and its row in the state table is freed
+     */
+    public CompletableFuture<Void> disconnectFromHouse() {
+        stopped = true;
+        shard.getTimer().cancelAll(this);
+        shard.remove(this);
+        long row = stateRow;
+        stateRow = FleetStateTable.NO_ROW;
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        mailbox.execute(failOnError(done, () -> {
+            IoTConnectManager conn = connMgr;
+            Runnable free = () -> {
+                if (stateTable != null) {
+                    stateTable.free(row);
+                }
+                done.complete(null);
+            };
+            if (conn == null || !conn.isConnected()) {
+                free.run();
+                return;
+            }
+            mailbox.await(() -> {
+                conn.disconnectFromHouse();
+                return null;
+            }, nothing -> free.run());
+        }));
+        return done;
     }
 
     /**
@@ -293,13 +879,54 @@ public class IoTControlManager {
      * @param logEntry the new log entry
      */
     public void updateLog(String logEntry) {
+        if (logEntry == null || logEntry.isEmpty()) {
+            return;
+        }
         Long timeStamp = System.currentTimeMillis();
         SimpleDateFormat sdf = new SimpleDateFormat("MMM dd,yyyy HH:mm");
-        logMessages.add("[" + sdf.format(new Date(timeStamp)) + "]: " + logEntry + "\n");
+        logMessages.append("[" + sdf.format(new Date(timeStamp)) + "]: " + logEntry + "\n");
+        stateVersion.incrementAndGet();
+    }
+
+    /**
+     * Add a log entry from another thread. The entry is added in the mailbox and the state published again,
+     * so readers of the state table see the new entry
+     *
+     * @param logEntry the new log entry
+     */
+    public void postLog(String logEntry) {
+        mailbox.execute(() -> {
+            updateLog(logEntry);
+            publishState();
+        });
+    }
+
+    /**
+     * Get the state version. It changes whenever anything returned by {@link #getCurrentState()} or
+     * {@link #getLogMessages()} may have changed, so a snapshot taken at one version can be reused until
+     * the version moves on
+     * @return the version
+     */
+    public long getStateVersion() {
+        return stateVersion.get();
     }
 
+    /**
+     * Get the log messages
+     * @return a copy of the log, safe to iterate while the house keeps logging
+     */
     public Vector<String> getLogMessages() {
-        return logMessages;
+        return logMessages.getMessages();
+    }
+
+    /**
+     * Read the log entries after a cursor
+     * @param after the ID of the last entry already read, or 0 to start at the oldest entry kept
+     * @param limit the most entries to return
+     * @return the page
+     */
+    public TartanEventPage getLogPage(long after, int limit) {
+        return logMessages.page(after, limit);
     }
 
     /**
@@ -307,31 +934,55 @@ public class IoTControlManager {
      * the house down
      */
     private void startAwayTimer() {
-        Timer t = new Timer();
-
         Integer awayTimeout = (Integer) userSettings.get(IoTValues.ALARM_DELAY);
 
-        t.schedule(new TimerTask() {
+        // the timer thread only posts the expiry; the house state changes in the mailbox
+        shard.getTimer().schedule(this, TimerReason.AWAY_LOCK, awayTimeout, TimeUnit.SECONDS,
+                () -> mailbox.execute(this::awayTimerExpired));
+    }
 
-            /**
-             * This anonymous thread updates the state when the house is vacant
-             */
-            @Override
-            public void run() {
+    /**
+     * Lock the house down because it is still vacant. Only called in the mailbox
+     */
+    private void awayTimerExpired() {
+        if (!isConnected()) {
+            return;
+        }
 
-                // signal that the away timer has fired
-                IoTControlManager.this.lastState.put(IoTValues.AWAY_TIMER, true);
+        // signal that the away timer has fired
+        lastState.put(IoTValues.AWAY_TIMER, true);
+        applyRules(lastState, accepted -> { });
+    }
 
-                synchronized (connMgr) {
+    /**
+     * Set a timer for the next time the night lock window opens or closes, so the door is locked
+     * on time rather than at the next poll
+     */
+    private void startNightLockTimer() {
+        int start = Integer.parseInt(String.valueOf(lastState.get(IoTValues.NIGHT_LOCK_START)));
+        int end = Integer.parseInt(String.valueOf(lastState.get(IoTValues.NIGHT_LOCK_END)));
+        if (start == end) {
+            return; // no night lock
+        }
 
-                    StringBuffer log = new StringBuffer();
-                    Map<String, Object> newState = stateEvaluator.evaluateState(IoTControlManager.this.lastState, log);
-                    logMessages.add(log.toString());
-                    connMgr.setState(newState);
-                    IoTControlManager.this.lastState.putAll(newState);
-                }
-            }
-        }, awayTimeout * 1000);
+        // the rules compare strictly, so evaluate one second after the boundary
+        int now = LocalTime.now().toSecondOfDay();
+        int day = 24 * 60 * 60;
+        int untilStart = Math.floorMod(start - now, day);
+        int untilEnd = Math.floorMod(end - now, day);
+        int delay = Math.min(untilStart == 0 ? day : untilStart, untilEnd == 0 ? day : untilEnd) + 1;
+
+        shard.getTimer().schedule(this, TimerReason.NIGHT_LOCK, delay, TimeUnit.SECONDS,
+                () -> mailbox.execute(this::nightLockBoundary));
+    }
+
+    /**
+     * Re-evaluate the house as the night lock window opens or closes. Only called in the mailbox
+     */
+    private void nightLockBoundary() {
+        if (isConnected()) {
+            applyRules(lastState, accepted -> { });
+        }
     }
 
     /**
@@ -77,6 +77,13 @@ public abstract class IoTValues {
     public static final String SET_STATE = "SS";
     public static final String STATE_UPDATE = "SU";
 
+    // a house that answers SUB with OK pushes SU updates whenever its state changes
+    public static final String SUBSCRIBE = "SUB";
+    public static final String ERROR = "ERR";
+
+    // a house that answers VER:2 with OK switches to the binary frames of BinaryFrameCodec
+    public static final String VERSION = "VER";
+
     public static final String SETTINGS_FILE = "settings.txt";
     public static final String USERS_DB = "users.txt";
     public static final String AWAY_TIMER = "AW";
@@ -0,0 +1,18 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.Map;
+
+/**
+ * Decides how long to wait before polling a house again. Each house has its own policy, so a policy may
+ * remember what it decided last time
+ */
+public interface PollPolicy {
+
+    /**
+     * Get the time until the next poll
+     * @param changed true if the house reported a change since the last poll
+     * @param state the current house state
+     * @return the interval in seconds
+     */
+    int nextPollSeconds(boolean changed, Map<String, Object> state);
+}
@@ -0,0 +1,244 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tartan.smarthome.outbox.Outbox;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs every house on one of a fixed set of shards, normally one per core. A house is placed by the hash of
+ * its name and from then on its messages and timers run on that shard's thread.
+ *
+ * Hashing spreads the houses evenly but not their work. Every few seconds the runtime measures how busy each
+ * shard was, and if one is much busier than another it moves one house, the one whose work best closes the
+ * gap, to the quieter shard. Moving one house per round keeps the houses from bouncing between shards.
+ *
+ * Only the shards' loops are measured. A house waiting for an answer waits on its shard's I/O threads, which
+ * costs the loop nothing, so a slow house is not mistaken for a busy one.
+ */
+public class ShardedRuntime {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardedRuntime.class);
+
+    /** how often to measure the shards and maybe move a house, in seconds */
+    private static final int REBALANCE_SECONDS = 10;
+
+    /** how much busier than the quietest shard the busiest must be before a house is moved */
+    private static final double SKEW = 0.25;
+
+    /** how many requests to the houses each shard can have waiting for an answer, unless told otherwise */
+    public static final int DEFAULT_IO_THREADS = 16;
+
+    private static ShardedRuntime defaultRuntime;
+
+    private final HouseShard[] shards;
+    private final ScheduledExecutorService sampler;
+
+    /** the last known state of every house on the shards */
+    private final FleetStateTable stateTable = new FleetStateTable();
+
+    /** where the houses add their changes for other systems, or null if there is no outbox */
+    private volatile Outbox outbox;
+
+    /** the busy time each house had at the last sample; only the sampler thread touches this */
+    private final Map<IoTControlManager, Long> houseBusy = new HashMap<>();
+
+    /**
+     * Create and start a runtime with the default number of I/O threads
+     * @param shardCount the number of shards, or 0 for one per core
+     * @param threadsPerShard how many threads each shard has
+     * @param rebalance true to move houses off busy shards
+     */
+    public ShardedRuntime(int shardCount, int threadsPerShard, boolean rebalance) {
+        this(shardCount, threadsPerShard, DEFAULT_IO_THREADS, rebalance);
+    }
+
+    /**
+     * Create and start a runtime
+     * @param shardCount the number of shards, or 0 for one per core
+     * @param threadsPerShard how many threads each shard has
+     * @param ioThreadsPerShard how many requests to the houses each shard can have waiting for an answer
+     * @param rebalance true to move houses off busy shards
+     */
+    public ShardedRuntime(int shardCount, int threadsPerShard, int ioThreadsPerShard, boolean rebalance) {
+        int count = shardCount > 0 ? shardCount : Runtime.getRuntime().availableProcessors();
+        this.shards = new HouseShard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new HouseShard(i, Math.max(1, threadsPerShard), Math.max(1, ioThreadsPerShard));
+        }
+
+        this.sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "house-rebalancer");
+            t.setDaemon(true);
+            return t;
+        });
+        sampler.scheduleAtFixedRate(() -> {
+            try {
+                if (rebalance) {
+                    rebalance();
+                } else {
+                    sample(System.nanoTime());
+                }
+            } catch (RuntimeException e) {
+                LOGGER.warn("Rebalancing failed", e);
+            }
+        }, REBALANCE_SECONDS, REBALANCE_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Get the runtime for houses that were not given one: a shard per core, one thread each
+     * @return the shared runtime
+     */
+    public static synchronized ShardedRuntime getDefault() {
+        if (defaultRuntime == null) {
+            defaultRuntime = new ShardedRuntime(0, 1, true);
+        }
+        return defaultRuntime;
+    }
+
+    /**
+     * Choose the shard for a house
+     * @param house the house name
+     * @return the shard its hash falls on
+     */
+    public HouseShard assign(String house) {
+        return shards[Math.floorMod(house.hashCode(), shards.length)];
+    }
+
+    /**
+     * Get the shards
+     * @return the shards, by number
+     */
+    public List<HouseShard> getShards() {
+        return Collections.unmodifiableList(Arrays.asList(shards));
+    }
+
+    /**
+     * Get the table the houses publish their state to
+     * @return the table
+     */
+    public FleetStateTable getStateTable() {
+        return stateTable;
+    }
+
+    /**
+     * Set where the houses add their changes for other systems. Must be set before the houses are created
+     * @param outbox the outbox, or null for none
+     */
+    public void setOutbox(Outbox outbox) {
+        this.outbox = outbox;
+    }
+
+    /**
+     * Get where the houses add their changes for other systems
+     * @return the outbox, or null if there is none
+     */
+    public Outbox getOutbox() {
+        return outbox;
+    }
+
+    /**
+     * Stop every shard
+     */
+    public void stop() {
+        sampler.shutdownNow();
+        for (HouseShard shard : shards) {
+            shard.stop();
+        }
+    }
+
+    /**
+     * Measure the shards and their houses
+     * @param now the sample time
+     * @return how much work each house did since the last sample, in nanoseconds
+     */
+    private Map<IoTControlManager, Long> sample(long now) {
+        for (HouseShard shard : shards) {
+            shard.sample(now);
+        }
+        Map<IoTControlManager, Long> load = new HashMap<>();
+        Map<IoTControlManager, Long> seen = new HashMap<>();
+        for (HouseShard shard : shards) {
+            for (IoTControlManager house : shard.getHouses()) {
+                long busy = house.getMailbox().getBusyNanos();
+                load.put(house, busy - houseBusy.getOrDefault(house, busy));
+                seen.put(house, busy);
+            }
+        }
+        // houses that are gone are forgotten
+        houseBusy.clear();
+        houseBusy.putAll(seen);
+        return load;
+    }
+
+    /**
+     * Move a house from the busiest shard to the quietest if the difference is large enough. Only called by
+     * the sampler thread
+     */
+    void rebalance() {
+        long now = System.nanoTime();
+        Map<IoTControlManager, Long> load = sample(now);
+        if (shards.length < 2) {
+            return;
+        }
+
+        HouseShard busiest = shards[0];
+        HouseShard quietest = shards[0];
+        for (HouseShard shard : shards) {
+            if (shard.getUtilization() > busiest.getUtilization()) {
+                busiest = shard;
+            }
+            if (shard.getUtilization() < quietest.getUtilization()) {
+                quietest = shard;
+            }
+        }
+        double gap = busiest.getUtilization() - quietest.getUtilization();
+        if (gap < SKEW || busiest.getHouseCount() < 2) {
+            return;
+        }
+
+        Map<IoTControlManager, Long> work = new HashMap<>();
+        for (IoTControlManager house : busiest.getHouses()) {
+            work.put(house, load.getOrDefault(house, 0L));
+        }
+        IoTControlManager candidate = chooseMove(work, gap, TimeUnit.SECONDS.toNanos(REBALANCE_SECONDS));
+        if (candidate != null) {
+            LOGGER.info("Moving a house from shard {} to shard {} ({}% vs {}% busy)", busiest.getIndex(),
+                    quietest.getIndex(), Math.round(busiest.getUtilization() * 100),
+                    Math.round(quietest.getUtilization() * 100));
+            candidate.moveTo(quietest);
+        }
+    }
+
+    /**
+     * Choose the house to move from the busiest shard to the quietest. Moving half the gap between them
+     * evens the two shards, and moving more than the whole gap just swaps them, so the house whose work is
+     * nearest half the gap, and under the whole of it, is moved. A house that did no work is never moved
+     * @param work how much work each house on the busiest shard did over the period, in nanoseconds
+     * @param gap how much more of the period the busiest shard was busy than the quietest, from 0 to 1
+     * @param periodNanos the length of the period
+     * @param <H> the house type
+     * @return the house to move, or null if no house would even the shards out
+     */
+    public static <H> H chooseMove(Map<H, Long> work, double gap, long periodNanos) {
+        long limit = (long) (gap * periodNanos);
+        H candidate = null;
+        long best = -1;
+        for (Map.Entry<H, Long> e : work.entrySet()) {
+            long w = e.getValue();
+            if (w > 0 && w < limit && Math.abs(w - limit / 2) < Math.abs(best - limit / 2)) {
+                candidate = e.getKey();
+                best = w;
+            }
+        }
+        return candidate;
+    }
+}
@@ -0,0 +1,18 @@
+package tartan.smarthome.resources.iotcontroller;
+
+/**
+ * Why a house timer was set. A house has at most one pending timer for each reason
+ */
+public enum TimerReason {
+    /** lock the house down once it has been vacant for the alarm delay */
+    AWAY_LOCK,
+
+    /** re-evaluate the house when a night lock window opens or closes */
+    NIGHT_LOCK,
+
+    /** poll the house state */
+    POLL,
+
+    /** check whether a state pattern has held for as long as it needs to */
+    PATTERN
+}
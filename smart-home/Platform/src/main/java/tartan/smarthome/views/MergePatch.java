@@ -0,0 +1,60 @@
+package tartan.smarthome.views;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Builds JSON merge patches (RFC 7386). Applying the patch made from two documents to the first one gives
+ * the second. Objects are compared field by field; anything else, arrays included, is replaced whole.
+ *
+ * A merge patch cannot set a field to null, since null means remove, so a field that became null is
+ * removed from the patched document instead.
+ */
+public final class MergePatch {
+
+    private MergePatch() {
+    }
+
+    /**
+     * Make the patch that turns one document into another
+     * @param from the document the client has
+     * @param to the current document
+     * @return the patch, an empty object if nothing changed
+     */
+    public static JsonNode diff(JsonNode from, JsonNode to) {
+        if (!from.isObject() || !to.isObject()) {
+            return to.deepCopy();
+        }
+        ObjectNode patch = JsonNodeFactory.instance.objectNode();
+
+        Iterator<String> names = from.fieldNames();
+        while (names.hasNext()) {
+            String name = names.next();
+            if (!to.has(name)) {
+                patch.putNull(name);
+            }
+        }
+
+        Iterator<Map.Entry<String, JsonNode>> fields = to.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            JsonNode before = from.get(field.getKey());
+            JsonNode after = field.getValue();
+            // a missing field and a null one read the same once patched
+            if (before == null ? !after.isNull() : !before.equals(after)) {
+                if (before != null && before.isObject() && after.isObject()) {
+                    patch.set(field.getKey(), diff(before, after));
+                } else if (after.isNull()) {
+                    patch.putNull(field.getKey());
+                } else {
+                    patch.set(field.getKey(), after.deepCopy());
+                }
+            }
+        }
+        return patch;
+    }
+}
@@ -0,0 +1,296 @@
+package tartan.smarthome.views;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.dropwizard.views.ViewRenderer;
+import tartan.smarthome.core.TartanHome;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the encoded state of each house, as JSON and as the HTML control panel, for the house's current
+ * state version. Requests for a house that has not changed get the stored bytes, so a house is serialized
+ * once per change rather than once per request. Each encoding is only made if somebody asks for it.
+ *
+ * A JSON request can also ask for only some of the fields. Those are encoded from a state that was built
+ * for just those fields, and kept per set of fields like the full encodings.
+ *
+ * The JSON documents of the last few versions of each house are kept after the house moves on, so a client
+ * that says which version it has can be sent a merge patch to the current one instead of the whole house.
+ * Only the documents are kept for older versions; their HTML and the state they were built from are let go.
+ */
+public class StateResponseCache {
+
+    /** how many versions of each house to keep documents for */
+    private static final int HISTORY_VERSIONS = 8;
+
+    /** One encoded JSON document, kept as a tree as well so later versions can be compared with it */
+    private static final class Document {
+        private final JsonNode tree;
+        private final byte[] json;
+
+        Document(JsonNode tree, byte[] json) {
+            this.tree = tree;
+            this.json = json;
+        }
+    }
+
+    /** One house's encoded state at one version. Each part is filled in the first time it is asked for */
+    private static final class Entry {
+        private final long version;
+        private volatile SmartHomeView view;
+        private volatile byte[] html;
+
+        /** the JSON documents, by the fields they hold; the whole house is under the empty set */
+        private final ConcurrentHashMap<Set<String>, Document> documents = new ConcurrentHashMap<>();
+
+        /** the patches to this version, by the version they start from and the fields they hold */
+        private final ConcurrentHashMap<String, byte[]> patches = new ConcurrentHashMap<>();
+
+        Entry(long version) {
+            this.version = version;
+        }
+
+        /** let go of everything a patch doesn't need */
+        void retire() {
+            view = null;
+            html = null;
+            patches.clear();
+        }
+    }
+
+    /** The last few entries of one house, newest last */
+    private static final class History {
+        private final Entry[] entries = new Entry[HISTORY_VERSIONS];
+        private int newest = -1;
+
+        /**
+         * Get the entry for a version, adding it if it is newer than any kept. An older version that is no
+         * longer kept gets an entry of its own that is not kept either
+         */
+        synchronized Entry entry(long version) {
+            Entry latest = newest < 0 ? null : entries[newest];
+            if (latest != null && latest.version == version) {
+                return latest;
+            }
+            if (latest == null || version > latest.version) {
+                if (latest != null) {
+                    latest.retire();
+                }
+                newest = (newest + 1) % entries.length;
+                entries[newest] = new Entry(version);
+                return entries[newest];
+            }
+            Entry kept = find(version);
+            return kept != null ? kept : new Entry(version);
+        }
+
+        /**
+         * Find a kept version
+         * @return the entry, or null if the version is not kept
+         */
+        synchronized Entry find(long version) {
+            for (Entry entry : entries) {
+                if (entry != null && entry.version == version) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+    }
+
+    /** the key of the document for the whole house */
+    private static final Set<String> ALL_FIELDS = Collections.emptySet();
+
+    private final ObjectMapper mapper;
+    private final Set<String> fields;
+    private final ViewRenderer renderer;
+    private final ConcurrentHashMap<String, History> histories = new ConcurrentHashMap<>();
+
+    private final Meter hits;
+    private final Meter misses;
+
+    /**
+     * Create an empty cache
+     * @param mapper the mapper Jersey would have used for the JSON
+     * @param renderer the renderer for the HTML
+     * @param metrics where to report hits and misses
+     */
+    public StateResponseCache(ObjectMapper mapper, ViewRenderer renderer, MetricRegistry metrics) {
+        this.mapper = mapper;
+        this.renderer = renderer;
+        this.hits = metrics.meter(MetricRegistry.name(StateResponseCache.class, "hits"));
+        this.misses = metrics.meter(MetricRegistry.name(StateResponseCache.class, "misses"));
+
+        Set<String> names = new TreeSet<>();
+        for (BeanPropertyDefinition property : mapper.getSerializationConfig()
+                .introspect(mapper.constructType(TartanHome.class)).findProperties()) {
+            names.add(property.getName());
+        }
+        this.fields = Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * Get the names of the fields a projection can ask for
+     * @return the JSON field names of the house state
+     */
+    public Set<String> getFields() {
+        return fields;
+    }
+
+    /**
+     * Get a house's state as JSON
+     * @param house the house name
+     * @param version the house's current state version
+     * @param state builds the state if the cache doesn't have this version
+     * @return the JSON
+     */
+    public byte[] getJson(String house, long version, Supplier<TartanHome> state) {
+        return getJson(house, version, null, wanted -> state.get());
+    }
+
+    /**
+     * Get a house's state, or some of its fields, as JSON. With fields the result is the house state alone,
+     * without the wrapper the full JSON has
+     * @param house the house name
+     * @param version the house's current state version
+     * @param fields the fields to include, all of them from {@link #getFields()}, or null for the whole house
+     * @param state builds a state with at least these fields, or every field for null, if the cache doesn't
+     *              have them at this version
+     * @return the JSON
+     */
+    public byte[] getJson(String house, long version, Set<String> fields, Function<Set<String>, TartanHome> state) {
+        return document(history(house).entry(version), key(fields), state).json;
+    }
+
+    /**
+     * Get the merge patch (RFC 7386) from a version of the house's JSON that a client already has to the
+     * current one. The patch is made for the same fields the client asked for when it got its version
+     * @param house the house name
+     * @param version the house's current state version
+     * @param since the version the client has
+     * @param fields the fields to include, as for {@link #getJson(String, long, Set, Function)}
+     * @param state builds the state if the cache doesn't have this version
+     * @return the patch, or null if the client's version is not kept and it needs the whole document
+     */
+    public byte[] getPatch(String house, long version, long since, Set<String> fields,
+                           Function<Set<String>, TartanHome> state) {
+        if (since > version) {
+            return null;
+        }
+        Set<String> key = key(fields);
+        History history = history(house);
+        Entry base = history.find(since);
+        Document from = base != null ? base.documents.get(key) : null;
+        if (from == null) {
+            return null;
+        }
+
+        Entry entry = history.entry(version);
+        String patchKey = since + ":" + key;
+        byte[] patch = entry.patches.get(patchKey);
+        if (patch != null) {
+            hits.mark();
+            return patch;
+        }
+        Document to = document(entry, key, state);
+        patch = encode(MergePatch.diff(from.tree, to.tree));
+        entry.patches.put(patchKey, patch);
+        return patch;
+    }
+
+    /**
+     * Forget everything kept for a house, once it has left the fleet
+     * @param house the house name
+     */
+    public void evict(String house) {
+        histories.remove(house);
+    }
+
+    /**
+     * Get a house's state as the HTML control panel
+     * @param house the house name
+     * @param version the house's current state version
+     * @param state builds the state if the cache doesn't have this version
+     * @return the HTML
+     */
+    public byte[] getHtml(String house, long version, Supplier<TartanHome> state) {
+        Entry entry = history(house).entry(version);
+        byte[] html = entry.html;
+        if (html == null) {
+            misses.mark();
+            // two requests may both render the same version; either result is right
+            ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+            try {
+                renderer.render(view(entry, wanted -> state.get()), Locale.getDefault(), out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            html = out.toByteArray();
+            entry.html = html;
+        } else {
+            hits.mark();
+        }
+        return html;
+    }
+
+    private Document document(Entry entry, Set<String> key, Function<Set<String>, TartanHome> state) {
+        Document document = entry.documents.get(key);
+        if (document != null) {
+            hits.mark();
+            return document;
+        }
+        misses.mark();
+
+        JsonNode tree;
+        if (key == ALL_FIELDS) {
+            tree = mapper.valueToTree(view(entry, state));
+        } else {
+            // a full state built for this version already has every field
+            SmartHomeView view = entry.view;
+            TartanHome home = view != null ? view.getTartanHome() : state.apply(key);
+            tree = mapper.<ObjectNode>valueToTree(home).retain(key);
+        }
+        document = new Document(tree, encode(tree));
+        entry.documents.put(key, document);
+        return document;
+    }
+
+    private SmartHomeView view(Entry entry, Function<Set<String>, TartanHome> state) {
+        SmartHomeView view = entry.view;
+        if (view == null) {
+            view = new SmartHomeView(state.apply(null));
+            entry.view = view;
+        }
+        return view;
+    }
+
+    private byte[] encode(JsonNode tree) {
+        try {
+            return mapper.writeValueAsBytes(tree);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private History history(String house) {
+        return histories.computeIfAbsent(house, name -> new History());
+    }
+
+    private static Set<String> key(Set<String> fields) {
+        return fields == null ? ALL_FIELDS : Collections.unmodifiableSet(new TreeSet<>(fields));
+    }
+}
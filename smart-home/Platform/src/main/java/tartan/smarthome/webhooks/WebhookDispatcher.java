@@ -0,0 +1,322 @@
+package tartan.smarthome.webhooks;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tartan.smarthome.core.TartanOutboxPage;
+import tartan.smarthome.core.TartanOutboxRecord;
+import tartan.smarthome.core.TartanWebhookBatch;
+import tartan.smarthome.outbox.Outbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Posts the events for one webhook. The dispatcher tails the outbox on its own thread from the offset it
+ * last got through, which is kept in a file, so the outbox is the queue of events still to post and nothing
+ * is lost across a restart. Matching events are gathered for the webhook's batch time, or until there are
+ * enough to fill every post, then posted up to the webhook's concurrency at once. A post that fails is
+ * retried, with a doubling wait, until it succeeds; the offset only moves on once every post has. A post the
+ * webhook rejects outright, with a 4xx other than 408 or 429, would be rejected every time, so it is logged
+ * and dropped instead.
+ *
+ * Delivery is at least once: events posted just before a restart may be posted again. Events within a post
+ * are in order, but with a concurrency above one, posts may arrive out of order.
+ */
+class WebhookDispatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WebhookDispatcher.class);
+
+    /** How a post turned out */
+    private enum Outcome {
+        /** the webhook took the batch */
+        TAKEN,
+        /** the post failed in a way that may not happen again, so it is retried */
+        FAILED,
+        /** the webhook will never take the batch, so it is dropped */
+        REJECTED
+    }
+
+    /** how long to wait for new records when there is nothing to post */
+    private static final long IDLE_MILLIS = 1000;
+
+    private final WebhookSubscription subscription;
+    private final Outbox outbox;
+    private final File cursorFile;
+    private final HttpClient client;
+    private final ObjectMapper mapper;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong missed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /** the offset of the first record not yet posted or passed over */
+    private volatile long cursor;
+
+    /** the offset last written to the cursor file */
+    private long saved;
+
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * Create a dispatcher
+     * @param subscription the webhook
+     * @param outbox where the events come from
+     * @param cursorFile where to keep the offset got through
+     * @param client the client to post with
+     * @param mapper the mapper to write the posts with
+     * @throws UncheckedIOException if the cursor file could not be read
+     */
+    WebhookDispatcher(WebhookSubscription subscription, Outbox outbox, File cursorFile, HttpClient client,
+                      ObjectMapper mapper) {
+        this.subscription = subscription;
+        this.outbox = outbox;
+        this.cursorFile = cursorFile;
+        this.client = client;
+        this.mapper = mapper;
+
+        // a new webhook starts from the events that come after it was added
+        if (cursorFile.exists()) {
+            try {
+                cursor = Long.parseLong(new String(Files.readAllBytes(cursorFile.toPath()),
+                        StandardCharsets.US_ASCII).trim());
+            } catch (IOException | NumberFormatException e) {
+                throw new UncheckedIOException(new IOException("Cannot read the webhook offset " + cursorFile, e));
+            }
+        } else {
+            cursor = outbox.getLog().getEndOffset();
+        }
+        saved = cursor;
+    }
+
+    /**
+     * Start posting events
+     */
+    void start() {
+        running = true;
+        thread = new Thread(this::run, "webhook-" + subscription.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop posting events. Events gathered but not yet posted are posted again after a restart
+     * @throws InterruptedException if the thread is interrupted while waiting for the dispatcher to stop
+     */
+    void stop() throws InterruptedException {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread.join();
+        }
+    }
+
+    private void run() {
+        int limit = subscription.getMaxBatch() * subscription.getConcurrency();
+        List<TartanOutboxRecord> pending = new ArrayList<>(limit);
+        long offset = cursor;
+        long due = 0;
+        try {
+            while (running) {
+                long wait = pending.isEmpty() ? IDLE_MILLIS : Math.max(1, due - System.currentTimeMillis());
+                TartanOutboxPage page = outbox.read(offset, limit - pending.size(), wait);
+                if (page.getMissed() > 0) {
+                    missed.addAndGet(page.getMissed());
+                    LOGGER.warn("The webhook " + subscription.getName() + " missed " + page.getMissed()
+                            + " outbox records that were deleted before they could be posted");
+                }
+                for (TartanOutboxRecord record : page.getRecords()) {
+                    if (subscription.matches(record)) {
+                        if (pending.isEmpty()) {
+                            due = System.currentTimeMillis() + subscription.getBatchMillis();
+                        }
+                        pending.add(record);
+                    }
+                }
+                offset = page.getNext();
+
+                if (pending.size() >= limit || (!pending.isEmpty() && System.currentTimeMillis() >= due)) {
+                    deliver(pending);
+                    pending.clear();
+                    cursor = offset;
+                    save();
+                } else if (pending.isEmpty()) {
+                    // records passed over count as got through too, but are only saved once caught up
+                    cursor = offset;
+                    if (page.getRecords().isEmpty() && cursor != saved) {
+                        save();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopping
+        } catch (RuntimeException e) {
+            LOGGER.error("The webhook " + subscription.getName() + " stopped", e);
+        }
+        if (cursor != saved) {
+            save();
+        }
+    }
+
+    /**
+     * Post events, split into batches, until every batch has been taken
+     * @throws InterruptedException if the dispatcher is stopped first
+     */
+    private void deliver(List<TartanOutboxRecord> events) throws InterruptedException {
+        List<List<TartanOutboxRecord>> batches = new ArrayList<>();
+        for (int i = 0; i < events.size(); i += subscription.getMaxBatch()) {
+            batches.add(new ArrayList<>(events.subList(i, Math.min(events.size(), i + subscription.getMaxBatch()))));
+        }
+        long backoff = subscription.getRetryMillis();
+        while (true) {
+            List<CompletableFuture<Outcome>> posts = new ArrayList<>(batches.size());
+            for (List<TartanOutboxRecord> batch : batches) {
+                posts.add(post(batch));
+            }
+            List<List<TartanOutboxRecord>> failed = new ArrayList<>();
+            for (int i = 0; i < batches.size(); i++) {
+                List<TartanOutboxRecord> batch = batches.get(i);
+                Outcome outcome;
+                try {
+                    outcome = posts.get(i).get();
+                } catch (ExecutionException e) {
+                    outcome = Outcome.FAILED;
+                }
+                if (outcome == Outcome.TAKEN) {
+                    delivered.addAndGet(batch.size());
+                } else if (outcome == Outcome.REJECTED) {
+                    dropped.addAndGet(batch.size());
+                    LOGGER.error("The webhook " + subscription.getName() + " rejected the events at offsets "
+                            + batch.get(0).getOffset() + " to " + batch.get(batch.size() - 1).getOffset()
+                            + "; they are dropped");
+                } else {
+                    failed.add(batch);
+                }
+            }
+            if (failed.isEmpty()) {
+                return;
+            }
+            failures.addAndGet(failed.size());
+            batches = failed;
+
+            // the wait is spread a little so that webhooks that failed together do not all retry together
+            Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff / 4 + 1));
+            backoff = Math.min(backoff * 2, subscription.getMaxRetryMillis());
+        }
+    }
+
+    /**
+     * Post one batch
+     * @return a future that tells how the post turned out
+     */
+    private CompletableFuture<Outcome> post(List<TartanOutboxRecord> batch) {
+        byte[] body;
+        try {
+            body = mapper.writeValueAsBytes(new TartanWebhookBatch(subscription.getName(), batch));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot write a webhook batch", e);
+        }
+        HttpRequest request = HttpRequest.newBuilder(subscription.getUrl())
+                .timeout(Duration.ofMillis(subscription.getTimeoutMillis()))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).handle((response, error) -> {
+            if (error != null) {
+                LOGGER.warn("Could not post to the webhook " + subscription.getName() + ": " + error);
+                return Outcome.FAILED;
+            }
+            int status = response.statusCode();
+            if (status / 100 == 2) {
+                return Outcome.TAKEN;
+            }
+            LOGGER.warn("The webhook " + subscription.getName() + " answered " + status);
+            // a timeout or too many requests may pass; any other client error is the same on every try
+            if (status / 100 == 4 && status != 408 && status != 429) {
+                return Outcome.REJECTED;
+            }
+            return Outcome.FAILED;
+        });
+    }
+
+    /**
+     * Write the cursor to its file. The file is replaced in one step, so a crash leaves the old or the new one
+     */
+    private void save() {
+        long offset = cursor;
+        File temp = new File(cursorFile.getPath() + ".tmp");
+        try {
+            Files.write(temp.toPath(), Long.toString(offset).getBytes(StandardCharsets.US_ASCII));
+            Files.move(temp.toPath(), cursorFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            saved = offset;
+        } catch (IOException e) {
+            LOGGER.error("Could not save the offset of the webhook " + subscription.getName(), e);
+        }
+    }
+
+    /**
+     * Get the webhook
+     * @return the subscription
+     */
+    WebhookSubscription getSubscription() {
+        return subscription;
+    }
+
+    /**
+     * Get the offset of the first record not yet got through
+     * @return the offset
+     */
+    long getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Get the number of events posted
+     * @return the count
+     */
+    long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * Get the number of posts that failed and were retried
+     * @return the count
+     */
+    long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Get the number of events dropped because the webhook rejected them
+     * @return the count
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Get the number of outbox records deleted before they could be posted
+     * @return the count
+     */
+    long getMissed() {
+        return missed.get();
+    }
+}
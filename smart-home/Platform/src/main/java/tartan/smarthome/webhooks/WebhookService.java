@@ -0,0 +1,139 @@
+package tartan.smarthome.webhooks;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.dropwizard.lifecycle.Managed;
+import tartan.smarthome.outbox.Outbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Posts house events to the webhooks other services subscribe with. Each webhook has its own
+ * {@link WebhookDispatcher}, which reads the outbox on its own thread, so the houses never wait for a
+ * webhook: a slow or failing one only falls behind in the outbox, and catches up from where it got to.
+ *
+ * Each webhook reports the metrics webhook.NAME.delivered (events posted), webhook.NAME.failures (posts
+ * retried), webhook.NAME.dropped (events the webhook rejected), webhook.NAME.missed (events deleted from the
+ * outbox before they were posted) and webhook.NAME.lag (outbox records not yet got through).
+ */
+public class WebhookService implements Managed {
+
+    private static final long CONNECT_TIMEOUT_SECONDS = 5;
+
+    private final Outbox outbox;
+    private final List<WebhookDispatcher> dispatchers = new ArrayList<>();
+
+    /**
+     * Set up the webhooks
+     * @param outbox where the events come from
+     * @param subscriptions the webhooks
+     * @param directory where to keep how far each webhook has got
+     * @param mapper the mapper to write the posts with
+     * @param metrics the registry to report each webhook's progress to
+     * @throws IllegalArgumentException if two webhooks have the same name
+     * @throws UncheckedIOException if the directory could not be made or a webhook's offset read
+     */
+    public WebhookService(Outbox outbox, List<WebhookSubscription> subscriptions, File directory,
+                          ObjectMapper mapper, MetricRegistry metrics) {
+        this.outbox = outbox;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new UncheckedIOException(new IOException("Cannot make the webhook directory " + directory));
+        }
+        HttpClient client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(CONNECT_TIMEOUT_SECONDS))
+                .build();
+        Set<String> names = new HashSet<>();
+        for (WebhookSubscription subscription : subscriptions) {
+            if (!names.add(subscription.getName())) {
+                throw new IllegalArgumentException("There are two webhooks called " + subscription.getName());
+            }
+            WebhookDispatcher dispatcher = new WebhookDispatcher(subscription, outbox,
+                    new File(directory, subscription.getName() + ".offset"), client, mapper);
+            dispatchers.add(dispatcher);
+
+            String name = subscription.getName();
+            metrics.register(MetricRegistry.name("webhook", name, "delivered"),
+                    (Gauge<Long>) dispatcher::getDelivered);
+            metrics.register(MetricRegistry.name("webhook", name, "failures"),
+                    (Gauge<Long>) dispatcher::getFailures);
+            metrics.register(MetricRegistry.name("webhook", name, "dropped"),
+                    (Gauge<Long>) dispatcher::getDropped);
+            metrics.register(MetricRegistry.name("webhook", name, "missed"),
+                    (Gauge<Long>) dispatcher::getMissed);
+            metrics.register(MetricRegistry.name("webhook", name, "lag"),
+                    (Gauge<Long>) () -> getLag(name));
+        }
+    }
+
+    /**
+     * Get how far a webhook is behind the outbox
+     * @param name the webhook
+     * @return the number of outbox records it has not yet got through, or -1 if there is no such webhook
+     */
+    public long getLag(String name) {
+        WebhookDispatcher dispatcher = find(name);
+        return dispatcher == null ? -1 : Math.max(0, outbox.getLog().getEndOffset() - dispatcher.getCursor());
+    }
+
+    /**
+     * Get the number of events posted to a webhook
+     * @param name the webhook
+     * @return the count, or -1 if there is no such webhook
+     */
+    public long getDelivered(String name) {
+        WebhookDispatcher dispatcher = find(name);
+        return dispatcher == null ? -1 : dispatcher.getDelivered();
+    }
+
+    /**
+     * Get the number of posts to a webhook that failed and were retried
+     * @param name the webhook
+     * @return the count, or -1 if there is no such webhook
+     */
+    public long getFailures(String name) {
+        WebhookDispatcher dispatcher = find(name);
+        return dispatcher == null ? -1 : dispatcher.getFailures();
+    }
+
+    /**
+     * Get the number of events a webhook rejected, which were dropped rather than retried
+     * @param name the webhook
+     * @return the count, or -1 if there is no such webhook
+     */
+    public long getDropped(String name) {
+        WebhookDispatcher dispatcher = find(name);
+        return dispatcher == null ? -1 : dispatcher.getDropped();
+    }
+
+    private WebhookDispatcher find(String name) {
+        for (WebhookDispatcher dispatcher : dispatchers) {
+            if (dispatcher.getSubscription().getName().equals(name)) {
+                return dispatcher;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void start() {
+        for (WebhookDispatcher dispatcher : dispatchers) {
+            dispatcher.start();
+        }
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        for (WebhookDispatcher dispatcher : dispatchers) {
+            dispatcher.stop();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package tartan.smarthome.webhooks;
+
+import tartan.smarthome.core.TartanOutboxRecord;
+import tartan.smarthome.outbox.Outbox;
+import tartan.smarthome.resources.iotcontroller.IoTValues;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which house events are posted to a webhook, and how. An event is an outbox record; a subscription picks
+ * them by house and by event type.
+ */
+public class WebhookSubscription {
+
+    /** every change to a house's state */
+    public static final String STATE = Outbox.STATE;
+
+    /** a change to a house's state that arms, disarms, sets off or silences its alarm */
+    public static final String ALARM = "alarm";
+
+    /** a command for a house */
+    public static final String COMMAND = Outbox.COMMAND;
+
+    /** a pattern matched in the way a house changes */
+    public static final String PATTERN = Outbox.PATTERN;
+
+    /** the event types there are */
+    public static final Set<String> EVENTS = Collections.unmodifiableSet(
+            new HashSet<>(Arrays.asList(STATE, ALARM, COMMAND, PATTERN)));
+
+    private final String name;
+    private final URI url;
+    private final Set<String> houses;
+    private final Set<String> events;
+    private final long batchMillis;
+    private final int maxBatch;
+    private final int concurrency;
+    private final long timeoutMillis;
+    private final long retryMillis;
+    private final long maxRetryMillis;
+
+    /**
+     * Create a subscription
+     * @param name the webhook's name, which must be usable in a file name
+     * @param url where to post the events
+     * @param houses the houses to post events for, or an empty set for every house
+     * @param events the event types to post
+     * @param batchMillis how long to gather events before posting them
+     * @param maxBatch the most events in one post
+     * @param concurrency the most posts to the webhook at a time
+     * @param timeoutMillis how long to wait for the webhook to answer a post
+     * @param retryMillis how long to wait before posting a failed batch again; doubled on each failure
+     * @param maxRetryMillis the longest wait between posts of a failed batch
+     * @throws IllegalArgumentException if a setting is out of range
+     */
+    public WebhookSubscription(String name, URI url, Set<String> houses, Set<String> events, long batchMillis,
+                               int maxBatch, int concurrency, long timeoutMillis, long retryMillis,
+                               long maxRetryMillis) {
+        if (name == null || !name.matches("[A-Za-z0-9_.-]+")) {
+            throw new IllegalArgumentException("A webhook name may only use letters, digits, '_', '.' and '-'");
+        }
+        if (url == null || !("http".equals(url.getScheme()) || "https".equals(url.getScheme()))) {
+            throw new IllegalArgumentException("The webhook " + name + " needs an http or https url");
+        }
+        if (events.isEmpty() || !EVENTS.containsAll(events)) {
+            throw new IllegalArgumentException("The webhook " + name + " needs events from " + EVENTS);
+        }
+        if (batchMillis < 0 || maxBatch < 1 || concurrency < 1 || timeoutMillis < 1 || retryMillis < 1
+                || maxRetryMillis < retryMillis) {
+            throw new IllegalArgumentException("The webhook " + name + " has a batch or retry setting out of range");
+        }
+        this.name = name;
+        this.url = url;
+        this.houses = Collections.unmodifiableSet(new HashSet<>(houses));
+        this.events = Collections.unmodifiableSet(new HashSet<>(events));
+        this.batchMillis = batchMillis;
+        this.maxBatch = maxBatch;
+        this.concurrency = concurrency;
+        this.timeoutMillis = timeoutMillis;
+        this.retryMillis = retryMillis;
+        this.maxRetryMillis = maxRetryMillis;
+    }
+
+    /**
+     * Check whether an outbox record is an event this webhook wants
+     * @param record the record
+     * @return true if it should be posted
+     */
+    public boolean matches(TartanOutboxRecord record) {
+        if (!houses.isEmpty() && !houses.contains(record.getHouse())) {
+            return false;
+        }
+        String type = record.getType();
+        if (events.contains(type)) {
+            return true;
+        }
+        if (STATE.equals(type) && events.contains(ALARM)) {
+            Map<String, Object> changes = record.getChanges();
+            return changes.containsKey(IoTValues.ALARM_STATE) || changes.containsKey(IoTValues.ALARM_ACTIVE);
+        }
+        return false;
+    }
+
+    /**
+     * Get the webhook's name
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get where the events are posted
+     * @return the url
+     */
+    public URI getUrl() {
+        return url;
+    }
+
+    /**
+     * Get the houses events are posted for
+     * @return the houses, or an empty set for every house
+     */
+    public Set<String> getHouses() {
+        return houses;
+    }
+
+    /**
+     * Get the event types that are posted
+     * @return the event types
+     */
+    public Set<String> getEvents() {
+        return events;
+    }
+
+    /**
+     * Get how long events are gathered before they are posted
+     * @return the time in milliseconds
+     */
+    public long getBatchMillis() {
+        return batchMillis;
+    }
+
+    /**
+     * Get the most events in one post
+     * @return the count
+     */
+    public int getMaxBatch() {
+        return maxBatch;
+    }
+
+    /**
+     * Get the most posts to the webhook at a time
+     * @return the count
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Get how long to wait for the webhook to answer a post
+     * @return the time in milliseconds
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Get how long to wait before the first retry of a failed batch
+     * @return the time in milliseconds
+     */
+    public long getRetryMillis() {
+        return retryMillis;
+    }
+
+    /**
+     * Get the longest wait between retries of a failed batch
+     * @return the time in milliseconds
+     */
+    public long getMaxRetryMillis() {
+        return maxRetryMillis;
+    }
+}
@@ -0,0 +1,193 @@
+// The house control panel. The page opens one WebSocket to /smarthome/control and keeps it open: commands
+// go out over it, and their acks and every change to the house come back over it, so the page never has to
+// reload. If the socket cannot be opened the page falls back to POST /smarthome/update and a reload.
+(function () {
+    "use strict";
+
+    var panel = document.querySelector("[data-house]");
+    var house = panel.getAttribute("data-house");
+    var state = {};
+    var socket = null;
+    var nextId = 1;
+    var retryMillis = 1000;
+
+    function byId(id) {
+        return document.getElementById(id);
+    }
+
+    function setText(id, value) {
+        var element = byId(id);
+        if (element && value !== undefined && value !== null) {
+            element.textContent = value;
+        }
+    }
+
+    // inputs the user is changing are left alone
+    function setValue(id, value) {
+        var element = byId(id);
+        if (element && value !== undefined && value !== null && element !== document.activeElement) {
+            element.value = value;
+        }
+    }
+
+    function show() {
+        setText("temperature", state.temperature);
+        setText("humidity", state.humidity);
+        setText("hvacState", state.hvacState);
+        setText("proximity", state.proximity);
+        setValue("targetTemp", state.targetTemp);
+        setValue("humidifier", state.humidifier);
+        setValue("door", state.door);
+        setValue("light", state.light);
+        setValue("armAlarm", state.alarmArmed);
+        setValue("alarmDelay", state.alarmDelay);
+        setValue("nightLockStart", state.nightLockStart);
+        setValue("nightLockEnd", state.nightLockEnd);
+
+        var heat = state.hvacMode === "heat";
+        setText("hvacMode", heat ? "Heat" : "Cool");
+        byId("hvacMode").style.color = heat ? "red" : "blue";
+
+        var active = state.alarmActive === "active";
+        byId("alarmOff").hidden = active;
+        byId("alarmOn").hidden = !active;
+    }
+
+    // the event log comes in its own messages, a few new entries at a time
+    function logged(events) {
+        var log = byId("log");
+        events.forEach(function (event) {
+            log.value += (log.value ? "\n" : "") + event.message;
+        });
+        log.scrollTop = log.scrollHeight;
+    }
+
+    // apply a JSON merge patch (RFC 7386)
+    function merge(target, patch) {
+        Object.keys(patch).forEach(function (key) {
+            var value = patch[key];
+            if (value === null) {
+                delete target[key];
+            } else if (typeof value === "object" && !Array.isArray(value)
+                    && typeof target[key] === "object" && target[key] !== null && !Array.isArray(target[key])) {
+                merge(target[key], value);
+            } else {
+                target[key] = value;
+            }
+        });
+    }
+
+    function status(text) {
+        setText("status", text);
+    }
+
+    function wanted() {
+        var passcode = byId("alarmPasscode");
+        return {
+            "door": byId("door").value,
+            "light": byId("light").value,
+            "targetTemp": byId("targetTemp").value,
+            "humidifier": byId("humidifier").value,
+            "alarmArmed": byId("armAlarm").value,
+            "alarmDelay": byId("alarmDelay").value,
+            "alarmPasscode": passcode ? passcode.value : null,
+            "nightLockStart": byId("nightLockStart").value,
+            "nightLockEnd": byId("nightLockEnd").value
+        };
+    }
+
+    function post(failure) {
+        var request = new XMLHttpRequest();
+        request.open("POST", "/smarthome/update/" + encodeURIComponent(house));
+        request.setRequestHeader("Content-Type", "application/json");
+        request.onload = function () {
+            if (request.status >= 200 && request.status < 300) {
+                window.location.reload();
+            } else {
+                alert(failure);
+            }
+        };
+        request.onerror = function () {
+            alert(failure);
+        };
+        request.send(JSON.stringify(wanted()));
+    }
+
+    function send(failure) {
+        if (socket && socket.readyState === WebSocket.OPEN) {
+            socket.send(JSON.stringify({"type": "command", "id": nextId++, "state": wanted()}));
+            status("Sending...");
+        } else {
+            post(failure);
+        }
+    }
+
+    function received(event) {
+        var message = JSON.parse(event.data);
+        if (message.type === "state") {
+            state = message.state;
+            byId("log").value = "";
+            show();
+        } else if (message.type === "delta") {
+            merge(state, message.patch);
+            show();
+        } else if (message.type === "events") {
+            logged(message.events);
+        } else if (message.type === "ack") {
+            var command = message.command;
+            if (command.status === "acked") {
+                status("Done");
+            } else if (command.status === "failed") {
+                status("The house did not take the change" + (command.error ? ": " + command.error : ""));
+            } else {
+                status("The house cannot be reached; the change will be sent when it is back");
+            }
+        } else if (message.type === "error") {
+            status(message.message);
+        }
+    }
+
+    function connect() {
+        if (!window.WebSocket) {
+            return;
+        }
+        var scheme = window.location.protocol === "https:" ? "wss://" : "ws://";
+        socket = new WebSocket(scheme + window.location.host + "/smarthome/control");
+        socket.onopen = function () {
+            retryMillis = 1000;
+            status("Live");
+        };
+        socket.onmessage = received;
+        socket.onclose = function () {
+            socket = null;
+            status("Reconnecting...");
+            setTimeout(connect, retryMillis);
+            retryMillis = Math.min(retryMillis * 2, 30000);
+        };
+    }
+
+    // keep the socket from timing out on a quiet house
+    setInterval(function () {
+        if (socket && socket.readyState === WebSocket.OPEN) {
+            socket.send("{\"type\":\"ping\"}");
+        }
+    }, 60000);
+
+    byId("update_button").addEventListener("click", function () {
+        send("Could not update " + house);
+    });
+    byId("alarm_button").addEventListener("click", function () {
+        send("Could not deactivate alarm for " + house);
+    });
+    byId("refresh_button").addEventListener("click", function () {
+        if (socket && socket.readyState === WebSocket.OPEN) {
+            socket.send("{\"type\":\"resync\"}");
+        } else {
+            window.location.reload();
+        }
+    });
+
+    var log = byId("log");
+    log.scrollTop = log.scrollHeight;
+    connect();
+})();
@@ -3,66 +3,8 @@ See -->
 <#-- @ftlvariable name="" type="tartan.smarthome.views.SmartHomeView" -->
 <html lang="us">
 <head>
-    <script src="https://ajax.googleapis.com/ajax/libs/jquery/3.1.0/jquery.min.js"></script>
     <title>Tartan House Control Panel</title>
-    <script type="text/javascript">
-        $(document).ready(function() {
-
-             $("#refresh_button").click(function() {
-                window.location.reload();
-             });
-
-            function updateState() {
-                var door = $('#door').val();
-                var light = $('#light').val();
-                var alarmDelay = $('#alarmDelay').val();
-                var targetTemp = $('#targetTemp').val();
-                var humidifier = $('#humidifier').val();
-                var armAlarm = $('#armAlarm').val();
-                var passcode = $('#alarmPasscode').val();
-                var hvacMode = $('#hvacMode').val();
-                var nightLockStart = $('#nightLockStart).val();
-                var nightLockEnd = $('#nightLockEnd).val();
-
-                return JSON.stringify({"door":door,"light":light,"targetTemp":targetTemp,"humidifier":humidifier,"alarmArmed":armAlarm,"alarmDelay":alarmDelay,"alarmPasscode":passcode, "nightLockStart":nightLockStart, "nightLockEnd":nightLockEnd});
-            }
-
-            // Auto scroll
-            $('#log').scrollTop($('#log')[0].scrollHeight);
-
-            $("#update_button").click(function(){
-                  $.ajax({
-                    type: 'POST',
-                    contentType: 'application/json',
-                    url:  '/smarthome/update/${tartanHome.name}',
-                    data: updateState(),
-                    success: function(data) {
-                        location.reload(true);
-                    },
-                    error: function(jqXHR, textStatus, errorThrown) {
-                        alert("Could not update ${tartanHome.name}");
-                    },
-                });
-
-            });
-
-            $("#alarm_button").click(function(){
-
-                  $.ajax({
-                    type: 'POST',
-                    contentType: 'application/json',
-                    url:  '/smarthome/update/${tartanHome.name}',
-                    data: updateState(),
-                    success: function(data) {
-                        location.reload(true);
-                    },
-                    error: function(jqXHR, textStatus, errorThrown) {
-                        alert("Could not deactivate alarm for ${tartanHome.name}");
-                    },
-                });
-            });
-        });
-</script>
+    <script src="/assets/js/smarthome.js" defer></script>
 </head>
 <style>
 
@@ -94,18 +36,18 @@ div {
     padding: 20px;
 }
 </style>
-<div id="${tartanHome.name}_div">
+<div id="${tartanHome.name}_div" data-house="${tartanHome.name}">
 <fieldset id="${tartanHome.name}_control"><legend><h2>House: ${tartanHome.name}@${tartanHome.address}</h2></legend>
     <h3>HVAC</h3>
     <p>
-        <strong>Temperature: <font color="blue">${tartanHome.temperature} F </font></strong>
+        <strong>Temperature: <font color="blue"><span id="temperature">${tartanHome.temperature}</span> F </font></strong>
     </p>
     <strong>
         <label for="targetTemp">Set Temperature: </label>
         <input id="targetTemp" type="number" value="${tartanHome.targetTemp}" min="50" max="85" /> degrees F
     </strong>
     <p>
-        <strong>Humidity: <font color="blue">${tartanHome.humidity}% </font></strong>
+        <strong>Humidity: <font color="blue"><span id="humidity">${tartanHome.humidity}</span>% </font></strong>
     </p>
     <p>
         <strong><label for="humidifier">Humidifier:</label></strong>
@@ -117,20 +59,20 @@ div {
     <p>
         <strong>Mode:
         <#if tartanHome.hvacMode == "heat">
-            <font color="red">Heat</font>
+            <span id="hvacMode" style="color: red">Heat</span>
         <#else>
-            <font color="blue">Cool</font>
+            <span id="hvacMode" style="color: blue">Cool</span>
         </#if>
         </strong>
     </p>
     <P>
-        <strong>HVAC is ${tartanHome.hvacState}</strong>
+        <strong>HVAC is <span id="hvacState">${tartanHome.hvacState}</span></strong>
     </P>
     <hr>
 
     <h3>Proximity</h3>
     <p>
-        <strong>House is <font color="blue"> ${tartanHome.proximity}</font></strong>
+        <strong>House is <font color="blue"> <span id="proximity">${tartanHome.proximity}</span></font></strong>
     </p>
     <p>
         <strong>Door state:</strong>
@@ -171,13 +113,14 @@ div {
         </select>
     </p>
     <p>
-        <#if tartanHome.alarmActive != "active">
-        <strong><font color="green">Alarm Off</font></strong>
-        <#else>
-        <strong><font color="red">Alarm Active!</font></strong>
-        <label for="alarmPasscode">Alarm passcode: </label><input id="alarmPasscode" type="text" />
-        <button id="alarm_button">Stop alarm</button>
-    </#if>
+        <span id="alarmOff" <#if tartanHome.alarmActive == "active">hidden</#if>>
+            <strong><font color="green">Alarm Off</font></strong>
+        </span>
+        <span id="alarmOn" <#if tartanHome.alarmActive != "active">hidden</#if>>
+            <strong><font color="red">Alarm Active!</font></strong>
+            <label for="alarmPasscode">Alarm passcode: </label><input id="alarmPasscode" type="text" />
+            <button id="alarm_button">Stop alarm</button>
+        </span>
     </p>
     <p>
         <strong>
@@ -203,6 +146,7 @@ div {
     </textarea>
     <p>
         <button id="update_button">Update house state</button> <button id="refresh_button">Refresh house state</button>
+        <span id="status"></span>
     </p>
 </fieldset>
 </div>
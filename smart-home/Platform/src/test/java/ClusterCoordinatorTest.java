@@ -0,0 +1,274 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import tartan.smarthome.cluster.ClusterCoordinator;
+import tartan.smarthome.cluster.ClusterMember;
+import tartan.smarthome.cluster.HashRing;
+import tartan.smarthome.core.TartanHouseLease;
+import tartan.smarthome.core.TartanNodeLease;
+import tartan.smarthome.db.ClusterDAO;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Test class to check that a house moves between cluster nodes without two nodes ever running it at once.
+ */
+public class ClusterCoordinatorTest {
+
+    @Test
+    /**
+     * A node keeps the lease of a house it is giving up until the house is disconnected, however long that
+     * takes, so the node taking over only connects once the old one has let go
+     */
+    public void aHouseIsReleasedOnlyOnceItIsDisconnected() throws Exception {
+        Set<String> houses = ConcurrentHashMap.newKeySet();
+        for (int i = 0; i < 10; i++) {
+            houses.add("house" + i);
+        }
+        HashRing ring = new HashRing(Arrays.asList("a", "b"), 16);
+        List<String> moving = new ArrayList<>();
+        for (String house : houses) {
+            if ("b".equals(ring.owner(house))) {
+                moving.add(house);
+            }
+        }
+        assertFalse(moving.isEmpty());
+
+        MemoryClusterDAO dao = new MemoryClusterDAO();
+        Map<String, String> connected = new ConcurrentHashMap<>();
+        List<String> overlaps = new CopyOnWriteArrayList<>();
+        CountDownLatch releasing = new CountDownLatch(1);
+        CountDownLatch disconnected = new CountDownLatch(1);
+
+        ClusterCoordinator a = new ClusterCoordinator("a", "http://a", 1, 16, dao, houses);
+        a.setMember(new ClusterMember() {
+            @Override
+            public void acquire(String house) {
+                if (connected.putIfAbsent(house, "a") != null) {
+                    overlaps.add(house);
+                }
+            }
+
+            @Override
+            public void release(String house) {
+                releasing.countDown();
+                try {
+                    // a slow house, still being disconnected
+                    disconnected.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                connected.remove(house, "a");
+            }
+        });
+        ClusterCoordinator b = new ClusterCoordinator("b", "http://b", 1, 16, dao, houses);
+        b.setMember(new ClusterMember() {
+            @Override
+            public void acquire(String house) {
+                if (connected.putIfAbsent(house, "b") != null) {
+                    overlaps.add(house);
+                }
+            }
+
+            @Override
+            public void release(String house) {
+                connected.remove(house, "b");
+            }
+        });
+
+        a.start();
+        assertTrue(waitFor(() -> connected.size() == houses.size()));
+        b.start();
+        assertTrue(releasing.await(5, TimeUnit.SECONDS));
+
+        // several renewals and more than a lease period go by while the old node is still disconnecting
+        Thread.sleep(1500);
+        for (String house : moving) {
+            assertEquals("a", connected.get(house));
+            assertEquals("a", dao.holder(house));
+            assertFalse(b.isLocal(house));
+        }
+
+        disconnected.countDown();
+        assertTrue(waitFor(() -> moving.stream().allMatch(house -> "b".equals(connected.get(house)))));
+        assertTrue(overlaps.isEmpty());
+        for (String house : moving) {
+            assertEquals("b", dao.holder(house));
+        }
+        b.stop();
+        a.stop();
+    }
+
+    @Test
+    /**
+     * A node that loses the database has disconnected its houses before their leases run out, so no other
+     * node can take a house while it is still connected here
+     */
+    public void aNodeThatCannotRenewLetsGoBeforeItsLeasesRunOut() throws Exception {
+        Set<String> houses = ConcurrentHashMap.newKeySet();
+        for (int i = 0; i < 5; i++) {
+            houses.add("house" + i);
+        }
+        MemoryClusterDAO dao = new MemoryClusterDAO();
+        Map<String, Long> released = new ConcurrentHashMap<>();
+        Set<String> connected = ConcurrentHashMap.newKeySet();
+
+        ClusterCoordinator a = new ClusterCoordinator("a", "http://a", 3, 16, dao, houses);
+        a.setMember(new ClusterMember() {
+            @Override
+            public void acquire(String house) {
+                connected.add(house);
+            }
+
+            @Override
+            public void release(String house) {
+                connected.remove(house);
+                released.put(house, System.currentTimeMillis());
+            }
+        });
+        a.start();
+        assertTrue(waitFor(() -> connected.size() == houses.size()));
+
+        dao.failing = true;
+        Map<String, Long> expires = new HashMap<>();
+        for (String house : houses) {
+            expires.put(house, dao.expires(house));
+        }
+        assertTrue(waitFor(() -> released.size() == houses.size()));
+        for (String house : houses) {
+            long late = released.get(house) - expires.get(house);
+            assertTrue(late < 0, house + " was released " + late + " ms after its lease ran out");
+        }
+        assertTrue(connected.isEmpty());
+        a.stop();
+    }
+
+    private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    /**
+     * The leases, kept in memory with the same rules as the database
+     */
+    static class MemoryClusterDAO extends ClusterDAO {
+
+        private final Map<String, TartanNodeLease> nodes = new HashMap<>();
+        private final Map<String, TartanHouseLease> leases = new HashMap<>();
+
+        /** set to make every call fail, as when the database cannot be reached */
+        volatile boolean failing = false;
+
+        MemoryClusterDAO() {
+            super(null);
+        }
+
+        /**
+         * Get the node holding a house now
+         * @param house the house
+         * @return the node, or null if the lease has run out
+         */
+        synchronized String holder(String house) {
+            TartanHouseLease lease = leases.get(house);
+            return lease != null && lease.getExpires() > System.currentTimeMillis() ? lease.getOwner() : null;
+        }
+
+        /**
+         * Get when a house's lease runs out
+         * @param house the house
+         * @return the time, or 0 if there is no lease
+         */
+        synchronized long expires(String house) {
+            TartanHouseLease lease = leases.get(house);
+            return lease != null ? lease.getExpires() : 0;
+        }
+
+        @Override
+        public synchronized void heartbeat(String nodeId, String url, long expires) {
+            if (failing) {
+                throw new IllegalStateException("The database is unreachable");
+            }
+            nodes.put(nodeId, new TartanNodeLease(nodeId, url, expires));
+        }
+
+        @Override
+        public synchronized List<TartanNodeLease> liveNodes(long now) {
+            List<TartanNodeLease> live = new ArrayList<>();
+            for (TartanNodeLease node : nodes.values()) {
+                if (node.getExpires() > now) {
+                    live.add(node);
+                }
+            }
+            return live;
+        }
+
+        @Override
+        public synchronized void leave(String nodeId) {
+            for (TartanHouseLease lease : new ArrayList<>(leases.values())) {
+                if (nodeId.equals(lease.getOwner())) {
+                    leases.put(lease.getHomeName(), new TartanHouseLease(lease.getHomeName(), nodeId, 0));
+                }
+            }
+            nodes.remove(nodeId);
+        }
+
+        @Override
+        public synchronized List<TartanHouseLease> liveHouses(long now) {
+            List<TartanHouseLease> live = new ArrayList<>();
+            for (TartanHouseLease lease : leases.values()) {
+                if (lease.getExpires() > now) {
+                    live.add(lease);
+                }
+            }
+            return live;
+        }
+
+        @Override
+        public synchronized boolean claim(String house, String owner, long expires, long now) {
+            TartanHouseLease lease = leases.get(house);
+            if (lease != null && !owner.equals(lease.getOwner()) && lease.getExpires() >= now) {
+                return false;
+            }
+            leases.put(house, new TartanHouseLease(house, owner, expires));
+            return true;
+        }
+
+        @Override
+        public synchronized void renew(String owner, long expires) {
+            for (TartanHouseLease lease : new ArrayList<>(leases.values())) {
+                if (owner.equals(lease.getOwner()) && lease.getExpires() > 0) {
+                    leases.put(lease.getHomeName(), new TartanHouseLease(lease.getHomeName(), owner, expires));
+                }
+            }
+        }
+
+        @Override
+        public synchronized void release(String house, String owner) {
+            if (failing) {
+                throw new IllegalStateException("The database is unreachable");
+            }
+            TartanHouseLease lease = leases.get(house);
+            if (lease != null && owner.equals(lease.getOwner())) {
+                leases.put(house, new TartanHouseLease(house, owner, 0));
+            }
+        }
+    }
+}
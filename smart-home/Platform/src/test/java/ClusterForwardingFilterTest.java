@@ -0,0 +1,203 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import tartan.smarthome.auth.TartanUser;
+import tartan.smarthome.cluster.ClusterCoordinator;
+import tartan.smarthome.cluster.ClusterForwardingFilter;
+import tartan.smarthome.core.TartanHouseLease;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.UriInfo;
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Test class to check that requests for a house run by another node are sent to that node and answered as
+ * it answered them.
+ */
+public class ClusterForwardingFilterTest {
+
+    private HttpServer owner;
+    private ClusterCoordinator cluster;
+    private ClusterForwardingFilter filter;
+
+    @BeforeEach
+    public void startCluster() throws Exception {
+        // the other node answers with what it was asked
+        owner = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        owner.createContext("/", exchange -> {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            byte[] answer = (exchange.getRequestMethod() + " " + exchange.getRequestURI() + " "
+                    + exchange.getRequestHeaders().getFirst(ClusterForwardingFilter.FORWARDED_HEADER) + " " + body)
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("X-Owner", "a");
+            exchange.sendResponseHeaders(202, answer.length);
+            exchange.getResponseBody().write(answer);
+            exchange.close();
+        });
+        owner.start();
+
+        Set<String> houses = ConcurrentHashMap.newKeySet();
+        houses.add("remote");
+        ClusterCoordinatorTest.MemoryClusterDAO dao = new ClusterCoordinatorTest.MemoryClusterDAO();
+        long expires = System.currentTimeMillis() + 60000;
+        dao.heartbeat("a", "http://127.0.0.1:" + owner.getAddress().getPort(), expires);
+        dao.claim("remote", "a", expires, System.currentTimeMillis());
+
+        cluster = new ClusterCoordinator("b", "http://b", 1, 16, dao, houses);
+        cluster.setMember(new tartan.smarthome.cluster.ClusterMember() {
+            @Override
+            public void acquire(String house) {
+            }
+
+            @Override
+            public void release(String house) {
+            }
+        });
+        cluster.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cluster.getOwnerUrl("remote") == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        filter = new ClusterForwardingFilter(cluster);
+    }
+
+    @AfterEach
+    public void stopCluster() throws Exception {
+        cluster.stop();
+        owner.stop(0);
+    }
+
+    @Test
+    /**
+     * A request for a house another node holds is sent there with its body, and the owner's status, headers
+     * and body come back; the owner can see which node forwarded it
+     */
+    public void forwardsToTheOwner() throws Exception {
+        FakeRequest request = new FakeRequest(new TartanUser("user", "remote"), "remote", "POST",
+                "/smarthome/update/remote?force=true", "{\"light\":true}");
+        filter.filter(request.context());
+
+        Response answer = request.aborted.get();
+        assertEquals(202, answer.getStatus());
+        assertEquals("a", answer.getHeaderString("X-Owner"));
+        assertEquals("POST /smarthome/update/remote?force=true b {\"light\":true}",
+                new String((byte[]) answer.getEntity(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    /**
+     * A request that has already been forwarded once is not sent on again, so a house between owners never
+     * bounces between nodes
+     */
+    public void doesNotForwardTwice() throws Exception {
+        FakeRequest request = new FakeRequest(new TartanUser("user", "remote"), "remote", "GET",
+                "/smarthome/state/remote", "");
+        request.headers.add(ClusterForwardingFilter.FORWARDED_HEADER, "c");
+        filter.filter(request.context());
+
+        assertEquals(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), request.aborted.get().getStatus());
+        assertEquals("5", request.aborted.get().getHeaderString("Retry-After"));
+    }
+
+    @Test
+    /**
+     * Requests without a user, for a house outside the cluster, or from an operator asking about the fleet
+     * are answered by this node
+     */
+    public void answersWhatIsNotAnotherNodesHouse() throws Exception {
+        FakeRequest anonymous = new FakeRequest(null, "remote", "GET", "/smarthome/state/remote", "");
+        filter.filter(anonymous.context());
+        assertNull(anonymous.aborted.get());
+
+        FakeRequest unmanaged = new FakeRequest(new TartanUser("user", "elsewhere"), null, "GET",
+                "/smarthome/commands", "");
+        filter.filter(unmanaged.context());
+        assertNull(unmanaged.aborted.get());
+
+        FakeRequest operator = new FakeRequest(TartanUser.operator("admin"), null, "GET", "/smarthome/fleet", "");
+        filter.filter(operator.context());
+        assertNull(operator.aborted.get());
+        assertTrue(cluster.isManaged("remote"));
+    }
+
+    /**
+     * A request as the filter sees it, recording the answer the filter gives in its place
+     */
+    private static class FakeRequest {
+
+        final MultivaluedMap<String, String> headers = new MultivaluedHashMap<>();
+        final AtomicReference<Response> aborted = new AtomicReference<>();
+        private final Principal user;
+        private final String house;
+        private final String method;
+        private final URI uri;
+        private final byte[] body;
+
+        FakeRequest(Principal user, String house, String method, String uri, String body) {
+            this.user = user;
+            this.house = house;
+            this.method = method;
+            this.uri = URI.create("http://b" + uri);
+            this.body = body.getBytes(StandardCharsets.UTF_8);
+            headers.add("Content-Type", "application/json");
+            headers.add("Host", "b");
+        }
+
+        ContainerRequestContext context() {
+            SecurityContext security = proxy(SecurityContext.class, (name, args) ->
+                    "getUserPrincipal".equals(name) ? user : null);
+            MultivaluedMap<String, String> path = new MultivaluedHashMap<>();
+            if (house != null) {
+                path.add("house", house);
+            }
+            UriInfo info = proxy(UriInfo.class, (name, args) -> {
+                switch (name) {
+                    case "getPathParameters": return path;
+                    case "getRequestUri": return uri;
+                    default: return null;
+                }
+            });
+            return proxy(ContainerRequestContext.class, (name, args) -> {
+                switch (name) {
+                    case "getSecurityContext": return security;
+                    case "getUriInfo": return info;
+                    case "getMethod": return method;
+                    case "getHeaders": return headers;
+                    case "getHeaderString": return headers.getFirst((String) args[0]);
+                    case "hasEntity": return body.length > 0;
+                    case "getEntityStream": return new ByteArrayInputStream(body);
+                    case "abortWith":
+                        aborted.set((Response) args[0]);
+                        return null;
+                    default: return null;
+                }
+            });
+        }
+
+        private interface Answer {
+            Object call(String name, Object[] args);
+        }
+
+        private static <T> T proxy(Class<T> type, Answer answer) {
+            return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                    (self, method, args) -> answer.call(method.getName(), args)));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import tartan.smarthome.resources.iotcontroller.CommandQueue;
+import tartan.smarthome.resources.iotcontroller.IoTValues;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Hashtable;
+import java.util.Map;
+
+/**
+ * Test class to check that commands for an unreachable house are merged and survive a restart.
+ */
+public class CommandQueueTest {
+
+    private Map<String, Object> update(String key, Object value) {
+        Map<String, Object> update = new Hashtable<>();
+        update.put(key, value);
+        return update;
+    }
+
+    @Test
+    /**
+     * The last value of a setting wins, and delivered commands are dropped
+     */
+    public void commandsAreMerged() {
+        CommandQueue queue = new CommandQueue(null);
+        queue.enqueue(update(IoTValues.LIGHT_STATE, true));
+        queue.enqueue(update(IoTValues.DOOR_STATE, true));
+        long last = queue.enqueue(update(IoTValues.LIGHT_STATE, false));
+
+        Map<String, Object> pending = queue.getPending();
+        assertEquals(2, pending.size());
+        assertEquals(false, pending.get(IoTValues.LIGHT_STATE));
+
+        queue.delivered(last);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    /**
+     * A reopened queue has what was waiting, and carries on numbering from where it was
+     */
+    public void commandsSurviveARestart() throws Exception {
+        File file = new File(Files.createTempDirectory("commands").toFile(), "mse.commands");
+        CommandQueue queue = new CommandQueue(file);
+        long first = queue.enqueue(update(IoTValues.TARGET_TEMP, 72));
+        queue.delivered(first);
+        queue.enqueue(update(IoTValues.ALARM_PASSCODE, "a b;c=d"));
+
+        CommandQueue reopened = new CommandQueue(file);
+        assertEquals(2, reopened.getLastId());
+        assertEquals("a b;c=d", reopened.getPending().get(IoTValues.ALARM_PASSCODE));
+        assertEquals(1, reopened.getPending().size());
+        assertEquals(3, reopened.enqueue(update(IoTValues.TARGET_TEMP, 70)));
+    }
+
+    @Test
+    /**
+     * A command cut short by a crash is skipped when the queue is reopened, even if it was cut right after
+     * one of its changes, and the commands before it are kept
+     */
+    public void aTornCommandIsSkipped() throws Exception {
+        File file = new File(Files.createTempDirectory("commands").toFile(), "mse.commands");
+        CommandQueue queue = new CommandQueue(file);
+        queue.enqueue(update(IoTValues.TARGET_TEMP, 72));
+        queue.enqueue(update(IoTValues.LIGHT_STATE, true));
+
+        // cut the last line after its change, before the end of the line
+        String saved = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        String torn = saved.substring(0, saved.lastIndexOf(';') + 1);
+        Files.write(file.toPath(), torn.getBytes(StandardCharsets.UTF_8));
+
+        CommandQueue reopened = new CommandQueue(file);
+        assertEquals(1, reopened.getPending().size());
+        assertEquals(72, reopened.getPending().get(IoTValues.TARGET_TEMP));
+        assertEquals(1, reopened.getLastId());
+
+        // the torn line is gone for good once the file is rewritten
+        assertEquals(1, new CommandQueue(file).getPending().size());
+        assertFalse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8)
+                .contains(IoTValues.LIGHT_STATE + "="));
+    }
+}
@@ -0,0 +1,124 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.jackson.Jackson;
+import tartan.smarthome.TartanPollingSettings;
+import tartan.smarthome.auth.TartanAuthenticator;
+import tartan.smarthome.auth.TartanUser;
+import tartan.smarthome.core.TartanCommand;
+import tartan.smarthome.fleet.FleetIndex;
+import tartan.smarthome.fleet.FleetRegistry;
+import tartan.smarthome.fleet.FleetSummary;
+import tartan.smarthome.resources.CommandTracker;
+import tartan.smarthome.resources.TartanResource;
+import tartan.smarthome.resources.iotcontroller.HouseCommand;
+import tartan.smarthome.resources.iotcontroller.ShardedRuntime;
+import tartan.smarthome.views.StateResponseCache;
+
+import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test class to check that a command moves from queued to sent to acked or failed only once, that its
+ * latency is measured from when it was accepted, and that a user can only look up their own house's commands.
+ */
+public class CommandTrackerTest {
+
+    @Test
+    /**
+     * A command is queued, then sent, then acked, and the steps after it is done change nothing. The
+     * latency of the ack is reported
+     */
+    public void aCommandIsAckedOnce() throws Exception {
+        MetricRegistry metrics = new MetricRegistry();
+        CommandTracker tracker = new CommandTracker(metrics);
+        HouseCommand command = tracker.create("mse");
+        assertSame(command, tracker.find(command.getId()));
+        assertEquals(HouseCommand.Status.QUEUED, command.getStatus());
+        assertFalse(command.isDone());
+        assertEquals(-1, command.getSentAfterNanos());
+        assertEquals(-1, command.getCompletedAfterNanos());
+
+        Thread.sleep(5);
+        command.sent();
+        assertEquals(HouseCommand.Status.SENT, command.getStatus());
+        assertTrue(command.getSentAfterNanos() > 0);
+        assertEquals(-1, command.getCompletedAfterNanos());
+
+        command.acked();
+        assertEquals(HouseCommand.Status.ACKED, command.getStatus());
+        assertTrue(command.isDone());
+        long completed = command.getCompletedAfterNanos();
+        assertTrue(completed >= command.getSentAfterNanos());
+
+        // a late answer or a resend after the ack is ignored
+        command.failed("too late");
+        command.sent();
+        assertEquals(HouseCommand.Status.ACKED, command.getStatus());
+        assertNull(command.getError());
+        assertEquals(completed, command.getCompletedAfterNanos());
+
+        assertEquals(1, metrics.timer(MetricRegistry.name(CommandTracker.class, "command-latency")).getCount());
+        assertEquals(0, metrics.meter(MetricRegistry.name(CommandTracker.class, "command-failures")).getCount());
+    }
+
+    @Test
+    /**
+     * A command that fails keeps its reason, tells its listener once, and is counted as a failure
+     */
+    public void aFailedCommandKeepsItsReason() {
+        MetricRegistry metrics = new MetricRegistry();
+        CommandTracker tracker = new CommandTracker(metrics);
+        HouseCommand command = tracker.create("mse");
+        command.sent();
+        command.failed("The house refused the change");
+        command.acked();
+
+        assertEquals(HouseCommand.Status.FAILED, command.getStatus());
+        assertEquals("The house refused the change", command.getError());
+        assertTrue(command.getCompletedAfterNanos() >= command.getSentAfterNanos());
+        assertEquals(0, metrics.timer(MetricRegistry.name(CommandTracker.class, "command-latency")).getCount());
+        assertEquals(1, metrics.meter(MetricRegistry.name(CommandTracker.class, "command-failures")).getCount());
+
+        List<HouseCommand> told = new ArrayList<>();
+        HouseCommand unsent = new HouseCommand(1, "mse", told::add);
+        unsent.failed("The house is unreachable");
+        unsent.failed("The house is still unreachable");
+        assertEquals(1, told.size());
+        assertEquals(-1, unsent.getSentAfterNanos());
+        assertTrue(unsent.getCompletedAfterNanos() >= 0);
+    }
+
+    @Test
+    /**
+     * A user gets their own house's commands, and another house's command is not found rather than shown
+     */
+    public void anotherHousesCommandIsNotFound() {
+        MetricRegistry metrics = new MetricRegistry();
+        ShardedRuntime runtime = new ShardedRuntime(1, 1, false);
+        FleetRegistry fleet = new FleetRegistry(null, 60, new TartanPollingSettings(), runtime, metrics, null,
+                new TartanAuthenticator(), false);
+        TartanResource resource = new TartanResource(fleet, runtime, metrics,
+                new StateResponseCache(Jackson.newObjectMapper(), null, metrics),
+                new FleetIndex(runtime.getStateTable()), new FleetSummary(runtime.getStateTable()), null);
+        HouseCommand command = resource.getCommandTracker().create("mse");
+        command.sent();
+        command.acked();
+
+        Response own = resource.command(command.getId(), new TartanUser("owner", "mse"));
+        assertEquals(200, own.getStatus());
+        TartanCommand shown = (TartanCommand) own.getEntity();
+        assertEquals("acked", shown.getStatus());
+        assertEquals("mse", shown.getHouse());
+
+        assertEquals(404, resource.command(command.getId(), new TartanUser("neighbour", "other")).getStatus());
+        assertEquals(404, resource.command(command.getId() + 1, new TartanUser("owner", "mse")).getStatus());
+        runtime.stop();
+    }
+}
@@ -0,0 +1,233 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.dropwizard.jackson.Jackson;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import tartan.smarthome.TartanHomeSettings;
+import tartan.smarthome.TartanOperatorSettings;
+import tartan.smarthome.TartanPollingSettings;
+import tartan.smarthome.auth.TartanAuthenticator;
+import tartan.smarthome.fleet.FleetRegistry;
+import tartan.smarthome.resources.CommandTracker;
+import tartan.smarthome.resources.ControlChannel;
+import tartan.smarthome.resources.ControlServlet;
+import tartan.smarthome.resources.iotcontroller.ShardedRuntime;
+import tartan.smarthome.views.StateResponseCache;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.net.http.WebSocketHandshakeException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test class to check that the control channel only opens for the users of a house, from the platform's own
+ * pages, and that a command sent over it is acked.
+ */
+public class ControlServletTest {
+
+    private static final String HOUSE = "control-house";
+    private static final String USER = "control-user";
+    private static final String PASSWORD = "control-password";
+    private static final String OPERATOR = "control-operator";
+
+    private final ObjectMapper mapper = Jackson.newObjectMapper();
+    private ShardedRuntime runtime;
+    private ControlChannel channel;
+    private Server server;
+    private URI uri;
+    private String origin;
+
+    @BeforeEach
+    public void startServer() throws Exception {
+        MetricRegistry metrics = new MetricRegistry();
+        runtime = new ShardedRuntime(1, 1, false);
+        TartanAuthenticator auth = new TartanAuthenticator();
+        TartanOperatorSettings operator = new TartanOperatorSettings();
+        operator.setUser(OPERATOR);
+        operator.setPassword(PASSWORD);
+        auth.addOperator(operator);
+
+        // the house is never reachable, so its commands are queued
+        FleetRegistry fleet = new FleetRegistry(null, 60, new TartanPollingSettings(), runtime, metrics, null,
+                auth, false);
+        TartanHomeSettings house = new TartanHomeSettings();
+        house.setName(HOUSE);
+        house.setUser(USER);
+        house.setPassword(PASSWORD);
+        house.setAddress("127.0.0.1");
+        house.setPort(closedPort());
+        house.setTargetTemp("70");
+        house.setAlarmDelay("5");
+        house.setAlarmPasscode("1234");
+        house.setLockPasscode("5678");
+        fleet.put(house);
+
+        StateResponseCache stateCache = new StateResponseCache(mapper, null, metrics);
+        channel = new ControlChannel(fleet, runtime.getStateTable(), stateCache, new CommandTracker(metrics),
+                mapper, metrics);
+        channel.start();
+
+        server = new Server(new InetSocketAddress("127.0.0.1", 0));
+        ServletContextHandler context = new ServletContextHandler();
+        context.addServlet(new ServletHolder(new ControlServlet(channel, auth)), "/smarthome/control");
+        server.setHandler(context);
+        server.start();
+        int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+        uri = URI.create("ws://127.0.0.1:" + port + "/smarthome/control");
+        origin = "http://127.0.0.1:" + port;
+    }
+
+    @AfterEach
+    public void stopServer() throws Exception {
+        server.stop();
+        channel.stop();
+        runtime.stop();
+    }
+
+    @Test
+    /**
+     * A page from another site is refused even with the right credentials, since the browser sends them
+     * for any page
+     */
+    public void anotherSitesPageIsForbidden() throws Exception {
+        assertEquals(403, refused("http://elsewhere.example", basic(USER + ":" + PASSWORD)));
+        assertEquals(403, refused("not a url", basic(USER + ":" + PASSWORD)));
+    }
+
+    @Test
+    /**
+     * Missing, malformed or wrong credentials are asked for again
+     */
+    public void badCredentialsAreUnauthorized() throws Exception {
+        assertEquals(401, refused(origin, null));
+        assertEquals(401, refused(origin, "Bearer " + PASSWORD));
+        assertEquals(401, refused(origin, "Basic !!not base64!!"));
+        assertEquals(401, refused(origin, basic(USER + PASSWORD)));
+        assertEquals(401, refused(origin, basic(USER + ":wrong")));
+        // a request without an Origin, such as one from a script, still needs credentials
+        assertEquals(401, refused(null, null));
+    }
+
+    @Test
+    /**
+     * An operator has no house, so there is nothing for the channel to show
+     */
+    public void aUserWithoutAHouseIsForbidden() throws Exception {
+        assertEquals(403, refused(origin, basic(OPERATOR + ":" + PASSWORD)));
+    }
+
+    @Test
+    /**
+     * The socket opens with the whole house, answers a ping, reports what it cannot handle with the
+     * message's ID, and acks a command once it is queued for the unreachable house
+     */
+    public void aCommandIsAcked() throws Exception {
+        BlockingQueue<JsonNode> messages = new LinkedBlockingQueue<>();
+        WebSocket socket = open(origin, basic(USER + ":" + PASSWORD), messages);
+
+        JsonNode state = next(messages, "state");
+        assertTrue(state.get("version").asLong() > 0);
+        assertTrue(state.get("state").isObject());
+
+        socket.sendText("{\"type\":\"ping\"}", true).get(2, TimeUnit.SECONDS);
+        next(messages, "pong");
+
+        socket.sendText("{\"type\":\"command\",\"id\":6}", true).get(2, TimeUnit.SECONDS);
+        assertEquals(6, next(messages, "error").get("id").asInt());
+
+        socket.sendText("{\"type\":\"command\",\"id\":7,\"state\":{\"light\":\"on\"}}", true)
+                .get(2, TimeUnit.SECONDS);
+        JsonNode ack = next(messages, "ack");
+        assertEquals(7, ack.get("id").asInt());
+        assertEquals(HOUSE, ack.get("command").get("house").asText());
+        assertEquals("queued", ack.get("command").get("status").asText());
+
+        socket.sendClose(WebSocket.NORMAL_CLOSURE, "done").get(2, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Try to open a socket that should be refused
+     * @return the status the upgrade was refused with
+     */
+    private int refused(String origin, String authorization) throws Exception {
+        try {
+            open(origin, authorization, new LinkedBlockingQueue<>()).abort();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof WebSocketHandshakeException, e.getCause().toString());
+            return ((WebSocketHandshakeException) e.getCause()).getResponse().statusCode();
+        }
+        return 101;
+    }
+
+    private WebSocket open(String origin, String authorization, BlockingQueue<JsonNode> messages)
+            throws Exception {
+        WebSocket.Builder builder = HttpClient.newHttpClient().newWebSocketBuilder();
+        if (origin != null) {
+            builder.header("Origin", origin);
+        }
+        if (authorization != null) {
+            builder.header("Authorization", authorization);
+        }
+        return builder.buildAsync(uri, new WebSocket.Listener() {
+            private final StringBuilder text = new StringBuilder();
+
+            @Override
+            public CompletionStage<?> onText(WebSocket socket, CharSequence data, boolean last) {
+                text.append(data);
+                if (last) {
+                    try {
+                        messages.add(mapper.readTree(text.toString()));
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    text.setLength(0);
+                }
+                socket.request(1);
+                return null;
+            }
+        }).get(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Take messages until one of a type arrives, skipping the event log entries the house writes as it goes
+     */
+    private static JsonNode next(BlockingQueue<JsonNode> messages, String type) throws InterruptedException {
+        while (true) {
+            JsonNode message = messages.poll(5, TimeUnit.SECONDS);
+            assertNotNull(message, "No " + type + " message");
+            if (type.equals(message.path("type").asText())) {
+                return message;
+            }
+        }
+    }
+
+    private static String basic(String credentials) {
+        return "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static int closedPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import tartan.smarthome.resources.iotcontroller.DeviceShadow;
+import tartan.smarthome.resources.iotcontroller.IoTValues;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test class to check that only changed settings are sent to the house.
+ */
+public class DeviceShadowTest {
+
+    /**
+     * Creates the state the house reported.
+     *
+     * @return the reported state
+     */
+    public Map<String, Object> reportedState() {
+        Map<String, Object> state = new HashMap<String, Object>();
+        state.put(IoTValues.TEMP_READING, 70);
+        state.put(IoTValues.DOOR_STATE, false);
+        state.put(IoTValues.LIGHT_STATE, true);
+        state.put(IoTValues.ALARM_STATE, false);
+        state.put(IoTValues.ALARM_ACTIVE, false);
+        state.put(IoTValues.HUMIDIFIER_STATE, false);
+        state.put(IoTValues.HEATER_STATE, false);
+        state.put(IoTValues.CHILLER_STATE, false);
+        return state;
+    }
+
+    @Test
+    /**
+     * Nothing is sent when the evaluated state matches what the house reported
+     */
+    public void unchangedStateSendsNothing() {
+        DeviceShadow shadow = new DeviceShadow();
+        shadow.report(reportedState());
+
+        Map<String, Object> desired = reportedState();
+        desired.put(IoTValues.AWAY_TIMER, false); // not a house setting
+
+        assertTrue(shadow.diff(desired).isEmpty(), "An unchanged house should not be sent anything");
+    }
+
+    @Test
+    /**
+     * Only the settings that changed are sent
+     */
+    public void onlyChangedSettingsAreSent() {
+        DeviceShadow shadow = new DeviceShadow();
+        shadow.report(reportedState());
+
+        Map<String, Object> desired = reportedState();
+        desired.put(IoTValues.LIGHT_STATE, false);
+        desired.put(IoTValues.HEATER_STATE, true);
+        desired.put(IoTValues.TEMP_READING, 71); // a reading, not a setting
+
+        Map<String, Object> changes = shadow.diff(desired);
+        assertEquals(2, changes.size());
+        assertEquals(false, changes.get(IoTValues.LIGHT_STATE));
+        assertEquals(true, changes.get(IoTValues.HEATER_STATE));
+    }
+
+    @Test
+    /**
+     * Acknowledged settings are not sent again, but everything is sent after a reset
+     */
+    public void acknowledgeAndReset() {
+        DeviceShadow shadow = new DeviceShadow();
+        shadow.report(reportedState());
+
+        Map<String, Object> desired = reportedState();
+        desired.put(IoTValues.LIGHT_STATE, false);
+        shadow.acknowledge(shadow.diff(desired));
+        assertTrue(shadow.diff(desired).isEmpty(), "Acknowledged settings should not be sent again");
+
+        shadow.reset();
+        assertEquals(7, shadow.diff(desired).size(), "After a reset every setting should be sent");
+    }
+}
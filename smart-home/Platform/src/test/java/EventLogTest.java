@@ -0,0 +1,69 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import tartan.smarthome.core.TartanEventPage;
+import tartan.smarthome.resources.iotcontroller.EventLog;
+
+/**
+ * Test class to check that the event log stays bounded and can be paged with a cursor.
+ */
+public class EventLogTest {
+
+    @Test
+    /**
+     * Pages follow on from each other's cursor until the log is read
+     */
+    public void pagesFollowTheCursor() {
+        EventLog log = new EventLog(10);
+        for (int i = 1; i <= 5; i++) {
+            log.append("event " + i);
+        }
+
+        TartanEventPage first = log.page(0, 3);
+        assertEquals(3, first.getEvents().size());
+        assertEquals("event 1", first.getEvents().get(0).getMessage());
+        assertTrue(first.isMore());
+
+        TartanEventPage second = log.page(first.getNext(), 3);
+        assertEquals(2, second.getEvents().size());
+        assertEquals(5, second.getNext());
+        assertFalse(second.isMore());
+    }
+
+    @Test
+    /**
+     * Only the newest entries are kept, and a reader that fell behind is told how many it missed
+     */
+    public void oldEntriesAreDropped() {
+        EventLog log = new EventLog(3);
+        for (int i = 1; i <= 7; i++) {
+            log.append("event " + i);
+        }
+
+        assertEquals(3, log.size());
+        assertEquals("event 5", log.getMessages().get(0));
+
+        TartanEventPage page = log.page(2, 10);
+        assertEquals(2, page.getMissed());
+        assertEquals(5, page.getEvents().get(0).getId());
+    }
+
+    @Test
+    /**
+     * An empty entry is not kept and takes no ID, so it can't push a real entry out of the ring
+     */
+    public void emptyEntriesAreSkipped() {
+        EventLog log = new EventLog(2);
+        assertEquals(0, log.append(""));
+        log.append("event 1");
+        assertEquals(1, log.append(""));
+        assertEquals(1, log.append(null));
+        log.append("event 2");
+
+        assertEquals(2, log.size());
+        assertEquals("event 1", log.getMessages().get(0));
+        assertEquals(2, log.page(0, 10).getNext());
+    }
+}
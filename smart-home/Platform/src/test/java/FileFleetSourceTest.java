@@ -0,0 +1,87 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import tartan.smarthome.TartanHomeSettings;
+import tartan.smarthome.fleet.FileFleetSource;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Test class to check that a fleet file can be changed through the admin endpoints and by hand.
+ */
+public class FileFleetSourceTest {
+
+    /**
+     * Creates the settings for a house.
+     *
+     * @param name the house name
+     * @param port the house port
+     * @return the settings
+     */
+    public TartanHomeSettings house(String name, int port) {
+        TartanHomeSettings house = new TartanHomeSettings();
+        house.setName(name);
+        house.setAddress("127.0.0.1");
+        house.setPort(port);
+        return house;
+    }
+
+    @Test
+    /**
+     * Saved houses are read back, a saved house replaces the one with its name, and deleted houses are gone
+     */
+    public void savedHousesAreReadBack() throws Exception {
+        File file = File.createTempFile("fleet", ".yml");
+        file.delete();
+        FileFleetSource source = new FileFleetSource(file);
+
+        source.save(house("mse", 5050));
+        source.save(house("lab", 5051));
+        source.save(house("mse", 6060));
+        source.delete("lab");
+        List<TartanHomeSettings> houses = source.load();
+
+        assertEquals(1, houses.size());
+        assertEquals("mse", houses.get(0).getName());
+        assertEquals(6060, houses.get(0).getPort().intValue());
+        file.delete();
+    }
+
+    @Test
+    /**
+     * Our own writes don't count as changes, but an edit to the file does
+     */
+    public void onlyOutsideEditsAreChanges() throws Exception {
+        File file = File.createTempFile("fleet", ".yml");
+        FileFleetSource source = new FileFleetSource(file);
+        source.save(house("mse", 5050));
+
+        assertFalse(source.hasChanged());
+        Files.write(file.toPath(), "houses: []\n".getBytes());
+        assertTrue(source.hasChanged());
+        file.delete();
+    }
+
+    @Test
+    /**
+     * An edit that keeps the file's size and modification time is still a change
+     */
+    public void sameSizeEditsAreChanges() throws Exception {
+        File file = File.createTempFile("fleet", ".yml");
+        FileFleetSource source = new FileFleetSource(file);
+        source.save(house("mse", 5050));
+        long modified = file.lastModified();
+        String content = new String(Files.readAllBytes(file.toPath()));
+
+        Files.write(file.toPath(), content.replace("5050", "6060").getBytes());
+        file.setLastModified(modified);
+        assertTrue(source.hasChanged());
+        assertEquals(6060, source.load().get(0).getPort().intValue());
+        assertFalse(source.hasChanged());
+        file.delete();
+    }
+}
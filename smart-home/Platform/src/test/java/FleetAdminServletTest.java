@@ -0,0 +1,168 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.jersey.validation.Validators;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import tartan.smarthome.TartanHomeSettings;
+import tartan.smarthome.TartanOperatorSettings;
+import tartan.smarthome.TartanPollingSettings;
+import tartan.smarthome.auth.TartanAuthenticator;
+import tartan.smarthome.fleet.FileFleetSource;
+import tartan.smarthome.fleet.FleetAdminServlet;
+import tartan.smarthome.fleet.FleetRegistry;
+import tartan.smarthome.resources.iotcontroller.ShardedRuntime;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Test class to check that only operators can see or change the houses through the fleet admin endpoints.
+ */
+public class FleetAdminServletTest {
+
+    private static final String HOUSE = "admin-house";
+    private static final String USER = "admin-user";
+    private static final String PASSWORD = "admin-password";
+    private static final String OPERATOR = "admin-operator";
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private ShardedRuntime runtime;
+    private FleetRegistry fleet;
+    private File file;
+    private Server server;
+    private String base;
+
+    @BeforeEach
+    public void startServer() throws Exception {
+        runtime = new ShardedRuntime(1, 1, false);
+        TartanAuthenticator auth = new TartanAuthenticator();
+        TartanOperatorSettings operator = new TartanOperatorSettings();
+        operator.setUser(OPERATOR);
+        operator.setPassword(PASSWORD);
+        auth.addOperator(operator);
+
+        fleet = new FleetRegistry(null, 60, new TartanPollingSettings(), runtime, new MetricRegistry(), null,
+                auth, false);
+        fleet.put(house(HOUSE, USER));
+        file = File.createTempFile("fleet", ".yml");
+        file.delete();
+
+        server = new Server(new InetSocketAddress("127.0.0.1", 0));
+        ServletContextHandler context = new ServletContextHandler();
+        context.addServlet(new ServletHolder(new FleetAdminServlet(fleet, new FileFleetSource(file),
+                Jackson.newObjectMapper(), Validators.newValidator(), auth)), "/fleet/*");
+        server.setHandler(context);
+        server.start();
+        base = "http://127.0.0.1:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort() + "/fleet";
+    }
+
+    @AfterEach
+    public void stopServer() throws Exception {
+        server.stop();
+        for (String name : fleet.getNames()) {
+            fleet.remove(name);
+        }
+        runtime.stop();
+        file.delete();
+    }
+
+    @Test
+    /**
+     * Without credentials, or with wrong ones, nothing is shown and nothing changes
+     */
+    public void strangersAreUnauthorized() throws Exception {
+        assertEquals(401, send("GET", "/houses", null, null).statusCode());
+        assertEquals(401, send("GET", "/houses", basic(OPERATOR + ":wrong"), null).statusCode());
+        assertEquals(401, send("PUT", "/houses/intruder", null, houseJson("intruder")).statusCode());
+        assertEquals(401, send("DELETE", "/houses/" + HOUSE, null, null).statusCode());
+        assertEquals(401, send("POST", "/reload", null, null).statusCode());
+        assertEquals(1, fleet.getNames().size());
+        assertTrue(fleet.getNames().contains(HOUSE));
+    }
+
+    @Test
+    /**
+     * The user of a house is known but may not touch the fleet, not even their own house
+     */
+    public void houseUsersAreForbidden() throws Exception {
+        assertEquals(403, send("GET", "/houses/" + HOUSE, basic(USER + ":" + PASSWORD), null).statusCode());
+        assertEquals(403, send("PUT", "/houses/intruder", basic(USER + ":" + PASSWORD), houseJson("intruder"))
+                .statusCode());
+        assertEquals(403, send("DELETE", "/houses/" + HOUSE, basic(USER + ":" + PASSWORD), null).statusCode());
+        assertEquals(1, fleet.getNames().size());
+    }
+
+    @Test
+    /**
+     * An operator can list, add and remove houses
+     */
+    public void operatorsChangeTheFleet() throws Exception {
+        String credentials = basic(OPERATOR + ":" + PASSWORD);
+        HttpResponse<String> list = send("GET", "/houses", credentials, null);
+        assertEquals(200, list.statusCode());
+        assertEquals("[\"" + HOUSE + "\"]", list.body());
+
+        assertEquals(201, send("PUT", "/houses/added", credentials, houseJson("added")).statusCode());
+        assertTrue(fleet.getNames().contains("added"));
+        assertEquals(204, send("DELETE", "/houses/added", credentials, null).statusCode());
+        assertEquals(1, fleet.getNames().size());
+    }
+
+    private HttpResponse<String> send(String method, String path, String authorization, String body)
+            throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(base + path))
+                .method(method, body == null ? HttpRequest.BodyPublishers.noBody()
+                        : HttpRequest.BodyPublishers.ofString(body));
+        if (authorization != null) {
+            request.header("Authorization", authorization);
+        }
+        if (body != null) {
+            request.header("Content-Type", "application/json");
+        }
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static String houseJson(String name) throws IOException {
+        return Jackson.newObjectMapper().writeValueAsString(house(name, name + "-user"));
+    }
+
+    private static TartanHomeSettings house(String name, String user) throws IOException {
+        TartanHomeSettings house = new TartanHomeSettings();
+        house.setName(name);
+        house.setUser(user);
+        house.setPassword(PASSWORD);
+        house.setAddress("127.0.0.1");
+        house.setPort(closedPort());
+        house.setTargetTemp("70");
+        house.setAlarmDelay("5");
+        house.setAlarmPasscode("1234");
+        house.setLockPasscode("5678");
+        return house;
+    }
+
+    private static String basic(String credentials) {
+        return "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static int closedPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+import org.junit.jupiter.api.Test;
+import tartan.smarthome.core.TartanQueryResult;
+import tartan.smarthome.fleet.FleetIndex;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable;
+import tartan.smarthome.resources.iotcontroller.IoTValues;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Test class to check that fleet queries find the houses whose state matches, as the houses change.
+ */
+public class FleetQueryTest {
+
+    /**
+     * Write a house's state
+     */
+    private static void write(FleetStateTable table, long handle, int temperature, boolean occupied,
+                              boolean locked, boolean heater) {
+        Map<String, Object> state = new Hashtable<>();
+        state.put(IoTValues.TEMP_READING, temperature);
+        state.put(IoTValues.TARGET_TEMP, 70);
+        state.put(IoTValues.PROXIMITY_STATE, occupied);
+        state.put(IoTValues.DOOR_LOCK_STATE, locked);
+        state.put(IoTValues.HEATER_STATE, heater);
+        table.write(handle, state, true, 1);
+    }
+
+    @Test
+    /**
+     * Flags, negations and ranges combine as written
+     */
+    public void findsMatchingHouses() {
+        FleetStateTable table = new FleetStateTable();
+        FleetIndex index = new FleetIndex(table);
+        write(table, table.allocate("a"), 65, false, false, true);
+        write(table, table.allocate("b"), 72, false, true, true);
+        write(table, table.allocate("c"), 74, true, false, false);
+        write(table, table.allocate("d"), 80, true, true, false);
+
+        assertEquals(Arrays.asList("a"), index.query("vacant and doorUnlocked", 10).getHouses());
+        assertEquals(Arrays.asList("b"), index.query("heating and aboveTarget", 10).getHouses());
+        assertEquals(Arrays.asList("b", "c"), index.query("temperature > 71 and temperature <= 74", 10).getHouses());
+        assertEquals(Arrays.asList("a", "d"), index.query("temperature < 70 or temperature >= 80", 10).getHouses());
+        assertEquals(Arrays.asList("a", "c", "d"), index.query("not (heater and doorLocked)", 10).getHouses());
+        assertEquals(Arrays.asList("a", "b", "d"), index.query("TEMPERATURE != 74", 10).getHouses());
+
+        TartanQueryResult limited = index.query("connected", 2);
+        assertEquals(4, limited.getCount());
+        assertEquals(2, limited.getHouses().size());
+    }
+
+    @Test
+    /**
+     * Comparisons with the ends of the int range do not wrap around, and != only matches houses that have
+     * reported the reading
+     */
+    public void comparesAtTheEndsOfTheRange() {
+        FleetStateTable table = new FleetStateTable();
+        FleetIndex index = new FleetIndex(table);
+        write(table, table.allocate("a"), Integer.MAX_VALUE, false, false, false);
+        write(table, table.allocate("b"), Integer.MIN_VALUE + 1, false, false, false);
+        write(table, table.allocate("c"), 70, false, false, false);
+        Map<String, Object> unreported = new Hashtable<>();
+        unreported.put(IoTValues.PROXIMITY_STATE, false);
+        table.write(table.allocate("d"), unreported, true, 1);
+
+        assertEquals(0, index.query("temperature > 2147483647", 10).getCount());
+        assertEquals(0, index.query("temperature < -2147483648", 10).getCount());
+        assertEquals(0, index.query("temperature < -2147483647", 10).getCount());
+        assertEquals(Arrays.asList("a"), index.query("temperature >= 2147483647", 10).getHouses());
+        assertEquals(Arrays.asList("b"), index.query("temperature <= -2147483647", 10).getHouses());
+        assertEquals(Arrays.asList("b", "c"), index.query("temperature != 2147483647", 10).getHouses());
+        assertEquals(Arrays.asList("a", "c"), index.query("temperature != -2147483647", 10).getHouses());
+        assertEquals(Arrays.asList("a", "b", "c"), index.query("temperature != -2147483648", 10).getHouses());
+        assertEquals(Arrays.asList("a", "b"), index.query("temperature != 70", 10).getHouses());
+        assertEquals(Arrays.asList("d"), index.query("not temperature > -2147483648", 10).getHouses());
+    }
+
+    @Test
+    /**
+     * A house that changes moves between the answers, and a house that leaves is in none
+     */
+    public void followsChanges() {
+        FleetStateTable table = new FleetStateTable();
+        FleetIndex index = new FleetIndex(table);
+        long a = table.allocate("a");
+        write(table, a, 65, false, false, true);
+        assertEquals(Arrays.asList("a"), index.query("vacant", 10).getHouses());
+        assertEquals(Arrays.asList("a"), index.query("temperature < 70", 10).getHouses());
+
+        write(table, a, 75, true, false, true);
+        assertEquals(Collections.emptyList(), index.query("vacant", 10).getHouses());
+        assertEquals(Collections.emptyList(), index.query("temperature < 70", 10).getHouses());
+        assertEquals(Arrays.asList("a"), index.query("temperature = 75", 10).getHouses());
+
+        table.free(a);
+        assertEquals(0, index.query("temperature = 75 or not occupied", 10).getCount());
+        assertEquals(0, index.getHouseCount());
+    }
+
+    @Test
+    /**
+     * A condition that can't be parsed is refused
+     */
+    public void rejectsBadConditions() {
+        FleetIndex index = new FleetIndex(new FleetStateTable());
+        assertThrows(IllegalArgumentException.class, () -> index.query("", 10));
+        assertThrows(IllegalArgumentException.class, () -> index.query("flying", 10));
+        assertThrows(IllegalArgumentException.class, () -> index.query("temperature >", 10));
+        assertThrows(IllegalArgumentException.class, () -> index.query("(vacant", 10));
+        assertThrows(IllegalArgumentException.class, () -> index.query("vacant; drop", 10));
+    }
+}
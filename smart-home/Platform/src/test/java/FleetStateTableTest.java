@@ -0,0 +1,130 @@
+import org.junit.jupiter.api.Test;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable;
+import tartan.smarthome.resources.iotcontroller.IoTValues;
+
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test class to check that the state table keeps each house's row whole and separate from the others.
+ */
+public class FleetStateTableTest {
+
+    @Test
+    /**
+     * A written row reads back, and values the house did not report read as unknown
+     */
+    public void readsWhatWasWritten() {
+        FleetStateTable table = new FleetStateTable();
+        long handle = table.allocate("house1");
+        FleetStateTable.Row row = new FleetStateTable.Row();
+        assertFalse(table.read(handle, row));
+
+        Map<String, Object> state = new Hashtable<>();
+        state.put(IoTValues.TEMP_READING, 71);
+        state.put(IoTValues.DOOR_STATE, true);
+        state.put(IoTValues.ALARM_STATE, false);
+        state.put(IoTValues.HVAC_MODE, "Chiller");
+        table.write(handle, state, true, 42);
+
+        assertTrue(table.read(handle, row));
+        assertEquals("house1", row.getHouse());
+        assertEquals(71, row.get(FleetStateTable.Reading.TEMPERATURE));
+        assertEquals(FleetStateTable.UNKNOWN, row.get(FleetStateTable.Reading.HUMIDITY));
+        assertEquals(Boolean.TRUE, row.get(FleetStateTable.Flag.DOOR_OPEN));
+        assertEquals(Boolean.FALSE, row.get(FleetStateTable.Flag.ALARM_ARMED));
+        assertNull(row.get(FleetStateTable.Flag.LIGHT));
+        assertTrue(row.is(FleetStateTable.Flag.CONNECTED));
+        assertEquals("Chiller", row.getHvacMode());
+        assertEquals(42, row.getVersion());
+    }
+
+    @Test
+    /**
+     * A row given back and handed to another house can't be read or written through the old handle
+     */
+    public void reusedRowsIgnoreOldHandles() {
+        FleetStateTable table = new FleetStateTable();
+        long first = table.allocate("house1");
+        table.free(first);
+        long second = table.allocate("house2");
+        assertEquals((int) first, (int) second);
+        assertEquals(1, table.getRowCount());
+
+        Map<String, Object> state = new Hashtable<>();
+        state.put(IoTValues.TEMP_READING, 60);
+        table.write(second, state, true, 1);
+        state.put(IoTValues.TEMP_READING, 99);
+        table.write(first, state, true, 2);
+
+        FleetStateTable.Row row = new FleetStateTable.Row();
+        assertFalse(table.read(first, row));
+        assertTrue(table.read(second, row));
+        assertEquals("house2", row.getHouse());
+        assertEquals(60, row.get(FleetStateTable.Reading.TEMPERATURE));
+    }
+
+    @Test
+    /**
+     * The table grows past a block, and a scan by row number finds every house
+     */
+    public void growsAndScans() {
+        FleetStateTable table = new FleetStateTable();
+        Map<String, Object> state = new Hashtable<>();
+        for (int i = 0; i < 3000; i++) {
+            state.put(IoTValues.TEMP_READING, i);
+            table.write(table.allocate("house" + i), state, true, i);
+        }
+        assertEquals(3000, table.getRowCount());
+
+        FleetStateTable.Row row = new FleetStateTable.Row();
+        long total = 0;
+        for (int r = 0; r < table.getRowCount(); r++) {
+            assertTrue(table.read(r, row));
+            assertEquals("house" + row.get(FleetStateTable.Reading.TEMPERATURE), row.getHouse());
+            total += row.getVersion();
+        }
+        assertEquals(2999L * 3000 / 2, total);
+    }
+
+    @Test
+    /**
+     * A reader never sees half of one write and half of another
+     */
+    public void readsAreConsistent() throws InterruptedException {
+        FleetStateTable table = new FleetStateTable();
+        long handle = table.allocate("house1");
+        AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            Map<String, Object> state = new Hashtable<>();
+            for (int i = 0; !done.get(); i++) {
+                state.put(IoTValues.TEMP_READING, i);
+                state.put(IoTValues.HUMIDITY_READING, i);
+                state.put(IoTValues.LIGHT_STATE, i % 2 == 0);
+                table.write(handle, state, true, i);
+            }
+        });
+        writer.start();
+
+        FleetStateTable.Row row = new FleetStateTable.Row();
+        try {
+            for (int i = 0; i < 200000; i++) {
+                if (table.read(handle, row)) {
+                    int temperature = row.get(FleetStateTable.Reading.TEMPERATURE);
+                    assertEquals(temperature, row.get(FleetStateTable.Reading.HUMIDITY));
+                    assertEquals(temperature, row.getVersion());
+                    assertEquals(temperature % 2 == 0, row.is(FleetStateTable.Flag.LIGHT));
+                }
+            }
+        } finally {
+            done.set(true);
+            writer.join();
+        }
+    }
+}
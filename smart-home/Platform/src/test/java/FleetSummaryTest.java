@@ -0,0 +1,155 @@
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.jackson.Jackson;
+import org.glassfish.jersey.server.ChunkedOutput;
+import org.junit.jupiter.api.Test;
+import tartan.smarthome.TartanPollingSettings;
+import tartan.smarthome.auth.TartanAuthenticator;
+import tartan.smarthome.auth.TartanUser;
+import tartan.smarthome.core.TartanFleetSummary;
+import tartan.smarthome.fleet.FleetIndex;
+import tartan.smarthome.fleet.FleetRegistry;
+import tartan.smarthome.fleet.FleetSummary;
+import tartan.smarthome.resources.SummaryStreams;
+import tartan.smarthome.resources.TartanResource;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable;
+import tartan.smarthome.resources.iotcontroller.IoTValues;
+import tartan.smarthome.resources.iotcontroller.ShardedRuntime;
+import tartan.smarthome.views.StateResponseCache;
+
+import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test class to check that the fleet summary keeps its counts as houses change and leave, and that its
+ * streams are handed back without holding a request thread and dropped once closed.
+ */
+public class FleetSummaryTest {
+
+    /**
+     * Write a house's state
+     */
+    private static void write(FleetStateTable table, long handle, int temperature, boolean alarmActive,
+                              boolean heater) {
+        Map<String, Object> state = new Hashtable<>();
+        state.put(IoTValues.TEMP_READING, temperature);
+        state.put(IoTValues.HUMIDITY_READING, 40);
+        state.put(IoTValues.ALARM_ACTIVE, alarmActive);
+        state.put(IoTValues.HEATER_STATE, heater);
+        table.write(handle, state, true, 1);
+    }
+
+    @Test
+    /**
+     * The counts and readings cover every house written
+     */
+    public void countsHouses() {
+        FleetStateTable table = new FleetStateTable();
+        FleetSummary summary = new FleetSummary(table);
+        for (int i = 0; i < 100; i++) {
+            write(table, table.allocate("house" + i), 60 + i % 20, i % 10 == 0, i < 30);
+        }
+
+        TartanFleetSummary fleet = summary.getSummary();
+        assertEquals(100, fleet.getHouses());
+        assertEquals(100, fleet.getConnected());
+        assertEquals(10, fleet.getAlarmsActive());
+        assertEquals(30, fleet.getHeating());
+        assertEquals(0, fleet.getCooling());
+
+        TartanFleetSummary.Readings temperature = fleet.getTemperature();
+        assertEquals(100, temperature.getCount());
+        assertEquals(69.5, temperature.getMean(), 0.001);
+        assertEquals(60, (int) temperature.getMin());
+        assertEquals(79, (int) temperature.getMax());
+        assertEquals(69, (int) temperature.getP50());
+        assertEquals(77, (int) temperature.getP90());
+        assertEquals(40, (int) fleet.getHumidity().getP99());
+    }
+
+    @Test
+    /**
+     * A house that changes moves its counts, and a house that leaves takes its counts with it
+     */
+    public void followsChanges() {
+        FleetStateTable table = new FleetStateTable();
+        FleetSummary summary = new FleetSummary(table);
+        long a = table.allocate("a");
+        long b = table.allocate("b");
+        write(table, a, 70, false, true);
+        write(table, b, 80, true, false);
+        byte[] json = summary.getJson();
+        assertSame(json, summary.getJson());
+
+        write(table, a, 60, true, false);
+        TartanFleetSummary fleet = summary.getSummary();
+        assertEquals(2, fleet.getAlarmsActive());
+        assertEquals(0, fleet.getHeating());
+        assertEquals(60, (int) fleet.getTemperature().getMin());
+        assertNotEquals(json, summary.getJson());
+
+        table.free(b);
+        fleet = summary.getSummary();
+        assertEquals(1, fleet.getHouses());
+        assertEquals(1, fleet.getAlarmsActive());
+        assertEquals(60, (int) fleet.getTemperature().getMax());
+
+        table.free(a);
+        fleet = summary.getSummary();
+        assertEquals(0, fleet.getHouses());
+        assertEquals(0, fleet.getTemperature().getCount());
+        assertNull(fleet.getTemperature().getMean());
+        assertNull(fleet.getTemperature().getP50());
+    }
+
+    @Test
+    /**
+     * Opening a stream returns at once. No more than the limit may be open, and one that is closed is
+     * dropped by the next check, which makes room for another
+     */
+    public void summaryStreamsAreHandedBackAndDropped() throws Exception {
+        MetricRegistry metrics = new MetricRegistry();
+        ShardedRuntime runtime = new ShardedRuntime(1, 1, false);
+        FleetRegistry fleet = new FleetRegistry(null, 60, new TartanPollingSettings(), runtime, metrics, null,
+                new TartanAuthenticator(), false);
+        TartanResource resource = new TartanResource(fleet, runtime, metrics,
+                new StateResponseCache(Jackson.newObjectMapper(), null, metrics),
+                new FleetIndex(runtime.getStateTable()), new FleetSummary(runtime.getStateTable()), null);
+        SummaryStreams streams = resource.getSummaryStreams();
+        TartanUser operator = TartanUser.operator("operator");
+
+        assertEquals(401, resource.summaryStream(new TartanUser("owner", "mse")).getStatus());
+        List<ChunkedOutput<?>> open = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            Response response = resource.summaryStream(operator);
+            assertEquals(200, response.getStatus());
+            open.add((ChunkedOutput<?>) response.getEntity());
+        }
+        assertEquals(503, resource.summaryStream(operator).getStatus());
+        assertEquals(16, streams.getOpen());
+
+        streams.start();
+        try {
+            open.get(0).close();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (streams.getOpen() > 15 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(15, streams.getOpen());
+            assertEquals(200, resource.summaryStream(operator).getStatus());
+        } finally {
+            streams.stop();
+            runtime.stop();
+        }
+        assertEquals(0, streams.getOpen());
+        assertTrue(open.get(1).isClosed());
+    }
+}
@@ -0,0 +1,86 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import tartan.smarthome.resources.iotcontroller.AsciiFrameCodec;
+import tartan.smarthome.resources.iotcontroller.BinaryFrameCodec;
+import tartan.smarthome.resources.iotcontroller.FrameCodec;
+import tartan.smarthome.resources.iotcontroller.HouseFrame;
+import tartan.smarthome.resources.iotcontroller.IoTValues;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test class to check that both wire formats carry the same house state.
+ */
+public class FrameCodecTest {
+
+    /**
+     * Writes a message with a codec and reads it back.
+     *
+     * @param codec the wire format
+     * @param frame the message
+     * @return the message as read
+     * @throws IOException never, the streams are in memory
+     */
+    public HouseFrame roundTrip(FrameCodec codec, HouseFrame frame) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.write(out, frame);
+        return codec.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    @Test
+    /**
+     * A binary state update reads back as the same state
+     */
+    public void binaryStateUpdateRoundTrips() throws IOException {
+        Map<String, Object> state = new HashMap<String, Object>();
+        state.put(IoTValues.TEMP_READING, 71);
+        state.put(IoTValues.HUMIDITY_READING, 42);
+        state.put(IoTValues.DOOR_STATE, false);
+        state.put(IoTValues.LIGHT_STATE, true);
+        state.put(IoTValues.HVAC_MODE, "Heater");
+
+        HouseFrame frame = roundTrip(new BinaryFrameCodec(), new HouseFrame(IoTValues.STATE_UPDATE, state));
+
+        assertEquals(IoTValues.STATE_UPDATE, frame.getType());
+        assertEquals(state, frame.getState());
+    }
+
+    @Test
+    /**
+     * Settings the house doesn't know about are not sent in binary
+     */
+    public void binarySetStateLeavesOutControllerSettings() throws IOException {
+        Map<String, Object> state = new HashMap<String, Object>();
+        state.put(IoTValues.LIGHT_STATE, true);
+        state.put(IoTValues.ALARM_DELAY, 30);
+
+        HouseFrame frame = roundTrip(new BinaryFrameCodec(), new HouseFrame(IoTValues.SET_STATE, state));
+
+        assertEquals(1, frame.getState().size());
+        assertEquals(true, frame.getState().get(IoTValues.LIGHT_STATE));
+    }
+
+    @Test
+    /**
+     * The text format reads the house's replies, and returns null when the house hangs up
+     */
+    public void asciiReadsHouseReplies() throws IOException {
+        byte[] replies = "SU:TR=70;LS=1.\nOK.\n".getBytes(StandardCharsets.US_ASCII);
+        ByteArrayInputStream in = new ByteArrayInputStream(replies);
+        AsciiFrameCodec codec = new AsciiFrameCodec();
+
+        HouseFrame update = codec.read(in);
+        assertTrue(update.is(IoTValues.STATE_UPDATE));
+        assertEquals(70, update.getState().get(IoTValues.TEMP_READING));
+        assertTrue(codec.read(in).is(IoTValues.OK));
+        assertNull(codec.read(in));
+    }
+}
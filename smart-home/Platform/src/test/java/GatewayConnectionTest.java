@@ -0,0 +1,373 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import tartan.smarthome.resources.iotcontroller.BinaryFrameCodec;
+import tartan.smarthome.resources.iotcontroller.GatewayChannel;
+import tartan.smarthome.resources.iotcontroller.GatewayConnection;
+import tartan.smarthome.resources.iotcontroller.HouseFrame;
+import tartan.smarthome.resources.iotcontroller.IoTValues;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Test class to check that two houses behind one gateway share its connection without mixing up their
+ * messages, and get it back after the gateway drops.
+ */
+public class GatewayConnectionTest {
+
+    private FakeGateway gateway;
+    private GatewayChannel one;
+    private GatewayChannel two;
+
+    @BeforeEach
+    public void connect() throws IOException {
+        gateway = new FakeGateway();
+        GatewayConnection connection = GatewayConnection.forGateway("127.0.0.1", gateway.getPort());
+        one = connection.channel(1);
+        two = connection.channel(2);
+        assertTrue(one.connect());
+        assertTrue(two.connect());
+        assertEquals(1, gateway.getConnections());
+    }
+
+    @AfterEach
+    public void stop() throws IOException {
+        gateway.close();
+    }
+
+    @Test
+    /**
+     * Requests from both houses go out on the one connection, and each reply reaches the house it is for,
+     * whatever order the gateway answers in
+     */
+    public void interleavedRepliesReachTheirHouses() throws Exception {
+        CompletableFuture<HouseFrame> first = CompletableFuture.supplyAsync(() -> one.request(getState()));
+        CompletableFuture<HouseFrame> second = CompletableFuture.supplyAsync(() -> two.request(getState()));
+
+        // answer only once both requests are in, and the second house first
+        FakeGateway.Frame a = gateway.next();
+        FakeGateway.Frame b = gateway.next();
+        assertEquals(IoTValues.GET_STATE, a.frame.getType());
+        assertEquals(IoTValues.GET_STATE, b.frame.getType());
+        assertEquals(3, a.house + b.house);
+        gateway.send(2, state(20));
+        gateway.send(1, state(10));
+
+        assertEquals(10, first.get(2, TimeUnit.SECONDS).getState().get(IoTValues.TEMP_READING));
+        assertEquals(20, second.get(2, TimeUnit.SECONDS).getState().get(IoTValues.TEMP_READING));
+    }
+
+    @Test
+    /**
+     * Every request is written whole and none is left behind while the houses keep adding to their queues
+     * as the writer takes from them
+     */
+    public void noRequestIsStranded() throws Exception {
+        gateway.answer((house, frame) -> new HouseFrame(IoTValues.OK));
+        List<CompletableFuture<Integer>> houses = new ArrayList<>();
+        for (GatewayChannel channel : List.of(one, two)) {
+            houses.add(CompletableFuture.supplyAsync(() -> {
+                int answered = 0;
+                for (int i = 0; i < 500; i++) {
+                    HouseFrame reply = channel.request(new HouseFrame(IoTValues.SET_STATE, light(i % 2 == 0)));
+                    if (reply != null && reply.is(IoTValues.OK)) {
+                        answered++;
+                    }
+                }
+                return answered;
+            }));
+        }
+
+        assertEquals(500, houses.get(0).get(20, TimeUnit.SECONDS));
+        assertEquals(500, houses.get(1).get(20, TimeUnit.SECONDS));
+        assertEquals(1000, gateway.getReceived());
+        assertTrue(gateway.getErrors().isEmpty());
+    }
+
+    @Test
+    /**
+     * An update a house pushes while its GS is waiting is not lost: one of the two SUs answers the GS and the
+     * other reaches the listener. A push for the other house goes to that house alone
+     */
+    public void aPushDuringAGetStateIsNotLost() throws Exception {
+        List<HouseFrame> pushedToOne = new CopyOnWriteArrayList<>();
+        List<HouseFrame> pushedToTwo = new CopyOnWriteArrayList<>();
+        gateway.answer((house, frame) -> new HouseFrame(IoTValues.OK));
+        assertTrue(one.subscribe(pushedToOne::add));
+        assertTrue(two.subscribe(pushedToTwo::add));
+        gateway.answer(null);
+
+        CompletableFuture<HouseFrame> reply = CompletableFuture.supplyAsync(() -> one.request(getState()));
+        assertEquals(IoTValues.GET_STATE, gateway.next().frame.getType());
+        gateway.send(2, state(30));
+        gateway.send(1, state(40));
+        gateway.send(1, state(41));
+
+        HouseFrame answer = reply.get(2, TimeUnit.SECONDS);
+        assertEquals(IoTValues.STATE_UPDATE, answer.getType());
+        assertTrue(waitFor(() -> pushedToOne.size() == 1 && pushedToTwo.size() == 1));
+        assertEquals(81, (Integer) answer.getState().get(IoTValues.TEMP_READING)
+                + (Integer) pushedToOne.get(0).getState().get(IoTValues.TEMP_READING));
+        assertEquals(30, pushedToTwo.get(0).getState().get(IoTValues.TEMP_READING));
+
+        // with no GS waiting, an SU is a push
+        gateway.send(1, state(42));
+        assertTrue(waitFor(() -> pushedToOne.size() == 2));
+    }
+
+    @Test
+    /**
+     * When the gateway drops, a waiting request gives up at once. After one house connects again, both
+     * houses subscribe afresh on the new connection, since their old subscriptions went with the old one
+     */
+    public void reconnectsAfterTheGatewayDrops() throws Exception {
+        gateway.answer((house, frame) -> new HouseFrame(IoTValues.OK));
+        assertTrue(one.subscribe(frame -> { }));
+        assertTrue(two.subscribe(frame -> { }));
+        gateway.answer(null);
+
+        CompletableFuture<HouseFrame> waiting = CompletableFuture.supplyAsync(() -> one.request(getState()));
+        gateway.next();
+        gateway.drop();
+        assertNull(waiting.get(2, TimeUnit.SECONDS));
+        assertTrue(waitFor(() -> !one.isConnected() && !two.isConnected()));
+
+        // the first house to notice connects the gateway again, as its controller would
+        one.disconnect();
+        assertTrue(one.connect());
+        assertEquals(2, gateway.getConnections());
+        assertTrue(two.isConnected());
+        assertFalse(two.isSubscribed());
+
+        gateway.answer((house, frame) ->
+                frame.is(IoTValues.SUBSCRIBE) ? new HouseFrame(IoTValues.OK) : state(50 + house));
+        assertTrue(one.subscribe(frame -> { }));
+        assertTrue(two.subscribe(frame -> { }));
+        assertTrue(two.isSubscribed());
+        assertEquals(51, one.request(getState()).getState().get(IoTValues.TEMP_READING));
+        assertEquals(52, two.request(getState()).getState().get(IoTValues.TEMP_READING));
+        assertEquals(2, gateway.getConnections());
+    }
+
+    private static HouseFrame getState() {
+        return new HouseFrame(IoTValues.GET_STATE);
+    }
+
+    private static HouseFrame state(int temperature) {
+        Map<String, Object> state = new HashMap<>();
+        state.put(IoTValues.TEMP_READING, temperature);
+        state.put(IoTValues.LIGHT_STATE, true);
+        return new HouseFrame(IoTValues.STATE_UPDATE, state);
+    }
+
+    private static Map<String, Object> light(boolean on) {
+        Map<String, Object> state = new HashMap<>();
+        state.put(IoTValues.LIGHT_STATE, on);
+        return state;
+    }
+
+    private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * A gateway on the loopback interface. It takes the VER:3 handshake, then reads the multiplexed frames the
+     * platform sends, either answering them itself or leaving them for the test
+     */
+    private static class FakeGateway implements AutoCloseable {
+
+        /** A frame and the house it is for */
+        static class Frame {
+            final int house;
+            final HouseFrame frame;
+
+            Frame(int house, HouseFrame frame) {
+                this.house = house;
+                this.frame = frame;
+            }
+        }
+
+        private final ServerSocket server;
+        private final BinaryFrameCodec codec = new BinaryFrameCodec();
+        private final BlockingQueue<Frame> frames = new LinkedBlockingQueue<>();
+        private final List<String> errors = new CopyOnWriteArrayList<>();
+        private volatile BiFunction<Integer, HouseFrame, HouseFrame> answer = null;
+        private volatile Socket socket = null;
+        private volatile OutputStream out = null;
+        private volatile int connections = 0;
+        private volatile int received = 0;
+
+        FakeGateway() throws IOException {
+            server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Thread accept = new Thread(this::accept, "fake-gateway");
+            accept.setDaemon(true);
+            accept.start();
+        }
+
+        int getPort() {
+            return server.getLocalPort();
+        }
+
+        int getConnections() {
+            return connections;
+        }
+
+        int getReceived() {
+            return received;
+        }
+
+        List<String> getErrors() {
+            return errors;
+        }
+
+        /**
+         * Answer every frame from now on, or leave them for the test
+         * @param answer makes the reply to a frame for a house, or null to queue the frames instead
+         */
+        void answer(BiFunction<Integer, HouseFrame, HouseFrame> answer) {
+            this.answer = answer;
+        }
+
+        /**
+         * Take the next frame the platform sent that was not answered
+         * @return the frame
+         */
+        Frame next() throws InterruptedException {
+            Frame frame = frames.poll(2, TimeUnit.SECONDS);
+            assertNotNull(frame);
+            return frame;
+        }
+
+        /**
+         * Send a frame to the platform for a house, as the multiplexed protocol frames it
+         */
+        synchronized void send(int house, HouseFrame frame) throws IOException {
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            codec.write(encoded, frame);
+            byte[] bytes = encoded.toByteArray();
+            int length = bytes.length;
+            out.write(length >> 8);
+            out.write(length);
+            out.write(house >> 8);
+            out.write(house);
+            out.write(bytes, 2, bytes.length - 2);
+            out.flush();
+        }
+
+        /** Close the connection, as a gateway that restarts does */
+        void drop() throws IOException {
+            socket.close();
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+            if (socket != null) {
+                socket.close();
+            }
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    Socket connection = server.accept();
+                    InputStream in = new BufferedInputStream(connection.getInputStream());
+                    String offer = readOffer(in);
+                    if (!"VER:3.".equals(offer)) {
+                        errors.add("Handshake " + offer);
+                    }
+                    synchronized (this) {
+                        out = connection.getOutputStream();
+                        socket = connection;
+                        out.write("OK.\n".getBytes(StandardCharsets.US_ASCII));
+                        out.flush();
+                    }
+                    connections++;
+                    Thread reader = new Thread(() -> read(in), "fake-gateway-reader");
+                    reader.setDaemon(true);
+                    reader.start();
+                }
+            } catch (IOException e) {
+                // the test is over
+            }
+        }
+
+        private static String readOffer(InputStream in) throws IOException {
+            StringBuilder offer = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                offer.append((char) c);
+                if (c == '.') {
+                    break;
+                }
+            }
+            return offer.toString();
+        }
+
+        private void read(InputStream in) {
+            DataInputStream data = new DataInputStream(in);
+            try {
+                while (true) {
+                    int length = data.readUnsignedShort();
+                    int house = data.readUnsignedShort();
+                    byte[] body = new byte[length - 2];
+                    data.readFully(body);
+
+                    // put the codec's own length back in front of the body and read it as a house would
+                    byte[] frame = new byte[body.length + 2];
+                    frame[0] = (byte) (body.length >> 8);
+                    frame[1] = (byte) body.length;
+                    System.arraycopy(body, 0, frame, 2, body.length);
+                    HouseFrame request = codec.read(new ByteArrayInputStream(frame));
+                    if (house != 1 && house != 2) {
+                        errors.add("Frame for house " + house);
+                    }
+                    received++;
+
+                    BiFunction<Integer, HouseFrame, HouseFrame> answer = this.answer;
+                    if (answer != null) {
+                        send(house, answer.apply(house, request));
+                    } else {
+                        frames.add(new Frame(house, request));
+                    }
+                }
+            } catch (IOException e) {
+                // the connection was closed
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import tartan.smarthome.cluster.HashRing;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Test class to check that houses are spread over the cluster nodes and only move when they have to.
+ */
+public class HashRingTest {
+
+    @Test
+    /**
+     * Every node places the houses the same way, whatever order it lists the nodes in
+     */
+    public void placementDoesNotDependOnNodeOrder() {
+        HashRing one = new HashRing(Arrays.asList("a", "b", "c"), 100);
+        HashRing two = new HashRing(Arrays.asList("c", "a", "b"), 100);
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(one.owner("house" + i), two.owner("house" + i));
+        }
+        assertNull(new HashRing(Collections.emptyList(), 100).owner("house0"));
+    }
+
+    @Test
+    /**
+     * A node that joins only takes houses; no house moves between the nodes that were already there
+     */
+    public void joiningNodeOnlyTakesItsShare() {
+        HashRing before = new HashRing(Arrays.asList("a", "b", "c"), 100);
+        HashRing after = new HashRing(Arrays.asList("a", "b", "c", "d"), 100);
+
+        int moved = 0;
+        for (int i = 0; i < 4000; i++) {
+            String house = "house" + i;
+            if (!before.owner(house).equals(after.owner(house))) {
+                assertEquals("d", after.owner(house));
+                moved++;
+            }
+        }
+        // about a quarter of the houses should move to the new node
+        assertTrue(moved > 600 && moved < 1400, "moved " + moved);
+    }
+}
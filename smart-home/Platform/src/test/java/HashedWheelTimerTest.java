@@ -0,0 +1,151 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import tartan.smarthome.resources.iotcontroller.HashedWheelTimer;
+import tartan.smarthome.resources.iotcontroller.TimerReason;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test class to check that timers fire once, in order, and not at all once cancelled or replaced, and that a
+ * house's timers can move between wheels, as they do when the house moves shard.
+ */
+public class HashedWheelTimerTest {
+
+    @Test
+    /**
+     * A timer that is already pending is not set again, and a timer fires once and is then gone
+     */
+    public void aTimerIsSetOnceAndFiresOnce() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer(10, 64);
+        Object house = new Object();
+        AtomicInteger fired = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+
+        assertTrue(timer.schedule(house, TimerReason.POLL, 50, TimeUnit.MILLISECONDS, () -> {
+            fired.incrementAndGet();
+            done.countDown();
+        }));
+        assertFalse(timer.schedule(house, TimerReason.POLL, 10, TimeUnit.MILLISECONDS, fired::incrementAndGet));
+        assertTrue(timer.isPending(house, TimerReason.POLL));
+        assertEquals(1, timer.size());
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(1, fired.get());
+        assertFalse(timer.isPending(house, TimerReason.POLL));
+        assertEquals(0, timer.size());
+        timer.stop();
+    }
+
+    @Test
+    /**
+     * A cancelled timer never fires, and cancelling every timer of a house leaves other houses' timers alone
+     */
+    public void aCancelledTimerNeverFires() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer(10, 64);
+        Object house = new Object();
+        Object neighbour = new Object();
+        AtomicInteger fired = new AtomicInteger();
+        CountDownLatch neighbourFired = new CountDownLatch(1);
+
+        timer.schedule(house, TimerReason.POLL, 50, TimeUnit.MILLISECONDS, fired::incrementAndGet);
+        timer.schedule(house, TimerReason.AWAY_LOCK, 50, TimeUnit.MILLISECONDS, fired::incrementAndGet);
+        timer.schedule(house, TimerReason.NIGHT_LOCK, 50, TimeUnit.MILLISECONDS, fired::incrementAndGet);
+        timer.schedule(neighbour, TimerReason.POLL, 100, TimeUnit.MILLISECONDS, neighbourFired::countDown);
+
+        assertTrue(timer.cancel(house, TimerReason.POLL));
+        assertFalse(timer.cancel(house, TimerReason.POLL));
+        timer.cancelAll(house);
+        assertEquals(1, timer.size());
+
+        assertTrue(neighbourFired.await(2, TimeUnit.SECONDS));
+        assertEquals(0, fired.get());
+        timer.stop();
+    }
+
+    @Test
+    /**
+     * Rescheduling replaces a pending timer: only the new task runs, at the new time
+     */
+    public void aRescheduledTimerReplacesTheOldOne() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer(10, 64);
+        Object house = new Object();
+        List<String> fired = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+
+        timer.schedule(house, TimerReason.POLL, 30, TimeUnit.MILLISECONDS, () -> fired.add("old"));
+        long started = System.nanoTime();
+        timer.reschedule(house, TimerReason.POLL, 150, TimeUnit.MILLISECONDS, () -> {
+            fired.add("new");
+            done.countDown();
+        });
+        assertEquals(1, timer.size());
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(150));
+        Thread.sleep(50);
+        assertEquals(List.of("new"), fired);
+        timer.stop();
+    }
+
+    @Test
+    /**
+     * Timers fire in the order they are due, including those more than a turn of the wheel away, and one
+     * that throws does not stop the ones after it
+     */
+    public void timersFireInOrder() throws Exception {
+        // eight ticks of 10ms, so a turn of the wheel is 80ms
+        HashedWheelTimer timer = new HashedWheelTimer(10, 8);
+        List<Integer> fired = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(5);
+        int[] delays = {250, 40, 170, 90, 20};
+        for (int delay : delays) {
+            timer.schedule(new Object(), TimerReason.POLL, delay, TimeUnit.MILLISECONDS, () -> {
+                fired.add(delay);
+                done.countDown();
+            });
+        }
+        timer.schedule(new Object(), TimerReason.POLL, 60, TimeUnit.MILLISECONDS, () -> {
+            throw new IllegalStateException("a broken task");
+        });
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of(20, 40, 90, 170, 250), fired);
+        timer.stop();
+    }
+
+    @Test
+    /**
+     * A moved timer leaves the old wheel and fires on the new one, once
+     */
+    public void transferredTimerFiresOnTheNewWheel() throws Exception {
+        ScheduledExecutorService shared = Executors.newSingleThreadScheduledExecutor();
+        HashedWheelTimer from = new HashedWheelTimer(10, 64, shared);
+        HashedWheelTimer to = new HashedWheelTimer(10, 64, shared);
+        Object house = new Object();
+        CountDownLatch fired = new CountDownLatch(1);
+
+        from.schedule(house, TimerReason.AWAY_LOCK, 200, TimeUnit.MILLISECONDS, fired::countDown);
+        from.transfer(house, to);
+
+        assertFalse(from.isPending(house, TimerReason.AWAY_LOCK));
+        assertTrue(to.isPending(house, TimerReason.AWAY_LOCK));
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        assertEquals(0, from.size());
+
+        // stopping a wheel leaves the shared executor running for the other
+        from.stop();
+        assertFalse(shared.isShutdown());
+        to.stop();
+        shared.shutdownNow();
+    }
+}
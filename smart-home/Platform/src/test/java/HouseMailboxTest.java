@@ -0,0 +1,131 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import tartan.smarthome.resources.iotcontroller.HouseMailbox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test class to check that a house's mailbox runs its messages one at a time and in order, even on a shared
+ * pool of threads, and that only its own messages can wait on it.
+ */
+public class HouseMailboxTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private final ExecutorService blocking = Executors.newFixedThreadPool(4);
+
+    @AfterEach
+    public void stop() {
+        executor.shutdownNow();
+        blocking.shutdownNow();
+    }
+
+    @Test
+    /**
+     * Messages posted from several threads never overlap, and each poster's messages run in the order it
+     * posted them, though the mailbox hops between the pool's threads
+     */
+    public void messagesRunOneAtATimeInOrder() throws Exception {
+        HouseMailbox mailbox = new HouseMailbox("ordered", executor, blocking);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        int[] last = new int[4];
+        List<String> outOfOrder = new ArrayList<>();
+
+        List<CompletableFuture<Void>> posters = new ArrayList<>();
+        for (int p = 0; p < 4; p++) {
+            int poster = p;
+            posters.add(CompletableFuture.runAsync(() -> {
+                for (int i = 1; i <= 1000; i++) {
+                    int n = i;
+                    mailbox.execute(() -> {
+                        if (running.incrementAndGet() != 1) {
+                            overlaps.incrementAndGet();
+                        }
+                        // nothing the mailbox owns needs a lock
+                        if (last[poster] != n - 1) {
+                            outOfOrder.add(poster + ":" + n);
+                        }
+                        last[poster] = n;
+                        running.decrementAndGet();
+                    });
+                }
+            }));
+        }
+        for (CompletableFuture<Void> poster : posters) {
+            poster.get(5, TimeUnit.SECONDS);
+        }
+        mailbox.submit(() -> null).get(5, TimeUnit.SECONDS);
+
+        assertEquals(0, overlaps.get());
+        assertTrue(outOfOrder.isEmpty());
+        for (int count : last) {
+            assertEquals(1000, count);
+        }
+        assertEquals(0, mailbox.getPending());
+    }
+
+    @Test
+    /**
+     * A message that waits for a call holds back the messages behind it until its answer has run
+     */
+    public void aWaitingMessageHoldsBackTheRest() throws Exception {
+        HouseMailbox mailbox = new HouseMailbox("waiting", executor, blocking);
+        CountDownLatch answer = new CountDownLatch(1);
+        List<String> order = new ArrayList<>();
+
+        mailbox.execute(() -> mailbox.await(() -> {
+            try {
+                answer.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "answer";
+        }, order::add));
+        mailbox.execute(() -> order.add("next"));
+        CompletableFuture<Integer> seen = mailbox.submit(order::size);
+
+        Thread.sleep(100);
+        assertFalse(seen.isDone());
+        answer.countDown();
+        assertEquals(2, seen.get(5, TimeUnit.SECONDS));
+        assertEquals(List.of("answer", "next"), order);
+    }
+
+    @Test
+    /**
+     * Only a message of the mailbox owns it, so waiting from outside, or twice in one message, is refused.
+     * A message that throws does not stop the ones behind it
+     */
+    public void onlyItsOwnMessagesOwnTheMailbox() throws Exception {
+        HouseMailbox mailbox = new HouseMailbox("owned", executor, blocking);
+        assertFalse(mailbox.isOwner());
+        assertThrows(IllegalStateException.class, () -> mailbox.await(() -> "answer", reply -> { }));
+
+        assertTrue(mailbox.submit(mailbox::isOwner).get(5, TimeUnit.SECONDS));
+        CompletableFuture<Void> twice = mailbox.submit(() -> {
+            mailbox.await(() -> "first", reply -> { });
+            mailbox.await(() -> "second", reply -> { });
+            return null;
+        });
+        ExecutionException refused = assertThrows(ExecutionException.class, () -> twice.get(5, TimeUnit.SECONDS));
+        assertTrue(refused.getCause() instanceof IllegalStateException);
+
+        mailbox.execute(() -> {
+            throw new IllegalArgumentException("a bad message");
+        });
+        assertEquals("still running", mailbox.submit(() -> "still running").get(5, TimeUnit.SECONDS));
+    }
+}
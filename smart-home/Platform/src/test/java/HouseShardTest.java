@@ -0,0 +1,132 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import tartan.smarthome.resources.iotcontroller.HouseMailbox;
+import tartan.smarthome.resources.iotcontroller.HouseShard;
+import tartan.smarthome.resources.iotcontroller.ShardedRuntime;
+import tartan.smarthome.resources.iotcontroller.TimerReason;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test class to check that a house waiting for an answer does not hold up the other houses on its shard, that
+ * a shard's waiting requests are bounded, and that the runtime moves the right house off a busy shard.
+ */
+public class HouseShardTest {
+
+    @Test
+    /**
+     * While one house waits for a silent house, the other houses on its single-threaded shard and the
+     * shard's timers keep running, and the waiting house runs nothing else until its answer is back
+     */
+    public void aSilentHouseDoesNotStallItsShard() throws Exception {
+        ShardedRuntime runtime = new ShardedRuntime(1, 1, false);
+        HouseShard shard = runtime.getShards().get(0);
+        HouseMailbox silent = new HouseMailbox("silent", shard.getExecutor(), shard.getIoExecutor());
+        HouseMailbox other = new HouseMailbox("other", shard.getExecutor(), shard.getIoExecutor());
+        CountDownLatch answer = new CountDownLatch(1);
+        CountDownLatch otherRan = new CountDownLatch(1);
+        CountDownLatch timerFired = new CountDownLatch(1);
+        List<String> order = new CopyOnWriteArrayList<>();
+
+        silent.execute(() -> silent.await(() -> {
+            try {
+                answer.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "answer";
+        }, reply -> order.add(reply)));
+        silent.execute(() -> order.add("next"));
+        other.execute(otherRan::countDown);
+        shard.getTimer().schedule(other, TimerReason.POLL, 50, TimeUnit.MILLISECONDS, timerFired::countDown);
+
+        assertTrue(otherRan.await(2, TimeUnit.SECONDS));
+        assertTrue(timerFired.await(2, TimeUnit.SECONDS));
+        assertTrue(order.isEmpty());
+
+        answer.countDown();
+        CountDownLatch drained = new CountDownLatch(1);
+        silent.execute(drained::countDown);
+        assertTrue(drained.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of("answer", "next"), order);
+        runtime.stop();
+    }
+
+    @Test
+    /**
+     * Once every I/O thread is waiting and the queue behind them is full, the next house's request is not
+     * made and the house goes on as if it got no answer, instead of adding a thread
+     */
+    public void aFullShardRefusesRequests() throws Exception {
+        ShardedRuntime runtime = new ShardedRuntime(1, 1, 1, false);
+        HouseShard shard = runtime.getShards().get(0);
+        CountDownLatch answer = new CountDownLatch(1);
+        CountDownLatch answered = new CountDownLatch(1 + HouseShard.IO_QUEUE_PER_THREAD);
+        for (int i = 0; i <= HouseShard.IO_QUEUE_PER_THREAD; i++) {
+            HouseMailbox waiting = new HouseMailbox("waiting" + i, shard.getExecutor(), shard.getIoExecutor());
+            waiting.execute(() -> waiting.await(() -> {
+                try {
+                    answer.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "answer";
+            }, reply -> answered.countDown()));
+        }
+
+        HouseMailbox refused = new HouseMailbox("refused", shard.getExecutor(), shard.getIoExecutor());
+        List<String> replies = new CopyOnWriteArrayList<>();
+        CountDownLatch resumed = new CountDownLatch(1);
+        refused.execute(() -> refused.await(() -> "answer", reply -> {
+            replies.add(String.valueOf(reply));
+            resumed.countDown();
+        }));
+        assertTrue(resumed.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of("null"), replies);
+        assertEquals(1, shard.getIoRejected());
+
+        // the house keeps running, and its next request goes through once there is room
+        answer.countDown();
+        assertTrue(answered.await(2, TimeUnit.SECONDS));
+        CountDownLatch again = new CountDownLatch(1);
+        refused.execute(() -> refused.await(() -> "answer", reply -> {
+            replies.add(reply);
+            again.countDown();
+        }));
+        assertTrue(again.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of("null", "answer"), replies);
+        runtime.stop();
+    }
+
+    @Test
+    /**
+     * The house moved is the one whose work is nearest half the gap between the shards, and no house is moved
+     * if every one would overshoot the gap or did no work
+     */
+    public void movesTheHouseThatEvensTheShards() {
+        long period = TimeUnit.SECONDS.toNanos(10);
+        Map<String, Long> work = new HashMap<>();
+        work.put("idle", 0L);
+        work.put("small", TimeUnit.MILLISECONDS.toNanos(200));
+        work.put("half", TimeUnit.MILLISECONDS.toNanos(1900));
+        work.put("large", TimeUnit.MILLISECONDS.toNanos(3500));
+        work.put("huge", TimeUnit.MILLISECONDS.toNanos(5000));
+
+        // a gap of 40% of 10 seconds is 4 seconds, so 2 seconds evens the shards
+        assertEquals("half", ShardedRuntime.chooseMove(work, 0.4, period));
+        // a 10% gap is 1 second, and only the small house is under it
+        assertEquals("small", ShardedRuntime.chooseMove(work, 0.1, period));
+        // no house is under a 1% gap, and an idle house is never moved
+        assertNull(ShardedRuntime.chooseMove(work, 0.01, period));
+        work.keySet().retainAll(List.of("idle"));
+        assertNull(ShardedRuntime.chooseMove(work, 0.4, period));
+    }
+}
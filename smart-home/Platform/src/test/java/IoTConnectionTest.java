@@ -0,0 +1,190 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import tartan.smarthome.resources.iotcontroller.HouseFrame;
+import tartan.smarthome.resources.iotcontroller.IoTConnection;
+import tartan.smarthome.resources.iotcontroller.IoTValues;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Test class to check the SUB handshake with a house: a house that agrees pushes its updates, which are told
+ * apart from the replies to requests, and a house that ignores it is polled as before.
+ */
+public class IoTConnectionTest {
+
+    private ScriptedHouse house;
+    private IoTConnection connection;
+
+    @BeforeEach
+    public void connect() throws Exception {
+        house = new ScriptedHouse();
+        connection = new IoTConnection("127.0.0.1", house.getPort());
+        assertTrue(connection.connect());
+        house.accept();
+    }
+
+    @AfterEach
+    public void disconnect() throws IOException {
+        connection.disconnect();
+        house.close();
+    }
+
+    @Test
+    /**
+     * Once the house agrees, its pushed updates go to the listener, and the SU that answers a GS goes to
+     * the request instead
+     */
+    public void aSubscribedHousePushesItsUpdates() throws Exception {
+        List<HouseFrame> pushed = new CopyOnWriteArrayList<>();
+        CompletableFuture<Boolean> subscribed = CompletableFuture.supplyAsync(() -> connection.subscribe(pushed::add));
+        assertEquals(IoTValues.SUBSCRIBE, house.next());
+        house.send("OK.");
+        assertTrue(subscribed.get(5, TimeUnit.SECONDS));
+        assertTrue(connection.isSubscribed());
+
+        house.send("SU:TR=71;LS=1.");
+        assertTrue(waitFor(() -> pushed.size() == 1));
+        assertEquals(71, pushed.get(0).getState().get(IoTValues.TEMP_READING));
+
+        CompletableFuture<HouseFrame> reply = CompletableFuture.supplyAsync(() -> connection.request(getState()));
+        assertEquals(IoTValues.GET_STATE, house.next());
+        house.send("SU:TR=72;LS=1.");
+        assertEquals(72, reply.get(5, TimeUnit.SECONDS).getState().get(IoTValues.TEMP_READING));
+        assertEquals(1, pushed.size());
+
+        // other replies are never mistaken for pushes
+        reply = CompletableFuture.supplyAsync(() -> connection.request(new HouseFrame(IoTValues.SET_STATE,
+                Collections.singletonMap(IoTValues.LIGHT_STATE, false))));
+        assertTrue(house.next().startsWith(IoTValues.SET_STATE));
+        house.send("OK.");
+        assertTrue(reply.get(5, TimeUnit.SECONDS).is(IoTValues.OK));
+        assertEquals(1, pushed.size());
+    }
+
+    @Test
+    /**
+     * A GS that is given up on does not leave the connection waiting for a state, so the next update the
+     * house pushes still reaches the listener
+     */
+    public void anAbandonedGetStateDoesNotSwallowTheNextPush() throws Exception {
+        List<HouseFrame> pushed = new CopyOnWriteArrayList<>();
+        CompletableFuture<Boolean> subscribed = CompletableFuture.supplyAsync(() -> connection.subscribe(pushed::add));
+        assertEquals(IoTValues.SUBSCRIBE, house.next());
+        house.send("OK.");
+        assertTrue(subscribed.get(5, TimeUnit.SECONDS));
+
+        // the house never answers, and the poll is given up on
+        Thread poller = new Thread(() -> connection.request(getState()));
+        poller.start();
+        assertEquals(IoTValues.GET_STATE, house.next());
+        poller.interrupt();
+        poller.join(5000);
+        assertFalse(poller.isAlive());
+
+        house.send("SU:TR=73;LS=1.");
+        assertTrue(waitFor(() -> pushed.size() == 1));
+        assertEquals(73, pushed.get(0).getState().get(IoTValues.TEMP_READING));
+    }
+
+    @Test
+    /**
+     * An old house ignores SUB. The handshake gives up after a short wait, and the house is polled on the
+     * same connection as before
+     */
+    public void aHouseThatIgnoresSubIsPolled() throws Exception {
+        long started = System.currentTimeMillis();
+        assertFalse(connection.subscribe(frame -> { }));
+        assertTrue(System.currentTimeMillis() - started < 5000);
+        assertEquals(IoTValues.SUBSCRIBE, house.next());
+        assertFalse(connection.isSubscribed());
+        assertTrue(connection.isConnected());
+
+        CompletableFuture<HouseFrame> reply = CompletableFuture.supplyAsync(() -> connection.request(getState()));
+        assertEquals(IoTValues.GET_STATE, house.next());
+        house.send("SU:TR=74;LS=0.");
+        assertEquals(74, reply.get(5, TimeUnit.SECONDS).getState().get(IoTValues.TEMP_READING));
+    }
+
+    private static HouseFrame getState() {
+        return new HouseFrame(IoTValues.GET_STATE);
+    }
+
+    private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * A house the test speaks for: it hands over each request the house gets and sends whatever line it is
+     * told to
+     */
+    private static class ScriptedHouse {
+        private final ServerSocket server;
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+
+        ScriptedHouse() throws IOException {
+            server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        }
+
+        int getPort() {
+            return server.getLocalPort();
+        }
+
+        void accept() throws IOException {
+            socket = server.accept();
+            socket.setSoTimeout(5000);
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+        }
+
+        /**
+         * @return the next request, without its '.'
+         */
+        String next() throws IOException {
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            int c;
+            while ((c = in.read()) != -1 && c != '.') {
+                request.write(c);
+            }
+            return request.toString(StandardCharsets.US_ASCII.name());
+        }
+
+        void send(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+
+        void close() throws IOException {
+            if (socket != null) {
+                socket.close();
+            }
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import tartan.smarthome.resources.StaticTartanStateEvaluator;
+import tartan.smarthome.resources.iotcontroller.FixedPollPolicy;
+import tartan.smarthome.resources.iotcontroller.IoTControlManager;
+import tartan.smarthome.resources.iotcontroller.IoTValues;
+import tartan.smarthome.resources.iotcontroller.ShardedRuntime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Test class to check that the state version of a house only moves when there is something new to read.
+ */
+public class IoTControlManagerTest {
+
+    private static final String USER = "quiet-user";
+    private static final String PASSWORD = "quiet-password";
+
+    private ShardedRuntime runtime;
+    private FakeHouse house;
+    private IoTControlManager controller;
+
+    @BeforeEach
+    public void connect() throws Exception {
+        runtime = new ShardedRuntime(1, 1, false);
+        house = new FakeHouse(false);
+        controller = new IoTControlManager(USER, PASSWORD, new StaticTartanStateEvaluator(),
+                runtime.assign(USER));
+        Map<String, Object> settings = new Hashtable<>();
+        settings.put(IoTValues.ALARM_DELAY, 5);
+        settings.put(IoTValues.TARGET_TEMP, 70);
+        settings.put(IoTValues.ALARM_PASSCODE, "1234");
+        settings.put(IoTValues.LOCKED_PASSCODE, "5678");
+        controller.updateSettings(settings);
+        controller.setPollPolicy(new FixedPollPolicy(1));
+        assertTrue(controller.connectToHouse("127.0.0.1", house.getPort(), USER, PASSWORD));
+    }
+
+    @AfterEach
+    public void disconnect() throws Exception {
+        controller.disconnectFromHouse().get(5, TimeUnit.SECONDS);
+        runtime.stop();
+        house.close();
+    }
+
+    @Test
+    /**
+     * Once the house has settled, polls that find nothing new leave the version and the log alone, so
+     * cached answers stay good. The next real change moves the version again
+     */
+    public void aQuietHouseKeepsItsVersion() throws Exception {
+        // the SUB handshake times out before polling starts, then let the house settle
+        assertTrue(waitFor(() -> house.getPolls() >= 3, 10000));
+        long version = controller.getStateVersion();
+        int logged = controller.getLogMessages().size();
+        int polls = house.getPolls();
+
+        assertTrue(waitFor(() -> house.getPolls() >= polls + 3, 10000));
+        assertEquals(version, controller.getStateVersion());
+        assertEquals(logged, controller.getLogMessages().size());
+
+        house.set(IoTValues.TEMP_READING, "65");
+        assertTrue(waitFor(() -> controller.getStateVersion() > version
+                && controller.getLogMessages().size() > logged, 5000));
+    }
+
+    private static boolean waitFor(BooleanSupplier condition, long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    /**
+     * A house that speaks the text protocol: it answers GS with its state and applies SS. It answers SUB
+     * with OK if it is subscribable, and ignores it otherwise, like an old house
+     */
+    static class FakeHouse {
+
+        private final ServerSocket server;
+        private final boolean subscribable;
+        private final Map<String, String> state = new LinkedHashMap<>();
+        private final AtomicInteger polls = new AtomicInteger();
+        private volatile OutputStream out;
+
+        FakeHouse(boolean subscribable) throws IOException {
+            this.subscribable = subscribable;
+            state.put(IoTValues.TEMP_READING, "70");
+            state.put(IoTValues.HUMIDITY_READING, "40");
+            state.put(IoTValues.DOOR_STATE, IoTValues.DOOR_CLOSE);
+            state.put(IoTValues.LIGHT_STATE, IoTValues.LIGHT_ON);
+            state.put(IoTValues.PROXIMITY_STATE, "1");
+            state.put(IoTValues.ALARM_STATE, "0");
+            state.put(IoTValues.ALARM_ACTIVE, IoTValues.ALARM_OFF);
+            state.put(IoTValues.HEATER_STATE, IoTValues.HEATER_OFF);
+            state.put(IoTValues.CHILLER_STATE, IoTValues.CHILLER_OFF);
+            state.put(IoTValues.HVAC_MODE, "1");
+            state.put(IoTValues.HUMIDIFIER_STATE, IoTValues.HUMIDIFIER_OFF);
+            server = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+            Thread acceptor = new Thread(this::accept, "fake-house");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return server.getLocalPort();
+        }
+
+        /**
+         * @return how many GS requests the house has answered
+         */
+        int getPolls() {
+            return polls.get();
+        }
+
+        /**
+         * Change a reading, as a sensor would
+         * @param key the reading
+         * @param value its new value
+         */
+        synchronized void set(String key, String value) {
+            state.put(key, value);
+        }
+
+        void close() throws IOException {
+            server.close();
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    Socket socket = server.accept();
+                    Thread reader = new Thread(() -> serve(socket), "fake-house-connection");
+                    reader.setDaemon(true);
+                    reader.start();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        private void serve(Socket socket) {
+            try (Socket s = socket) {
+                out = s.getOutputStream();
+                InputStream in = s.getInputStream();
+                String request;
+                while ((request = readRequest(in)) != null) {
+                    if (request.equals(IoTValues.GET_STATE)) {
+                        polls.incrementAndGet();
+                        send(stateUpdate());
+                    } else if (request.startsWith(IoTValues.SET_STATE + IoTValues.MSG_DELIM)) {
+                        apply(request.substring(IoTValues.SET_STATE.length() + 1));
+                        send(IoTValues.OK + IoTValues.MSG_END);
+                    } else if (request.equals(IoTValues.SUBSCRIBE)) {
+                        if (subscribable) {
+                            send(IoTValues.OK + IoTValues.MSG_END);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // the controller went away
+            }
+        }
+
+        private synchronized void apply(String body) {
+            for (String pair : body.split(IoTValues.PARAM_DELIM)) {
+                String[] kv = pair.split(IoTValues.PARAM_EQ);
+                if (kv.length == 2 && state.containsKey(kv[0])) {
+                    state.put(kv[0], kv[1]);
+                }
+            }
+        }
+
+        private synchronized String stateUpdate() {
+            StringBuilder update = new StringBuilder(IoTValues.STATE_UPDATE + IoTValues.MSG_DELIM);
+            for (Map.Entry<String, String> e : state.entrySet()) {
+                if (update.length() > 3) {
+                    update.append(IoTValues.PARAM_DELIM);
+                }
+                update.append(e.getKey()).append(IoTValues.PARAM_EQ).append(e.getValue());
+            }
+            return update.append(IoTValues.MSG_END).toString();
+        }
+
+        private synchronized void send(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+
+        private static String readRequest(InputStream in) throws IOException {
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '.') {
+                    return request.toString(StandardCharsets.US_ASCII.name());
+                }
+                request.write(c);
+            }
+            return null;
+        }
+    }
+}
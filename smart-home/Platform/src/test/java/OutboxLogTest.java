@@ -0,0 +1,106 @@
+import org.junit.jupiter.api.Test;
+import tartan.smarthome.outbox.OutboxLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test class to check that the outbox log keeps its records in order across segments and restarts, and
+ * deletes old segments by size and by age.
+ */
+public class OutboxLogTest {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    private static byte[] record(int i) {
+        return ("{\"record\":" + i + "}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(OutboxLog.Entry entry) {
+        return new String(entry.getPayload(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    /**
+     * Records are read back by offset from any segment, and from the files after a restart
+     */
+    public void readsByOffset() throws IOException {
+        File directory = Files.createTempDirectory("outbox").toFile();
+        AtomicLong clock = new AtomicLong(1000);
+        OutboxLog log = new OutboxLog(directory, 16384, Long.MAX_VALUE, DAY, clock::get);
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i, log.append(record(i)));
+        }
+        assertTrue(log.getSegmentCount() > 5);
+
+        List<OutboxLog.Entry> entries = log.read(3210, 3);
+        assertEquals(3, entries.size());
+        assertEquals(3210, entries.get(0).getOffset());
+        assertEquals("{\"record\":3212}", text(entries.get(2)));
+        assertEquals(1000, entries.get(0).getTime());
+        assertEquals(0, log.read(5000, 10).size());
+
+        OutboxLog reopened = new OutboxLog(directory, 16384, Long.MAX_VALUE, DAY, clock::get);
+        assertEquals(5000, reopened.getEndOffset());
+        assertEquals("{\"record\":4999}", text(reopened.read(4999, 10).get(0)));
+        assertEquals(5000, reopened.append(record(5000)));
+        assertEquals(2, reopened.read(4999, 10).size());
+    }
+
+    @Test
+    /**
+     * A record cut short by a crash is dropped when the log is opened again, and the next record takes its place
+     */
+    public void recoversFromTornRecord() throws IOException {
+        File directory = Files.createTempDirectory("outbox").toFile();
+        OutboxLog log = new OutboxLog(directory, 16384, Long.MAX_VALUE, DAY, System::currentTimeMillis);
+        for (int i = 0; i < 10; i++) {
+            log.append(record(i));
+        }
+
+        // damage the last record's data
+        File segment = new File(directory, String.format("%020d.log", 0));
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            long last = 9L * (24 + record(0).length) + 24;
+            raf.seek(last);
+            raf.write('X');
+        }
+
+        OutboxLog reopened = new OutboxLog(directory, 16384, Long.MAX_VALUE, DAY, System::currentTimeMillis);
+        assertEquals(9, reopened.getEndOffset());
+        assertEquals(9, reopened.append(record(99)));
+        assertEquals("{\"record\":99}", text(reopened.read(9, 1).get(0)));
+    }
+
+    @Test
+    /**
+     * Old segments are deleted once the log is too big or they are too old, but never the newest one
+     */
+    public void deletesOldSegments() throws IOException {
+        File directory = Files.createTempDirectory("outbox").toFile();
+        AtomicLong clock = new AtomicLong(0);
+        OutboxLog log = new OutboxLog(directory, 4096, 16384, DAY, clock::get);
+        for (int i = 0; i < 2000; i++) {
+            log.append(record(i));
+        }
+        // the size is checked as each segment fills, so the newest segment may take the log past it
+        assertTrue(log.getBytes() <= 16384 + 4096);
+        assertTrue(log.getStartOffset() > 0);
+        assertEquals(log.getStartOffset(), log.read(0, 1).get(0).getOffset());
+
+        clock.addAndGet(2 * DAY);
+        log.enforceRetention();
+        assertEquals(1, log.getSegmentCount());
+        assertEquals(1, directory.listFiles((dir, name) -> name.endsWith(".log")).length);
+        assertEquals(2000, log.getEndOffset());
+    }
+}
@@ -0,0 +1,91 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import tartan.smarthome.resources.iotcontroller.AdaptivePollPolicy;
+import tartan.smarthome.resources.iotcontroller.FixedPollPolicy;
+import tartan.smarthome.resources.iotcontroller.IoTValues;
+import tartan.smarthome.resources.iotcontroller.PollPolicy;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test class to check that a fixed policy always polls at its interval, and that the adaptive policy backs
+ * off from a quiet house and comes straight back when it changes or its alarm is armed.
+ */
+public class PollPolicyTest {
+
+    private static Map<String, Object> house(boolean occupied, boolean armed) {
+        Map<String, Object> state = new HashMap<>();
+        state.put(IoTValues.PROXIMITY_STATE, occupied);
+        state.put(IoTValues.ALARM_STATE, armed);
+        state.put(IoTValues.ALARM_ACTIVE, false);
+        return state;
+    }
+
+    @Test
+    /**
+     * The interval is the same whatever the house does
+     */
+    public void aFixedPolicyKeepsItsInterval() {
+        PollPolicy policy = new FixedPollPolicy(5);
+        assertEquals(5, policy.nextPollSeconds(true, house(true, false)));
+        assertEquals(5, policy.nextPollSeconds(false, house(false, true)));
+        assertEquals(5, policy.nextPollSeconds(false, new HashMap<>()));
+    }
+
+    @Test
+    /**
+     * An occupied house that stops changing is polled half as often after each quiet poll, up to the
+     * maximum, and at the minimum again as soon as it changes
+     */
+    public void aQuietHouseBacksOffAndAChangeResets() {
+        PollPolicy policy = new AdaptivePollPolicy(2, 20);
+        Map<String, Object> home = house(true, false);
+        assertEquals(2, policy.nextPollSeconds(true, home));
+        assertEquals(4, policy.nextPollSeconds(false, home));
+        assertEquals(8, policy.nextPollSeconds(false, home));
+        assertEquals(16, policy.nextPollSeconds(false, home));
+        assertEquals(20, policy.nextPollSeconds(false, home));
+        assertEquals(20, policy.nextPollSeconds(false, home));
+
+        assertEquals(2, policy.nextPollSeconds(true, home));
+        assertEquals(4, policy.nextPollSeconds(false, home));
+    }
+
+    @Test
+    /**
+     * An empty house goes to the maximum after its second quiet poll, but an armed one, or one whose alarm
+     * is sounding, stays at the minimum
+     */
+    public void vacantAndArmedHouses() {
+        PollPolicy vacant = new AdaptivePollPolicy(2, 30);
+        Map<String, Object> empty = house(false, false);
+        assertEquals(4, vacant.nextPollSeconds(false, empty));
+        assertEquals(30, vacant.nextPollSeconds(false, empty));
+
+        PollPolicy armed = new AdaptivePollPolicy(2, 30);
+        Map<String, Object> guarded = house(false, true);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(2, armed.nextPollSeconds(false, guarded));
+        }
+        Map<String, Object> sounding = house(true, false);
+        sounding.put(IoTValues.ALARM_ACTIVE, true);
+        assertEquals(2, armed.nextPollSeconds(false, sounding));
+
+        // a house that has not reported yet is neither armed nor vacant
+        PollPolicy unknown = new AdaptivePollPolicy(2, 30);
+        assertEquals(4, unknown.nextPollSeconds(false, new HashMap<>()));
+        assertEquals(8, unknown.nextPollSeconds(false, new HashMap<>()));
+    }
+
+    @Test
+    /**
+     * A maximum below the minimum is raised to it
+     */
+    public void theMaximumIsAtLeastTheMinimum() {
+        PollPolicy policy = new AdaptivePollPolicy(10, 5);
+        assertEquals(10, policy.nextPollSeconds(false, house(true, false)));
+        assertEquals(10, policy.nextPollSeconds(false, house(false, false)));
+    }
+}
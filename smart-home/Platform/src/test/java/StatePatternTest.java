@@ -0,0 +1,170 @@
+import org.junit.jupiter.api.Test;
+import tartan.smarthome.patterns.ChangePattern;
+import tartan.smarthome.patterns.CountPattern;
+import tartan.smarthome.patterns.HeldPattern;
+import tartan.smarthome.patterns.PatternEngine;
+import tartan.smarthome.patterns.PatternMatch;
+import tartan.smarthome.resources.iotcontroller.FleetStateTable;
+import tartan.smarthome.resources.iotcontroller.HashedWheelTimer;
+import tartan.smarthome.resources.iotcontroller.IoTValues;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Test class to check that state patterns match the way a house changes over time.
+ */
+public class StatePatternTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Write a house's state
+     */
+    private static void write(FleetStateTable table, long handle, Object... values) {
+        Map<String, Object> state = new Hashtable<>();
+        for (int i = 0; i < values.length; i += 2) {
+            state.put((String) values[i], values[i + 1]);
+        }
+        table.write(handle, state, true, 1);
+    }
+
+    @Test
+    /**
+     * A door left open while vacant matches once when the time is up, and again only after it was shut
+     */
+    public void matchesConditionHeld() {
+        FleetStateTable table = new FleetStateTable();
+        AtomicLong clock = new AtomicLong(1_000_000);
+        HashedWheelTimer timer = new HashedWheelTimer(1000, 64);
+        PatternEngine engine = new PatternEngine(table, Collections.singletonList(
+                new HeldPattern("door-open-while-vacant", "doorOpen and vacant", 10 * MINUTE)),
+                timer, clock::get);
+        List<PatternMatch> matches = new CopyOnWriteArrayList<>();
+        engine.addMatchListener(matches::add);
+
+        long house = table.allocate("mse");
+        write(table, house, IoTValues.DOOR_STATE, true, IoTValues.PROXIMITY_STATE, false);
+        clock.addAndGet(9 * MINUTE);
+        write(table, house, IoTValues.DOOR_STATE, true, IoTValues.PROXIMITY_STATE, false);
+        assertEquals(0, matches.size());
+
+        clock.addAndGet(2 * MINUTE);
+        write(table, house, IoTValues.DOOR_STATE, true, IoTValues.PROXIMITY_STATE, false);
+        clock.addAndGet(MINUTE);
+        write(table, house, IoTValues.DOOR_STATE, true, IoTValues.PROXIMITY_STATE, false);
+        assertEquals(1, matches.size());
+        assertEquals("mse", matches.get(0).getHouse());
+        assertEquals("door-open-while-vacant", matches.get(0).getPattern());
+
+        write(table, house, IoTValues.DOOR_STATE, false, IoTValues.PROXIMITY_STATE, false);
+        write(table, house, IoTValues.DOOR_STATE, true, IoTValues.PROXIMITY_STATE, false);
+        clock.addAndGet(11 * MINUTE);
+        write(table, house, IoTValues.DOOR_STATE, true, IoTValues.PROXIMITY_STATE, false);
+        assertEquals(2, matches.size());
+        engine.stop();
+    }
+
+    @Test
+    /**
+     * A condition that holds matches when its time is up, even if the house does not change again
+     */
+    public void matchesWithoutAnotherChange() throws InterruptedException {
+        FleetStateTable table = new FleetStateTable();
+        PatternEngine engine = new PatternEngine(table, Collections.singletonList(
+                new HeldPattern("alarm", "alarmActive", 50)),
+                new HashedWheelTimer(10, 64), System::currentTimeMillis);
+        List<PatternMatch> matches = new CopyOnWriteArrayList<>();
+        engine.addMatchListener(matches::add);
+
+        write(table, table.allocate("mse"), IoTValues.ALARM_ACTIVE, true);
+        for (int i = 0; i < 100 && matches.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, matches.size());
+        engine.stop();
+    }
+
+    @Test
+    /**
+     * A fall is measured from the highest reading in the window, and one that takes too long is missed
+     */
+    public void matchesFallWithinWindow() {
+        FleetStateTable table = new FleetStateTable();
+        AtomicLong clock = new AtomicLong(0);
+        PatternEngine engine = new PatternEngine(table, Collections.singletonList(
+                new ChangePattern("cold", FleetStateTable.Reading.TEMPERATURE, 5, 15 * MINUTE, true)),
+                new HashedWheelTimer(1000, 64), clock::get);
+        List<PatternMatch> matches = new CopyOnWriteArrayList<>();
+        engine.addMatchListener(matches::add);
+
+        // a slow fall of a degree every 5 minutes
+        long slow = table.allocate("slow");
+        for (int t = 72; t >= 62; t--) {
+            write(table, slow, IoTValues.TEMP_READING, t);
+            clock.addAndGet(5 * MINUTE);
+        }
+        assertEquals(0, matches.size());
+
+        // a fast one, after a long steady spell reported only once
+        long fast = table.allocate("fast");
+        write(table, fast, IoTValues.TEMP_READING, 72);
+        clock.addAndGet(60 * MINUTE);
+        write(table, fast, IoTValues.TEMP_READING, 70);
+        clock.addAndGet(5 * MINUTE);
+        write(table, fast, IoTValues.TEMP_READING, 66);
+        assertEquals(1, matches.size());
+        assertEquals("temperature fell from 72 to 66 within 15 minutes", matches.get(0).getDescription());
+        engine.stop();
+    }
+
+    @Test
+    /**
+     * Only the times a condition starts to hold are counted, and only within the window
+     */
+    public void countsTimesConditionStarts() {
+        FleetStateTable table = new FleetStateTable();
+        AtomicLong clock = new AtomicLong(0);
+        PatternEngine engine = new PatternEngine(table, Arrays.asList(
+                new CountPattern("rearmed", "alarmArmed", 3, 60 * MINUTE)),
+                new HashedWheelTimer(1000, 64), clock::get);
+        List<PatternMatch> matches = new CopyOnWriteArrayList<>();
+        engine.addMatchListener(matches::add);
+
+        long house = table.allocate("mse");
+        write(table, house, IoTValues.ALARM_STATE, true);
+        for (int i = 0; i < 3; i++) {
+            clock.addAndGet(10 * MINUTE);
+            write(table, house, IoTValues.ALARM_STATE, false);
+            write(table, house, IoTValues.ALARM_STATE, true);
+            write(table, house, IoTValues.ALARM_STATE, true);
+        }
+        assertEquals(0, matches.size());
+
+        clock.addAndGet(10 * MINUTE);
+        write(table, house, IoTValues.ALARM_STATE, false);
+        write(table, house, IoTValues.ALARM_STATE, true);
+        assertEquals(1, matches.size());
+
+        // after a match the count starts again, and old arms fall out of the window
+        for (int i = 0; i < 4; i++) {
+            clock.addAndGet(20 * MINUTE);
+            write(table, house, IoTValues.ALARM_STATE, false);
+            write(table, house, IoTValues.ALARM_STATE, true);
+        }
+        assertEquals(1, matches.size());
+
+        table.free(house);
+        assertEquals(0, engine.getHouseCount());
+        assertEquals(1, engine.getMatchCount());
+        engine.stop();
+    }
+}
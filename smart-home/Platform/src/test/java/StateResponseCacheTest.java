@@ -0,0 +1,118 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.dropwizard.views.freemarker.FreemarkerViewRenderer;
+import tartan.smarthome.core.TartanHome;
+import tartan.smarthome.views.StateResponseCache;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Test class to check that a house is only encoded again when its state version changes.
+ */
+public class StateResponseCacheTest {
+
+    private final AtomicInteger builds = new AtomicInteger();
+
+    /**
+     * Creates a state and counts how often it was needed.
+     *
+     * @return a supplier for the state
+     */
+    public Supplier<TartanHome> countingState() {
+        return () -> {
+            builds.incrementAndGet();
+            TartanHome home = new TartanHome();
+            home.setName("mse");
+            home.setTemperature("70");
+            return home;
+        };
+    }
+
+    @Test
+    /**
+     * Requests for the same version get the same bytes without building the state again
+     */
+    public void sameVersionIsServedFromTheCache() {
+        StateResponseCache cache = new StateResponseCache(new ObjectMapper(), new FreemarkerViewRenderer(),
+                new MetricRegistry());
+
+        byte[] first = cache.getJson("mse", 1, countingState());
+        byte[] second = cache.getJson("mse", 1, countingState());
+
+        assertSame(first, second);
+        assertEquals(1, builds.get());
+    }
+
+    @Test
+    /**
+     * A new version replaces the cached entry
+     */
+    public void newVersionIsEncodedAgain() {
+        StateResponseCache cache = new StateResponseCache(new ObjectMapper(), new FreemarkerViewRenderer(),
+                new MetricRegistry());
+
+        byte[] first = cache.getJson("mse", 1, countingState());
+        byte[] second = cache.getJson("mse", 2, countingState());
+        byte[] third = cache.getJson("mse", 2, countingState());
+
+        assertNotSame(first, second);
+        assertSame(second, third);
+        assertEquals(2, builds.get());
+    }
+
+    @Test
+    /**
+     * A projection holds only the fields asked for, and is built without the full state
+     */
+    public void projectionHasOnlyTheFieldsAskedFor() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        StateResponseCache cache = new StateResponseCache(mapper, new FreemarkerViewRenderer(),
+                new MetricRegistry());
+
+        Set<String> fields = new HashSet<>(Arrays.asList("name", "temperature"));
+        byte[] json = cache.getJson("mse", 1, fields, wanted -> countingState().get());
+        Map<?, ?> decoded = mapper.readValue(json, Map.class);
+
+        assertEquals(fields, decoded.keySet());
+        assertEquals("70", decoded.get("temperature"));
+        assertSame(json, cache.getJson("mse", 1, fields, wanted -> countingState().get()));
+        assertEquals(1, builds.get());
+    }
+
+    @Test
+    /**
+     * A client with a kept version gets only what changed since then, and a client with a version that is
+     * not kept gets nothing, so it can be sent the whole house
+     */
+    public void patchHoldsOnlyTheChanges() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        StateResponseCache cache = new StateResponseCache(mapper, new FreemarkerViewRenderer(),
+                new MetricRegistry());
+        Set<String> fields = new HashSet<>(Arrays.asList("name", "temperature", "humidity"));
+
+        cache.getJson("mse", 1, fields, wanted -> countingState().get());
+        byte[] patch = cache.getPatch("mse", 2, 1, fields, wanted -> {
+            TartanHome home = countingState().get();
+            home.setTemperature("72");
+            home.setHumidity("40");
+            return home;
+        });
+        Map<?, ?> decoded = mapper.readValue(patch, Map.class);
+
+        assertEquals(2, decoded.size());
+        assertEquals("72", decoded.get("temperature"));
+        assertEquals("40", decoded.get("humidity"));
+        assertNull(cache.getPatch("mse", 2, 0, fields, wanted -> countingState().get()));
+    }
+}
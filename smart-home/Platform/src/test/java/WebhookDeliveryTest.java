@@ -0,0 +1,222 @@
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+import tartan.smarthome.core.TartanOutboxRecord;
+import tartan.smarthome.core.TartanWebhookBatch;
+import tartan.smarthome.outbox.Outbox;
+import tartan.smarthome.outbox.OutboxLog;
+import tartan.smarthome.resources.iotcontroller.IoTValues;
+import tartan.smarthome.webhooks.WebhookService;
+import tartan.smarthome.webhooks.WebhookSubscription;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test class to check that webhooks get the events they subscribe to in batches, no more at once than
+ * allowed, that failed posts are retried and delivery carries on from where it got to after a restart, and
+ * that posts the webhook rejects are dropped.
+ */
+public class WebhookDeliveryTest {
+
+    /**
+     * A local receiver that keeps every batch it takes
+     */
+    private static class Receiver {
+        final HttpServer server;
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        final List<TartanWebhookBatch> batches = new CopyOnWriteArrayList<>();
+        final AtomicInteger inProgress = new AtomicInteger();
+        final AtomicInteger maxInProgress = new AtomicInteger();
+        final AtomicInteger failuresLeft;
+
+        Receiver(int latencyMillis, int failures) throws IOException {
+            this(latencyMillis, failures, 500);
+        }
+
+        Receiver(int latencyMillis, int failures, int failureStatus) throws IOException {
+            failuresLeft = new AtomicInteger(failures);
+            ObjectMapper mapper = new ObjectMapper();
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.setExecutor(executor);
+            server.createContext("/hook", exchange -> {
+                maxInProgress.accumulateAndGet(inProgress.incrementAndGet(), Math::max);
+                try (InputStream in = exchange.getRequestBody()) {
+                    TartanWebhookBatch batch = mapper.readValue(in, TartanWebhookBatch.class);
+                    Thread.sleep(latencyMillis);
+                    if (failuresLeft.getAndDecrement() > 0) {
+                        exchange.sendResponseHeaders(failureStatus, -1);
+                    } else {
+                        batches.add(batch);
+                        exchange.sendResponseHeaders(204, -1);
+                    }
+                } catch (InterruptedException e) {
+                    exchange.sendResponseHeaders(503, -1);
+                } finally {
+                    inProgress.decrementAndGet();
+                    exchange.close();
+                }
+            });
+            server.start();
+        }
+
+        URI url() {
+            return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/hook");
+        }
+
+        void stop() {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+
+        int events() {
+            return batches.stream().mapToInt(b -> b.getEvents().size()).sum();
+        }
+    }
+
+    private static Outbox outbox(File directory) {
+        return new Outbox(new OutboxLog(directory, 1 << 20, Long.MAX_VALUE, TimeUnit.DAYS.toMillis(1),
+                System::currentTimeMillis));
+    }
+
+    private static void await(BooleanSupplier done) throws InterruptedException {
+        for (int i = 0; i < 500 && !done.getAsBoolean(); i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    /**
+     * Only the events for the subscribed houses and types are posted, in batches no larger than allowed
+     */
+    public void postsSubscribedEventsInBatches() throws Exception {
+        File directory = Files.createTempDirectory("webhooks").toFile();
+        Outbox outbox = outbox(directory);
+        Receiver receiver = new Receiver(20, 0);
+        WebhookSubscription subscription = new WebhookSubscription("alarms", receiver.url(),
+                Collections.singleton("mse"), new HashSet<>(Arrays.asList(WebhookSubscription.ALARM,
+                WebhookSubscription.PATTERN)), 50, 10, 2, 5000, 10, 100);
+        WebhookService webhooks = new WebhookService(outbox, Collections.singletonList(subscription),
+                new File(directory, "webhooks"), new ObjectMapper(), new MetricRegistry());
+        webhooks.start();
+
+        for (int i = 0; i < 30; i++) {
+            outbox.stateChanged("mse", Collections.singletonMap(IoTValues.ALARM_ACTIVE, i % 2 == 0));
+            outbox.stateChanged("mse", Collections.singletonMap(IoTValues.TEMP_READING, 70 + i));
+            outbox.stateChanged("other", Collections.singletonMap(IoTValues.ALARM_ACTIVE, true));
+        }
+        outbox.patternMatched("mse", "cold", "temperature fell from 72 to 66 within 15 minutes");
+        await(() -> webhooks.getLag("alarms") == 0 && webhooks.getDelivered("alarms") >= 31);
+        webhooks.stop();
+        receiver.stop();
+
+        assertEquals(31, receiver.events());
+        assertEquals(31, webhooks.getDelivered("alarms"));
+        assertEquals(0, webhooks.getLag("alarms"));
+        assertTrue(receiver.maxInProgress.get() <= 2);
+        Set<Long> offsets = new HashSet<>();
+        int patterns = 0;
+        for (TartanWebhookBatch batch : receiver.batches) {
+            assertEquals("alarms", batch.getWebhook());
+            assertTrue(batch.getEvents().size() <= 10);
+            for (TartanOutboxRecord event : batch.getEvents()) {
+                assertEquals("mse", event.getHouse());
+                offsets.add(event.getOffset());
+                patterns += Outbox.PATTERN.equals(event.getType()) ? 1 : 0;
+            }
+        }
+        assertEquals(31, offsets.size());
+        assertEquals(1, patterns);
+    }
+
+    @Test
+    /**
+     * Failed posts are retried until they succeed, and after a restart only the events not yet posted are sent
+     */
+    public void retriesAndResumes() throws Exception {
+        File directory = Files.createTempDirectory("webhooks").toFile();
+        Outbox outbox = outbox(directory);
+        Receiver receiver = new Receiver(0, 3);
+        WebhookSubscription subscription = new WebhookSubscription("state", receiver.url(),
+                Collections.emptySet(), Collections.singleton(WebhookSubscription.STATE), 0, 100, 1, 5000, 10, 40);
+        File cursors = new File(directory, "webhooks");
+        WebhookService webhooks = new WebhookService(outbox, Collections.singletonList(subscription), cursors,
+                new ObjectMapper(), new MetricRegistry());
+        webhooks.start();
+        for (int i = 0; i < 5; i++) {
+            outbox.stateChanged("mse", Collections.singletonMap(IoTValues.TEMP_READING, 70 + i));
+        }
+        await(() -> webhooks.getLag("state") == 0 && webhooks.getDelivered("state") >= 5);
+        assertEquals(5, receiver.events());
+        assertTrue(webhooks.getFailures("state") >= 3);
+        webhooks.stop();
+
+        // events added while the webhooks are stopped are posted once they start again
+        for (int i = 0; i < 3; i++) {
+            outbox.stateChanged("mse", Collections.singletonMap(IoTValues.HUMIDITY_READING, 40 + i));
+        }
+        WebhookService restarted = new WebhookService(outbox, Collections.singletonList(subscription), cursors,
+                new ObjectMapper(), new MetricRegistry());
+        assertEquals(3, restarted.getLag("state"));
+        restarted.start();
+        await(() -> restarted.getLag("state") == 0 && restarted.getDelivered("state") >= 3);
+        restarted.stop();
+        receiver.stop();
+
+        assertEquals(8, receiver.events());
+        assertEquals(0, restarted.getLag("state"));
+        assertTrue(new File(cursors, "state.offset").exists());
+    }
+
+    @Test
+    /**
+     * A post the webhook rejects with a 400 would be rejected again, so it is dropped rather than retried and
+     * the events after it are still posted
+     */
+    public void rejectedPostsAreDropped() throws Exception {
+        File directory = Files.createTempDirectory("webhooks").toFile();
+        Outbox outbox = outbox(directory);
+        Receiver receiver = new Receiver(0, 1, 400);
+        WebhookSubscription subscription = new WebhookSubscription("state", receiver.url(),
+                Collections.emptySet(), Collections.singleton(WebhookSubscription.STATE), 0, 100, 1, 5000, 10, 40);
+        WebhookService webhooks = new WebhookService(outbox, Collections.singletonList(subscription),
+                new File(directory, "webhooks"), new ObjectMapper(), new MetricRegistry());
+        webhooks.start();
+        for (int i = 0; i < 2; i++) {
+            outbox.stateChanged("mse", Collections.singletonMap(IoTValues.TEMP_READING, 70 + i));
+        }
+        await(() -> webhooks.getLag("state") == 0 && webhooks.getDropped("state") > 0);
+        for (int i = 0; i < 2; i++) {
+            outbox.stateChanged("mse", Collections.singletonMap(IoTValues.HUMIDITY_READING, 40 + i));
+        }
+        await(() -> webhooks.getLag("state") == 0
+                && webhooks.getDropped("state") + webhooks.getDelivered("state") == 4);
+        webhooks.stop();
+        receiver.stop();
+
+        assertTrue(webhooks.getDropped("state") >= 1);
+        assertEquals(4, webhooks.getDropped("state") + webhooks.getDelivered("state"));
+        assertEquals(webhooks.getDelivered("state"), receiver.events());
+        assertEquals(0, webhooks.getFailures("state"));
+        assertEquals(0, webhooks.getLag("state"));
+    }
+}